@@ -0,0 +1,310 @@
+package com.asher_stern.crf.crf;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.asher_stern.crf.crf.filters.CompilableFilterFactory;
+import com.asher_stern.crf.crf.filters.CompiledFilters;
+import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
+import com.asher_stern.crf.crf.filters.Filter;
+import com.asher_stern.crf.utilities.CrfException;
+
+/**
+ * An immutable form of a {@link CrfModel}, for inference only, in which \sum_{i=0}^{k-1}{\theta_i*f_i(x,j,g,g')} (the log of
+ * \psi_j(g,g'), see {@link CrfInferenceViterbi}) is not calculated from the features, but read from two tables of primitive doubles,
+ * which are calculated once, when the model is compiled:
+ * <UL>
+ * <LI>The transition scores: for each tag g' (including the null tag, which precedes the first token) and tag g, the weighted
+ * sum of the features which do not examine the token.</LI>
+ * <LI>The emission scores: for each token-id (see {@link CompiledFilters}) and tag g, the weighted sum of the features which
+ * examine the token (and do not examine the previous tag).</LI>
+ * </UL>
+ * So \sum_{i=0}^{k-1}{\theta_i*f_i(x,j,g,g')} = transition(g',g) + emission(x_j,g).
+ * <BR>
+ * This holds only if the {@link com.asher_stern.crf.crf.filters.FilterFactory} of the model compiles its filters, and its keys are
+ * separable (see {@link CompilableFilterFactory#hasSeparableFilterKeys()}), and every feature returns 1.0 when
+ * it is not filtered (see {@link CrfFilteredFeature#isWhenNotFilteredIsAlwaysOne()}). Use {@link #canCompile(CrfModel)} to find
+ * whether a model can be compiled.
+ * <P>
+ * Once compiled, the scores are never changed, and the object can be used by any number of threads concurrently.
+ * The only mutable state is the statistics of the emission table (see {@link #getEmissionHitRate()}), which are thread safe.
+ * The tags, and the transitions they permit (including the tag dictionary, if any), are those of the {@link CrfTags} of the model.
+ * Sentences are encoded by the compiled filters of the model (see {@link CompiledFilters#encodeSentence(Object[])}), which are only read.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> token type - must implement equals() and hashCode()
+ * @param <G> tag type - must implement equals() and hashCode()
+ */
+public class CompiledCrfModel<K, G>
+{
+	/**
+	 * Returns true if the given model can be compiled (see the class documentation).
+	 */
+	public static <K, G> boolean canCompile(CrfModel<K, G> model)
+	{
+		CrfFeaturesAndFilters<K, G> features = model.getFeatures();
+		if (!(features.getFilterFactory() instanceof CompilableFilterFactory)) {return false;}
+		if (!((CompilableFilterFactory<K, G>) features.getFilterFactory()).hasSeparableFilterKeys()) {return false;}
+		if (!features.getCompiledFilters(model.getCrfTags()).isCompiled()) {return false;}
+		for (CrfFilteredFeature<K, G> feature : features.getFilteredFeatures())
+		{
+			if (!feature.isWhenNotFilteredIsAlwaysOne()) {return false;}
+		}
+		return true;
+	}
+
+	/**
+	 * Compiles the given model. The model must not be changed afterwards.
+	 * @throws CrfException if the model cannot be compiled (see {@link #canCompile(CrfModel)}).
+	 */
+	public static <K, G> CompiledCrfModel<K, G> compile(CrfModel<K, G> model)
+	{
+		if (!canCompile(model)) {throw new CrfException("The model cannot be compiled. Its filters must be compiled and separable, and all its features must be one when not filtered.");}
+		return new CrfModelCompiler<K, G>(model).compile();
+	}
+
+
+	public CrfTags<G> getCrfTags()
+	{
+		return crfTags;
+	}
+
+	/**
+	 * Returns the given sentence encoded as token-ids. See {@link CompiledFilters#encodeSentence(Object[])}.
+	 */
+	public int[] encodeSentence(K[] sentence)
+	{
+		return compiledFilters.encodeSentence(sentence);
+	}
+
+	/**
+	 * Returns the weighted sum of the features which do not examine the token, for the given tag-id and previous-tag-id.
+	 * previousTagId can be {@link CrfTags#getNullTagId()}.
+	 */
+	public double getTransitionScore(int previousTagId, int tagId)
+	{
+		return transitionScores[previousTagId*numberOfTags+tagId];
+	}
+
+	/**
+	 * Returns the weighted sum of the features which examine the token, for the given token-id and tag-id.
+	 * This is 0 for tokens which appear in no feature (e.g., {@link CompiledFilters#UNKNOWN_TOKEN_ID}).
+	 */
+	public double getEmissionScore(int tokenId, int tagId)
+	{
+		if (!hasEmissionScores(tokenId)) {return 0.0;}
+		return emissionScores[tokenId*numberOfTags+tagId];
+	}
+	
+	/**
+	 * Returns true if the given token-id has a row in the emission table. Token-ids which appear in no feature typically have no
+	 * row (their emission scores are all 0).
+	 */
+	public boolean hasEmissionScores(int tokenId)
+	{
+		return (tokenId>=0) && (tokenId<numberOfTokenIds);
+	}
+	
+	/**
+	 * Returns the number of tokens whose emission scores were looked up by the decoders of this model ({@link CrfInferenceViterbi},
+	 * {@link CrfInferenceKBestViterbi}, {@link CrfInferenceBeamSearch} and {@link CrfLogSpaceForwardBackward}), since this model was
+	 * compiled, or since {@link #resetEmissionStatistics()} was last called. The tokens of a sentence are counted once by each decoder
+	 * that decodes it, e.g., twice for a sentence which is tagged with marginals (by the Viterbi algorithm and by forward-backward).
+	 */
+	public long getNumberOfEmissionLookups()
+	{
+		return numberOfEmissionLookups.sum();
+	}
+	
+	/**
+	 * Returns the number of known tokens out of {@link #getNumberOfEmissionLookups()}, i.e., tokens which appear in some feature,
+	 * and so have a row in the emission table (see {@link #hasEmissionScores(int)}). The emission scores of the other tokens are all 0.
+	 * <BR>
+	 * Note that the emission table is precomputed for all the known tokens, so this is not the hit rate of a cache: every lookup
+	 * costs a single array access.
+	 */
+	public long getNumberOfKnownTokens()
+	{
+		return numberOfKnownTokens.sum();
+	}
+	
+	/**
+	 * Returns {@link #getNumberOfKnownTokens()} divided by {@link #getNumberOfEmissionLookups()}, or 0 if there were no lookups.
+	 */
+	public double getKnownTokenRate()
+	{
+		long lookups = getNumberOfEmissionLookups();
+		return (0==lookups)?0.0:((double)getNumberOfKnownTokens())/((double)lookups);
+	}
+	
+	public void resetEmissionStatistics()
+	{
+		numberOfEmissionLookups.reset();
+		numberOfKnownTokens.reset();
+	}
+	
+	/**
+	 * Adds the tokens of the given encoded sentence to the statistics of the emission table. Called once per decoded sentence.
+	 */
+	void recordEmissionLookups(int[] encodedSentence)
+	{
+		int knownTokens = 0;
+		for (int tokenId : encodedSentence)
+		{
+			if (hasEmissionScores(tokenId)) {++knownTokens;}
+		}
+		numberOfEmissionLookups.add(encodedSentence.length);
+		numberOfKnownTokens.add(knownTokens);
+	}
+
+	/**
+	 * Returns \sum_{i=0}^{k-1}{\theta_i*f_i(x,j,g,g')}, where x_j is the token whose token-id is given.
+	 */
+	public double getScore(int tokenId, int tagId, int previousTagId)
+	{
+		return getEmissionScore(tokenId, tagId)+getTransitionScore(previousTagId, tagId);
+	}
+
+
+
+	private CompiledCrfModel(CrfTags<G> crfTags, CompiledFilters<K, G> compiledFilters, double[] transitionScores, double[] emissionScores)
+	{
+		super();
+		this.crfTags = crfTags;
+		this.compiledFilters = compiledFilters;
+		this.numberOfTags = crfTags.getNumberOfTags();
+		this.numberOfTokenIds = emissionScores.length/Math.max(1, numberOfTags);
+		this.transitionScores = transitionScores;
+		this.emissionScores = emissionScores;
+	}
+
+
+	/**
+	 * Calculates the tables of a {@link CompiledCrfModel}.
+	 */
+	private static final class CrfModelCompiler<K, G>
+	{
+		private CrfModelCompiler(CrfModel<K, G> model)
+		{
+			this.model = model;
+			this.crfTags = model.getCrfTags();
+			this.numberOfTags = crfTags.getNumberOfTags();
+			this.compiledFilters = model.getFeatures().getCompiledFilters(crfTags);
+			this.parameters = model.getParametersAsDoubleArray();
+		}
+
+		private CompiledCrfModel<K, G> compile()
+		{
+			return new CompiledCrfModel<K, G>(crfTags, compiledFilters, calculateTransitionScores(), calculateEmissionScores());
+		}
+
+		/**
+		 * The keys created for the unknown token are the keys of the filters that do not examine the token (the keys of the filters
+		 * that examine the token have no features, since filters of unknown tokens are not compiled).
+		 */
+		private double[] calculateTransitionScores()
+		{
+			double scoreOfFeaturesWithNoFilter = 0.0;
+			for (int featureIndex : compiledFilters.getIndexesOfFeaturesWithNoFilter())
+			{
+				scoreOfFeaturesWithNoFilter += parameters[featureIndex];
+			}
+
+			final int[] encodedUnknownToken = new int[]{CompiledFilters.UNKNOWN_TOKEN_ID};
+			final long[] keys = new long[compiledFilters.getMaximumNumberOfKeys()];
+			double[] ret = new double[(numberOfTags+1)*numberOfTags];
+			for (int previousTagId=0;previousTagId<=numberOfTags;++previousTagId) // including the null tag
+			{
+				for (int tagId=0;tagId<numberOfTags;++tagId)
+				{
+					double score = scoreOfFeaturesWithNoFilter;
+					final int numberOfKeys = compiledFilters.createFilterKeys(encodedUnknownToken, 0, tagId, previousTagId, keys);
+					for (int keyIndex=0;keyIndex<numberOfKeys;++keyIndex)
+					{
+						if (CompiledFilters.tokenIdOfKey(keys[keyIndex])!=CompiledFilters.UNKNOWN_TOKEN_ID) {continue;}
+						if (CrfUtilities.isDuplicateKey(keys, keyIndex)) {continue;}
+						int[] featureIndexesForKey = compiledFilters.getActiveFeatures(keys[keyIndex]);
+						if (featureIndexesForKey!=null)
+						{
+							for (int featureIndex : featureIndexesForKey)
+							{
+								score += parameters[featureIndex];
+							}
+						}
+					}
+					ret[previousTagId*numberOfTags+tagId] = score;
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * The filters that examine the token are found by their keys (see {@link Filter#compile(CompiledFilters)}), which
+		 * hold their token-ids.
+		 */
+		private double[] calculateEmissionScores()
+		{
+			int numberOfTokenIds = 0;
+			for (Filter<K, G> filter : model.getFeatures().getMapActiveFeatures().keySet())
+			{
+				numberOfTokenIds = Math.max(numberOfTokenIds, CompiledFilters.tokenIdOfKey(compileFilter(filter))+1);
+			}
+
+			double[] ret = new double[numberOfTokenIds*numberOfTags];
+			for (Map.Entry<Filter<K, G>, Set<Integer>> entry : model.getFeatures().getMapActiveFeatures().entrySet())
+			{
+				long key = compileFilter(entry.getKey());
+				int tokenId = CompiledFilters.tokenIdOfKey(key);
+				if (CompiledFilters.UNKNOWN_TOKEN_ID==tokenId) {continue;}
+				if (CompiledFilters.previousTagIdOfKey(key)!=0) {throw new CrfException("The filter factory is not separable: a filter examines both the token and the previous tag. Filter: "+entry.getKey());}
+				int index = tokenId*numberOfTags+CompiledFilters.tagIdOfKey(key);
+				for (int featureIndex : entry.getValue())
+				{
+					ret[index] += parameters[featureIndex];
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * Returns the key of the given filter, or the key of the unknown token if the filter never matches.
+		 * The filters were already compiled, so no token-id is assigned.
+		 */
+		private long compileFilter(Filter<K, G> filter)
+		{
+			long key = filter.compile(compiledFilters);
+			if (CompiledFilters.NEVER_MATCHES==key) {return 0L;}
+			if (CompiledFilters.NOT_COMPILED==key) {throw new CrfException("BUG: a filter of compiled filters is not compiled.");}
+			return key;
+		}
+
+		private final CrfModel<K, G> model;
+		private final CrfTags<G> crfTags;
+		private final int numberOfTags;
+		private final CompiledFilters<K, G> compiledFilters;
+		private final double[] parameters;
+	}
+
+
+	private final CrfTags<G> crfTags;
+	private final CompiledFilters<K, G> compiledFilters;
+	private final int numberOfTags;
+	private final int numberOfTokenIds;
+
+	/**
+	 * transitionScores[g'*number-of-tags+g] is the score of the tag-id g after the tag-id g'.
+	 */
+	private final double[] transitionScores;
+
+	/**
+	 * emissionScores[t*number-of-tags+g] is the score of the tag-id g for the token-id t.
+	 */
+	private final double[] emissionScores;
+	
+	private final LongAdder numberOfEmissionLookups = new LongAdder();
+	private final LongAdder numberOfKnownTokens = new LongAdder();
+}
@@ -0,0 +1,368 @@
+package com.asher_stern.crf.crf;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.filters.CompiledFilters;
+import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
+import com.asher_stern.crf.utilities.TaggedToken;
+
+/**
+ * Holds, for every sentence of a training corpus, everything that the log-likelihood function and its gradient need, and which
+ * does not depend on the parameters: the sentence as an array, its {@link CrfSentenceFeatureLattice}, and the values of the features
+ * for the tags given in the corpus (the empirical feature values).
+ * <BR>
+ * The cache is created once (see {@link #create(List, CrfFeaturesAndFilters, CrfTags, long)}), so the log-likelihood function
+ * (see {@link CrfLogLikelihoodFunction} and {@link CrfLogSpaceLogLikelihoodFunction}) neither finds the active features nor
+ * calculates the feature values in each of its evaluations.
+ * <P>
+ * The lattices take memory proportional to the number of tokens times the number of permitted pairs of tags. Lattices are kept only
+ * as long as their total number of entries does not exceed a given maximum. The lattices of the remaining sentences are created
+ * anew whenever they are needed (see {@link #getLattice(int)}). The maximum is applied while the lattices are created, so besides the
+ * kept lattices, only the lattice being created by each thread is held in memory.
+ * <BR>
+ * The cache is immutable once created, and can be used concurrently.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CrfCorpusFeatureCache<K, G>
+{
+	/**
+	 * The default maximum of the total number of entries (see {@link CrfSentenceFeatureLattice#getNumberOfEntries()}) of the kept
+	 * lattices. Roughly 12 bytes are taken per entry.
+	 */
+	public static final long DEFAULT_MAXIMUM_NUMBER_OF_ENTRIES = 50000000L;
+
+	/**
+	 * Creates the cache for the given corpus.
+	 *
+	 * @param corpus a tagged corpus.
+	 * @param features the CRF features.
+	 * @param crfTags the tags, and the restrictions over them.
+	 * @param maximumNumberOfEntries the maximum of the total number of entries of the kept lattices.
+	 * @return the cache.
+	 */
+	public static <K, G> CrfCorpusFeatureCache<K, G> create(List<? extends List<? extends TaggedToken<K, G>>> corpus,
+			CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, long maximumNumberOfEntries)
+	{
+		return create(corpus, features, crfTags, maximumNumberOfEntries, null, ParallelAccumulation.defaultNumberOfChunks());
+	}
+
+	/**
+	 * Creates the cache for the given corpus, on the given executor, which is owned by the caller and is not shut down here.
+	 * If the executor is null, a temporary executor is created.
+	 * The sentences are split into the given number of chunks, balanced by the lengths of the sentences (see {@link ParallelAccumulation#balancedChunks(int, int[])}),
+	 * each of which is processed by a single task.
+	 * See {@link #create(List, CrfFeaturesAndFilters, CrfTags, long)}.
+	 */
+	public static <K, G> CrfCorpusFeatureCache<K, G> create(List<? extends List<? extends TaggedToken<K, G>>> corpus,
+			CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, long maximumNumberOfEntries, ExecutorService executor, int numberOfThreads)
+	{
+		CrfCorpusFeatureCache<K, G> ret = new CrfCorpusFeatureCache<K, G>(corpus, features, crfTags, corpus.size());
+		ret.fill(maximumNumberOfEntries, executor, numberOfThreads);
+		return ret;
+	}
+
+
+	/**
+	 * Returns a cache for the given sentences, which must all be sentences of the corpus of this cache (the same objects).
+	 * The returned cache shares the data of this cache, and nothing is calculated again.
+	 */
+	public CrfCorpusFeatureCache<K, G> subset(List<? extends List<? extends TaggedToken<K, G>>> sentences)
+	{
+		Map<List<? extends TaggedToken<K, G>>, Integer> indexes = new IdentityHashMap<List<? extends TaggedToken<K, G>>, Integer>();
+		int index = 0;
+		for (List<? extends TaggedToken<K, G>> sentence : corpus)
+		{
+			indexes.put(sentence, index);
+			++index;
+		}
+
+		CrfCorpusFeatureCache<K, G> ret = new CrfCorpusFeatureCache<K, G>(sentences, features, crfTags, sentences.size());
+		int subsetIndex = 0;
+		for (List<? extends TaggedToken<K, G>> sentence : sentences)
+		{
+			Integer originalIndex = indexes.get(sentence);
+			if (null==originalIndex) {throw new CrfException("The given sentence is not in the corpus of this cache.");}
+			ret.sentences[subsetIndex] = this.sentences[originalIndex];
+			ret.encodedSentences[subsetIndex] = this.encodedSentences[originalIndex];
+			ret.lattices[subsetIndex] = this.lattices[originalIndex];
+			ret.empiricalFeatureIndexes[subsetIndex] = this.empiricalFeatureIndexes[originalIndex];
+			ret.empiricalFeatureValues[subsetIndex] = this.empiricalFeatureValues[originalIndex];
+			++subsetIndex;
+		}
+		return ret;
+	}
+
+
+	public List<? extends List<? extends TaggedToken<K, G>>> getCorpus()
+	{
+		return corpus;
+	}
+
+	public CrfFeaturesAndFilters<K, G> getFeatures()
+	{
+		return features;
+	}
+
+	public CrfTags<G> getCrfTags()
+	{
+		return crfTags;
+	}
+
+	/**
+	 * Returns the number of sentences.
+	 */
+	public int size()
+	{
+		return sentences.length;
+	}
+
+	/**
+	 * Returns the given sentence as an array (as returned by {@link CrfUtilities#extractSentence(List)}).
+	 */
+	public K[] getSentence(int sentenceIndex)
+	{
+		return sentences[sentenceIndex];
+	}
+
+	/**
+	 * Returns the indexes of the features which are active for the tags given in the corpus, in the given sentence.
+	 * Their values, summed over the tokens of the sentence, are given by {@link #getEmpiricalFeatureValues(int)}.
+	 */
+	public int[] getEmpiricalFeatureIndexes(int sentenceIndex)
+	{
+		return empiricalFeatureIndexes[sentenceIndex];
+	}
+
+	/**
+	 * Returns the values of the features of {@link #getEmpiricalFeatureIndexes(int)}, in the same order.
+	 */
+	public double[] getEmpiricalFeatureValues(int sentenceIndex)
+	{
+		return empiricalFeatureValues[sentenceIndex];
+	}
+
+	/**
+	 * Returns the lattice of the given sentence. If that lattice is not kept, it is created.
+	 */
+	public CrfSentenceFeatureLattice<K, G> getLattice(int sentenceIndex)
+	{
+		CrfSentenceFeatureLattice<K, G> lattice = lattices[sentenceIndex];
+		if (null==lattice)
+		{
+			lattice = CrfSentenceFeatureLattice.create(features, crfTags, sentences[sentenceIndex], encodedSentences[sentenceIndex]);
+		}
+		return lattice;
+	}
+
+	/**
+	 * Returns, for each feature, the sum of its values over the whole corpus, for the tags given in the corpus.
+	 * The sum is calculated on the first call, and the same array is returned by later calls (e.g., to all the log-likelihood
+	 * functions of this cache), so it must not be modified.
+	 */
+	public double[] calculateEmpiricalFeatureValues()
+	{
+		double[] ret = sumOfEmpiricalFeatureValues;
+		if (null==ret)
+		{
+			ret = new double[features.getFilteredFeatures().length];
+			for (int sentenceIndex=0;sentenceIndex<sentences.length;++sentenceIndex)
+			{
+				final int[] indexes = empiricalFeatureIndexes[sentenceIndex];
+				final double[] values = empiricalFeatureValues[sentenceIndex];
+				for (int entry=0;entry<indexes.length;++entry)
+				{
+					ret[indexes[entry]] += values[entry];
+				}
+			}
+			sumOfEmpiricalFeatureValues = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns \Sum_{i}(\theta_i*f_i) summed over all the tokens of the corpus, for the tags given in the corpus, where \theta are the
+	 * given parameters.
+	 */
+	public double calculateSumWeightedFeatures(double[] parameters)
+	{
+		double sum = 0.0;
+		for (int sentenceIndex=0;sentenceIndex<sentences.length;++sentenceIndex)
+		{
+			final int[] indexes = empiricalFeatureIndexes[sentenceIndex];
+			final double[] values = empiricalFeatureValues[sentenceIndex];
+			for (int entry=0;entry<indexes.length;++entry)
+			{
+				sum += parameters[indexes[entry]]*values[entry];
+			}
+		}
+		return sum;
+	}
+
+
+
+	@SuppressWarnings("unchecked")
+	private CrfCorpusFeatureCache(List<? extends List<? extends TaggedToken<K, G>>> corpus,
+			CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, int numberOfSentences)
+	{
+		super();
+		this.corpus = corpus;
+		this.features = features;
+		this.crfTags = crfTags;
+		this.sentences = (K[][]) new Object[numberOfSentences][];
+		this.encodedSentences = new int[numberOfSentences][];
+		this.lattices = (CrfSentenceFeatureLattice<K, G>[]) new CrfSentenceFeatureLattice<?, ?>[numberOfSentences];
+		this.empiricalFeatureIndexes = new int[numberOfSentences][];
+		this.empiricalFeatureValues = new double[numberOfSentences][];
+	}
+
+	private void fill(final long maximumNumberOfEntries, ExecutorService givenExecutor, int numberOfThreads)
+	{
+		logger.info("Creating the feature lattices of the corpus.");
+		final CompiledFilters<K, G> compiledFilters = features.getCompiledFilters(crfTags);
+		final TokenEncoder<K> tokenEncoder = compiledFilters.isCompiled()?compiledFilters.getTokenEncoder():null;
+		final List<? extends List<? extends TaggedToken<K, G>>> randomAccessCorpus = CrfUtilities.randomAccessList(corpus);
+		final int[][] chunks = ParallelAccumulation.balancedChunks(numberOfThreads, CrfUtilities.sentenceLengths(randomAccessCorpus));
+
+		// Entries are reserved by each task before its lattice is kept, so the maximum holds while the lattices are created.
+		final AtomicLong numberOfEntries = new AtomicLong(0);
+		final AtomicLong sizeInBytes = new AtomicLong(0);
+		final AtomicInteger numberOfKeptLattices = new AtomicInteger(0);
+
+		ExecutorService executor = (null==givenExecutor)?Executors.newFixedThreadPool(chunks.length):givenExecutor;
+		try
+		{
+			List<Future<?>> futures = new ArrayList<>(chunks.length);
+			for (final int[] chunk : chunks)
+			{
+				futures.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						for (int sentenceIndex : chunk)
+						{
+							final List<? extends TaggedToken<K, G>> sentence = randomAccessCorpus.get(sentenceIndex);
+							sentences[sentenceIndex] = CrfUtilities.extractSentence(sentence);
+							encodedSentences[sentenceIndex] = (null==tokenEncoder)?null:CrfUtilities.extractSentence(sentence, tokenEncoder);
+							findEmpiricalFeatures(sentenceIndex, sentence);
+							CrfSentenceFeatureLattice<K, G> lattice = CrfSentenceFeatureLattice.create(features, crfTags, sentences[sentenceIndex], encodedSentences[sentenceIndex]);
+							if (reserve(numberOfEntries, lattice.getNumberOfEntries(), maximumNumberOfEntries))
+							{
+								lattices[sentenceIndex] = lattice;
+								sizeInBytes.addAndGet(lattice.getSizeInBytes());
+								numberOfKeptLattices.incrementAndGet();
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+			{
+				future.get();
+			}
+			logger.info("Feature lattices of "+numberOfKeptLattices.get()+" out of "+sentences.length+" sentences are kept. Number of entries = "+numberOfEntries.get()+". Approximate size = "+(sizeInBytes.get()/(1024*1024))+" MB.");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CrfException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new CrfException(e);
+		}
+		finally
+		{
+			if (null==givenExecutor) {executor.shutdown();}
+		}
+	}
+
+	/**
+	 * Adds the given number of entries to the given total, unless the total would exceed the given maximum.
+	 * @return true if the entries were added.
+	 */
+	private static boolean reserve(AtomicLong total, long entries, long maximum)
+	{
+		while (true)
+		{
+			final long current = total.get();
+			if (entries > maximum-current) {return false;}
+			if (total.compareAndSet(current, current+entries)) {return true;}
+		}
+	}
+
+	private void findEmpiricalFeatures(int sentenceIndex, List<? extends TaggedToken<K, G>> sentence)
+	{
+		final K[] sentenceAsArray = sentences[sentenceIndex];
+		final CrfFilteredFeature<K, G>[] filteredFeatures = features.getFilteredFeatures();
+		Map<Integer, Double> sumValues = new LinkedHashMap<Integer, Double>();
+		int tokenIndex = 0;
+		G previousTag = null;
+		for (TaggedToken<K, G> token : sentence)
+		{
+			Set<Integer> activeFeatureIndexes = CrfUtilities.getActiveFeatureIndexes(features,sentenceAsArray,tokenIndex,token.getTag(),previousTag);
+			for (int featureIndex : activeFeatureIndexes)
+			{
+				CrfFilteredFeature<K, G> filteredFeature = filteredFeatures[featureIndex];
+				double featureValue = filteredFeature.isWhenNotFilteredIsAlwaysOne()?1.0:filteredFeature.getFeature().value(sentenceAsArray,tokenIndex,token.getTag(),previousTag);
+				if (featureValue!=0.0)
+				{
+					Double sum = sumValues.get(featureIndex);
+					sumValues.put(featureIndex, (null==sum)?featureValue:(sum+featureValue));
+				}
+			}
+			++tokenIndex;
+			previousTag = token.getTag();
+		}
+		if (tokenIndex!=sentence.size()) {throw new CrfException("BUG");}
+
+		int[] indexes = new int[sumValues.size()];
+		double[] values = new double[sumValues.size()];
+		int entry = 0;
+		for (Map.Entry<Integer, Double> sumValue : sumValues.entrySet())
+		{
+			indexes[entry] = sumValue.getKey();
+			values[entry] = sumValue.getValue();
+			++entry;
+		}
+		empiricalFeatureIndexes[sentenceIndex] = indexes;
+		empiricalFeatureValues[sentenceIndex] = values;
+	}
+
+
+
+	private final List<? extends List<? extends TaggedToken<K, G>>> corpus;
+	private final CrfFeaturesAndFilters<K, G> features;
+	private final CrfTags<G> crfTags;
+
+	// All indexed by the index of the sentence in the corpus
+	private final K[][] sentences;
+	private final int[][] encodedSentences; // null elements if the filters are not compiled, or have no token encoder
+	private final CrfSentenceFeatureLattice<K, G>[] lattices; // null elements for lattices that are not kept
+	private final int[][] empiricalFeatureIndexes;
+	private final double[][] empiricalFeatureValues;
+	private volatile double[] sumOfEmpiricalFeatureValues = null; // calculated on the first call of calculateEmpiricalFeatureValues()
+
+	private static final Logger logger = Logger.getLogger(CrfCorpusFeatureCache.class);
+}
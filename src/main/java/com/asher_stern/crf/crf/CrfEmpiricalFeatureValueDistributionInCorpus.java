@@ -4,15 +4,20 @@ import java.math.BigDecimal;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
 import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
 import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
 import com.asher_stern.crf.utilities.TaggedToken;
 import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
 
 /**
  * Calculates the sum of all feature-values over the whole corpus.
+ * <BR>
+ * The empirical feature values do not depend on the parameters, so they should be calculated once per corpus (see
+ * {@link #calculateInParallel(List, CrfFeaturesAndFilters, ExecutorService, int)}), rather than in every calculation of the gradient.
  * 
  * @author Asher Stern
  * Date: Nov 9, 2014
@@ -22,6 +27,33 @@ import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
  */
 public class CrfEmpiricalFeatureValueDistributionInCorpus<K,G>
 {
+	/**
+	 * Calculates the sum of all feature-values over the whole given corpus, as primitive <tt>double</tt>s, in parallel: the corpus is
+	 * split into chunks (see {@link ParallelAccumulation}), each of which is summed into its own array by one thread.
+	 * @param corpus the corpus.
+	 * @param features the CRF features.
+	 * @param executor the executor on which the sum is calculated, which is owned by the caller and is not shut down here.
+	 * If null, a temporary executor is created.
+	 * @param numberOfThreads the number of chunks.
+	 * @return for each feature, the sum of its values over the whole corpus, for the tags given in the corpus.
+	 */
+	public static <K,G> double[] calculateInParallel(final List<? extends List<? extends TaggedToken<K, G>>> corpus,
+			final CrfFeaturesAndFilters<K, G> features, ExecutorService executor, int numberOfThreads)
+	{
+		final List<? extends List<? extends TaggedToken<K, G>>> randomAccessCorpus = CrfUtilities.randomAccessList(corpus);
+		ParallelAccumulation accumulation = new ParallelAccumulation(executor, numberOfThreads, CrfUtilities.sentenceLengths(randomAccessCorpus), features.getFilteredFeatures().length);
+		accumulation.calculate(new ParallelAccumulation.ItemAccumulator()
+		{
+			@Override
+			public double accumulate(int sentenceIndex, double[] empiricalFeatureValue)
+			{
+				addSentence(features, randomAccessCorpus.get(sentenceIndex), empiricalFeatureValue);
+				return 0.0;
+			}
+		});
+		return accumulation.getSum();
+	}
+	
 	public CrfEmpiricalFeatureValueDistributionInCorpus(
 			Iterator<? extends List<? extends TaggedToken<K, G>>> corpusIterator,
 					CrfFeaturesAndFilters<K, G> features)
@@ -33,40 +65,19 @@ public class CrfEmpiricalFeatureValueDistributionInCorpus<K,G>
 
 
 
+	/**
+	 * Calculates the sum of all feature-values over the corpus given in the constructor. The values are summed as primitive
+	 * <tt>double</tt>s, by the same routine as {@link #calculateInParallel(List, CrfFeaturesAndFilters, ExecutorService, int)}.
+	 */
 	public void calculate()
 	{
-		empiricalFeatureValue = new BigDecimal[features.getFilteredFeatures().length];
-		for (int i=0;i<empiricalFeatureValue.length;++i) {empiricalFeatureValue[i]=BigDecimal.ZERO;}
-		
+		double[] sum = new double[features.getFilteredFeatures().length];
 		while (corpusIterator.hasNext())
 		{
-			List<? extends TaggedToken<K, G>> sentence = corpusIterator.next();
-			K[] sentenceAsArray = CrfUtilities.extractSentence(sentence);
-			int tokenIndex=0;
-			G previousTag = null;
-			for (TaggedToken<K, G> token : sentence)
-			{
-				Set<Integer> activeFeatureIndexes = CrfUtilities.getActiveFeatureIndexes(features,sentenceAsArray,tokenIndex,token.getTag(),previousTag);
-				for (int index : activeFeatureIndexes)
-				{
-					CrfFilteredFeature<K, G> filteredFeature = features.getFilteredFeatures()[index];
-					double featureValue = 0.0;
-					if (filteredFeature.isWhenNotFilteredIsAlwaysOne())
-					{
-						featureValue = 1.0;
-					}
-					else
-					{
-						featureValue = filteredFeature.getFeature().value(sentenceAsArray,tokenIndex,token.getTag(),previousTag);
-					}
-					empiricalFeatureValue[index] = safeAdd(empiricalFeatureValue[index], big(featureValue));
-				}
-				
-				++tokenIndex;
-				previousTag = token.getTag();
-			}
-			if (tokenIndex!=sentence.size()) {throw new CrfException("BUG");}
+			addSentence(features, corpusIterator.next(), sum);
 		}
+		empiricalFeatureValue = new BigDecimal[sum.length];
+		for (int i=0;i<empiricalFeatureValue.length;++i) {empiricalFeatureValue[i]=big(sum[i]);}
 	}
 	
 	
@@ -76,6 +87,35 @@ public class CrfEmpiricalFeatureValueDistributionInCorpus<K,G>
 		if (null==empiricalFeatureValue) {throw new CrfException("Not calculated.");}
 		return empiricalFeatureValue;
 	}
+	
+	
+	
+	private static <K,G> void addSentence(CrfFeaturesAndFilters<K, G> features, List<? extends TaggedToken<K, G>> sentence, double[] empiricalFeatureValue)
+	{
+		K[] sentenceAsArray = CrfUtilities.extractSentence(sentence);
+		int tokenIndex=0;
+		G previousTag = null;
+		for (TaggedToken<K, G> token : sentence)
+		{
+			Set<Integer> activeFeatureIndexes = CrfUtilities.getActiveFeatureIndexes(features,sentenceAsArray,tokenIndex,token.getTag(),previousTag);
+			for (int index : activeFeatureIndexes)
+			{
+				CrfFilteredFeature<K, G> filteredFeature = features.getFilteredFeatures()[index];
+				if (filteredFeature.isWhenNotFilteredIsAlwaysOne())
+				{
+					empiricalFeatureValue[index] += 1.0;
+				}
+				else
+				{
+					empiricalFeatureValue[index] += filteredFeature.getFeature().value(sentenceAsArray,tokenIndex,token.getTag(),previousTag);
+				}
+			}
+			
+			++tokenIndex;
+			previousTag = token.getTag();
+		}
+		if (tokenIndex!=sentence.size()) {throw new CrfException("BUG");}
+	}
 
 
 
@@ -3,19 +3,19 @@ package com.asher_stern.crf.crf;
 import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
+import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
+import com.asher_stern.crf.utilities.ArithmeticUtilities;
 import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
 import com.asher_stern.crf.utilities.TaggedToken;
+import com.asher_stern.crf.utilities.VectorUtilities;
 
 /**
  * Calculates, for each feature, the expected sum of its values over the whole corpus.
@@ -36,46 +36,144 @@ public class CrfFeatureValueExpectationByModel<K, G>
 	public CrfFeatureValueExpectationByModel(
 			Iterator<? extends List<? extends TaggedToken<K, G>>> corpusIterator,
 			CrfModel<K, G> model)
+	{
+		this(corpusIterator, model, false);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param corpusIterator iterator over the corpus.
+	 * @param model the CRF model.
+	 * @param useScaledForwardBackward if true, the probabilities under the model are calculated by {@link CrfScaledForwardBackward}
+	 * (over primitive <tt>double</tt>s), rather than by {@link CrfForwardBackward}.
+	 */
+	public CrfFeatureValueExpectationByModel(
+			Iterator<? extends List<? extends TaggedToken<K, G>>> corpusIterator,
+			CrfModel<K, G> model, boolean useScaledForwardBackward)
 	{
 		super();
 		this.corpusIterator = corpusIterator;
 		this.model = model;
+		this.useScaledForwardBackward = useScaledForwardBackward;
+		this.featureCache = null;
+	}
+	
+	/**
+	 * Constructor for the corpus of the given {@link CrfCorpusFeatureCache}, whose active features and their values are taken from the cache.
+	 * @param featureCache the cache of the corpus.
+	 * @param model the CRF model.
+	 * @param useScaledForwardBackward see {@link #CrfFeatureValueExpectationByModel(Iterator, CrfModel, boolean)}.
+	 */
+	public CrfFeatureValueExpectationByModel(CrfCorpusFeatureCache<K, G> featureCache, CrfModel<K, G> model, boolean useScaledForwardBackward)
+	{
+		super();
+		this.corpusIterator = null;
+		this.model = model;
+		this.useScaledForwardBackward = useScaledForwardBackward;
+		this.featureCache = featureCache;
 	}
 
 
 
+	/**
+	 * Optional setter. If set to true, then {@link #calculate()} also calculates \Sum_{sentence}log(Z(x)), where Z(x) is the
+	 * normalization factor of each sentence (see {@link #getSumOfLogNormalizationFactors()}). This sum is needed for the value
+	 * of the log-likelihood function, and is almost free here, since the forward-backward algorithm is run anyway.
+	 */
+	public void setCalculateSumOfLogNormalizationFactors(boolean calculateSumOfLogNormalizationFactors)
+	{
+		this.calculateSumOfLogNormalizationFactors = calculateSumOfLogNormalizationFactors;
+	}
+
+
+	/**
+	 * Optional setter. Sets the executor on which the expectations are calculated. The executor is owned by the caller (e.g., by
+	 * {@link com.asher_stern.crf.crf.run.CrfTrainer}, for the whole training), and is not shut down here.
+	 * Its number of threads should be given to {@link #setNumberOfThreads(int)}.
+	 * If not set, a temporary executor is created for each calculation.
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Optional setter. Sets the number of threads which calculate the expectations, which is also the number of chunks the corpus is
+	 * split into (see {@link ParallelAccumulation}). If not set, {@link ParallelAccumulation#defaultNumberOfChunks()} is used.
+	 */
+	public void setNumberOfThreads(int numberOfThreads)
+	{
+		if (numberOfThreads<=0) {throw new CrfException("The number of threads must be positive.");}
+		this.numberOfThreads = numberOfThreads;
+	}
+
+
 	public void calculate()
 	{
-		featureValueExpectation = new BigDecimal[model.getFeatures().getFilteredFeatures().length];
-		for (int i=0;i<featureValueExpectation.length;++i) {featureValueExpectation[i]=BigDecimal.ZERO;} // Explicit initialization to zero, just to be on the safe side.
-		
-		ExecutorService executor = Executors.newWorkStealingPool();
-		List<Future<?>> futures = new LinkedList<>();
-		
-		while (corpusIterator.hasNext())
+		if (useScaledForwardBackward)
 		{
-			final List<? extends TaggedToken<K, G>> sentence = corpusIterator.next();
-			futures.add(executor.submit(
-					new Runnable()
-					{
-						@Override
-						public void run()
-						{
-							addValueForSentence(sentence);
-						}
-					}));
+			parameters = VectorUtilities.toDoubleArray(model.getParameters().toArray(new BigDecimal[0]));
 		}
-		for (Future<?> future: futures)
+		
+		final List<List<? extends TaggedToken<K, G>>> sentences = new ArrayList<List<? extends TaggedToken<K, G>>>();
+		if (null==featureCache)
 		{
-			try
+			while (corpusIterator.hasNext())
 			{
-				future.get();
+				sentences.add(corpusIterator.next());
 			}
-			catch (InterruptedException | ExecutionException e)
+		}
+		int[] sentenceLengths = null;
+		if (featureCache!=null)
+		{
+			sentenceLengths = new int[featureCache.size()];
+			for (int sentenceIndex=0;sentenceIndex<sentenceLengths.length;++sentenceIndex)
 			{
-				throw new CrfException(e);
+				sentenceLengths[sentenceIndex] = featureCache.getSentence(sentenceIndex).length;
 			}
 		}
+		else
+		{
+			sentenceLengths = CrfUtilities.sentenceLengths(sentences);
+		}
+		
+		// Each chunk of sentences adds into its own double[] array, and the arrays are summed at the end,
+		// so the threads do not synchronize on every addition.
+		ParallelAccumulation accumulation = new ParallelAccumulation(executor, numberOfThreads, sentenceLengths, model.getFeatures().getFilteredFeatures().length);
+		accumulation.calculate(new ParallelAccumulation.ItemAccumulator()
+		{
+			@Override
+			public double accumulate(int sentenceIndex, double[] featureValueExpectation)
+			{
+				if (featureCache!=null)
+				{
+					CrfSentenceFeatureLattice<K, G> lattice = featureCache.getLattice(sentenceIndex);
+					if (useScaledForwardBackward)
+					{
+						return addValueForSentenceScaled(lattice, featureValueExpectation);
+					}
+					else
+					{
+						return addValueForSentence(lattice, featureValueExpectation);
+					}
+				}
+				else
+				{
+					List<? extends TaggedToken<K, G>> sentence = sentences.get(sentenceIndex);
+					if (useScaledForwardBackward)
+					{
+						return addValueForSentenceScaled(sentence, featureValueExpectation);
+					}
+					else
+					{
+						return addValueForSentence(sentence, featureValueExpectation);
+					}
+				}
+			}
+		});
+		
+		featureValueExpectation = VectorUtilities.toBigDecimalArray(accumulation.getSum());
+		sumOfLogNormalizationFactors = big(accumulation.getScalarSum());
 	}
 	
 	
@@ -83,10 +181,22 @@ public class CrfFeatureValueExpectationByModel<K, G>
 	{
 		return featureValueExpectation;
 	}
-
-
-
-	private void addValueForSentence(List<? extends TaggedToken<K, G>> sentence)
+	
+	/**
+	 * Returns \Sum_{sentence}log(Z(x)). See {@link #setCalculateSumOfLogNormalizationFactors(boolean)}.
+	 */
+	public BigDecimal getSumOfLogNormalizationFactors()
+	{
+		if (!calculateSumOfLogNormalizationFactors) {throw new CrfException("The sum of log normalization factors was not requested.");}
+		return sumOfLogNormalizationFactors;
+	}
+	
+	
+	/**
+	 * Adds the expected feature values of the given sentence into the given array, and returns log(Z(x)) of the sentence
+	 * if {@link #setCalculateSumOfLogNormalizationFactors(boolean)} was set to true.
+	 */
+	private double addValueForSentence(List<? extends TaggedToken<K, G>> sentence, double[] featureValueExpectation)
 	{
 		K[] sentenceTokens = CrfUtilities.extractSentence(sentence);
 		
@@ -101,16 +211,19 @@ public class CrfFeatureValueExpectationByModel<K, G>
 		forwardBackward.calculateForwardAndBackward();
 
 		final BigDecimal normalizationFactor = forwardBackward.getCalculatedNormalizationFactor();
+		final double logNormalizationFactor = calculateSumOfLogNormalizationFactors?ArithmeticUtilities.log(normalizationFactor).doubleValue():0.0;
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final CrfSentenceTags sentenceTags = activeFeaturesForSentence.getSentenceTags();
 		
 		for (int tokenIndex=0;tokenIndex<sentenceTokens.length;++tokenIndex)
 		{
-			for (G currentTag : model.getCrfTags().getTags())
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
 			{
-				Set<G> possiblePreviousTags = CrfUtilities.getPreviousTags(sentenceTokens, tokenIndex, currentTag, model.getCrfTags());
-				for (G previousTag : possiblePreviousTags)
+				G currentTag = crfTags.getTagById(tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
 				{
-					//Set<Integer> activeFeatures = CrfUtilities.getActiveFeatureIndexes(model.getFeatures(),sentenceTokens,tokenIndex,currentTag,previousTag);
-					Set<Integer> activeFeatures = activeFeaturesForSentence.getOneTokenActiveFeatures(tokenIndex, currentTag, previousTag);
+					G previousTag = crfTags.getTagById(previousTagId);
+					int[] activeFeatures = activeFeaturesForSentence.getActiveFeatures(tokenIndex, tagId, previousTagId);
 					for (int featureIndex : activeFeatures)
 					{
 						double featureValue = 0.0;
@@ -133,29 +246,152 @@ public class CrfFeatureValueExpectationByModel<K, G>
 								BigDecimal alpha_forward_previousValue = BigDecimal.ONE;
 								if (tokenIndex>0)
 								{
-									alpha_forward_previousValue = forwardBackward.getAlpha_forward()[tokenIndex-1].get(previousTag);
+									alpha_forward_previousValue = forwardBackward.getAlpha_forward()[tokenIndex-1][previousTagId];
 								}
-								BigDecimal beta_backward_value = forwardBackward.getBeta_backward().get(tokenIndex).get(currentTag);
-								//double psi_probabilityForGivenIndexAndTags = CrfUtilities.oneTokenFormula(model,sentenceTokens,tokenIndex,currentTag,previousTag,activeFeatures);
-								BigDecimal psi_probabilityForGivenIndexAndTags = allTokensFormula.getOneTokenFormula(tokenIndex,currentTag,previousTag);
+								BigDecimal beta_backward_value = forwardBackward.getBeta_backward()[tokenIndex][tagId];
+								BigDecimal psi_probabilityForGivenIndexAndTags = allTokensFormula.getPsi(tokenIndex,tagId,previousTagId);
 								
 								
 								//probabilityUnderModel = (alpha_forward_previousValue*psi_probabilityForGivenIndexAndTags*beta_backward_value)/normalizationFactor;
 								probabilityUnderModel = safeDivide(safeMultiply(safeMultiply(alpha_forward_previousValue, psi_probabilityForGivenIndexAndTags),beta_backward_value), normalizationFactor);
 							}
 
-							BigDecimal addToExpectation = safeMultiply(big(featureValue), probabilityUnderModel);
-
-							synchronized(locker)
-							{
-								featureValueExpectation[featureIndex] = safeAdd(featureValueExpectation[featureIndex], addToExpectation);
-							}
+							featureValueExpectation[featureIndex] += safeMultiply(big(featureValue), probabilityUnderModel).doubleValue();
 						}
 					} // end for-each feature
 				} // end for-each previous-tag
 			} // end for-each current-tag
 		} // end for-each token-index
 		
+		return logNormalizationFactor;
+	}
+	
+	/**
+	 * Like {@link #addValueForSentence(List, double[])}, with the active features and their values taken from the given lattice.
+	 */
+	private double addValueForSentence(CrfSentenceFeatureLattice<K, G> lattice, double[] featureValueExpectation)
+	{
+		final K[] sentenceTokens = lattice.getSentence();
+		final CrfPsi_FormulaAllTokens<K, G> allTokensFormula = CrfPsi_FormulaAllTokens.createAndCalculate(model, lattice);
+		
+		CrfForwardBackward<K,G> forwardBackward = new CrfForwardBackward<K,G>(model,sentenceTokens,null);
+		forwardBackward.setAllTokensFormulaValues(allTokensFormula);
+		forwardBackward.calculateForwardAndBackward();
+
+		final BigDecimal normalizationFactor = forwardBackward.getCalculatedNormalizationFactor();
+		final double logNormalizationFactor = calculateSumOfLogNormalizationFactors?ArithmeticUtilities.log(normalizationFactor).doubleValue():0.0;
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final CrfSentenceTags sentenceTags = lattice.getSentenceTags();
+		final int[] featureIndexes = lattice.getFeatureIndexes();
+		
+		for (int tokenIndex=0;tokenIndex<sentenceTokens.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				int cell = lattice.getFirstCell(tokenIndex, tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					BigDecimal probabilityUnderModel = null;
+					for (int entry=lattice.getCellStart(cell);entry<lattice.getCellEnd(cell);++entry)
+					{
+						double featureValue = lattice.getFeatureValue(entry);
+						if (featureValue!=0.0)
+						{
+							if (null==probabilityUnderModel)
+							{
+								BigDecimal alpha_forward_previousValue = BigDecimal.ONE;
+								if (tokenIndex>0)
+								{
+									alpha_forward_previousValue = forwardBackward.getAlpha_forward()[tokenIndex-1][previousTagId];
+								}
+								BigDecimal beta_backward_value = forwardBackward.getBeta_backward()[tokenIndex][tagId];
+								BigDecimal psi_probabilityForGivenIndexAndTags = allTokensFormula.getPsi(tokenIndex,tagId,previousTagId);
+								probabilityUnderModel = safeDivide(safeMultiply(safeMultiply(alpha_forward_previousValue, psi_probabilityForGivenIndexAndTags),beta_backward_value), normalizationFactor);
+							}
+
+							featureValueExpectation[featureIndexes[entry]] += safeMultiply(big(featureValue), probabilityUnderModel).doubleValue();
+						}
+					}
+					++cell;
+				}
+			}
+		}
+		return logNormalizationFactor;
+	}
+	
+	/**
+	 * Like {@link #addValueForSentenceScaled(List, double[])}, with the active features and their values taken from the given lattice.
+	 */
+	private double addValueForSentenceScaled(CrfSentenceFeatureLattice<K, G> lattice, double[] featureValueExpectation)
+	{
+		CrfScaledForwardBackward<K, G> forwardBackward = new CrfScaledForwardBackward<K, G>(model.getCrfTags(), lattice, parameters);
+		forwardBackward.calculateForwardAndBackward();
+		final double logNormalizationFactor = forwardBackward.getCalculatedLogNormalizationFactor();
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final CrfSentenceTags sentenceTags = lattice.getSentenceTags();
+		final int[] featureIndexes = lattice.getFeatureIndexes();
+		
+		for (int tokenIndex=0;tokenIndex<lattice.getSentence().length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				int cell = lattice.getFirstCell(tokenIndex, tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					double probabilityUnderModel = forwardBackward.getProbability(tokenIndex, previousTagId, tagId);
+					if (probabilityUnderModel!=0.0)
+					{
+						for (int entry=lattice.getCellStart(cell);entry<lattice.getCellEnd(cell);++entry)
+						{
+							double featureValue = lattice.getFeatureValue(entry);
+							if (featureValue!=0.0)
+							{
+								featureValueExpectation[featureIndexes[entry]] += featureValue*probabilityUnderModel;
+							}
+						}
+					}
+					++cell;
+				}
+			}
+		}
+		return logNormalizationFactor;
+	}
+	
+	private double addValueForSentenceScaled(List<? extends TaggedToken<K, G>> sentence, double[] featureValueExpectation)
+	{
+		K[] sentenceTokens = CrfUtilities.extractSentence(sentence);
+		CrfRememberActiveFeatures<K, G> activeFeaturesForSentence = CrfRememberActiveFeatures.findForSentence(model.getFeatures(), model.getCrfTags(), sentenceTokens);
+		
+		CrfScaledForwardBackward<K, G> forwardBackward = new CrfScaledForwardBackward<K, G>(model.getCrfTags(), model.getFeatures(), parameters, sentenceTokens, activeFeaturesForSentence);
+		forwardBackward.calculateForwardAndBackward();
+		final double logNormalizationFactor = forwardBackward.getCalculatedLogNormalizationFactor();
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final CrfSentenceTags sentenceTags = activeFeaturesForSentence.getSentenceTags();
+		
+		for (int tokenIndex=0;tokenIndex<sentenceTokens.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				G currentTag = crfTags.getTagById(tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					G previousTag = crfTags.getTagById(previousTagId);
+					double probabilityUnderModel = forwardBackward.getProbability(tokenIndex, previousTagId, tagId);
+					if (0.0==probabilityUnderModel) {continue;}
+					
+					for (int featureIndex : activeFeaturesForSentence.getActiveFeatures(tokenIndex, tagId, previousTagId))
+					{
+						CrfFilteredFeature<K, G> filteredFeature = model.getFeatures().getFilteredFeatures()[featureIndex];
+						double featureValue = filteredFeature.isWhenNotFilteredIsAlwaysOne()?1.0:filteredFeature.getFeature().value(sentenceTokens,tokenIndex,currentTag,previousTag);
+						if (featureValue!=0.0)
+						{
+							featureValueExpectation[featureIndex] += featureValue*probabilityUnderModel;
+						}
+					}
+				}
+			}
+		}
+		return logNormalizationFactor;
 	}
 	
 	
@@ -163,9 +399,17 @@ public class CrfFeatureValueExpectationByModel<K, G>
 
 	private final Iterator<? extends List<? extends TaggedToken<K, G>>> corpusIterator;
 	private final CrfModel<K, G> model;
+	private final boolean useScaledForwardBackward;
+	private final CrfCorpusFeatureCache<K, G> featureCache; // if not null, used instead of corpusIterator
+	
+	// Used only if useScaledForwardBackward is true.
+	private double[] parameters = null;
 	
-	private final Object locker = new Object();
+	private ExecutorService executor = null;
+	private int numberOfThreads = ParallelAccumulation.defaultNumberOfChunks();
 	private BigDecimal[] featureValueExpectation;
+	private boolean calculateSumOfLogNormalizationFactors = false;
+	private BigDecimal sumOfLogNormalizationFactors = BigDecimal.ZERO;
 	
 	@SuppressWarnings("unused")
 	private static final Logger logger = Logger.getLogger(CrfFeatureValueExpectationByModel.class);
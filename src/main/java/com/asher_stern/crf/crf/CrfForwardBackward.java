@@ -3,14 +3,9 @@ package com.asher_stern.crf.crf;
 import static com.asher_stern.crf.crf.CrfUtilities.roughlyEqual;
 
 import java.math.BigDecimal;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import com.asher_stern.crf.utilities.ArbitraryRangeArray;
 import com.asher_stern.crf.utilities.CrfException;
 
 import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
@@ -109,13 +104,19 @@ public class CrfForwardBackward<K,G>
 	
 	
 	
-	public Map<G, BigDecimal>[] getAlpha_forward()
+	/**
+	 * Returns \alpha_j(g), as an array indexed by [j][tag-id] (see {@link CrfTags#getTagId(Object)}).
+	 */
+	public BigDecimal[][] getAlpha_forward()
 	{
 		if (!calculated) {throw new CrfException("forward-backward not calculated");}
 		return alpha_forward;
 	}
 
-	public ArbitraryRangeArray<LinkedHashMap<G, BigDecimal>> getBeta_backward()
+	/**
+	 * Returns \beta_j(g), as an array indexed by [j][tag-id] (see {@link CrfTags#getTagId(Object)}), for j in [0,sentence-length-1].
+	 */
+	public BigDecimal[][] getBeta_backward()
 	{
 		if (!calculated) {throw new CrfException("forward-backward not calculated");}
 		return beta_backward;
@@ -129,39 +130,37 @@ public class CrfForwardBackward<K,G>
 
 	
 	
-	@SuppressWarnings("unchecked")
 	private void calculateAlphaForward()
 	{
-		alpha_forward = (LinkedHashMap<G, BigDecimal>[]) new LinkedHashMap[sentence.length];
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final CrfSentenceTags sentenceTags = allTokensFormula.getSentenceTags();
+		final int numberOfTags = crfTags.getNumberOfTags();
+		alpha_forward = new BigDecimal[sentence.length][numberOfTags];
 		for (int index=0;index<sentence.length;++index)
 		{
-			Map<G, BigDecimal> alpha_forwardThisToken = new LinkedHashMap<G, BigDecimal>();
-			for (G tag : model.getCrfTags().getTags())
+			for (int tagId=0;tagId<numberOfTags;++tagId)
 			{
-				Set<G> previousTags = CrfUtilities.getPreviousTags(sentence, index, tag, model.getCrfTags());
 				BigDecimal sumOverPreviousTags = BigDecimal.ZERO;
-				for (G previousTag : previousTags)
+				for (int previousTagId : sentenceTags.getPreviousTagIds(index, tagId))
 				{
-					//double valueForPreviousTag = CrfUtilities.oneTokenFormula(model,sentence,index,tag,previousTag);
-					BigDecimal valueForPreviousTag = allTokensFormula.getOneTokenFormula(index,tag,previousTag);
+					BigDecimal valueForPreviousTag = allTokensFormula.getPsi(index,tagId,previousTagId);
 					if (index>0)
 					{
-						BigDecimal previousAlphaValue = alpha_forward[index-1].get(previousTag);
+						BigDecimal previousAlphaValue = alpha_forward[index-1][previousTagId];
 						valueForPreviousTag = safeMultiply(valueForPreviousTag, previousAlphaValue);
 					}
 					sumOverPreviousTags = safeAdd(sumOverPreviousTags, valueForPreviousTag);
 				}
-				alpha_forwardThisToken.put(tag, sumOverPreviousTags);
+				alpha_forward[index][tagId] = sumOverPreviousTags;
 			}
-			alpha_forward[index] = alpha_forwardThisToken;
 		}
 		
 		
 		finalAlpha = BigDecimal.ZERO;
-		Map<G,BigDecimal> alphaLast = alpha_forward[sentence.length-1];
-		for (G tag : alphaLast.keySet())
+		BigDecimal[] alphaLast = alpha_forward[sentence.length-1];
+		for (int tagId=0;tagId<numberOfTags;++tagId)
 		{
-			finalAlpha = safeAdd(finalAlpha, alphaLast.get(tag));
+			finalAlpha = safeAdd(finalAlpha, alphaLast[tagId]);
 		}
 	}
 	
@@ -169,36 +168,39 @@ public class CrfForwardBackward<K,G>
 	
 	private void calculateBetaBackward()
 	{
-		beta_backward = new ArbitraryRangeArray<LinkedHashMap<G, BigDecimal>>(sentence.length+1, -1); // i.e. [-1,0,1,2,...,sentence.length-1]
-		beta_backward.set(sentence.length-1,new LinkedHashMap<G, BigDecimal>());
-		for (G tag : model.getCrfTags().getTags())
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final CrfSentenceTags sentenceTags = allTokensFormula.getSentenceTags();
+		final int numberOfTags = crfTags.getNumberOfTags();
+		beta_backward = new BigDecimal[sentence.length][numberOfTags];
+		for (int tagId=0;tagId<numberOfTags;++tagId)
 		{
-			beta_backward.get(sentence.length-1).put(tag, BigDecimal.ONE);
+			beta_backward[sentence.length-1][tagId] = BigDecimal.ONE;
 		}
 		
 		for (int index=sentence.length-2;index>=(-1);--index)
 		{
-			LinkedHashMap<G, BigDecimal> betaCurrentToken = new LinkedHashMap<G, BigDecimal>();
-			
-			Set<G> currentTokenPossibleTags = null;
-			if (index<0) {currentTokenPossibleTags=Collections.singleton(null);}
-			else {currentTokenPossibleTags = model.getCrfTags().getTags();}
-			for (G tag : currentTokenPossibleTags)
+			// For index -1 (the virtual token that precedes the first token), the only tag is null.
+			final int fromTagId = (index<0)?crfTags.getNullTagId():0;
+			final int toTagId = (index<0)?crfTags.getNullTagId():(numberOfTags-1);
+			for (int tagId=fromTagId;tagId<=toTagId;++tagId)
 			{
 				BigDecimal sum = BigDecimal.ZERO;
-				for (G nextTag : model.getCrfTags().getCanFollow().get(tag))
+				for (int nextTagId : sentenceTags.getNextTagIds(index, tagId))
 				{
-					//double valueCurrentTokenCrfFormula = CrfUtilities.oneTokenFormula(model,sentence,index+1,nextTag,tag);
-					BigDecimal valueCurrentTokenCrfFormula = allTokensFormula.getOneTokenFormula(index+1,nextTag,tag);
-					BigDecimal valueForNextTag = safeMultiply(valueCurrentTokenCrfFormula, beta_backward.get(index+1).get(nextTag));
+					BigDecimal valueCurrentTokenCrfFormula = allTokensFormula.getPsi(index+1,nextTagId,tagId);
+					BigDecimal valueForNextTag = safeMultiply(valueCurrentTokenCrfFormula, beta_backward[index+1][nextTagId]);
 					sum = safeAdd(sum, valueForNextTag);
 				}
-				betaCurrentToken.put(tag,sum);
+				if (index<0)
+				{
+					finalBeta = sum;
+				}
+				else
+				{
+					beta_backward[index][tagId] = sum;
+				}
 			}
-			beta_backward.set(index, betaCurrentToken);
 		}
-		
-		finalBeta = beta_backward.get(-1).get(null);
 	}
 	
 	
@@ -209,8 +211,8 @@ public class CrfForwardBackward<K,G>
 	protected final CrfRememberActiveFeatures<K, G> activeFeaturesForSentence;
 
 	private CrfPsi_FormulaAllTokens<K, G> allTokensFormula = null;
-	private Map<G, BigDecimal>[] alpha_forward;
-	private ArbitraryRangeArray<LinkedHashMap<G, BigDecimal>> beta_backward;
+	private BigDecimal[][] alpha_forward; // [token][tag-id]
+	private BigDecimal[][] beta_backward; // [token][tag-id]
 	private BigDecimal finalAlpha = BigDecimal.ZERO;
 	private BigDecimal finalBeta = BigDecimal.ZERO;
 	
@@ -0,0 +1,237 @@
+package com.asher_stern.crf.crf;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.filters.CompiledFilters;
+import com.asher_stern.crf.utilities.CrfException;
+
+/**
+ * Beam search, an approximation of the Viterbi algorithm (see {@link CrfInferenceViterbi}) for models with many tags.
+ * <BR>
+ * Rather than \delta_j(g) for every tag g, only the (at most) beam-width tags with the highest values of log(\delta_j(g)) are kept
+ * for each token j (the "beam"). For token j+1, only the tags which can follow the tags in the beam of token j are scored, each by
+ * its best previous tag in that beam. Optionally, tags whose value is lower than the highest value of their token by more than
+ * a given threshold are removed from the beam as well.
+ * <BR>
+ * So the time complexity is O(n*B*T) instead of O(n*T^2), where B is the beam width. The sequence of tags found might not be the most
+ * probable one. With a beam width of at least the number of tags, and no threshold, it is the sequence found by {@link CrfInferenceViterbi}.
+ * <P>
+ * As in {@link CrfInferenceViterbi}, only the transitions permitted by the {@link CrfTags} are considered, log(\psi_j(g,g')) is calculated
+ * in the same way (on a {@link CrfModel} or a {@link CompiledCrfModel}), and among equal values the lowest tag-ids are preferred.
+ * If the beam becomes empty (no tag of the next token can follow the tags in the beam), the sequence of tags is found by the Viterbi
+ * algorithm instead. The tags of some tokens can be constrained, as in {@link CrfInferenceViterbi}.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> token type
+ * @param <G> tag type
+ */
+public class CrfInferenceBeamSearch<K, G>
+{
+	/**
+	 * Constructs beam search for the given sentence, under the given model.
+	 * @param model
+	 * @param sentence
+	 * @param beamWidth the maximum number of tags kept for each token.
+	 * @param scoreThreshold tags whose log(\delta_j(g)) is lower than the highest one of token j by more than this threshold are
+	 * removed from the beam. {@link Double#POSITIVE_INFINITY} for no threshold.
+	 */
+	public CrfInferenceBeamSearch(CrfModel<K, G> model, K[] sentence, int beamWidth, double scoreThreshold)
+	{
+		this(model, null, sentence, null, beamWidth, scoreThreshold);
+	}
+	
+	/**
+	 * Constructs beam search for the given sentence, under the given model, where the tags of some tokens are constrained.
+	 * See {@link #CrfInferenceBeamSearch(CrfModel, Object[], int, double)} and {@link CrfInferenceViterbi#CrfInferenceViterbi(CrfModel, Object[], Map)}.
+	 */
+	public CrfInferenceBeamSearch(CrfModel<K, G> model, K[] sentence, Map<Integer, ? extends Set<G>> allowedTags, int beamWidth, double scoreThreshold)
+	{
+		this(model, null, sentence, allowedTags, beamWidth, scoreThreshold);
+	}
+
+	/**
+	 * Constructs beam search for the given sentence, under the given compiled model.
+	 * See {@link #CrfInferenceBeamSearch(CrfModel, Object[], int, double)}.
+	 */
+	public CrfInferenceBeamSearch(CompiledCrfModel<K, G> compiledModel, K[] sentence, int beamWidth, double scoreThreshold)
+	{
+		this(null, compiledModel, sentence, null, beamWidth, scoreThreshold);
+	}
+	
+	/**
+	 * Constructs beam search for the given sentence, under the given compiled model, where the tags of some tokens are constrained.
+	 * See {@link #CrfInferenceBeamSearch(CrfModel, Object[], int, double)} and {@link CrfInferenceViterbi#CrfInferenceViterbi(CrfModel, Object[], Map)}.
+	 */
+	public CrfInferenceBeamSearch(CompiledCrfModel<K, G> compiledModel, K[] sentence, Map<Integer, ? extends Set<G>> allowedTags, int beamWidth, double scoreThreshold)
+	{
+		this(null, compiledModel, sentence, allowedTags, beamWidth, scoreThreshold);
+	}
+
+	/**
+	 * Finds and returns a probable sequence of tags for the sentence given in the constructor.
+	 */
+	public G[] inferBestTagSequence()
+	{
+		if (!beamSearch())
+		{
+			if (logger.isDebugEnabled()) {logger.debug("The beam became empty. The sequence of tags is found by the Viterbi algorithm.");}
+			result = (compiledModel!=null) ?
+					new CrfInferenceViterbi<K, G>(compiledModel, sentence, allowedTags).inferBestTagSequence() :
+					new CrfInferenceViterbi<K, G>(model, sentence, allowedTags).inferBestTagSequence();
+		}
+		return result;
+	}
+
+
+
+	private CrfInferenceBeamSearch(CrfModel<K, G> model, CompiledCrfModel<K, G> compiledModel, K[] sentence, Map<Integer, ? extends Set<G>> allowedTags, int beamWidth, double scoreThreshold)
+	{
+		if (beamWidth<=0) {throw new CrfException("The beam width must be positive.");}
+		if (!(scoreThreshold>=0.0)) {throw new CrfException("The score threshold must be non-negative.");}
+		this.model = model;
+		this.compiledModel = compiledModel;
+		this.sentence = sentence;
+		this.allowedTags = allowedTags;
+		this.beamWidth = beamWidth;
+		this.scoreThreshold = scoreThreshold;
+	}
+
+	/**
+	 * Performs the beam search, and sets the result.
+	 * @return false if the beam became empty.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean beamSearch()
+	{
+		final CrfTags<G> crfTags = (compiledModel!=null)?compiledModel.getCrfTags():model.getCrfTags();
+		final int numberOfTags = crfTags.getNumberOfTags();
+		final int nullTagId = crfTags.getNullTagId();
+		final CompiledFilters<K, G> compiledFilters = (compiledModel!=null)?null:model.getFeatures().getCompiledFilters(crfTags);
+		final boolean compiled = (compiledFilters!=null)&&(compiledFilters.isCompiled());
+		final int[] encodedSentence = (compiledModel!=null)?compiledModel.encodeSentence(sentence):(compiled?compiledFilters.encodeSentence(sentence):null);
+		final double[] parameters = (compiledModel!=null)?null:model.getParametersAsDoubleArray();
+		final long[] keys = new long[compiled?compiledFilters.getMaximumNumberOfKeys():0];
+		final CrfSentenceTags sentenceTags = CrfSentenceTags.create(crfTags, sentence, allowedTags);
+
+		// beamTagIds[j][b] is the tag-id of entry b of the beam of token j, beamScores[j][b] is its log(\delta_j(g)), and
+		// beamPreviousEntries[j][b] is the entry of the beam of token j-1 that it extends. The entries are sorted by their scores.
+		final int width = Math.min(beamWidth, numberOfTags);
+		final int[][] beamTagIds = new int[sentence.length][width];
+		final double[][] beamScores = new double[sentence.length][width];
+		final int[][] beamPreviousEntries = new int[sentence.length][width];
+		final int[] beamSizes = new int[sentence.length];
+
+		// The best score of each tag of the current token, and the entry of the previous beam by which it was found.
+		final double[] scoreOfTag = new double[numberOfTags];
+		final int[] previousEntryOfTag = new int[numberOfTags];
+		final int[] tagsToScore = new int[numberOfTags];
+
+		for (int index=0;index<sentence.length;++index)
+		{
+			Arrays.fill(scoreOfTag, Double.NEGATIVE_INFINITY);
+			Arrays.fill(previousEntryOfTag, -1);
+			int numberOfTagsToScore = 0;
+
+			final int previousBeamSize = (0==index)?1:beamSizes[index-1];
+			for (int previousEntry=0;previousEntry<previousBeamSize;++previousEntry)
+			{
+				final int previousTagId = (0==index)?nullTagId:beamTagIds[index-1][previousEntry];
+				final double previousScore = (0==index)?0.0:beamScores[index-1][previousEntry];
+				for (int tagId : sentenceTags.getNextTagIds(index-1, previousTagId))
+				{
+					double valueByPrevious = (compiledModel!=null) ?
+							(compiledModel.getEmissionScore(encodedSentence[index], tagId)+compiledModel.getTransitionScore(previousTagId, tagId)) :
+							CrfInferenceViterbi.logPsi(model, sentence, compiledFilters, encodedSentence, parameters, keys, index, tagId, previousTagId, crfTags.getTagById(tagId), crfTags.getTagById(previousTagId));
+					valueByPrevious += previousScore;
+
+					final int bestPreviousEntry = previousEntryOfTag[tagId];
+					if (bestPreviousEntry<0)
+					{
+						tagsToScore[numberOfTagsToScore] = tagId;
+						++numberOfTagsToScore;
+					}
+					// Among equal values, the previous tag with the lowest identifier is kept.
+					if ( (bestPreviousEntry<0) || (scoreOfTag[tagId]<valueByPrevious) ||
+							((scoreOfTag[tagId]==valueByPrevious)&&(previousTagId<((0==index)?nullTagId:beamTagIds[index-1][bestPreviousEntry]))) )
+					{
+						scoreOfTag[tagId] = valueByPrevious;
+						previousEntryOfTag[tagId] = previousEntry;
+					}
+				}
+			}
+
+			// Keep the best tags, sorted by their scores (and, among equal scores, by their tag-ids), by insertion.
+			int beamSize = 0;
+			for (int tagIndex=0;tagIndex<numberOfTagsToScore;++tagIndex)
+			{
+				final int tagId = tagsToScore[tagIndex];
+				final double score = scoreOfTag[tagId];
+				int position = beamSize;
+				while ( (position>0) && isBetter(score, tagId, beamScores[index][position-1], beamTagIds[index][position-1]) ) {--position;}
+				if (position>=width) {continue;}
+				int last = Math.min(beamSize, width-1);
+				for (int moved=last;moved>position;--moved)
+				{
+					beamTagIds[index][moved] = beamTagIds[index][moved-1];
+					beamScores[index][moved] = beamScores[index][moved-1];
+					beamPreviousEntries[index][moved] = beamPreviousEntries[index][moved-1];
+				}
+				beamTagIds[index][position] = tagId;
+				beamScores[index][position] = score;
+				beamPreviousEntries[index][position] = previousEntryOfTag[tagId];
+				if (beamSize<width) {++beamSize;}
+			}
+
+			if (0==beamSize) {return false;}
+			if (scoreThreshold<Double.POSITIVE_INFINITY)
+			{
+				final double minimumScore = beamScores[index][0]-scoreThreshold;
+				while (beamScores[index][beamSize-1]<minimumScore) {--beamSize;} // the first entry is never removed
+			}
+			beamSizes[index] = beamSize;
+		}
+
+		if (compiledModel!=null) // counted only when the beam search succeeds, since otherwise the Viterbi algorithm counts the sentence
+		{
+			compiledModel.recordEmissionLookups(encodedSentence);
+		}
+
+		final int lastIndex = sentence.length-1;
+		result = (G[]) Array.newInstance(crfTags.getTagById(beamTagIds[lastIndex][0]).getClass(), sentence.length); // new G[sentence.length];
+		int entry = 0; // the best entry of the last token
+		for (int tokenIndex=lastIndex;tokenIndex>=0;--tokenIndex)
+		{
+			result[tokenIndex] = crfTags.getTagById(beamTagIds[tokenIndex][entry]);
+			entry = beamPreviousEntries[tokenIndex][entry];
+		}
+		if (entry!=0) {throw new CrfException("BUG");} // the first token extends the only entry of "before the first token".
+		return true;
+	}
+
+	private static boolean isBetter(double score, int tagId, double otherScore, int otherTagId)
+	{
+		return (score>otherScore) || ((score==otherScore)&&(tagId<otherTagId));
+	}
+
+
+	private final CrfModel<K, G> model; // null if constructed with a compiled model
+	private final CompiledCrfModel<K, G> compiledModel; // null if constructed with a model
+	private final K[] sentence;
+	private final Map<Integer, ? extends Set<G>> allowedTags; // null if no token is constrained
+	private final int beamWidth;
+	private final double scoreThreshold;
+
+	/**
+	 * The sequence of tags found for the given sentence.
+	 */
+	private G[] result = null;
+
+	private static final Logger logger = Logger.getLogger(CrfInferenceBeamSearch.class);
+}
@@ -0,0 +1,234 @@
+package com.asher_stern.crf.crf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.filters.CompiledFilters;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.TopK_DateStructure;
+
+/**
+ * Implementation of the list Viterbi algorithm, which finds the k most probable sequences of tags for a given sentence, under the
+ * given model (or compiled model), together with their scores (see {@link ScoredTagSequence}).
+ * <BR>
+ * The algorithm generalizes the Viterbi algorithm (see {@link CrfInferenceViterbi}): instead of a single \delta_j(g), it keeps, for
+ * each token j and tag g, the k highest values of log(\delta_j(g)), i.e., the scores of the k most probable sequences of tags from 0 to j
+ * which end with the tag g, sorted from the highest downwards. Each of them remembers the tag g' of token j-1, and the rank of the
+ * sequence from 0 to j-1 which ends with g', that it extends.<BR>
+ * The k highest values for token j and tag g are found among the values of all the previous tags g' and all their ranks r:
+ * log(\delta_{j-1}(g',r))+log(\psi_j(g,g')), by a {@link TopK_DateStructure}. Since a sequence which is not among the k best sequences
+ * from 0 to j-1 that end with g' cannot extend to one of the k best sequences from 0 to j, the algorithm is exact.
+ * <BR>
+ * log(\psi_j(g,g')) is calculated once for each token and pair of tags, exactly as in {@link CrfInferenceViterbi}, so the cost of the
+ * algorithm is that of the Viterbi algorithm, plus O(k*log(k)) for each token and pair of tags. For k=1 the algorithm finds the
+ * same sequence of tags as {@link CrfInferenceViterbi}, with the same tie-breaking (the lowest tag-ids are preferred).
+ * <P>
+ * As in {@link CrfInferenceViterbi}, only the transitions permitted by the {@link CrfTags} are considered, and if the sentence has
+ * no sequence of tags made of permitted transitions, the algorithm is performed again over all the transitions.
+ * Fewer than k sequences are returned if the sentence has fewer than k sequences of tags.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> token type
+ * @param <G> tag type
+ */
+public class CrfInferenceKBestViterbi<K, G>
+{
+	/**
+	 * Constructs k-best Viterbi implementation for the given sentence, under the given model.
+	 * @param model
+	 * @param sentence
+	 * @param k the number of sequences of tags to find.
+	 */
+	public CrfInferenceKBestViterbi(CrfModel<K, G> model, K[] sentence, int k)
+	{
+		this(model, null, sentence, k);
+	}
+
+	/**
+	 * Constructs k-best Viterbi implementation for the given sentence, under the given compiled model.
+	 * @param compiledModel
+	 * @param sentence
+	 * @param k the number of sequences of tags to find.
+	 */
+	public CrfInferenceKBestViterbi(CompiledCrfModel<K, G> compiledModel, K[] sentence, int k)
+	{
+		this(null, compiledModel, sentence, k);
+	}
+
+	/**
+	 * Finds and returns the k most probable sequences of tags for the sentence given in the constructor, sorted from the most
+	 * probable downwards.
+	 */
+	public List<ScoredTagSequence<G>> inferBestTagSequences()
+	{
+		List<ScoredTagSequence<G>> ret = calculateKBestViterbi(true);
+		if (ret.isEmpty())
+		{
+			logger.warn("No sequence of tags of the sentence is made only of the transitions permitted by the CrfTags. All the transitions are considered.");
+			ret = calculateKBestViterbi(false);
+		}
+		return ret;
+	}
+
+
+
+	private CrfInferenceKBestViterbi(CrfModel<K, G> model, CompiledCrfModel<K, G> compiledModel, K[] sentence, int k)
+	{
+		if (k<=0) {throw new CrfException("k must be positive.");}
+		this.model = model;
+		this.compiledModel = compiledModel;
+		this.sentence = sentence;
+		this.k = k;
+	}
+
+	/**
+	 * Performs the list Viterbi algorithm.
+	 * @param onlyPermittedTransitions see {@link CrfInferenceViterbi}.
+	 * @return the k best sequences of tags, or an empty list if there is no sequence of tags for the sentence (which might happen
+	 * only if onlyPermittedTransitions is true).
+	 */
+	private List<ScoredTagSequence<G>> calculateKBestViterbi(boolean onlyPermittedTransitions)
+	{
+		final CrfTags<G> crfTags = (compiledModel!=null)?compiledModel.getCrfTags():model.getCrfTags();
+		final int numberOfTags = crfTags.getNumberOfTags();
+		final int nullTagId = crfTags.getNullTagId();
+		final CompiledFilters<K, G> compiledFilters = (compiledModel!=null)?null:model.getFeatures().getCompiledFilters(crfTags);
+		final boolean compiled = (compiledFilters!=null)&&(compiledFilters.isCompiled());
+		final int[] encodedSentence = (compiledModel!=null)?compiledModel.encodeSentence(sentence):(compiled?compiledFilters.encodeSentence(sentence):null);
+		final double[] parameters = (compiledModel!=null)?null:model.getParametersAsDoubleArray();
+		final long[] keys = new long[compiled?compiledFilters.getMaximumNumberOfKeys():0];
+
+		if ( (compiledModel!=null) && onlyPermittedTransitions ) // counted once, even if the algorithm is performed again
+		{
+			compiledModel.recordEmissionLookups(encodedSentence);
+		}
+
+		final CrfSentenceTags sentenceTags = onlyPermittedTransitions?CrfSentenceTags.create(crfTags, sentence):null;
+		final int[] onlyNullTagId = new int[]{nullTagId};
+
+		// For token j, tag-id g and rank r (0 is the highest): scores[j][g*k+r] is log(\delta_j(g,r)), previousTagIds[j][g*k+r]
+		// is the tag-id of token j-1, and previousRanks[j][g*k+r] is the rank of the sequence from 0 to j-1 that it extends.
+		final double[][] scores = new double[sentence.length][numberOfTags*k];
+		final int[][] previousTagIds = new int[sentence.length][numberOfTags*k];
+		final int[][] previousRanks = new int[sentence.length][numberOfTags*k];
+		final int[][] numberOfSequences = new int[sentence.length][numberOfTags];
+
+		TopK_DateStructure<Hypothesis> topK = new TopK_DateStructure<Hypothesis>(k, HYPOTHESIS_COMPARATOR);
+		for (int index=0;index<sentence.length;++index)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				final int[] previousTagIdsOfTag = onlyPermittedTransitions ? sentenceTags.getPreviousTagIds(index, tagId) : ((0==index)?onlyNullTagId:crfTags.getAllTagIds());
+				final G tag = crfTags.getTagById(tagId);
+				final double emissionScore = (compiledModel!=null)?compiledModel.getEmissionScore(encodedSentence[index], tagId):0.0;
+				topK.clear();
+				for (int previousTagId : previousTagIdsOfTag)
+				{
+					double logPsi = (compiledModel!=null) ?
+							(emissionScore+compiledModel.getTransitionScore(previousTagId, tagId)) :
+							CrfInferenceViterbi.logPsi(model, sentence, compiledFilters, encodedSentence, parameters, keys, index, tagId, previousTagId, tag, crfTags.getTagById(previousTagId));
+					if (0==index)
+					{
+						topK.insert(new Hypothesis(logPsi, previousTagId, 0));
+					}
+					else
+					{
+						for (int rank=0;rank<numberOfSequences[index-1][previousTagId];++rank)
+						{
+							topK.insert(new Hypothesis(logPsi+scores[index-1][previousTagId*k+rank], previousTagId, rank));
+						}
+					}
+				}
+
+				List<Hypothesis> best = topK.getTopK();
+				for (int rank=0;rank<best.size();++rank)
+				{
+					Hypothesis hypothesis = best.get(rank);
+					scores[index][tagId*k+rank] = hypothesis.score;
+					previousTagIds[index][tagId*k+rank] = hypothesis.tagId;
+					previousRanks[index][tagId*k+rank] = hypothesis.rank;
+				}
+				numberOfSequences[index][tagId] = best.size(); // 0 if no previous tag is permitted.
+			}
+		}
+
+		// The k best sequences of the whole sentence are the k best of all the tags and ranks of the last token.
+		final int lastIndex = sentence.length-1;
+		topK.clear();
+		for (int tagId=0;tagId<numberOfTags;++tagId)
+		{
+			for (int rank=0;rank<numberOfSequences[lastIndex][tagId];++rank)
+			{
+				topK.insert(new Hypothesis(scores[lastIndex][tagId*k+rank], tagId, rank));
+			}
+		}
+
+		List<ScoredTagSequence<G>> ret = new ArrayList<ScoredTagSequence<G>>(k);
+		for (Hypothesis last : topK.getTopK())
+		{
+			@SuppressWarnings("unchecked")
+			G[] tags = (G[]) new Object[sentence.length];
+			int tagId = last.tagId;
+			int rank = last.rank;
+			for (int tokenIndex=lastIndex;tokenIndex>=0;--tokenIndex)
+			{
+				tags[tokenIndex] = crfTags.getTagById(tagId);
+				int previousTagId = previousTagIds[tokenIndex][tagId*k+rank];
+				rank = previousRanks[tokenIndex][tagId*k+rank];
+				tagId = previousTagId;
+			}
+			if (tagId!=nullTagId) {throw new CrfException("BUG");} // the tag of "before the first token" must be null.
+			ret.add(new ScoredTagSequence<G>(Collections.unmodifiableList(Arrays.asList(tags)), last.score));
+		}
+		return ret;
+	}
+
+
+	/**
+	 * A sequence of tags from 0 to some token j, represented by its score, and by the tag-id and the rank by which it is stored
+	 * (i.e., the tag-id of token j-1, and the rank of the sequence from 0 to j-1 that it extends, or the tag-id and rank of the last token).
+	 */
+	private static final class Hypothesis
+	{
+		private Hypothesis(double score, int tagId, int rank)
+		{
+			this.score = score;
+			this.tagId = tagId;
+			this.rank = rank;
+		}
+
+		private final double score;
+		private final int tagId;
+		private final int rank;
+	}
+
+	/**
+	 * Orders the hypotheses by their scores, where among equal scores the lowest tag-id, and then the lowest rank, are considered higher.
+	 */
+	private static final Comparator<Hypothesis> HYPOTHESIS_COMPARATOR = new Comparator<Hypothesis>()
+	{
+		@Override
+		public int compare(Hypothesis o1, Hypothesis o2)
+		{
+			int ret = Double.compare(o1.score, o2.score);
+			if (0==ret) {ret = Integer.compare(o2.tagId, o1.tagId);}
+			if (0==ret) {ret = Integer.compare(o2.rank, o1.rank);}
+			return ret;
+		}
+	};
+
+
+	private final CrfModel<K, G> model; // null if constructed with a compiled model
+	private final CompiledCrfModel<K, G> compiledModel; // null if constructed with a model
+	private final K[] sentence;
+	private final int k;
+
+	private static final Logger logger = Logger.getLogger(CrfInferenceKBestViterbi.class);
+}
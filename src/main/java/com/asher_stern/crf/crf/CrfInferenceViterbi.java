@@ -1,14 +1,15 @@
 package com.asher_stern.crf.crf;
 
 import java.lang.reflect.Array;
-import java.math.BigDecimal;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.filters.CompiledFilters;
+import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
 import com.asher_stern.crf.utilities.CrfException;
-import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
 
 /**
  * Implementation of the Viterbi algorithm.
@@ -38,6 +39,27 @@ import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
  * When the algorithm ends, the tag g for token "sentence-length-1" is known (see above).
  * Using argmax_j(g) it is possible to find the tag g' for "sentence-length-2". In the same way, g'' for "sentence-length-3"
  * can be found, until the first token of the sentence.
+ * <P>
+ * The algorithm is performed in log-space, over primitive doubles: log(\delta_j(g)) = max_{g'}{log(\delta_{j-1}(g'))+log(\psi_j(g,g'))},
+ * where log(\psi_j(g,g')) is simply \sum_{i=0}^{k-1}{\theta_i*f_i(sequecne,j,g,g')} (Z(sequence) does not change the maximizing
+ * sequence, and is ignored). Since the logarithm is monotonic, the same sequence of tags is found, with the same tie-breaking.
+ * <P>
+ * Only the transitions permitted by the {@link CrfTags} are considered: for each token and tag, the previous tags are taken from
+ * the sparse lists of {@link CrfSentenceTags#getPreviousTagIds(int, int)}, which are also used by the forward-backward algorithm
+ * (and which are restricted by the tag dictionary, if any).
+ * If the sentence has no sequence of tags made of permitted transitions, the algorithm is performed again over all the transitions.
+ * <BR>
+ * The tags of some tokens can be constrained to sets of tags known in advance (see {@link CrfSentenceTags#create(CrfTags, Object[], Map)}).
+ * Only the allowed tags of a constrained token are scored, and only the transitions into them and out of them, so constrained
+ * sentences are decoded faster. The constraints are kept also when the algorithm is performed again over all the transitions.
+ * <BR>
+ * The arrays of the algorithm are owned by the thread (see {@link ThreadLocal}), and reused for all its sentences, so,
+ * when the filters are compiled (see {@link CompiledFilters}), no object is allocated per token.
+ * <BR>
+ * The algorithm can also run on a {@link CompiledCrfModel}, in which case log(\psi_j(g,g')) is the sum of an emission score, read
+ * from the emission table once for each token and tag (rather than recalculated for each previous tag), and a transition score
+ * (see {@link CompiledCrfModel#getScore(int, int, int)}). The lookups in the emission table are counted by the compiled model
+ * (see {@link CompiledCrfModel#getKnownTokenRate()}).
  * 
  * 
  *  
@@ -56,9 +78,46 @@ public class CrfInferenceViterbi<K, G>
 	 * @param sentence
 	 */
 	public CrfInferenceViterbi(CrfModel<K, G> model, K[] sentence)
+	{
+		this(model, sentence, null);
+	}
+	
+	/**
+	 * Constructs Viterbi implementation for the given sentence, under the given model, where the tags of some tokens are constrained.
+	 * @param model
+	 * @param sentence
+	 * @param allowedTags maps token indexes to the tags allowed for them (tokens which are not in the map are not constrained). Can be null.
+	 */
+	public CrfInferenceViterbi(CrfModel<K, G> model, K[] sentence, Map<Integer, ? extends Set<G>> allowedTags)
 	{
 		this.model = model;
+		this.compiledModel = null;
 		this.sentence = sentence;
+		this.allowedTags = allowedTags;
+	}
+	
+	/**
+	 * Constructs Viterbi implementation for the given sentence, under the given compiled model.
+	 * @param compiledModel
+	 * @param sentence
+	 */
+	public CrfInferenceViterbi(CompiledCrfModel<K, G> compiledModel, K[] sentence)
+	{
+		this(compiledModel, sentence, null);
+	}
+	
+	/**
+	 * Constructs Viterbi implementation for the given sentence, under the given compiled model, where the tags of some tokens are constrained.
+	 * @param compiledModel
+	 * @param sentence
+	 * @param allowedTags maps token indexes to the tags allowed for them (tokens which are not in the map are not constrained). Can be null.
+	 */
+	public CrfInferenceViterbi(CompiledCrfModel<K, G> compiledModel, K[] sentence, Map<Integer, ? extends Set<G>> allowedTags)
+	{
+		this.model = null;
+		this.compiledModel = compiledModel;
+		this.sentence = sentence;
+		this.allowedTags = allowedTags;
 	}
 
 	/**
@@ -66,115 +125,216 @@ public class CrfInferenceViterbi<K, G>
 	 */
 	public G[] inferBestTagSequence()
 	{
-		calculateViterbi();
+		if (!calculateViterbi(true))
+		{
+			logger.warn("No sequence of tags of the sentence is made only of the transitions permitted by the CrfTags. All the transitions are considered.");
+			calculateViterbi(false);
+		}
 		return result;
 	}
 	
 	
+	/**
+	 * Performs the Viterbi algorithm, and sets the result.
+	 * @param onlyPermittedTransitions if true, only the transitions permitted by the {@link CrfTags}, between the tags considered for
+	 * each token, are considered (see {@link CrfSentenceTags#getPreviousTagIds(int, int)}). Otherwise, all the transitions are considered.
+	 * @return false if there is no sequence of tags for the sentence (which might happen only if onlyPermittedTransitions is true).
+	 */
 	@SuppressWarnings("unchecked")
-	private void calculateViterbi()
+	private boolean calculateViterbi(boolean onlyPermittedTransitions)
 	{
-		delta_viterbiForward = (LinkedHashMap<G, BigDecimal>[]) new LinkedHashMap[sentence.length];
-		argmaxTags = (LinkedHashMap<G, G>[]) new LinkedHashMap[sentence.length];
-		for (int i=0;i<argmaxTags.length;++i){argmaxTags[i]=null;}
+		final CrfTags<G> crfTags = (compiledModel!=null)?compiledModel.getCrfTags():model.getCrfTags();
+		final int numberOfTags = crfTags.getNumberOfTags();
+		final int nullTagId = crfTags.getNullTagId();
+		final CompiledFilters<K, G> compiledFilters = (compiledModel!=null)?null:model.getFeatures().getCompiledFilters(crfTags);
+		final boolean compiled = (compiledFilters!=null)&&(compiledFilters.isCompiled());
+		final int[] encodedSentence = (compiledModel!=null)?compiledModel.encodeSentence(sentence):(compiled?compiledFilters.encodeSentence(sentence):null);
+		final double[] parameters = (compiledModel!=null)?null:model.getParametersAsDoubleArray();
+		
+		final Buffers buffers = BUFFERS.get();
+		buffers.ensureCapacity(sentence.length, numberOfTags, compiled?compiledFilters.getMaximumNumberOfKeys():0);
+		double[] previousDelta = buffers.delta[0];
+		double[] currentDelta = buffers.delta[1];
+		final int[] argmaxTags = buffers.argmaxTags;
+		
+		if ( (compiledModel!=null) && onlyPermittedTransitions ) // counted once, even if the algorithm is performed again
+		{
+			compiledModel.recordEmissionLookups(encodedSentence);
+		}
+		
+		final CrfSentenceTags sentenceTags = onlyPermittedTransitions ? CrfSentenceTags.create(crfTags, sentence, allowedTags) :
+				((allowedTags!=null)?CrfSentenceTags.createAllTransitions(crfTags, sentence.length, allowedTags):null);
+		final int[] onlyNullTagId = new int[]{nullTagId};
 		
 		for (int index=0;index<sentence.length;++index)
 		{
-			Map<G, BigDecimal> delta_viterbiForwardCurrentToken = new LinkedHashMap<G, BigDecimal>();
-			argmaxTags[index] = new LinkedHashMap<G, G>();
-			for (G tag : model.getCrfTags().getTags())
+			// The tags which are not considered for the token (by the tag dictionary or the constraints) are skipped.
+			Arrays.fill(currentDelta, 0, numberOfTags, Double.NEGATIVE_INFINITY);
+			for (int tagId : ((sentenceTags!=null)?sentenceTags.getTagIds(index):crfTags.getAllTagIds()))
 			{
-				Set<G> tagsOfPrevious = null; // The set of tags that can be assigned to token index-1.
-				if (0==index) {tagsOfPrevious=Collections.singleton(null);}
-				else {tagsOfPrevious=delta_viterbiForward[index-1].keySet();}
-				BigDecimal maxValueByPrevious = null;
-				G tagOfPreviousWithMaxValue = null;
-				for (G tagOfPrevious : tagsOfPrevious)
+				// The tags that can be assigned to token index-1.
+				final int[] previousTagIds = (sentenceTags!=null) ? sentenceTags.getPreviousTagIds(index, tagId) : ((0==index)?onlyNullTagId:crfTags.getAllTagIds());
+				final G tag = crfTags.getTagById(tagId);
+				final double emissionScore = (compiledModel!=null)?compiledModel.getEmissionScore(encodedSentence[index], tagId):0.0;
+				double maxValueByPrevious = Double.NEGATIVE_INFINITY; // if no previous tag is permitted, no sequence ends with this tag.
+				int tagOfPreviousWithMaxValue = -1;
+				for (int previousTagId : previousTagIds)
 				{
-					BigDecimal crfFormulaValue = CrfUtilities.oneTokenFormula(model,sentence,index,tag,tagOfPrevious);
-					BigDecimal valueByPrevious = crfFormulaValue;
+					double valueByPrevious = (compiledModel!=null) ?
+							(emissionScore+compiledModel.getTransitionScore(previousTagId, tagId)) :
+							logPsi(model, sentence, compiledFilters, encodedSentence, parameters, buffers.keys, index, tagId, previousTagId, tag, crfTags.getTagById(previousTagId));
 					if (index>0)
 					{
-						valueByPrevious = safeMultiply(valueByPrevious, delta_viterbiForward[index-1].get(tagOfPrevious));
+						valueByPrevious += previousDelta[previousTagId];
 					}
 
-					boolean maxSoFarDetected = false;
-					if (null==maxValueByPrevious) {maxSoFarDetected=true;}
-					else if (maxValueByPrevious.compareTo(valueByPrevious) < 0) {maxSoFarDetected=true;}
-					
-					if (maxSoFarDetected)
+					// Among equal values, the previous tag with the lowest identifier is kept.
+					if ( (tagOfPreviousWithMaxValue<0) || (maxValueByPrevious<valueByPrevious) || ((maxValueByPrevious==valueByPrevious)&&(previousTagId<tagOfPreviousWithMaxValue)) )
 					{
 						maxValueByPrevious=valueByPrevious;
-						tagOfPreviousWithMaxValue=tagOfPrevious;
+						tagOfPreviousWithMaxValue=previousTagId;
 					}
 				} // end for-each previous-tag
-				argmaxTags[index].put(tag,tagOfPreviousWithMaxValue); // i.e. If the tag for token number "index" is "tag", then the tag for token "index-1" is "tagOfPreviousWithMaxValue". 
-				delta_viterbiForwardCurrentToken.put(tag,maxValueByPrevious);
+				argmaxTags[index*numberOfTags+tagId] = tagOfPreviousWithMaxValue; // i.e. If the tag for token number "index" is "tag", then the tag for token "index-1" is "tagOfPreviousWithMaxValue". 
+				currentDelta[tagId] = maxValueByPrevious;
 			} // end for-each current-tag
-			delta_viterbiForward[index]=delta_viterbiForwardCurrentToken;
+			double[] swap = previousDelta;
+			previousDelta = currentDelta;
+			currentDelta = swap;
 		} // end for-each token-in-sentence
 
-		G tagOfLastToken = getArgMax(delta_viterbiForward[sentence.length-1]);
+		int tagOfLastToken = getArgMax(previousDelta, numberOfTags);
+		if (Double.NEGATIVE_INFINITY==previousDelta[tagOfLastToken]) {return false;}
 		
-		result = (G[]) Array.newInstance(tagOfLastToken.getClass(), sentence.length); // new G[sentence.length];
-		G bestTagCurrentIndex = tagOfLastToken;
+		result = (G[]) Array.newInstance(crfTags.getTagById(tagOfLastToken).getClass(), sentence.length); // new G[sentence.length];
+		int bestTagCurrentIndex = tagOfLastToken;
 		for (int tokenIndex=sentence.length-1;tokenIndex>=0;--tokenIndex)
 		{
-			result[tokenIndex] = bestTagCurrentIndex;
-			bestTagCurrentIndex = argmaxTags[tokenIndex].get(bestTagCurrentIndex);
+			result[tokenIndex] = crfTags.getTagById(bestTagCurrentIndex);
+			bestTagCurrentIndex = argmaxTags[tokenIndex*numberOfTags+bestTagCurrentIndex];
 		}
-		if (bestTagCurrentIndex!=null) {throw new CrfException("BUG");} // the tag of "before the first token" must be null.
+		if (bestTagCurrentIndex!=nullTagId) {throw new CrfException("BUG");} // the tag of "before the first token" must be null.
 		
 		// Sanity checks
 		if (result.length!=sentence.length) throw new CrfException("BUG: assignment array has different length than the sentence.");
 		for (int i=0;i<result.length;++i)
 		{
-			if (null==argmaxTags[i]) {throw new CrfException("BUG: null tag assigned to token: "+i);}
+			if (null==result[i]) {throw new CrfException("BUG: null tag assigned to token: "+i);}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns log(\psi_j(g,g')) = \sum_{i=0}^{k-1}{\theta_i*f_i(sequecne,j,g,g')}.
+	 * If the filters are compiled, it is calculated without allocating any object. Otherwise, the active features are found
+	 * by {@link CrfUtilities#getActiveFeatureIndexes(com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters, Object[], int, Object, Object)}.
+	 * <BR>
+	 * Also used by {@link CrfInferenceKBestViterbi}.
+	 */
+	static <K, G> double logPsi(CrfModel<K, G> model, K[] sentence, CompiledFilters<K, G> compiledFilters, int[] encodedSentence, double[] parameters, long[] keys, int tokenIndex, int tagId, int previousTagId, G tag, G previousTag)
+	{
+		final CrfFilteredFeature<K, G>[] filteredFeatures = model.getFeatures().getFilteredFeatures();
+		if (encodedSentence!=null)
+		{
+			return CrfUtilities.oneTokenSumWeightedFeatures(compiledFilters, filteredFeatures, parameters, sentence, encodedSentence, tokenIndex, tagId, previousTagId, tag, previousTag, keys);
+		}
+		else
+		{
+			double sum = 0.0;
+			for (int featureIndex : CrfUtilities.getActiveFeatureIndexes(model.getFeatures(), sentence, tokenIndex, tag, previousTag))
+			{
+				CrfFilteredFeature<K, G> feature = filteredFeatures[featureIndex];
+				if (feature.isWhenNotFilteredIsAlwaysOne())
+				{
+					sum += parameters[featureIndex];
+				}
+				else
+				{
+					sum += parameters[featureIndex]*feature.getFeature().value(sentence,tokenIndex,tag,previousTag);
+				}
+			}
+			return sum;
 		}
 	}
-
 	
 	
-	private G getArgMax(Map<G, BigDecimal> delta_oneTokenViterbiForward)
+	private int getArgMax(double[] delta_oneTokenViterbiForward, int numberOfTags)
 	{
-		BigDecimal maxValueForLastToken = null;
-		G tagWithMaxValueForLastToken = null;
-		for (G tag : model.getCrfTags().getTags())
+		double maxValueForLastToken = 0.0;
+		int tagWithMaxValueForLastToken = -1;
+		for (int tagId=0;tagId<numberOfTags;++tagId)
 		{
-			BigDecimal value = delta_oneTokenViterbiForward.get(tag);
-			
-			boolean maxDetected = false;
-			if (null==maxValueForLastToken) {maxDetected=true;}
-			else if (value.compareTo(maxValueForLastToken) > 0) {maxDetected=true;}
-			
-			if (maxDetected)
+			double value = delta_oneTokenViterbiForward[tagId];
+			if ( (tagWithMaxValueForLastToken<0) || (value>maxValueForLastToken) )
 			{
 				maxValueForLastToken=value;
-				tagWithMaxValueForLastToken=tag;
+				tagWithMaxValueForLastToken=tagId;
 			}
 		}
 		return tagWithMaxValueForLastToken;
 	}
 	
 	
-	private final CrfModel<K, G> model;
-	private final K[] sentence;
-	
-	
 	/**
-	 * This is \delta_j(g). delta_viterbiForward[j].get(g) is the probability of the most
-	 * probable sequence of tags from 0 to j, where the tag for token j is g.
+	 * The arrays used by the Viterbi algorithm. Each thread has its own buffers (see {@link #BUFFERS}), which grow when a longer
+	 * sentence (or a model with more tags) is tagged, and are otherwise reused for all the sentences tagged by that thread.
 	 */
-	private Map<G, BigDecimal>[] delta_viterbiForward = null; // the map must permit null keys
+	private static final class Buffers
+	{
+		private void ensureCapacity(int sentenceLength, int numberOfTags, int numberOfKeys)
+		{
+			if (delta[0].length<numberOfTags)
+			{
+				delta = new double[2][numberOfTags];
+			}
+			if (argmaxTags.length<(sentenceLength*numberOfTags))
+			{
+				argmaxTags = new int[Math.max(sentenceLength*numberOfTags, 2*argmaxTags.length)];
+			}
+			if (keys.length<numberOfKeys)
+			{
+				keys = new long[numberOfKeys];
+			}
+		}
+		
+		/**
+		 * This is \delta_j(g), for the previous token and the current token. delta[.][g] is the log of the probability of the most
+		 * probable sequence of tags from 0 to j, where the tag for token j is g (g is a tag-id, see {@link CrfTags#getTagId(Object)}).
+		 * Only two tokens are kept, since \delta_j depends only on \delta_{j-1}.
+		 */
+		private double[][] delta = new double[2][0];
+		
+		/**
+		 * argmaxTags[j*number-of-tags+g] is the tag-id g', which is the tag for token j-1 in the most probable sequence of tags from 0 to j
+		 * where the tag for j is g.
+		 */
+		private int[] argmaxTags = new int[0]; // from current tag-id to previous tag-id.
+		
+		/**
+		 * Buffer for {@link CompiledFilters#createFilterKeys(int[], int, int, int, long[])}.
+		 */
+		private long[] keys = new long[0];
+	}
 	
-	/**
-	 * argmaxTags[j].get(g) is the tag g', which is the tag for token j-1 in the most probable sequence of tags from 0 to j
-	 * where the tag for j is g.
-	 */
-	private Map<G, G>[] argmaxTags = null; // Map from current tag to previous tag.
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>()
+	{
+		@Override
+		protected Buffers initialValue()
+		{
+			return new Buffers();
+		}
+	};
+	
+	
+	private final CrfModel<K, G> model; // null if constructed with a compiled model
+	private final CompiledCrfModel<K, G> compiledModel; // null if constructed with a model
+	private final K[] sentence;
+	private final Map<Integer, ? extends Set<G>> allowedTags; // null if no token is constrained
 	
 	/**
 	 * The most probable sequence of tags for the given sentence.
 	 */
 	private G[] result = null;
+	
+	private static final Logger logger = Logger.getLogger(CrfInferenceViterbi.class);
 }
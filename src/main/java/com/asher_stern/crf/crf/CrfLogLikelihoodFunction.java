@@ -6,21 +6,18 @@ import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
 import com.asher_stern.crf.crf.run.CrfTagsBuilder;
 import com.asher_stern.crf.function.DerivableFunction;
+import com.asher_stern.crf.function.ValueAndGradient;
 import com.asher_stern.crf.utilities.CrfException;
 import com.asher_stern.crf.utilities.ArithmeticUtilities;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
 import com.asher_stern.crf.utilities.TaggedToken;
 import com.asher_stern.crf.utilities.VectorUtilities;
 
@@ -64,13 +61,87 @@ public class CrfLogLikelihoodFunction<K,G> extends DerivableFunction
 	public CrfLogLikelihoodFunction(List<? extends List<? extends TaggedToken<K, G>>> corpus, CrfTags<G> crfTags,
 			CrfFeaturesAndFilters<K, G> features, boolean useRegularization,
 			double sigmaSquare_inverseRegularizationFactor)
+	{
+		this(corpus, crfTags, features, useRegularization, sigmaSquare_inverseRegularizationFactor, false);
+	}
+	
+	/**
+	 * Constructs the log-likelihood function of the CRF.
+	 * See {@link #CrfLogLikelihoodFunction(List, CrfTags, CrfFeaturesAndFilters, boolean, double)}.
+	 * 
+	 * @param useScaledForwardBackward if true, the normalization factors and the expected feature-values are calculated by
+	 * {@link CrfScaledForwardBackward} (over primitive <tt>double</tt>s), rather than by {@link CrfForwardBackward}.
+	 */
+	public CrfLogLikelihoodFunction(List<? extends List<? extends TaggedToken<K, G>>> corpus, CrfTags<G> crfTags,
+			CrfFeaturesAndFilters<K, G> features, boolean useRegularization,
+			double sigmaSquare_inverseRegularizationFactor, boolean useScaledForwardBackward)
 	{
 		super();
-		this.corpus = corpus;
+		this.corpus = CrfUtilities.randomAccessList(corpus);
+		this.sentenceLengths = CrfUtilities.sentenceLengths(this.corpus);
 		this.crfTags = crfTags;
 		this.features = features;
 		this.useRegularization = useRegularization;
 		this.sigmaSquare_inverseRegularizationFactor = big(sigmaSquare_inverseRegularizationFactor);
+		this.useScaledForwardBackward = useScaledForwardBackward;
+		this.featureCache = null;
+		this.empiricalFeatureValues = null;
+	}
+	
+	/**
+	 * Constructs the log-likelihood function of the CRF, for the corpus of the given {@link CrfCorpusFeatureCache}.
+	 * The active features and their values are taken from the cache, rather than being found in every evaluation of the function.
+	 * See {@link #CrfLogLikelihoodFunction(List, CrfTags, CrfFeaturesAndFilters, boolean, double, boolean)}.
+	 */
+	public CrfLogLikelihoodFunction(CrfCorpusFeatureCache<K, G> featureCache, boolean useRegularization,
+			double sigmaSquare_inverseRegularizationFactor, boolean useScaledForwardBackward)
+	{
+		super();
+		this.corpus = CrfUtilities.randomAccessList(featureCache.getCorpus());
+		this.sentenceLengths = CrfUtilities.sentenceLengths(this.corpus);
+		this.crfTags = featureCache.getCrfTags();
+		this.features = featureCache.getFeatures();
+		this.useRegularization = useRegularization;
+		this.sigmaSquare_inverseRegularizationFactor = big(sigmaSquare_inverseRegularizationFactor);
+		this.useScaledForwardBackward = useScaledForwardBackward;
+		this.featureCache = featureCache;
+		this.empiricalFeatureValues = featureCache.calculateEmpiricalFeatureValues();
+	}
+
+
+	/**
+	 * Optional setter. Sets the executor on which the function is calculated. The executor is owned by the caller (e.g., by
+	 * {@link com.asher_stern.crf.crf.run.CrfTrainer}, for the whole training), and is not shut down here.
+	 * Its number of threads should be given to {@link #setNumberOfThreads(int)}.
+	 * If not set, a temporary executor is created for each calculation.
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Optional setter. Sets the number of threads which calculate the function, which is also the number of chunks the corpus is
+	 * split into when the expected feature values are calculated (see {@link CrfFeatureValueExpectationByModel#setNumberOfThreads(int)}).
+	 * If not set, {@link ParallelAccumulation#defaultNumberOfChunks()} is used.
+	 */
+	public void setNumberOfThreads(int numberOfThreads)
+	{
+		if (numberOfThreads<=0) {throw new CrfException("The number of threads must be positive.");}
+		this.numberOfThreads = numberOfThreads;
+	}
+	
+	/**
+	 * Optional setter for the empirical feature values (the sum of the values of each feature over the whole corpus, for the tags given
+	 * in the corpus), if they have already been calculated for the corpus of this function, e.g., by
+	 * {@link CrfEmpiricalFeatureValueDistributionInCorpus#calculateInParallel(List, CrfFeaturesAndFilters, ExecutorService, int)}.
+	 * If not set, they are calculated (in parallel) in the first calculation of the gradient, and then kept.
+	 * The given array is not modified.
+	 */
+	public void setEmpiricalFeatureValues(double[] empiricalFeatureValues)
+	{
+		if (empiricalFeatureValues.length!=size()) {throw new CrfException("Number of empirical feature values differs from number of features.");}
+		this.empiricalFeatureValues = empiricalFeatureValues;
 	}
 
 
@@ -111,22 +182,38 @@ public class CrfLogLikelihoodFunction<K,G> extends DerivableFunction
 		
 		CrfModel<K, G> model = createModel(point);
 		
-		logger.debug("Calculating empirical feature values");
-		CrfEmpiricalFeatureValueDistributionInCorpus<K,G> empiricalFeatureValue = new CrfEmpiricalFeatureValueDistributionInCorpus<K,G>(corpus.iterator(),model.getFeatures());
-		empiricalFeatureValue.calculate();
-		
 		logger.debug("Calculating expected feature values by model");
-		CrfFeatureValueExpectationByModel<K, G> featureValueExpectationsByModel = new CrfFeatureValueExpectationByModel<K, G>(corpus.iterator(),model);
+		CrfFeatureValueExpectationByModel<K, G> featureValueExpectationsByModel = createFeatureValueExpectationByModel(model);
 		featureValueExpectationsByModel.calculate();
 		
-		logger.debug("Creating gradient array.");
-		BigDecimal[] ret = new BigDecimal[point.length];
-		for (int parameterIndex=0;parameterIndex<ret.length;++parameterIndex)
-		{
-			BigDecimal regularizationDerivative = useRegularization?calculateRegularizationDerivative(point[parameterIndex]):BigDecimal.ZERO;
-			ret[parameterIndex] = safeSubtract(safeSubtract(empiricalFeatureValue.getEmpiricalFeatureValue()[parameterIndex], featureValueExpectationsByModel.getFeatureValueExpectation()[parameterIndex]), regularizationDerivative);
-		}
-		return ret;
+		return calculateGradient(point, model, featureValueExpectationsByModel);
+	}
+	
+	
+	/**
+	 * Calculates the value and the gradient together, in a single forward-backward sweep per sentence: the normalization factors,
+	 * needed for the value, are taken from the forward-backward runs that calculate the expected feature values, needed for the gradient.
+	 */
+	@Override
+	public ValueAndGradient valueAndGradient(BigDecimal[] point)
+	{
+		logger.debug("Calculating value and gradient");
+		
+		CrfModel<K, G> model = createModel(point);
+		BigDecimal regularization = useRegularization?calculateRegularizationFactor(point):BigDecimal.ZERO;
+		logger.debug("Calculating sum weighted features");
+		BigDecimal sumWeightedFeatures = calculateSumWeightedFeatures(model);
+		
+		logger.debug("Calculating expected feature values by model, and sum log normalizations");
+		CrfFeatureValueExpectationByModel<K, G> featureValueExpectationsByModel = createFeatureValueExpectationByModel(model);
+		featureValueExpectationsByModel.setCalculateSumOfLogNormalizationFactors(true);
+		featureValueExpectationsByModel.calculate();
+		BigDecimal sumOfLogNormalizations = featureValueExpectationsByModel.getSumOfLogNormalizationFactors();
+		
+		BigDecimal value = safeSubtract(safeSubtract(sumWeightedFeatures, sumOfLogNormalizations), regularization);
+		BigDecimal[] gradient = calculateGradient(point, model, featureValueExpectationsByModel);
+		logger.debug("Calculating value and gradient - done.");
+		return new ValueAndGradient(value, gradient);
 	}
 
 
@@ -143,8 +230,68 @@ public class CrfLogLikelihoodFunction<K,G> extends DerivableFunction
 	
 	
 	
+	private CrfFeatureValueExpectationByModel<K, G> createFeatureValueExpectationByModel(CrfModel<K, G> model)
+	{
+		CrfFeatureValueExpectationByModel<K, G> featureValueExpectationsByModel = null;
+		if (featureCache!=null)
+		{
+			featureValueExpectationsByModel = new CrfFeatureValueExpectationByModel<K, G>(featureCache,model,useScaledForwardBackward);
+		}
+		else
+		{
+			featureValueExpectationsByModel = new CrfFeatureValueExpectationByModel<K, G>(corpus.iterator(),model,useScaledForwardBackward);
+		}
+		featureValueExpectationsByModel.setExecutor(executor);
+		featureValueExpectationsByModel.setNumberOfThreads(numberOfThreads);
+		return featureValueExpectationsByModel;
+	}
+	
+	private BigDecimal[] calculateGradient(BigDecimal[] point, CrfModel<K, G> model, CrfFeatureValueExpectationByModel<K, G> featureValueExpectationsByModel)
+	{
+		logger.debug("Calculating empirical feature values");
+		BigDecimal[] empiricalFeatureValue = VectorUtilities.toBigDecimalArray(calculateEmpiricalFeatureValues());
+		
+		logger.debug("Creating gradient array.");
+		BigDecimal[] ret = new BigDecimal[point.length];
+		for (int parameterIndex=0;parameterIndex<ret.length;++parameterIndex)
+		{
+			BigDecimal regularizationDerivative = useRegularization?calculateRegularizationDerivative(point[parameterIndex]):BigDecimal.ZERO;
+			ret[parameterIndex] = safeSubtract(safeSubtract(empiricalFeatureValue[parameterIndex], featureValueExpectationsByModel.getFeatureValueExpectation()[parameterIndex]), regularizationDerivative);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the empirical feature values, which are calculated (in parallel) only on the first call, unless they were
+	 * given by the cache or by {@link #setEmpiricalFeatureValues(double[])}.
+	 */
+	private double[] calculateEmpiricalFeatureValues()
+	{
+		double[] ret = empiricalFeatureValues;
+		if (null==ret)
+		{
+			ret = CrfEmpiricalFeatureValueDistributionInCorpus.calculateInParallel(corpus, features, executor, numberOfThreads);
+			empiricalFeatureValues = ret;
+		}
+		return ret;
+	}
+	
 	private BigDecimal calculateSumWeightedFeatures(CrfModel<K, G> model)
 	{
+		if (featureCache!=null)
+		{
+			// \Sum_{sentence}\Sum_{j}\Sum_{i}(\theta_i*f_i(j,g,g')) = \Sum_{i}(\theta_i*empirical-value-of-f_i)
+			BigDecimal sumWeightedFeatures = BigDecimal.ZERO;
+			for (int featureIndex=0;featureIndex<empiricalFeatureValues.length;++featureIndex)
+			{
+				if (empiricalFeatureValues[featureIndex]!=0.0)
+				{
+					sumWeightedFeatures = safeAdd(sumWeightedFeatures, safeMultiply(model.getParameters().get(featureIndex), big(empiricalFeatureValues[featureIndex])));
+				}
+			}
+			return sumWeightedFeatures;
+		}
+		
 		BigDecimal sumWeightedFeatures = BigDecimal.ZERO;
 		for (List<? extends TaggedToken<K, G> > sentence : corpus)
 		{
@@ -165,41 +312,74 @@ public class CrfLogLikelihoodFunction<K,G> extends DerivableFunction
 		return sumWeightedFeatures;
 	}
 	
-	private BigDecimal calculateSumOfLogNormalizations(CrfModel<K, G> model)
+	private BigDecimal calculateSumOfLogNormalizations(final CrfModel<K, G> model)
 	{
-		ExecutorService executor = Executors.newWorkStealingPool();
-		List<Future<BigDecimal>> futures = new LinkedList<>();
-		BigDecimal sum = BigDecimal.ZERO;
-		for (final List<? extends TaggedToken<K, G> > sentence : corpus)
+		if (useScaledForwardBackward) {return calculateSumOfLogNormalizationsScaled(model);}
+		
+		// Each sentence writes its own cell, and the cells are summed in BigDecimal afterwards.
+		final BigDecimal[] logNormalizations = new BigDecimal[corpus.size()];
+		ParallelAccumulation accumulation = new ParallelAccumulation(executor, numberOfThreads, sentenceLengths, 0);
+		accumulation.calculate(new ParallelAccumulation.ItemAccumulator()
 		{
-			futures.add(executor.submit(new Callable<BigDecimal>()
+			@Override
+			public double accumulate(int sentenceIndex, double[] accumulator)
 			{
-				@Override
-				public BigDecimal call() throws Exception
+				CrfForwardBackward<K, G> forwardBackward = null;
+				if (featureCache!=null)
+				{
+					CrfSentenceFeatureLattice<K, G> lattice = featureCache.getLattice(sentenceIndex);
+					forwardBackward = new CrfForwardBackward<K, G>(model,lattice.getSentence(),null);
+					forwardBackward.setAllTokensFormulaValues(CrfPsi_FormulaAllTokens.createAndCalculate(model, lattice));
+				}
+				else
 				{
-					K[] sentenceAsArray = CrfUtilities.extractSentence(sentence);
+					K[] sentenceAsArray = CrfUtilities.extractSentence(corpus.get(sentenceIndex));
 					CrfRememberActiveFeatures<K, G> activeFeaturesForSentence = CrfRememberActiveFeatures.findForSentence(features, crfTags, sentenceAsArray);
-					CrfForwardBackward<K, G> forwardBackward = new CrfForwardBackward<K, G>(model,sentenceAsArray,activeFeaturesForSentence);
-					//forwardBackward.calculateForwardAndBackward();
-					forwardBackward.calculateOnlyNormalizationFactor();
-					
-					return ArithmeticUtilities.log(forwardBackward.getCalculatedNormalizationFactor());
+					forwardBackward = new CrfForwardBackward<K, G>(model,sentenceAsArray,activeFeaturesForSentence);
 				}
-			}));
+				//forwardBackward.calculateForwardAndBackward();
+				forwardBackward.calculateOnlyNormalizationFactor();
+				
+				logNormalizations[sentenceIndex] = ArithmeticUtilities.log(forwardBackward.getCalculatedNormalizationFactor());
+				return 0.0;
+			}
+		});
+		
+		BigDecimal sum = BigDecimal.ZERO;
+		for (BigDecimal logNormalization : logNormalizations)
+		{
+			sum = safeAdd(sum, logNormalization);
 		}
-		for (Future<BigDecimal> future : futures)
+		return sum;
+	}
+	
+	private BigDecimal calculateSumOfLogNormalizationsScaled(CrfModel<K, G> model)
+	{
+		final double[] parameters = VectorUtilities.toDoubleArray(model.getParameters().toArray(new BigDecimal[0]));
+		
+		ParallelAccumulation accumulation = new ParallelAccumulation(executor, numberOfThreads, sentenceLengths, 0);
+		accumulation.calculate(new ParallelAccumulation.ItemAccumulator()
 		{
-			try
+			@Override
+			public double accumulate(int sentenceIndex, double[] accumulator)
 			{
-				sum = safeAdd(sum, future.get());
-			}
-			catch (InterruptedException | ExecutionException e)
-			{
-				throw new CrfException(e);
+				CrfScaledForwardBackward<K, G> forwardBackward = null;
+				if (featureCache!=null)
+				{
+					forwardBackward = new CrfScaledForwardBackward<K, G>(crfTags, featureCache.getLattice(sentenceIndex), parameters);
+				}
+				else
+				{
+					K[] sentenceAsArray = CrfUtilities.extractSentence(corpus.get(sentenceIndex));
+					CrfRememberActiveFeatures<K, G> activeFeaturesForSentence = CrfRememberActiveFeatures.findForSentence(features, crfTags, sentenceAsArray);
+					forwardBackward = new CrfScaledForwardBackward<K, G>(crfTags, features, parameters, sentenceAsArray, activeFeaturesForSentence);
+				}
+				forwardBackward.calculateOnlyNormalizationFactor();
+				
+				return forwardBackward.getCalculatedLogNormalizationFactor();
 			}
-		}
-		
-		return sum;
+		});
+		return big(accumulation.getScalarSum());
 	}
 	
 	private BigDecimal calculateRegularizationFactor(BigDecimal[] parameters)
@@ -235,6 +415,16 @@ public class CrfLogLikelihoodFunction<K,G> extends DerivableFunction
 	private final CrfFeaturesAndFilters<K, G> features;
 	private final boolean useRegularization;
 	private final BigDecimal sigmaSquare_inverseRegularizationFactor;
+	private final boolean useScaledForwardBackward;
+	private final int[] sentenceLengths;
+	
+	// Used if the function was constructed with a CrfCorpusFeatureCache
+	private final CrfCorpusFeatureCache<K, G> featureCache;
+	
+	private volatile double[] empiricalFeatureValues; // calculated once (see calculateEmpiricalFeatureValues())
+
+	private ExecutorService executor = null;
+	private int numberOfThreads = ParallelAccumulation.defaultNumberOfChunks();
 	
 	private static final Logger logger = Logger.getLogger(CrfLogLikelihoodFunction.class);
 }
@@ -0,0 +1,372 @@
+package com.asher_stern.crf.crf;
+
+import static com.asher_stern.crf.utilities.ArithmeticUtilities.logSumExp;
+
+import java.util.Arrays;
+
+import com.asher_stern.crf.crf.filters.CompiledFilters;
+import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
+import com.asher_stern.crf.utilities.CrfException;
+
+/**
+ * The forward-backward algorithm (see {@link CrfForwardBackward}), calculated in log-space over primitive <tt>double</tt>s.
+ * <BR>
+ * Instead of \alpha_j(g), \beta_j(g) and \Psi(j,g,g') this class calculates log(\alpha_j(g)), log(\beta_j(g)) and
+ * log(\Psi(j,g,g')) = \Sum_{i=0}^{number-of-features-1}(\theta_i*f_i(j,g,g')).
+ * Products of the original algorithm become sums, and sums become log-sum-exp (see
+ * {@link com.asher_stern.crf.utilities.ArithmeticUtilities#logSumExp(double, double)}), so no value overflows a
+ * <tt>double</tt>, no matter how long the sentence is, and no {@link java.math.BigDecimal} is needed.
+ * <P>
+ * Tags are identified by their tag-ids (see {@link CrfTags#getTagId(Object)}), where the "virtual tag" null, which is
+ * the tag of the "virtual token" that precedes the first token, is identified by {@link CrfTags#getNullTagId()}.
+ * Transitions that are not permitted by the {@link CrfTags} have log(\Psi) = {@link Double#NEGATIVE_INFINITY}.
+ * <P>
+ * Besides training, the algorithm is used for inference: given a {@link CrfModel} or a {@link CompiledCrfModel}, it calculates
+ * the posterior (marginal) probability of each tag for each token (see {@link #getMarginalProbabilities()}).
+ *
+ * @see CrfLogSpaceLogLikelihoodFunction
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CrfLogSpaceForwardBackward<K,G>
+{
+	/**
+	 * The largest gap between log(Z(x)) calculated by the forward pass and log(Z(x)) calculated by the backward pass,
+	 * which is considered as "roughly equal". This is the log-space counterpart of {@link CrfUtilities#roughlyEqual(java.math.BigDecimal, java.math.BigDecimal)}.
+	 */
+	public static final double LOG_ROUGHLY_EQUAL_DISTANCE = Math.log(1.01);
+
+	/**
+	 * Constructor.
+	 * @param crfTags the tags, and the restrictions over them.
+	 * @param features the CRF features.
+	 * @param parameters the parameters (\theta_i).
+	 * @param sentence the sentence.
+	 * @param activeFeaturesForSentence the active features of the sentence.
+	 */
+	public CrfLogSpaceForwardBackward(CrfTags<G> crfTags,
+			CrfFeaturesAndFilters<K, G> features, double[] parameters,
+			K[] sentence, CrfRememberActiveFeatures<K, G> activeFeaturesForSentence)
+	{
+		super();
+		this.crfTags = crfTags;
+		this.features = features;
+		this.parameters = parameters;
+		this.sentence = sentence;
+		this.activeFeaturesForSentence = activeFeaturesForSentence;
+		this.lattice = null;
+		this.model = null;
+		this.compiledModel = null;
+		this.sentenceTags = activeFeaturesForSentence.getSentenceTags();
+		this.numberOfTags = crfTags.getNumberOfTags();
+	}
+
+	/**
+	 * Constructor for a sentence whose active features and their values are given as a {@link CrfSentenceFeatureLattice}.
+	 * @param crfTags the tags, and the restrictions over them.
+	 * @param lattice the lattice of the sentence.
+	 * @param parameters the parameters (\theta_i).
+	 */
+	public CrfLogSpaceForwardBackward(CrfTags<G> crfTags, CrfSentenceFeatureLattice<K, G> lattice, double[] parameters)
+	{
+		super();
+		this.crfTags = crfTags;
+		this.features = null;
+		this.parameters = parameters;
+		this.sentence = lattice.getSentence();
+		this.activeFeaturesForSentence = null;
+		this.lattice = lattice;
+		this.model = null;
+		this.compiledModel = null;
+		this.sentenceTags = lattice.getSentenceTags();
+		this.numberOfTags = crfTags.getNumberOfTags();
+	}
+	
+	/**
+	 * Constructor for inference on the given sentence, by the given model.
+	 * @param model the model.
+	 * @param sentence the sentence.
+	 * @param sentenceTags the tags considered for each token, and the transitions between them (see {@link CrfSentenceTags#create(CrfTags, Object[])}).
+	 */
+	public CrfLogSpaceForwardBackward(CrfModel<K, G> model, K[] sentence, CrfSentenceTags sentenceTags)
+	{
+		this(model.getCrfTags(), model, null, sentence, sentenceTags);
+	}
+	
+	/**
+	 * Constructor for inference on the given sentence, by the given compiled model, whose log(\Psi(j,g,g')) are read from its tables.
+	 * @param compiledModel the compiled model.
+	 * @param sentence the sentence.
+	 * @param sentenceTags the tags considered for each token, and the transitions between them (see {@link CrfSentenceTags#create(CrfTags, Object[])}).
+	 */
+	public CrfLogSpaceForwardBackward(CompiledCrfModel<K, G> compiledModel, K[] sentence, CrfSentenceTags sentenceTags)
+	{
+		this(compiledModel.getCrfTags(), null, compiledModel, sentence, sentenceTags);
+	}
+
+	public void calculateForwardAndBackward()
+	{
+		calculateLogPsi();
+		calculateAlphaForward();
+		calculateBetaBackward();
+
+		if (Math.abs(logNormalizationFactor-logNormalizationFactorByBeta) > LOG_ROUGHLY_EQUAL_DISTANCE)
+		{
+			String errorMessage = "The calculated final-alpha and final-beta, both correspond to log(Z(x)) (the log of the normalization factor) differ.\n"
+					+ "log(Z(x)) by alpha (forward) = "+String.format("%-3.3f", logNormalizationFactor)+". log(Z(x)) by beta (backward) = "+String.format("%-3.3f", logNormalizationFactorByBeta);
+			throw new CrfException(errorMessage);
+		}
+		calculated = true;
+	}
+
+	public void calculateOnlyNormalizationFactor()
+	{
+		calculateLogPsi();
+		calculateAlphaForward();
+		onlyNormalizationFactorCalculated = true;
+	}
+
+
+	/**
+	 * Returns log(\Psi(j,g,g')), as an array indexed by [j][g'][g].
+	 */
+	public double[][][] getLogPsi()
+	{
+		if ( (!calculated) && (!onlyNormalizationFactorCalculated) ) {throw new CrfException("forward-backward not calculated");}
+		return logPsi;
+	}
+
+	/**
+	 * Returns log(\alpha_j(g)), as an array indexed by [j][g].
+	 */
+	public double[][] getLogAlpha_forward()
+	{
+		if (!calculated) {throw new CrfException("forward-backward not calculated");}
+		return logAlpha_forward;
+	}
+
+	/**
+	 * Returns log(\beta_j(g)), as an array indexed by [j][g], for j in [0,sentence-length-1].
+	 */
+	public double[][] getLogBeta_backward()
+	{
+		if (!calculated) {throw new CrfException("forward-backward not calculated");}
+		return logBeta_backward;
+	}
+
+	/**
+	 * Returns the posterior probability of each tag of each token: p(y_j=g|x) = \alpha_j(g)*\beta_j(g)/Z(x), as an array indexed by [j][g].
+	 * For tags which are not considered for a token, the probability is 0.
+	 */
+	public double[][] getMarginalProbabilities()
+	{
+		if (!calculated) {throw new CrfException("forward-backward not calculated");}
+		double[][] ret = new double[sentence.length][numberOfTags];
+		for (int index=0;index<sentence.length;++index)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				ret[index][tagId] = Math.exp(logAlpha_forward[index][tagId]+logBeta_backward[index][tagId]-logNormalizationFactor);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns log(Z(x)), where Z(x) is the normalization factor.
+	 */
+	public double getCalculatedLogNormalizationFactor()
+	{
+		if ( (!calculated) && (!onlyNormalizationFactorCalculated) ) {throw new CrfException("forward-backward not calculated");}
+		return logNormalizationFactor;
+	}
+
+
+
+	private CrfLogSpaceForwardBackward(CrfTags<G> crfTags, CrfModel<K, G> model, CompiledCrfModel<K, G> compiledModel, K[] sentence, CrfSentenceTags sentenceTags)
+	{
+		super();
+		this.crfTags = crfTags;
+		this.features = null;
+		this.parameters = null;
+		this.sentence = sentence;
+		this.activeFeaturesForSentence = null;
+		this.lattice = null;
+		this.model = model;
+		this.compiledModel = compiledModel;
+		this.sentenceTags = sentenceTags;
+		this.numberOfTags = crfTags.getNumberOfTags();
+	}
+
+	private void calculateLogPsi()
+	{
+		if (lattice!=null)
+		{
+			logPsi = lattice.calculateLogPsi(parameters);
+		}
+		else if ( (model!=null) || (compiledModel!=null) )
+		{
+			logPsi = calculateLogPsiForInference();
+		}
+		else
+		{
+			logPsi = calculateLogPsi(crfTags, features, parameters, sentence, activeFeaturesForSentence);
+		}
+	}
+
+	/**
+	 * Calculates log(\Psi(j,g,g')) = \Sum_{i=0}^{number-of-features-1}(\theta_i*f_i(j,g,g')) for every token j and every
+	 * permitted pair of tags, and returns it as an array indexed by [j][g'][g]. Tags are identified as described in the
+	 * class documentation, and transitions that are not permitted (see {@link CrfRememberActiveFeatures#getSentenceTags()}) get {@link Double#NEGATIVE_INFINITY}.
+	 */
+	static <K,G> double[][][] calculateLogPsi(CrfTags<G> crfTags,
+			CrfFeaturesAndFilters<K, G> features, double[] parameters,
+			K[] sentence, CrfRememberActiveFeatures<K, G> activeFeaturesForSentence)
+	{
+		final int numberOfTags = crfTags.getNumberOfTags();
+		final CrfFilteredFeature<K, G>[] filteredFeatures = features.getFilteredFeatures();
+		final CrfSentenceTags sentenceTags = activeFeaturesForSentence.getSentenceTags();
+		double[][][] logPsi = new double[sentence.length][numberOfTags+1][numberOfTags];
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (double[] row : logPsi[tokenIndex]) {Arrays.fill(row, Double.NEGATIVE_INFINITY);}
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					double sum = 0.0;
+					for (int featureIndex : activeFeaturesForSentence.getActiveFeatures(tokenIndex, tagId, previousTagId))
+					{
+						CrfFilteredFeature<K, G> feature = filteredFeatures[featureIndex];
+						if (feature.isWhenNotFilteredIsAlwaysOne())
+						{
+							sum += parameters[featureIndex];
+						}
+						else
+						{
+							sum += parameters[featureIndex]*feature.getFeature().value(sentence,tokenIndex,crfTags.getTagById(tagId),crfTags.getTagById(previousTagId));
+						}
+					}
+					logPsi[tokenIndex][previousTagId][tagId] = sum;
+				}
+			}
+		}
+		return logPsi;
+	}
+
+	/**
+	 * Calculates log(\Psi(j,g,g')) by the model or the compiled model given for inference, as described in {@link CrfInferenceViterbi}.
+	 */
+	private double[][][] calculateLogPsiForInference()
+	{
+		final CompiledFilters<K, G> compiledFilters = (compiledModel!=null)?null:model.getFeatures().getCompiledFilters(crfTags);
+		final boolean compiled = (compiledFilters!=null)&&(compiledFilters.isCompiled());
+		final int[] encodedSentence = (compiledModel!=null)?compiledModel.encodeSentence(sentence):(compiled?compiledFilters.encodeSentence(sentence):null);
+		final double[] modelParameters = (compiledModel!=null)?null:model.getParametersAsDoubleArray();
+		final long[] keys = new long[compiled?compiledFilters.getMaximumNumberOfKeys():0];
+		if (compiledModel!=null)
+		{
+			compiledModel.recordEmissionLookups(encodedSentence);
+		}
+		
+		double[][][] ret = new double[sentence.length][numberOfTags+1][numberOfTags];
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (double[] row : ret[tokenIndex]) {Arrays.fill(row, Double.NEGATIVE_INFINITY);}
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					ret[tokenIndex][previousTagId][tagId] = (compiledModel!=null) ?
+							compiledModel.getScore(encodedSentence[tokenIndex], tagId, previousTagId) :
+							CrfInferenceViterbi.logPsi(model, sentence, compiledFilters, encodedSentence, modelParameters, keys, tokenIndex, tagId, previousTagId, crfTags.getTagById(tagId), crfTags.getTagById(previousTagId));
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void calculateAlphaForward()
+	{
+		logAlpha_forward = new double[sentence.length][numberOfTags];
+		double[] terms = new double[numberOfTags+1];
+		for (int index=0;index<sentence.length;++index)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				if (0==index)
+				{
+					logAlpha_forward[index][tagId] = logPsi[index][numberOfTags][tagId];
+				}
+				else
+				{
+					int numberOfTerms = 0;
+					for (int previousTagId : sentenceTags.getPreviousTagIds(index, tagId))
+					{
+						terms[numberOfTerms] = logPsi[index][previousTagId][tagId] + logAlpha_forward[index-1][previousTagId];
+						++numberOfTerms;
+					}
+					logAlpha_forward[index][tagId] = logSumExp(terms, numberOfTerms);
+				}
+			}
+		}
+
+		logNormalizationFactor = logSumExp(logAlpha_forward[sentence.length-1], numberOfTags);
+	}
+
+	private void calculateBetaBackward()
+	{
+		logBeta_backward = new double[sentence.length][numberOfTags];
+		double[] terms = new double[numberOfTags];
+		// log(\beta_{sentence-length-1}(g)) = log(1) = 0 for every g.
+		for (int index=sentence.length-2;index>=0;--index)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				int numberOfTerms = 0;
+				for (int nextTagId : sentenceTags.getNextTagIds(index, tagId))
+				{
+					terms[numberOfTerms] = logPsi[index+1][tagId][nextTagId] + logBeta_backward[index+1][nextTagId];
+					++numberOfTerms;
+				}
+				logBeta_backward[index][tagId] = logSumExp(terms, numberOfTerms);
+			}
+		}
+
+		// log(\beta_{-1}(null))
+		int numberOfTerms = 0;
+		for (int nextTagId : sentenceTags.getNextTagIds(-1, numberOfTags))
+		{
+			terms[numberOfTerms] = logPsi[0][numberOfTags][nextTagId] + logBeta_backward[0][nextTagId];
+			++numberOfTerms;
+		}
+		logNormalizationFactorByBeta = logSumExp(terms, numberOfTerms);
+	}
+
+
+
+	private final CrfTags<G> crfTags;
+	private final CrfFeaturesAndFilters<K, G> features;
+	private final double[] parameters;
+	private final K[] sentence;
+	private final CrfRememberActiveFeatures<K, G> activeFeaturesForSentence;
+	private final CrfSentenceTags sentenceTags;
+	private final CrfSentenceFeatureLattice<K, G> lattice; // if not null, used instead of features and activeFeaturesForSentence
+	private final CrfModel<K, G> model; // for inference. If not null, used instead of features and activeFeaturesForSentence
+	private final CompiledCrfModel<K, G> compiledModel; // for inference. If not null, used instead of features and activeFeaturesForSentence
+	private final int numberOfTags;
+
+	private double[][][] logPsi = null;
+	private double[][] logAlpha_forward = null;
+	private double[][] logBeta_backward = null;
+	private double logNormalizationFactor = Double.NEGATIVE_INFINITY;
+	private double logNormalizationFactorByBeta = Double.NEGATIVE_INFINITY;
+
+	private boolean calculated = false;
+	private boolean onlyNormalizationFactorCalculated = false;
+}
@@ -0,0 +1,407 @@
+package com.asher_stern.crf.crf;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
+import com.asher_stern.crf.function.DoubleDerivableFunction;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
+import com.asher_stern.crf.utilities.TaggedToken;
+
+/**
+ * The CRF log-likelihood function (see {@link CrfLogLikelihoodFunction}), calculated over primitive <tt>double</tt>s.
+ * <BR>
+ * The normalization factors and the expected feature-values are calculated by the forward-backward algorithm in log-space
+ * (see {@link CrfLogSpaceForwardBackward}), so no value overflows, and no {@link java.math.BigDecimal} is created during the
+ * calculation. This function is, therefore, much faster than {@link CrfLogLikelihoodFunction}, while its value and gradient
+ * are equal to those of {@link CrfLogLikelihoodFunction} up to the rounding errors of <tt>double</tt>.
+ * <P>
+ * <B>This function is CONCAVE, not convex!!!</B>
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K>
+ * @param <G>
+ */
+public class CrfLogSpaceLogLikelihoodFunction<K,G> extends DoubleDerivableFunction
+{
+	/**
+	 * Constructs the log-likelihood function of the CRF.
+	 * See {@link CrfLogLikelihoodFunction#CrfLogLikelihoodFunction(List, CrfTags, CrfFeaturesAndFilters, boolean, double)}.
+	 */
+	public CrfLogSpaceLogLikelihoodFunction(List<? extends List<? extends TaggedToken<K, G>>> corpus, CrfTags<G> crfTags,
+			CrfFeaturesAndFilters<K, G> features, boolean useRegularization,
+			double sigmaSquare_inverseRegularizationFactor)
+	{
+		super();
+		this.corpus = CrfUtilities.randomAccessList(corpus);
+		this.sentenceLengths = CrfUtilities.sentenceLengths(this.corpus);
+		this.crfTags = crfTags;
+		this.features = features;
+		this.useRegularization = useRegularization;
+		this.sigmaSquare_inverseRegularizationFactor = sigmaSquare_inverseRegularizationFactor;
+		this.featureCache = null;
+		this.cachedEmpiricalFeatureValues = null;
+	}
+
+	/**
+	 * Constructs the log-likelihood function of the CRF, for the corpus of the given {@link CrfCorpusFeatureCache}.
+	 * See {@link CrfLogLikelihoodFunction#CrfLogLikelihoodFunction(CrfCorpusFeatureCache, boolean, double, boolean)}.
+	 */
+	public CrfLogSpaceLogLikelihoodFunction(CrfCorpusFeatureCache<K, G> featureCache, boolean useRegularization,
+			double sigmaSquare_inverseRegularizationFactor)
+	{
+		super();
+		this.corpus = CrfUtilities.randomAccessList(featureCache.getCorpus());
+		this.sentenceLengths = CrfUtilities.sentenceLengths(this.corpus);
+		this.crfTags = featureCache.getCrfTags();
+		this.features = featureCache.getFeatures();
+		this.useRegularization = useRegularization;
+		this.sigmaSquare_inverseRegularizationFactor = sigmaSquare_inverseRegularizationFactor;
+		this.featureCache = featureCache;
+		this.cachedEmpiricalFeatureValues = featureCache.calculateEmpiricalFeatureValues();
+	}
+
+
+	/**
+	 * Optional setter. Sets the executor on which the function is calculated. The executor is owned by the caller (e.g., by
+	 * {@link com.asher_stern.crf.crf.run.CrfTrainer}, for the whole training), and is not shut down here.
+	 * Its number of threads should be given to {@link #setNumberOfThreads(int)}.
+	 * If not set, a temporary executor is created for each calculation.
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Optional setter. Sets the number of threads which calculate the function, which is also the number of chunks the corpus is
+	 * split into (see {@link ParallelAccumulation}). If not set, {@link ParallelAccumulation#defaultNumberOfChunks()} is used.
+	 */
+	public void setNumberOfThreads(int numberOfThreads)
+	{
+		if (numberOfThreads<=0) {throw new CrfException("The number of threads must be positive.");}
+		this.numberOfThreads = numberOfThreads;
+	}
+	
+	/**
+	 * Optional setter for the empirical feature values (the sum of the values of each feature over the whole corpus, for the tags given
+	 * in the corpus), if they have already been calculated for the corpus of this function, e.g., by
+	 * {@link CrfEmpiricalFeatureValueDistributionInCorpus#calculateInParallel(List, CrfFeaturesAndFilters, ExecutorService, int)}.
+	 * If not set, they are calculated (in parallel) in the first calculation of the gradient, and then kept.
+	 * The given array is not modified.
+	 */
+	public void setEmpiricalFeatureValues(double[] empiricalFeatureValues)
+	{
+		if (empiricalFeatureValues.length!=size()) {throw new CrfException("Number of empirical feature values differs from number of features.");}
+		this.cachedEmpiricalFeatureValues = empiricalFeatureValues;
+	}
+
+
+	@Override
+	public double value(double[] point)
+	{
+		logger.debug("Calculating value");
+		if (point.length!=size()) {throw new CrfException("Number of parameters differs from number of features.");}
+
+		double regularization = useRegularization?calculateRegularizationFactor(point):0.0;
+		logger.debug("Calculating sum weighted features");
+		double sumWeightedFeatures = calculateSumWeightedFeatures(point);
+		logger.debug("Calculating sum log normalizations");
+		double sumOfLogNormalizations = calculateSumOfLogNormalizations(point);
+
+		double ret = sumWeightedFeatures - sumOfLogNormalizations - regularization;
+		logger.debug("Calculating value - done.");
+		return ret;
+	}
+
+	@Override
+	public double[] gradient(double[] point)
+	{
+		logger.debug("Calculating gradient");
+		if (point.length!=size()) {throw new CrfException("Number of parameters differs from number of features.");}
+
+		logger.debug("Calculating empirical feature values");
+		double[] empiricalFeatureValue = calculateEmpiricalFeatureValues();
+
+		logger.debug("Calculating expected feature values by model");
+		double[] featureValueExpectation = calculateFeatureValueExpectations(point);
+
+		logger.debug("Creating gradient array.");
+		double[] ret = new double[point.length];
+		for (int parameterIndex=0;parameterIndex<ret.length;++parameterIndex)
+		{
+			double regularizationDerivative = useRegularization?(point[parameterIndex]/sigmaSquare_inverseRegularizationFactor):0.0;
+			ret[parameterIndex] = empiricalFeatureValue[parameterIndex] - featureValueExpectation[parameterIndex] - regularizationDerivative;
+		}
+		return ret;
+	}
+
+	/**
+	 * Calculates the value and the gradient in one pass over the corpus: the log normalization factors required by the value
+	 * are calculated by the same forward-backward passes which calculate the expected feature values required by the gradient.
+	 */
+	@Override
+	public double valueAndGradient(double[] point, double[] gradient)
+	{
+		logger.debug("Calculating value and gradient");
+		if (point.length!=size()) {throw new CrfException("Number of parameters differs from number of features.");}
+		if (gradient.length!=size()) {throw new CrfException("Gradient array length differs from number of features.");}
+
+		double regularization = useRegularization?calculateRegularizationFactor(point):0.0;
+		logger.debug("Calculating sum weighted features");
+		double sumWeightedFeatures = calculateSumWeightedFeatures(point);
+
+		logger.debug("Calculating empirical feature values");
+		double[] empiricalFeatureValue = calculateEmpiricalFeatureValues();
+
+		logger.debug("Calculating expected feature values by model and sum log normalizations");
+		ParallelAccumulation expectationsAndLogNormalizations = calculateFeatureValueExpectationsAndLogNormalizations(point);
+		double[] featureValueExpectation = expectationsAndLogNormalizations.getSum();
+		double sumOfLogNormalizations = expectationsAndLogNormalizations.getScalarSum();
+
+		for (int parameterIndex=0;parameterIndex<gradient.length;++parameterIndex)
+		{
+			double regularizationDerivative = useRegularization?(point[parameterIndex]/sigmaSquare_inverseRegularizationFactor):0.0;
+			gradient[parameterIndex] = empiricalFeatureValue[parameterIndex] - featureValueExpectation[parameterIndex] - regularizationDerivative;
+		}
+
+		double ret = sumWeightedFeatures - sumOfLogNormalizations - regularization;
+		logger.debug("Calculating value and gradient - done.");
+		return ret;
+	}
+
+	@Override
+	public int size()
+	{
+		return features.getFilteredFeatures().length;
+	}
+
+
+
+	private double calculateSumWeightedFeatures(double[] point)
+	{
+		if (featureCache!=null) {return featureCache.calculateSumWeightedFeatures(point);}
+		double sumWeightedFeatures = 0.0;
+		for (List<? extends TaggedToken<K, G> > sentence : corpus)
+		{
+			K[] sentenceAsArray = CrfUtilities.extractSentence(sentence);
+			G previousTag = null;
+			int tokenIndex=0;
+			for (TaggedToken<K, G> taggedToken : sentence)
+			{
+				Set<Integer> activeFeatureIndexes = CrfUtilities.getActiveFeatureIndexes(features,sentenceAsArray,tokenIndex,taggedToken.getTag(),previousTag);
+				for (int featureIndex : activeFeatureIndexes)
+				{
+					sumWeightedFeatures += point[featureIndex]*featureValue(featureIndex,sentenceAsArray,tokenIndex,taggedToken.getTag(),previousTag);
+				}
+
+				previousTag = taggedToken.getTag();
+				++tokenIndex;
+			}
+			if (tokenIndex!=sentence.size()) {throw new CrfException("BUG");}
+		}
+		return sumWeightedFeatures;
+	}
+
+	private double calculateSumOfLogNormalizations(final double[] point)
+	{
+		ParallelAccumulation accumulation = new ParallelAccumulation(executor, numberOfThreads, sentenceLengths, 0);
+		accumulation.calculate(new ParallelAccumulation.ItemAccumulator()
+		{
+			@Override
+			public double accumulate(int sentenceIndex, double[] accumulator)
+			{
+				CrfLogSpaceForwardBackward<K, G> forwardBackward = createForwardBackward(point, sentenceIndex, corpus.get(sentenceIndex));
+				forwardBackward.calculateOnlyNormalizationFactor();
+				return forwardBackward.getCalculatedLogNormalizationFactor();
+			}
+		});
+		return accumulation.getScalarSum();
+	}
+
+	/**
+	 * Returns the empirical feature values, which are calculated (in parallel) only on the first call, unless they were
+	 * given by the cache or by {@link #setEmpiricalFeatureValues(double[])}.
+	 */
+	private double[] calculateEmpiricalFeatureValues()
+	{
+		double[] ret = cachedEmpiricalFeatureValues;
+		if (null==ret)
+		{
+			ret = CrfEmpiricalFeatureValueDistributionInCorpus.calculateInParallel(corpus, features, executor, numberOfThreads);
+			cachedEmpiricalFeatureValues = ret;
+		}
+		return ret;
+	}
+
+	private double[] calculateFeatureValueExpectations(final double[] point)
+	{
+		return calculateFeatureValueExpectationsAndLogNormalizations(point).getSum();
+	}
+
+	/**
+	 * Calculates the expected feature values by the model, and, by the same forward-backward passes, the sum of the log
+	 * normalization factors of all the sentences (see {@link ParallelAccumulation#getScalarSum()}).
+	 * Each chunk of sentences adds its expectations into its own array, so no synchronization is required.
+	 */
+	private ParallelAccumulation calculateFeatureValueExpectationsAndLogNormalizations(final double[] point)
+	{
+		ParallelAccumulation accumulation = new ParallelAccumulation(executor, numberOfThreads, sentenceLengths, size());
+		accumulation.calculate(new ParallelAccumulation.ItemAccumulator()
+		{
+			@Override
+			public double accumulate(int sentenceIndex, double[] featureValueExpectation)
+			{
+				if (featureCache!=null)
+				{
+					return addExpectationsForSentence(crfTags, point, featureCache.getLattice(sentenceIndex), featureValueExpectation);
+				}
+				else
+				{
+					return addExpectationsForSentence(point, CrfUtilities.extractSentence(corpus.get(sentenceIndex)), featureValueExpectation);
+				}
+			}
+		});
+		return accumulation;
+	}
+
+	private double addExpectationsForSentence(double[] point, K[] sentenceTokens, double[] featureValueExpectation)
+	{
+		CrfRememberActiveFeatures<K, G> activeFeaturesForSentence = CrfRememberActiveFeatures.findForSentence(features, crfTags, sentenceTokens);
+		CrfLogSpaceForwardBackward<K, G> forwardBackward = new CrfLogSpaceForwardBackward<K, G>(crfTags, features, point, sentenceTokens, activeFeaturesForSentence);
+		forwardBackward.calculateForwardAndBackward();
+
+		final double logNormalizationFactor = forwardBackward.getCalculatedLogNormalizationFactor();
+		final double[][][] logPsi = forwardBackward.getLogPsi();
+		final double[][] logAlpha = forwardBackward.getLogAlpha_forward();
+		final double[][] logBeta = forwardBackward.getLogBeta_backward();
+		final CrfSentenceTags sentenceTags = activeFeaturesForSentence.getSentenceTags();
+
+		for (int tokenIndex=0;tokenIndex<sentenceTokens.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				G currentTag = crfTags.getTagById(tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					G previousTag = crfTags.getTagById(previousTagId);
+					double logAlphaPrevious = (tokenIndex>0)?logAlpha[tokenIndex-1][previousTagId]:0.0;
+					double probabilityUnderModel = Math.exp(logAlphaPrevious + logPsi[tokenIndex][previousTagId][tagId] + logBeta[tokenIndex][tagId] - logNormalizationFactor);
+					if (0.0==probabilityUnderModel) {continue;}
+
+					for (int featureIndex : activeFeaturesForSentence.getActiveFeatures(tokenIndex, tagId, previousTagId))
+					{
+						double featureValue = featureValue(featureIndex,sentenceTokens,tokenIndex,currentTag,previousTag);
+						if (featureValue!=0.0)
+						{
+							featureValueExpectation[featureIndex] += featureValue*probabilityUnderModel;
+						}
+					}
+				}
+			}
+		}
+		return logNormalizationFactor;
+	}
+
+	/**
+	 * Like {@link #addExpectationsForSentence(double[], Object[], double[])}, with the active features and their values
+	 * taken from the given lattice.
+	 * <BR>
+	 * Also used by {@link CrfStochasticGradientOptimizer}, for the gradient of a single sentence.
+	 * @return the log of the normalization factor of the sentence.
+	 */
+	static <K, G> double addExpectationsForSentence(CrfTags<G> crfTags, double[] point, CrfSentenceFeatureLattice<K, G> lattice, double[] featureValueExpectation)
+	{
+		CrfLogSpaceForwardBackward<K, G> forwardBackward = new CrfLogSpaceForwardBackward<K, G>(crfTags, lattice, point);
+		forwardBackward.calculateForwardAndBackward();
+
+		final double logNormalizationFactor = forwardBackward.getCalculatedLogNormalizationFactor();
+		final double[][][] logPsi = forwardBackward.getLogPsi();
+		final double[][] logAlpha = forwardBackward.getLogAlpha_forward();
+		final double[][] logBeta = forwardBackward.getLogBeta_backward();
+		final CrfSentenceTags sentenceTags = lattice.getSentenceTags();
+
+		for (int tokenIndex=0;tokenIndex<lattice.getSentence().length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				int cell = lattice.getFirstCell(tokenIndex, tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					double logAlphaPrevious = (tokenIndex>0)?logAlpha[tokenIndex-1][previousTagId]:0.0;
+					double probabilityUnderModel = Math.exp(logAlphaPrevious + logPsi[tokenIndex][previousTagId][tagId] + logBeta[tokenIndex][tagId] - logNormalizationFactor);
+					if (probabilityUnderModel!=0.0)
+					{
+						lattice.addFeatureValues(cell, probabilityUnderModel, featureValueExpectation);
+					}
+					++cell;
+				}
+			}
+		}
+		return logNormalizationFactor;
+	}
+
+	private CrfLogSpaceForwardBackward<K, G> createForwardBackward(double[] point, int sentenceIndex, List<? extends TaggedToken<K, G>> sentence)
+	{
+		if (featureCache!=null)
+		{
+			return new CrfLogSpaceForwardBackward<K, G>(crfTags, featureCache.getLattice(sentenceIndex), point);
+		}
+		K[] sentenceAsArray = CrfUtilities.extractSentence(sentence);
+		CrfRememberActiveFeatures<K, G> activeFeaturesForSentence = CrfRememberActiveFeatures.findForSentence(features, crfTags, sentenceAsArray);
+		return new CrfLogSpaceForwardBackward<K, G>(crfTags, features, point, sentenceAsArray, activeFeaturesForSentence);
+	}
+
+	private double featureValue(int featureIndex, K[] sentence, int tokenIndex, G currentTag, G previousTag)
+	{
+		CrfFilteredFeature<K, G> filteredFeature = features.getFilteredFeatures()[featureIndex];
+		if (filteredFeature.isWhenNotFilteredIsAlwaysOne())
+		{
+			return 1.0;
+		}
+		else
+		{
+			return filteredFeature.getFeature().value(sentence,tokenIndex,currentTag,previousTag);
+		}
+	}
+
+	private double calculateRegularizationFactor(double[] parameters)
+	{
+		double normSquare = 0.0;
+		for (double parameter : parameters)
+		{
+			normSquare += parameter*parameter;
+		}
+		return normSquare/(2.0*sigmaSquare_inverseRegularizationFactor);
+	}
+
+
+
+	/**
+	 * A corpus -- a list of tagged sequences.
+	 * <B>The whole corpus should reside in the internal memory completely!</B> Otherwise, the run will be very slow.
+	 */
+	private final List<? extends List<? extends TaggedToken<K, G> >> corpus;
+	private final CrfTags<G> crfTags;
+	private final CrfFeaturesAndFilters<K, G> features;
+	private final boolean useRegularization;
+	private final double sigmaSquare_inverseRegularizationFactor;
+	private final int[] sentenceLengths;
+
+	// Used if the function was constructed with a CrfCorpusFeatureCache
+	private final CrfCorpusFeatureCache<K, G> featureCache;
+
+	private volatile double[] cachedEmpiricalFeatureValues; // calculated once (see calculateEmpiricalFeatureValues())
+
+	private ExecutorService executor = null;
+	private int numberOfThreads = ParallelAccumulation.defaultNumberOfChunks();
+
+	private static final Logger logger = Logger.getLogger(CrfLogSpaceLogLikelihoodFunction.class);
+}
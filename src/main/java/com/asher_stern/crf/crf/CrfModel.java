@@ -5,6 +5,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 
 import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.utilities.VectorUtilities;
 
 /**
  * This class encapsulates the set of all possible tags, the list of features (f_i), and the list of parameters (\theta_i).
@@ -41,10 +42,57 @@ public class CrfModel<K,G> implements Serializable // K = token, G = tag
 	{
 		return parameters;
 	}
+	
+	/**
+	 * Returns the parameters as an array of doubles. The array is created once, when this method is first called, and
+	 * then shared by all the callers (e.g., all the threads that tag sentences by this model), so it must not be modified,
+	 * and the list returned by {@link #getParameters()} should not be changed afterwards.
+	 */
+	public double[] getParametersAsDoubleArray()
+	{
+		double[] ret = parametersAsDoubleArray;
+		if (null==ret)
+		{
+			ret = VectorUtilities.toDoubleArray(parameters.toArray(new BigDecimal[0]));
+			parametersAsDoubleArray = ret;
+		}
+		return ret;
+	}
 
+	
+	/**
+	 * Returns a model without the features whose parameters are zero, which do not affect the model (e.g., after training with
+	 * L1 regularization, which sets many parameters to exactly zero). The returned model is smaller, and so is its
+	 * {@link CompiledCrfModel}, and it infers the same tags. If no parameter is zero, this model is returned.
+	 */
+	public CrfModel<K, G> withoutZeroParameters()
+	{
+		int numberOfNonZeros = 0;
+		for (BigDecimal parameter : parameters)
+		{
+			if (parameter.signum()!=0) {++numberOfNonZeros;}
+		}
+		if (numberOfNonZeros==parameters.size()) {return this;}
+		
+		int[] featureIndexes = new int[numberOfNonZeros];
+		ArrayList<BigDecimal> nonZeroParameters = new ArrayList<BigDecimal>(numberOfNonZeros);
+		int newIndex = 0;
+		for (int index=0;index<parameters.size();++index)
+		{
+			if (parameters.get(index).signum()!=0)
+			{
+				featureIndexes[newIndex] = index;
+				nonZeroParameters.add(parameters.get(index));
+				++newIndex;
+			}
+		}
+		return new CrfModel<K, G>(crfTags, features.subset(featureIndexes), nonZeroParameters);
+	}
 
 
 	private final CrfTags<G> crfTags;
 	private final CrfFeaturesAndFilters<K, G> features;
 	private final ArrayList<BigDecimal> parameters;
+	
+	private transient volatile double[] parametersAsDoubleArray = null;
 }
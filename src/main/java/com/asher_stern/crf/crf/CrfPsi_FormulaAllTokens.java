@@ -1,14 +1,20 @@
 package com.asher_stern.crf.crf;
 
+import static com.asher_stern.crf.utilities.ArithmeticUtilities.*;
+
 import java.math.BigDecimal;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
+
+import com.asher_stern.crf.utilities.ArithmeticUtilities;
 
 /**
  * Holds, for a given sentence, the CRF formula value for each token-index and every pair of tags (for the current token and the
  * preceding token).
- * 
+ * <BR>
+ * The values are kept in a dense array, indexed by [token][previous-tag-id][tag-id] (see {@link CrfTags#getTagId(Object)}).
+ * A value is calculated for every pair of tags for which the given {@link CrfRememberActiveFeatures} holds active features,
+ * and the cells of all other pairs hold null.
+ *
  * @author Asher Stern
  * Date: Nov 13, 2014
  *
@@ -23,68 +29,121 @@ public class CrfPsi_FormulaAllTokens<K,G>
 		ret.calculateFormulasForAllTokens();
 		return ret;
 	}
-	
-	@SuppressWarnings("unchecked")
+
+	/**
+	 * Creates the formula values for a sentence whose active features and their values are given as a {@link CrfSentenceFeatureLattice},
+	 * and calculates them.
+	 */
+	public static <K,G> CrfPsi_FormulaAllTokens<K,G> createAndCalculate(CrfModel<K, G> model, CrfSentenceFeatureLattice<K, G> lattice)
+	{
+		CrfPsi_FormulaAllTokens<K,G> ret = new CrfPsi_FormulaAllTokens<K,G>(model,lattice.getSentence(),null,lattice);
+		ret.calculateFormulasForAllTokens();
+		return ret;
+	}
+
 	public CrfPsi_FormulaAllTokens(CrfModel<K, G> model, K[] sentence, CrfRememberActiveFeatures<K, G> activeFeaturesForSentence)
+	{
+		this(model, sentence, activeFeaturesForSentence, null);
+	}
+
+	private CrfPsi_FormulaAllTokens(CrfModel<K, G> model, K[] sentence, CrfRememberActiveFeatures<K, G> activeFeaturesForSentence, CrfSentenceFeatureLattice<K, G> lattice)
 	{
 		super();
 		this.model = model;
 		this.sentence = sentence;
 		this.activeFeaturesForSentence = activeFeaturesForSentence;
-		this.allPsiValues = (Map<G, Map<G, BigDecimal>>[]) new Map[sentence.length];
+		this.lattice = lattice;
+		final int numberOfTags = model.getCrfTags().getNumberOfTags();
+		this.allPsiValues = new BigDecimal[sentence.length][numberOfTags+1][numberOfTags];
 	}
-	
-	
+
+
 	public void calculateFormulasForAllTokens()
 	{
+		if (lattice!=null)
+		{
+			calculateFormulasForAllTokensByLattice();
+			return;
+		}
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final int numberOfTags = crfTags.getNumberOfTags();
 		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
 		{
-			for (G currentTag : model.getCrfTags().getTags())
+			for (int previousTagId=0;previousTagId<=numberOfTags;++previousTagId)
 			{
-				Set<G> possiblePreviousTags = CrfUtilities.getPreviousTags(sentence, tokenIndex, currentTag, model.getCrfTags());
-				for (G previousTag : possiblePreviousTags)
+				for (int tagId=0;tagId<numberOfTags;++tagId)
 				{
-					Set<Integer> activeFeatures = activeFeaturesForSentence.getOneTokenActiveFeatures(tokenIndex, currentTag, previousTag);
-					BigDecimal value = CrfUtilities.oneTokenFormula(model,sentence,tokenIndex,currentTag,previousTag,activeFeatures);
-					put(tokenIndex,currentTag,previousTag,value);
+					int[] activeFeatures = activeFeaturesForSentence.getActiveFeatures(tokenIndex, tagId, previousTagId);
+					if (activeFeatures!=null)
+					{
+						allPsiValues[tokenIndex][previousTagId][tagId] = CrfUtilities.oneTokenFormula(model,sentence,tokenIndex,crfTags.getTagById(tagId),crfTags.getTagById(previousTagId),activeFeatures);
+					}
 				}
 			}
 		}
 	}
 
 
+	/**
+	 * Like {@link CrfUtilities#oneTokenFormula(CrfModel, Object[], int, Object, Object, int[])}, but with the feature values
+	 * taken from the lattice.
+	 */
+	private void calculateFormulasForAllTokensByLattice()
+	{
+		final CrfTags<G> crfTags = model.getCrfTags();
+		final CrfSentenceTags sentenceTags = lattice.getSentenceTags();
+		final List<BigDecimal> parameters = model.getParameters();
+		final int[] featureIndexes = lattice.getFeatureIndexes();
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				int cell = lattice.getFirstCell(tokenIndex, tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					BigDecimal sum = BigDecimal.ZERO;
+					for (int entry=lattice.getCellStart(cell);entry<lattice.getCellEnd(cell);++entry)
+					{
+						double featureValue = lattice.getFeatureValue(entry);
+						BigDecimal parameter = parameters.get(featureIndexes[entry]);
+						sum = safeAdd(sum, (1.0==featureValue)?parameter:safeMultiply(parameter, big(featureValue)));
+					}
+					allPsiValues[tokenIndex][previousTagId][tagId] = ArithmeticUtilities.exp(sum);
+					++cell;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the tags considered for each token of the sentence, and the transitions between them. The formula values
+	 * are calculated for these transitions only.
+	 */
+	public CrfSentenceTags getSentenceTags()
+	{
+		return (lattice!=null)?lattice.getSentenceTags():activeFeaturesForSentence.getSentenceTags();
+	}
+
 	public BigDecimal getOneTokenFormula(int tokenIndex, G currentTag, G previousTag)
 	{
-		return allPsiValues[tokenIndex].get(currentTag).get(previousTag);
+		return allPsiValues[tokenIndex][model.getCrfTags().getTagId(previousTag)][model.getCrfTags().getTagId(currentTag)];
 	}
-	
-	
-	
-	
-	
-	private void put(int tokenIndex, G currentTag, G previousTag, BigDecimal value)
+
+	/**
+	 * Returns the CRF formula value for the given token, where the tag of that token is the tag whose identifier is tagId,
+	 * and the tag of the preceding token is the tag whose identifier is previousTagId.
+	 */
+	public BigDecimal getPsi(int tokenIndex, int tagId, int previousTagId)
 	{
-		Map<G, Map<G, BigDecimal>> mapForToken = allPsiValues[tokenIndex];
-		if (null==mapForToken)
-		{
-			mapForToken = new LinkedHashMap<G, Map<G,BigDecimal>>();
-			allPsiValues[tokenIndex] = mapForToken;
-		}
-		
-		Map<G, BigDecimal> mapForCurrentTag = mapForToken.get(currentTag);
-		if (null==mapForCurrentTag)
-		{
-			mapForCurrentTag = new LinkedHashMap<G, BigDecimal>();
-			mapForToken.put(currentTag, mapForCurrentTag);
-		}
-		
-		mapForCurrentTag.put(previousTag, value);
+		return allPsiValues[tokenIndex][previousTagId][tagId];
 	}
 
-	
+
 	private final CrfModel<K,G> model;
 	private final K[] sentence;
 	private final CrfRememberActiveFeatures<K, G> activeFeaturesForSentence;
-	
-	private Map<G, Map<G, BigDecimal>>[] allPsiValues;
+	private final CrfSentenceFeatureLattice<K, G> lattice; // if not null, used instead of activeFeaturesForSentence
+
+	private BigDecimal[][][] allPsiValues; // [token][previous-tag-id][tag-id]
 }
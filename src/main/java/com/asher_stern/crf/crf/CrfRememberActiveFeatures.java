@@ -1,14 +1,19 @@
 package com.asher_stern.crf.crf;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
-
+import com.asher_stern.crf.crf.filters.CompiledFilters;
 import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.utilities.CrfException;
 
 /**
  * Holds sets of active features for every token, and every pair of tags (for this token and the preceding token) in the given input.
- * 
+ * <BR>
+ * The active features are kept in a dense array, indexed by [token][previous-tag-id][tag-id] (see {@link CrfTags#getTagId(Object)}),
+ * where each cell holds the indexes of the active features as an <tt>int[]</tt>. Cells of pairs of tags which are
+ * not considered (e.g., transitions not permitted by the {@link CrfTags}) hold null.
+ * <BR>
+ * If the filters of the features can be compiled (see {@link CompiledFilters}), the active features are found by their
+ * compiled form. Otherwise, they are found by the {@link com.asher_stern.crf.crf.filters.FilterFactory}.
+ *
  * @author Asher Stern
  * Date: Nov 13, 2014
  *
@@ -21,7 +26,7 @@ public class CrfRememberActiveFeatures<K, G>
 	 * Creates an instance of {@link CrfRememberActiveFeatures} for the given sentence, calls its {@link #findActiveFeaturesForAllTokens()}
 	 * method, and returns it. With the returned object, the method {@link #getOneTokenActiveFeatures(int, Object, Object)} can be
 	 * used to retrieve active features for any token/tag/tag-of-previous in the sentence.
-	 * 
+	 *
 	 * @param features
 	 * @param crfTags
 	 * @param sentence
@@ -33,77 +38,178 @@ public class CrfRememberActiveFeatures<K, G>
 		ret.findActiveFeaturesForAllTokens();
 		return ret;
 	}
-	
+
+	/**
+	 * Like {@link #findForSentence(CrfFeaturesAndFilters, CrfTags, Object[])}, for a sentence which has already been encoded by the
+	 * {@link TokenEncoder} of the filter factory (see {@link CompiledFilters#getTokenEncoder()}), so the sentence is not encoded again.
+	 * If the filters are not compiled, or have no {@link TokenEncoder}, the encoded sentence is ignored.
+	 */
+	public static <K, G> CrfRememberActiveFeatures<K, G> findForSentence(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, K[] sentence, int[] encodedSentence)
+	{
+		CrfRememberActiveFeatures<K, G> ret = new CrfRememberActiveFeatures<K, G>(features,crfTags,sentence,encodedSentence);
+		ret.findActiveFeaturesForAllTokens();
+		return ret;
+	}
+
+	/**
+	 * Like {@link #findForSentence(CrfFeaturesAndFilters, CrfTags, Object[])}, but the active features are found for
+	 * every pair of tags, including pairs that are not permitted by the {@link CrfTags} (for the first token, the previous tag
+	 * is always null).
+	 */
+	public static <K, G> CrfRememberActiveFeatures<K, G> findForSentenceAllTransitions(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, K[] sentence)
+	{
+		CrfRememberActiveFeatures<K, G> ret = new CrfRememberActiveFeatures<K, G>(features,crfTags,sentence);
+		ret.findActiveFeaturesForAllTokensAndAllTransitions();
+		return ret;
+	}
+
 	/**
 	 * Constructor for a given sentence.
-	 * 
+	 *
 	 * @param features
 	 * @param crfTags
 	 * @param sentence
 	 */
-	@SuppressWarnings("unchecked")
 	public CrfRememberActiveFeatures(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, K[] sentence)
+	{
+		this(features, crfTags, sentence, null);
+	}
+
+	/**
+	 * Constructor for a given sentence, which may be given also as encoded by the {@link TokenEncoder} of the filter factory.
+	 *
+	 * @param features
+	 * @param crfTags
+	 * @param sentence
+	 * @param encodedSentence the sentence encoded by {@link CompiledFilters#getTokenEncoder()}, or null.
+	 */
+	public CrfRememberActiveFeatures(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, K[] sentence, int[] encodedSentence)
 	{
 		super();
 		this.features = features;
 		this.crfTags = crfTags;
 		this.sentence = sentence;
-		allTokensAndTagsActiveFeatures = (Map<G, Map<G, Set<Integer> >>[]) new Map[sentence.length];
+		this.sentenceTags = CrfSentenceTags.create(crfTags, sentence);
+		allTokensAndTagsActiveFeatures = new int[sentence.length][crfTags.getNumberOfTags()+1][crfTags.getNumberOfTags()][];
+		
+		CompiledFilters<K, G> compiledFilters = features.getCompiledFilters(crfTags);
+		if (compiledFilters.isCompiled())
+		{
+			this.compiledFilters = compiledFilters;
+			if ( (encodedSentence!=null) && (compiledFilters.getTokenEncoder()!=null) )
+			{
+				if (encodedSentence.length!=sentence.length) {throw new CrfException("The encoded sentence and the sentence differ in their lengths.");}
+				this.encodedSentence = encodedSentence;
+			}
+			else
+			{
+				this.encodedSentence = compiledFilters.encodeSentence(sentence);
+			}
+			this.keys = new long[compiledFilters.getMaximumNumberOfKeys()];
+		}
+		else
+		{
+			this.compiledFilters = null;
+			this.encodedSentence = null;
+			this.keys = null;
+		}
 	}
 
 
 
 	/**
-	 * Finds all the active features for every triple of token/tag/tag-of-previous. Then, the method
+	 * Finds all the active features for every triple of token/tag/tag-of-previous considered by {@link #getSentenceTags()}. Then, the method
 	 * {@link #getOneTokenActiveFeatures(int, Object, Object)} can be used.
 	 */
 	public void findActiveFeaturesForAllTokens()
 	{
 		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
 		{
-			for (G currentTag : crfTags.getTags())
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					findAndPut(tokenIndex,tagId,previousTagId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds all the active features for every token/tag/tag-of-previous, where tag-of-previous is any tag (or null for the
+	 * first token), regardless of the restrictions of {@link CrfTags}.
+	 */
+	public void findActiveFeaturesForAllTokensAndAllTransitions()
+	{
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
 			{
-				Set<G> possiblePreviousTags = CrfUtilities.getPreviousTags(sentence, tokenIndex, currentTag, crfTags);
-				for (G previousTag : possiblePreviousTags)
+				if (0==tokenIndex)
 				{
-					Set<Integer> activeFeatures = CrfUtilities.getActiveFeatureIndexes(features,sentence,tokenIndex,currentTag,previousTag);
-					putActiveFeatures(tokenIndex,currentTag,previousTag,activeFeatures);
+					findAndPut(tokenIndex,tagId,crfTags.getNullTagId());
+				}
+				else
+				{
+					for (int previousTagId=0;previousTagId<crfTags.getNumberOfTags();++previousTagId)
+					{
+						findAndPut(tokenIndex,tagId,previousTagId);
+					}
 				}
 			}
 		}
 	}
 
 
-	
-	public Set<Integer> getOneTokenActiveFeatures(int tokenIndex, G currentTag, G previousTag)
+
+	/**
+	 * Returns the tags considered for each token of the sentence, and the transitions between them.
+	 */
+	public CrfSentenceTags getSentenceTags()
 	{
-		return allTokensAndTagsActiveFeatures[tokenIndex].get(currentTag).get(previousTag);
+		return sentenceTags;
 	}
-	
-	
-	private void putActiveFeatures(int tokenIndex, G currentTag, G previousTag, Set<Integer> activeFeatures)
+
+	public int[] getOneTokenActiveFeatures(int tokenIndex, G currentTag, G previousTag)
+	{
+		return allTokensAndTagsActiveFeatures[tokenIndex][crfTags.getTagId(previousTag)][crfTags.getTagId(currentTag)];
+	}
+
+	/**
+	 * Returns the indexes of the active features for the given token, where the tag of that token is the tag whose identifier is tagId,
+	 * and the tag of the preceding token is the tag whose identifier is previousTagId.
+	 * Returns null if that pair of tags has not been considered.
+	 */
+	public int[] getActiveFeatures(int tokenIndex, int tagId, int previousTagId)
+	{
+		return allTokensAndTagsActiveFeatures[tokenIndex][previousTagId][tagId];
+	}
+
+
+	private void findAndPut(int tokenIndex, int tagId, int previousTagId)
 	{
-		Map<G, Map<G, Set<Integer> >> mapForToken = allTokensAndTagsActiveFeatures[tokenIndex];
-		if (null==mapForToken)
+		int[] activeFeatures = null;
+		if (compiledFilters!=null)
 		{
-			mapForToken = new LinkedHashMap<G, Map<G, Set<Integer> >>();
-			allTokensAndTagsActiveFeatures[tokenIndex] = mapForToken;
+			activeFeatures = CrfUtilities.getActiveFeatureIndexes(compiledFilters,encodedSentence,tokenIndex,tagId,previousTagId,keys);
 		}
-		
-		Map<G, Set<Integer> > mapForCurrentTag = mapForToken.get(currentTag);
-		if (null==mapForCurrentTag)
+		else
 		{
-			mapForCurrentTag = new LinkedHashMap<G, Set<Integer> >();
-			mapForToken.put(currentTag, mapForCurrentTag);
+			activeFeatures = CrfUtilities.toIntArray(CrfUtilities.getActiveFeatureIndexes(features,sentence,tokenIndex,crfTags.getTagById(tagId),crfTags.getTagById(previousTagId)));
 		}
-		
-		mapForCurrentTag.put(previousTag, activeFeatures);
+		allTokensAndTagsActiveFeatures[tokenIndex][previousTagId][tagId] = activeFeatures;
 	}
-	
-	
+
+
 	private final CrfTags<G> crfTags;
 	private final CrfFeaturesAndFilters<K, G> features;
 	private final K[] sentence;
+	private final CrfSentenceTags sentenceTags;
+	
+	// Used if the filters can be compiled, see CompiledFilters
+	private final CompiledFilters<K, G> compiledFilters;
+	private final int[] encodedSentence;
+	private final long[] keys;
 
-	private Map<G, Map<G, Set<Integer> >>[] allTokensAndTagsActiveFeatures;
+	private int[][][][] allTokensAndTagsActiveFeatures; // [token][previous-tag-id][tag-id] -> active feature indexes
 }
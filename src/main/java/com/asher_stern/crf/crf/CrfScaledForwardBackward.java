@@ -0,0 +1,256 @@
+package com.asher_stern.crf.crf;
+
+import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.utilities.CrfException;
+
+/**
+ * The forward-backward algorithm (see {@link CrfForwardBackward}) with per-token scaling, calculated over primitive
+ * <tt>double</tt>s.
+ * <BR>
+ * The un-normalized \alpha_j(g) of {@link CrfForwardBackward} grows exponentially with the sentence length, which is why
+ * {@link CrfForwardBackward} uses {@link java.math.BigDecimal}. Here, following Rabiner ("A Tutorial on Hidden Markov Models
+ * and Selected Applications in Speech Recognition", 1989, section V.A), the forward values of each token are divided
+ * by their sum s_j, so that \Sum_{g}\hat{\alpha}_j(g) = 1 for every j, and the backward values of each token are divided by
+ * the same scaling factors. All the values are, therefore, in [0,1], and no value overflows, no matter how long the sentence is.
+ * <BR>
+ * In addition, before the scaling, \Psi(j,g,g') of each token is divided by e^{m_j}, where m_j is the maximum of
+ * log(\Psi(j,g,g')) over all the pairs of tags, such that \Psi itself never overflows.
+ * <P>
+ * The normalization factor is recovered as log(Z(x)) = \Sum_{j}(log(s_j) + m_j), and the probability that the tag of
+ * token j is g while the tag of token j-1 is g' is \hat{\alpha}_{j-1}(g')*\hat{\Psi}(j,g,g')*\hat{\beta}_j(g)/s_j
+ * (see {@link #getProbability(int, int, int)}).
+ * <P>
+ * Tags are identified as in {@link CrfLogSpaceForwardBackward}.
+ *
+ * @see CrfLogLikelihoodFunction
+ * @see CrfFeatureValueExpectationByModel
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CrfScaledForwardBackward<K,G>
+{
+	/**
+	 * Constructor. See {@link CrfLogSpaceForwardBackward#CrfLogSpaceForwardBackward(CrfTags, CrfFeaturesAndFilters, double[], Object[], CrfRememberActiveFeatures)}.
+	 */
+	public CrfScaledForwardBackward(CrfTags<G> crfTags,
+			CrfFeaturesAndFilters<K, G> features, double[] parameters,
+			K[] sentence, CrfRememberActiveFeatures<K, G> activeFeaturesForSentence)
+	{
+		super();
+		this.crfTags = crfTags;
+		this.features = features;
+		this.parameters = parameters;
+		this.sentence = sentence;
+		this.activeFeaturesForSentence = activeFeaturesForSentence;
+		this.lattice = null;
+		this.sentenceTags = activeFeaturesForSentence.getSentenceTags();
+		this.numberOfTags = crfTags.getNumberOfTags();
+	}
+
+	/**
+	 * Constructor. See {@link CrfLogSpaceForwardBackward#CrfLogSpaceForwardBackward(CrfTags, CrfSentenceFeatureLattice, double[])}.
+	 */
+	public CrfScaledForwardBackward(CrfTags<G> crfTags, CrfSentenceFeatureLattice<K, G> lattice, double[] parameters)
+	{
+		super();
+		this.crfTags = crfTags;
+		this.features = null;
+		this.parameters = parameters;
+		this.sentence = lattice.getSentence();
+		this.activeFeaturesForSentence = null;
+		this.lattice = lattice;
+		this.sentenceTags = lattice.getSentenceTags();
+		this.numberOfTags = crfTags.getNumberOfTags();
+	}
+
+	public void calculateForwardAndBackward()
+	{
+		calculatePsi();
+		calculateAlphaForward();
+		calculateBetaBackward();
+
+		// With scaling, \Sum_{g}\hat{\Psi}(0,g,null)*\hat{\beta}_0(g)/s_0 corresponds to Z(x)/Z(x) = 1.
+		double normalizedFinalBeta = 0.0;
+		for (int tagId : sentenceTags.getNextTagIds(-1, numberOfTags))
+		{
+			normalizedFinalBeta += psi[0][numberOfTags][tagId]*beta_backward[0][tagId];
+		}
+		normalizedFinalBeta /= scalingFactors[0];
+		if (Math.abs(Math.log(normalizedFinalBeta)) > CrfLogSpaceForwardBackward.LOG_ROUGHLY_EQUAL_DISTANCE)
+		{
+			throw new CrfException("The scaled final-alpha and final-beta differ. The scaled final-beta = "+String.format("%-3.3f", normalizedFinalBeta)+", while it should be 1.");
+		}
+		calculated = true;
+	}
+
+	public void calculateOnlyNormalizationFactor()
+	{
+		calculatePsi();
+		calculateAlphaForward();
+		onlyNormalizationFactorCalculated = true;
+	}
+
+
+	/**
+	 * Returns the probability, under the model, that the tag of token number <code>tokenIndex</code> is the tag identified by
+	 * <code>tagId</code>, and the tag of the token that precedes it is the tag identified by <code>previousTagId</code>.
+	 */
+	public double getProbability(int tokenIndex, int previousTagId, int tagId)
+	{
+		if (!calculated) {throw new CrfException("forward-backward not calculated");}
+		double alphaPrevious = (tokenIndex>0)?alpha_forward[tokenIndex-1][previousTagId]:1.0;
+		return (alphaPrevious*psi[tokenIndex][previousTagId][tagId]*beta_backward[tokenIndex][tagId])/scalingFactors[tokenIndex];
+	}
+
+	/**
+	 * Returns log(Z(x)), where Z(x) is the normalization factor.
+	 */
+	public double getCalculatedLogNormalizationFactor()
+	{
+		if ( (!calculated) && (!onlyNormalizationFactorCalculated) ) {throw new CrfException("forward-backward not calculated");}
+		return logNormalizationFactor;
+	}
+
+	/**
+	 * Returns the scaled \hat{\alpha}_j(g), as an array indexed by [j][g].
+	 */
+	public double[][] getScaledAlpha_forward()
+	{
+		if (!calculated) {throw new CrfException("forward-backward not calculated");}
+		return alpha_forward;
+	}
+
+	/**
+	 * Returns the scaled \hat{\beta}_j(g), as an array indexed by [j][g].
+	 */
+	public double[][] getScaledBeta_backward()
+	{
+		if (!calculated) {throw new CrfException("forward-backward not calculated");}
+		return beta_backward;
+	}
+
+	/**
+	 * Returns the scaling factors s_j.
+	 */
+	public double[] getScalingFactors()
+	{
+		if ( (!calculated) && (!onlyNormalizationFactorCalculated) ) {throw new CrfException("forward-backward not calculated");}
+		return scalingFactors;
+	}
+
+
+
+	private void calculatePsi()
+	{
+		if (lattice!=null)
+		{
+			psi = lattice.calculateLogPsi(parameters);
+		}
+		else
+		{
+			psi = CrfLogSpaceForwardBackward.calculateLogPsi(crfTags, features, parameters, sentence, activeFeaturesForSentence);
+		}
+		psiShifts = new double[sentence.length];
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			double max = Double.NEGATIVE_INFINITY;
+			for (double[] row : psi[tokenIndex])
+			{
+				for (double value : row)
+				{
+					if (value>max) {max=value;}
+				}
+			}
+			if (max==Double.NEGATIVE_INFINITY) {throw new CrfException("No pair of tags is permitted for token "+tokenIndex+".");}
+			psiShifts[tokenIndex] = max;
+			for (double[] row : psi[tokenIndex])
+			{
+				for (int index=0;index<row.length;++index)
+				{
+					row[index] = Math.exp(row[index]-max); // e^{-infinity} = 0 for transitions which are not permitted.
+				}
+			}
+		}
+	}
+
+	private void calculateAlphaForward()
+	{
+		alpha_forward = new double[sentence.length][numberOfTags];
+		scalingFactors = new double[sentence.length];
+		logNormalizationFactor = 0.0;
+		for (int index=0;index<sentence.length;++index)
+		{
+			double sum = 0.0;
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				double value = 0.0;
+				if (0==index)
+				{
+					value = psi[index][numberOfTags][tagId];
+				}
+				else
+				{
+					for (int previousTagId : sentenceTags.getPreviousTagIds(index, tagId))
+					{
+						value += psi[index][previousTagId][tagId]*alpha_forward[index-1][previousTagId];
+					}
+				}
+				alpha_forward[index][tagId] = value;
+				sum += value;
+			}
+			if (sum<=0.0) {throw new CrfException("Scaling factor is zero for token "+index+". There is no sequence of permitted tags.");}
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				alpha_forward[index][tagId] /= sum;
+			}
+			scalingFactors[index] = sum;
+			logNormalizationFactor += Math.log(sum) + psiShifts[index];
+		}
+	}
+
+	private void calculateBetaBackward()
+	{
+		beta_backward = new double[sentence.length][numberOfTags];
+		for (int tagId=0;tagId<numberOfTags;++tagId)
+		{
+			beta_backward[sentence.length-1][tagId] = 1.0;
+		}
+		for (int index=sentence.length-2;index>=0;--index)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				double sum = 0.0;
+				for (int nextTagId : sentenceTags.getNextTagIds(index, tagId))
+				{
+					sum += psi[index+1][tagId][nextTagId]*beta_backward[index+1][nextTagId];
+				}
+				beta_backward[index][tagId] = sum/scalingFactors[index+1];
+			}
+		}
+	}
+
+
+
+	private final CrfTags<G> crfTags;
+	private final CrfFeaturesAndFilters<K, G> features;
+	private final double[] parameters;
+	private final K[] sentence;
+	private final CrfRememberActiveFeatures<K, G> activeFeaturesForSentence;
+	private final CrfSentenceTags sentenceTags;
+	private final CrfSentenceFeatureLattice<K, G> lattice; // if not null, used instead of features and activeFeaturesForSentence
+	private final int numberOfTags;
+
+	private double[][][] psi = null; // \hat{\Psi}(j,g,g') = \Psi(j,g,g')/e^{m_j}, indexed by [j][g'][g]
+	private double[] psiShifts = null; // m_j
+	private double[][] alpha_forward = null;
+	private double[][] beta_backward = null;
+	private double[] scalingFactors = null; // s_j
+	private double logNormalizationFactor = 0.0;
+
+	private boolean calculated = false;
+	private boolean onlyNormalizationFactorCalculated = false;
+}
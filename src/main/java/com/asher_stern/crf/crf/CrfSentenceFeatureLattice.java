@@ -0,0 +1,265 @@
+package com.asher_stern.crf.crf;
+
+import java.util.Arrays;
+
+import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
+
+/**
+ * Holds, for a given sentence, the active features and their values for every token and every pair of tags (for this token and
+ * the preceding token) permitted by the {@link CrfTags} (and by the tag dictionary, if any, see {@link CrfSentenceTags}).
+ * <BR>
+ * The active features and their values depend only on the sentence and the features, not on the parameters. So, unlike
+ * {@link CrfRememberActiveFeatures}, which holds only the indexes of the active features, a lattice can be created once per sentence
+ * and used for every calculation of the log-likelihood function and its gradient, in which only the dot products of the
+ * feature values with the parameters are calculated (see {@link #calculateLogPsi(double[])}).
+ * <P>
+ * The lattice is kept in a compressed-sparse-row form: each permitted triple of token/tag/tag-of-previous is a "cell", and the
+ * (feature-index, feature-value) pairs of all the cells are kept in two flat arrays, where the pairs of cell c are those in
+ * [{@link #getCellStart(int)}, {@link #getCellEnd(int)}).
+ * The cells are ordered by token, then by tag, then by the previous tag in the order of {@link CrfSentenceTags#getPreviousTagIds(int, int)}.
+ * Thus, the cell of (j, g, g') is {@link #getFirstCell(int, int)} for (j, g), plus the position of g' in
+ * {@link CrfSentenceTags#getPreviousTagIds(int, int)} for (j, g).
+ * <BR>
+ * If the values of all the active features are 1 (e.g., all the features are {@link CrfFilteredFeature#isWhenNotFilteredIsAlwaysOne()}),
+ * the values are not stored.
+ *
+ * @see CrfCorpusFeatureCache
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CrfSentenceFeatureLattice<K, G>
+{
+	/**
+	 * Finds the active features of the given sentence, and their values, and returns them as a lattice.
+	 *
+	 * @param features the CRF features.
+	 * @param crfTags the tags, and the restrictions over them.
+	 * @param sentence the sentence.
+	 * @param encodedSentence the sentence encoded by the {@link TokenEncoder} of the filter factory, or null (see {@link CrfRememberActiveFeatures#findForSentence(CrfFeaturesAndFilters, CrfTags, Object[], int[])}).
+	 * @return the lattice.
+	 */
+	public static <K, G> CrfSentenceFeatureLattice<K, G> create(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags, K[] sentence, int[] encodedSentence)
+	{
+		CrfRememberActiveFeatures<K, G> activeFeatures = CrfRememberActiveFeatures.findForSentence(features, crfTags, sentence, encodedSentence);
+		final CrfFilteredFeature<K, G>[] filteredFeatures = features.getFilteredFeatures();
+		final CrfSentenceTags sentenceTags = activeFeatures.getSentenceTags();
+		final int numberOfTags = crfTags.getNumberOfTags();
+
+		int[] firstCell = new int[sentence.length*numberOfTags+1];
+		int numberOfCells = 0;
+		int numberOfEntries = 0;
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				firstCell[tokenIndex*numberOfTags+tagId] = numberOfCells;
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					numberOfEntries += activeFeatures.getActiveFeatures(tokenIndex, tagId, previousTagId).length;
+					++numberOfCells;
+				}
+			}
+		}
+		firstCell[sentence.length*numberOfTags] = numberOfCells;
+
+		int[] cellStart = new int[numberOfCells+1];
+		int[] featureIndexes = new int[numberOfEntries];
+		double[] featureValues = new double[numberOfEntries];
+		boolean allValuesAreOne = true;
+		int cell = 0;
+		int entry = 0;
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					cellStart[cell] = entry;
+					for (int featureIndex : activeFeatures.getActiveFeatures(tokenIndex, tagId, previousTagId))
+					{
+						CrfFilteredFeature<K, G> filteredFeature = filteredFeatures[featureIndex];
+						double featureValue = filteredFeature.isWhenNotFilteredIsAlwaysOne()?1.0:filteredFeature.getFeature().value(sentence,tokenIndex,crfTags.getTagById(tagId),crfTags.getTagById(previousTagId));
+						featureIndexes[entry] = featureIndex;
+						featureValues[entry] = featureValue;
+						if (featureValue!=1.0) {allValuesAreOne = false;}
+						++entry;
+					}
+					++cell;
+				}
+			}
+		}
+		cellStart[numberOfCells] = entry;
+
+		return new CrfSentenceFeatureLattice<K, G>(crfTags, sentenceTags, sentence, firstCell, cellStart, featureIndexes, allValuesAreOne?null:featureValues);
+	}
+
+
+	public K[] getSentence()
+	{
+		return sentence;
+	}
+
+	/**
+	 * Returns the tags considered for each token of the sentence, and the transitions between them.
+	 */
+	public CrfSentenceTags getSentenceTags()
+	{
+		return sentenceTags;
+	}
+
+	/**
+	 * Returns the first cell of the given token and tag, which is the cell of the first tag in {@link CrfSentenceTags#getPreviousTagIds(int, int)}.
+	 */
+	public int getFirstCell(int tokenIndex, int tagId)
+	{
+		return firstCell[tokenIndex*numberOfTags+tagId];
+	}
+
+	/**
+	 * Returns the index, in {@link #getFeatureIndexes()}, of the first active feature of the given cell.
+	 */
+	public int getCellStart(int cell)
+	{
+		return cellStart[cell];
+	}
+
+	/**
+	 * Returns the index, in {@link #getFeatureIndexes()}, which follows the last active feature of the given cell.
+	 */
+	public int getCellEnd(int cell)
+	{
+		return cellStart[cell+1];
+	}
+
+	/**
+	 * Returns the indexes of the active features of all the cells.
+	 */
+	public int[] getFeatureIndexes()
+	{
+		return featureIndexes;
+	}
+
+	/**
+	 * Returns the value of the active feature in the given index of {@link #getFeatureIndexes()}.
+	 */
+	public double getFeatureValue(int entry)
+	{
+		return (null==featureValues)?1.0:featureValues[entry];
+	}
+
+	/**
+	 * Returns \Sum_{i}(\theta_i*f_i(j,g,g')) for the given cell (j,g,g'), where \theta are the given parameters.
+	 */
+	public double dotProduct(int cell, double[] parameters)
+	{
+		final int end = cellStart[cell+1];
+		double sum = 0.0;
+		if (null==featureValues)
+		{
+			for (int entry=cellStart[cell];entry<end;++entry)
+			{
+				sum += parameters[featureIndexes[entry]];
+			}
+		}
+		else
+		{
+			for (int entry=cellStart[cell];entry<end;++entry)
+			{
+				sum += parameters[featureIndexes[entry]]*featureValues[entry];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Adds weight*f_i(j,g,g') into accumulator[i] for every active feature f_i of the given cell (j,g,g').
+	 */
+	public void addFeatureValues(int cell, double weight, double[] accumulator)
+	{
+		final int end = cellStart[cell+1];
+		if (null==featureValues)
+		{
+			for (int entry=cellStart[cell];entry<end;++entry)
+			{
+				accumulator[featureIndexes[entry]] += weight;
+			}
+		}
+		else
+		{
+			for (int entry=cellStart[cell];entry<end;++entry)
+			{
+				accumulator[featureIndexes[entry]] += weight*featureValues[entry];
+			}
+		}
+	}
+
+	/**
+	 * Calculates log(\Psi(j,g,g')) for the given parameters, exactly as
+	 * {@link CrfLogSpaceForwardBackward#calculateLogPsi(CrfTags, CrfFeaturesAndFilters, double[], Object[], CrfRememberActiveFeatures)},
+	 * and returns it as an array indexed by [j][g'][g], where transitions that are not permitted get {@link Double#NEGATIVE_INFINITY}.
+	 */
+	public double[][][] calculateLogPsi(double[] parameters)
+	{
+		double[][][] logPsi = new double[sentence.length][numberOfTags+1][numberOfTags];
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (double[] row : logPsi[tokenIndex]) {Arrays.fill(row, Double.NEGATIVE_INFINITY);}
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				int cell = getFirstCell(tokenIndex, tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					logPsi[tokenIndex][previousTagId][tagId] = dotProduct(cell, parameters);
+					++cell;
+				}
+			}
+		}
+		return logPsi;
+	}
+
+	/**
+	 * Returns the number of (feature-index, feature-value) pairs held by this lattice.
+	 */
+	public int getNumberOfEntries()
+	{
+		return featureIndexes.length;
+	}
+
+	/**
+	 * Returns the approximate number of bytes of the arrays held by this lattice.
+	 */
+	public long getSizeInBytes()
+	{
+		return 4L*(firstCell.length+cellStart.length+featureIndexes.length) + ((null==featureValues)?0L:(8L*featureValues.length));
+	}
+
+
+
+	private CrfSentenceFeatureLattice(CrfTags<G> crfTags, CrfSentenceTags sentenceTags, K[] sentence, int[] firstCell, int[] cellStart, int[] featureIndexes, double[] featureValues)
+	{
+		super();
+		this.sentenceTags = sentenceTags;
+		this.sentence = sentence;
+		this.numberOfTags = crfTags.getNumberOfTags();
+		this.firstCell = firstCell;
+		this.cellStart = cellStart;
+		this.featureIndexes = featureIndexes;
+		this.featureValues = featureValues;
+	}
+
+
+
+	private final CrfSentenceTags sentenceTags;
+	private final K[] sentence;
+	private final int numberOfTags;
+
+	private final int[] firstCell; // [token*number-of-tags+tag-id] -> the cell of the first previous tag
+	private final int[] cellStart; // [cell] -> index of its first entry in featureIndexes and featureValues
+	private final int[] featureIndexes;
+	private final double[] featureValues; // null if all the values are 1.0
+}
@@ -0,0 +1,242 @@
+package com.asher_stern.crf.crf;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import com.asher_stern.crf.utilities.CrfException;
+
+/**
+ * The tags considered for each token of a given sentence, and the transitions between them, identified by their tag-ids
+ * (see {@link CrfTags#getTagId(Object)}).
+ * <BR>
+ * If the {@link CrfTags} hold no tag dictionary, every tag is considered for every token, and the transitions are those
+ * permitted by the {@link CrfTags}. If they hold a tag dictionary (see {@link CrfTagDictionary}), only the candidate tags of each
+ * token are considered, and the previous (next) tags of a tag are restricted to the candidates of the previous (next) token.
+ * For a tag which is not a candidate of a token, both lists are empty, so the forward-backward algorithm, the calculation of
+ * the expected feature values, and the Viterbi algorithm, which iterate over these lists, skip it.
+ * <BR>
+ * Likewise, the tags of some tokens can be constrained to given sets of tags, known in advance (see
+ * {@link #create(CrfTags, Object[], Map)}). The lists of a constrained token are restricted to its allowed tags, so the algorithms
+ * skip the other tags of that token, and the transitions into and out of them.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class CrfSentenceTags
+{
+	/**
+	 * Creates the tags of the given sentence. If the given {@link CrfTags} hold no tag dictionary, nothing is allocated
+	 * (besides the returned object), and all the lists are those of the {@link CrfTags}.
+	 */
+	public static <K, G> CrfSentenceTags create(CrfTags<G> crfTags, K[] sentence)
+	{
+		return create(crfTags, sentence, null);
+	}
+	
+	/**
+	 * Creates the tags of the given sentence, where the tags of some of its tokens are constrained to the given sets of tags.
+	 * @param crfTags the tags.
+	 * @param sentence the sentence.
+	 * @param allowedTags maps token indexes to the tags allowed for them. Tokens which are not in the map are not constrained.
+	 * Can be null (or empty), in which case the result is that of {@link #create(CrfTags, Object[])}. The allowed tags of a token are
+	 * intersected with its candidates in the tag dictionary, unless none of them is a candidate.
+	 * @throws CrfException if a tag is unknown, or if no tag is allowed for a token.
+	 */
+	public static <K, G> CrfSentenceTags create(CrfTags<G> crfTags, K[] sentence, Map<Integer, ? extends Set<G>> allowedTags)
+	{
+		final boolean constrained = (allowedTags!=null)&&(!allowedTags.isEmpty());
+		if ( (!crfTags.hasTagDictionary()) && (!constrained) )
+		{
+			return new CrfSentenceTags(crfTags, null, null, null);
+		}
+
+		final int numberOfTags = crfTags.getNumberOfTags();
+		final int nullTagId = crfTags.getNullTagId();
+		int[][] tagIds = new int[sentence.length][];
+		boolean[][] isCandidate = new boolean[sentence.length][numberOfTags];
+		boolean[] isRestricted = new boolean[sentence.length]; // false if all the tags are considered for the token
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			tagIds[tokenIndex] = crfTags.hasTagDictionary()?crfTags.getCandidateTagIds(sentence[tokenIndex]):crfTags.getAllTagIds();
+			if (constrained)
+			{
+				tagIds[tokenIndex] = constrain(crfTags, tagIds[tokenIndex], allowedTags.get(tokenIndex), tokenIndex);
+			}
+			isRestricted[tokenIndex] = (tagIds[tokenIndex].length<numberOfTags);
+			for (int tagId : tagIds[tokenIndex])
+			{
+				isCandidate[tokenIndex][tagId] = true;
+			}
+		}
+
+		int[][][] previousTagIds = new int[sentence.length][numberOfTags][];
+		int[][][] nextTagIds = new int[sentence.length][numberOfTags+1][];
+		for (int tokenIndex=0;tokenIndex<sentence.length;++tokenIndex)
+		{
+			for (int tagId=0;tagId<numberOfTags;++tagId)
+			{
+				if (isCandidate[tokenIndex][tagId])
+				{
+					previousTagIds[tokenIndex][tagId] = ( (0==tokenIndex) || (!isRestricted[tokenIndex-1]) ) ? crfTags.getPreviousTagIds(tokenIndex, tagId) : restrict(crfTags.getPreviousTagIds(tokenIndex, tagId), isCandidate[tokenIndex-1]);
+				}
+				else
+				{
+					previousTagIds[tokenIndex][tagId] = NO_TAGS;
+				}
+			}
+
+			// nextTagIds[tokenIndex] holds the tags of token tokenIndex which can follow each tag of token tokenIndex-1.
+			for (int previousTagId=0;previousTagId<=numberOfTags;++previousTagId)
+			{
+				boolean previousIsCandidate = (0==tokenIndex)?(nullTagId==previousTagId):( (previousTagId<numberOfTags) && isCandidate[tokenIndex-1][previousTagId] );
+				if (!previousIsCandidate)
+				{
+					nextTagIds[tokenIndex][previousTagId] = NO_TAGS;
+				}
+				else
+				{
+					nextTagIds[tokenIndex][previousTagId] = isRestricted[tokenIndex] ? restrict(crfTags.getCanFollowIds(previousTagId), isCandidate[tokenIndex]) : crfTags.getCanFollowIds(previousTagId);
+				}
+			}
+		}
+		return new CrfSentenceTags(crfTags, tagIds, previousTagIds, nextTagIds);
+	}
+	
+	/**
+	 * Creates the tags of a sentence of the given length, in which every tag is considered for every token, and every transition
+	 * is permitted, regardless of the restrictions of the {@link CrfTags} and of its tag dictionary (the tag that precedes the
+	 * first token is always null). Used when a sentence has no sequence of tags made of permitted transitions.
+	 */
+	public static <G> CrfSentenceTags createAllTransitions(CrfTags<G> crfTags, int sentenceLength)
+	{
+		return createAllTransitions(crfTags, sentenceLength, null);
+	}
+	
+	/**
+	 * Like {@link #createAllTransitions(CrfTags, int)}, but the tags of the constrained tokens are still restricted to their allowed tags
+	 * (see {@link #create(CrfTags, Object[], Map)}), and the transitions to the tags which are allowed for both tokens.
+	 */
+	public static <G> CrfSentenceTags createAllTransitions(CrfTags<G> crfTags, int sentenceLength, Map<Integer, ? extends Set<G>> allowedTags)
+	{
+		final int numberOfTags = crfTags.getNumberOfTags();
+		final int nullTagId = crfTags.getNullTagId();
+		final int[] allTagIds = crfTags.getAllTagIds();
+		final int[] onlyNullTagId = new int[]{nullTagId};
+		int[][] tagIds = new int[sentenceLength][];
+		for (int tokenIndex=0;tokenIndex<sentenceLength;++tokenIndex)
+		{
+			tagIds[tokenIndex] = (null==allowedTags)?allTagIds:constrain(crfTags, allTagIds, allowedTags.get(tokenIndex), tokenIndex);
+		}
+		
+		int[][][] previousTagIds = new int[sentenceLength][numberOfTags][];
+		int[][][] nextTagIds = new int[sentenceLength][numberOfTags+1][];
+		for (int tokenIndex=0;tokenIndex<sentenceLength;++tokenIndex)
+		{
+			Arrays.fill(previousTagIds[tokenIndex], NO_TAGS);
+			for (int tagId : tagIds[tokenIndex])
+			{
+				previousTagIds[tokenIndex][tagId] = (0==tokenIndex)?onlyNullTagId:tagIds[tokenIndex-1];
+			}
+			Arrays.fill(nextTagIds[tokenIndex], NO_TAGS);
+			for (int previousTagId : ((0==tokenIndex)?onlyNullTagId:tagIds[tokenIndex-1]))
+			{
+				nextTagIds[tokenIndex][previousTagId] = tagIds[tokenIndex];
+			}
+		}
+		return new CrfSentenceTags(crfTags, tagIds, previousTagIds, nextTagIds);
+	}
+
+
+	/**
+	 * Returns the identifiers of the tags considered for the given token.
+	 */
+	public int[] getTagIds(int tokenIndex)
+	{
+		if (null==tagIds) {return crfTags.getAllTagIds();}
+		return tagIds[tokenIndex];
+	}
+
+	/**
+	 * Returns the identifiers of the tags that can be assigned to the token which precedes the given token, assuming
+	 * the tag of the given token is the tag whose identifier is tagId. Like {@link CrfTags#getPreviousTagIds(int, int)}, restricted
+	 * to the tags considered for both tokens.
+	 */
+	public int[] getPreviousTagIds(int tokenIndex, int tagId)
+	{
+		if (null==previousTagIds) {return crfTags.getPreviousTagIds(tokenIndex, tagId);}
+		return previousTagIds[tokenIndex][tagId];
+	}
+
+	/**
+	 * Returns the identifiers of the tags that can be assigned to the token which follows the given token, assuming the tag of the
+	 * given token is the tag whose identifier is tagId. tokenIndex can be -1, for which tagId must be {@link CrfTags#getNullTagId()}.
+	 * Like {@link CrfTags#getCanFollowIds(int)}, restricted to the tags considered for both tokens.
+	 */
+	public int[] getNextTagIds(int tokenIndex, int tagId)
+	{
+		if (null==nextTagIds) {return crfTags.getCanFollowIds(tagId);}
+		return nextTagIds[tokenIndex+1][tagId];
+	}
+
+
+
+	private CrfSentenceTags(CrfTags<?> crfTags, int[][] tagIds, int[][][] previousTagIds, int[][][] nextTagIds)
+	{
+		super();
+		this.crfTags = crfTags;
+		this.tagIds = tagIds;
+		this.previousTagIds = previousTagIds;
+		this.nextTagIds = nextTagIds;
+	}
+
+	/**
+	 * Returns the given tag-ids of the given token, restricted to the given allowed tags (all of them if allowed is null).
+	 * If none of the given tag-ids is allowed (e.g., the allowed tags are not candidates of the tag dictionary), the allowed tags are returned.
+	 */
+	private static <G> int[] constrain(CrfTags<G> crfTags, int[] tagIds, Set<G> allowed, int tokenIndex)
+	{
+		if (null==allowed) {return tagIds;}
+		boolean[] isAllowed = new boolean[crfTags.getNumberOfTags()];
+		for (G tag : allowed)
+		{
+			isAllowed[crfTags.getTagId(tag)] = true;
+		}
+		int[] ret = restrict(tagIds, isAllowed);
+		if (0==ret.length) {ret = restrict(crfTags.getAllTagIds(), isAllowed);}
+		if (0==ret.length) {throw new CrfException("No tag is allowed for token "+tokenIndex+".");}
+		return ret;
+	}
+
+	private static int[] restrict(int[] tagIds, boolean[] isCandidate)
+	{
+		int size = 0;
+		for (int tagId : tagIds)
+		{
+			if (isCandidate[tagId]) {++size;}
+		}
+		if (size==tagIds.length) {return tagIds;}
+		int[] ret = new int[size];
+		int index = 0;
+		for (int tagId : tagIds)
+		{
+			if (isCandidate[tagId])
+			{
+				ret[index] = tagId;
+				++index;
+			}
+		}
+		return ret;
+	}
+
+
+	private static final int[] NO_TAGS = new int[0];
+
+	private final CrfTags<?> crfTags;
+
+	// All are null if the CrfTags hold no tag dictionary and no token is constrained (unless created by createAllTransitions()).
+	private final int[][] tagIds; // [token] -> candidate tag-ids
+	private final int[][][] previousTagIds; // [token][tag-id] -> tag-ids of the previous token
+	private final int[][][] nextTagIds; // [token+1][tag-id, including null] -> tag-ids of the next token
+}
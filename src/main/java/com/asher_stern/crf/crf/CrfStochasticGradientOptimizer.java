@@ -0,0 +1,345 @@
+package com.asher_stern.crf.crf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.run.CrfOptimizationMethod;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.MiscellaneousUtilities;
+
+/**
+ * Maximizes the CRF log-likelihood (see {@link CrfLogLikelihoodFunction}) by mini-batch stochastic gradient ascent, as an alternative
+ * to full-batch L-BFGS for large corpora, in which a single pass over the corpus is expensive.
+ * <BR>
+ * Each epoch is a pass over the sentences of the corpus in a random order, split into mini-batches. For each mini-batch, the gradient
+ * of the average log-likelihood of its sentences (the empirical feature values minus the expected feature values, calculated by the
+ * log-space forward-backward algorithm, see {@link CrfLogSpaceForwardBackward}) is calculated, and the parameters are moved along it
+ * by the update rule of the {@link CrfOptimizationMethod}: SGD, AdaGrad or Adam.
+ * <P>
+ * The gradient of a sentence is sparse: it is non-zero only for the features of its lattice (see {@link CrfSentenceFeatureLattice})
+ * and its empirical features. Only these parameters, and the state of the update rule for them, are updated by a mini-batch.
+ * <BR>
+ * The objective is the average log-likelihood of a sentence, with the regularization -\Sum_i{\theta_i^2}/(2*N*\sigma^2), where N is the
+ * size of the corpus. So each step multiplies every parameter by (1-\eta/(N*\sigma^2)), where \eta is the learning rate.
+ * This decay is applied lazily: a parameter is decayed, by all the steps it missed, only when it is read or updated (and at the end
+ * of every epoch), so a step costs only the features of its mini-batch. For SGD, this is exactly the gradient of the regularized
+ * log-likelihood. For AdaGrad and Adam, the decay is kept out of the adaptive learning rates (decoupled weight decay).
+ * <BR>
+ * Adam is "lazy": the moving averages of a parameter are updated only by the mini-batches whose gradient involves it.
+ * <P>
+ * After every epoch, the log-likelihood of a held-out sample (if given, see {@link #setHeldOutLogLikelihood(CrfLogSpaceLogLikelihoodFunction)})
+ * is calculated, and reported.
+ * <BR>
+ * The sentences of a mini-batch are processed sequentially. The order of the sentences is random, but deterministic.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CrfStochasticGradientOptimizer<K, G>
+{
+	public static final int DEFAULT_NUMBER_OF_EPOCHS = 10;
+	public static final int DEFAULT_MINI_BATCH_SIZE = 10;
+	public static final double DEFAULT_LEARNING_RATE_DECAY = 0.0;
+	
+	public static final double ADAM_BETA1 = 0.9;
+	public static final double ADAM_BETA2 = 0.999;
+	public static final double EPSILON = 1e-8;
+	
+	/**
+	 * Returns the learning rate used for the given method if no learning rate was given (see {@link #setLearningRate(double)}).
+	 */
+	public static double getDefaultLearningRate(CrfOptimizationMethod method)
+	{
+		switch (method)
+		{
+		case SGD:
+			return 1.0;
+		case ADAGRAD:
+			return 0.5;
+		case ADAM:
+			return 0.05;
+		default:
+			throw new CrfException("Not a stochastic optimization method: "+method);
+		}
+	}
+	
+	/**
+	 * Constructs the optimizer of the log-likelihood of the corpus of the given cache.
+	 * @param featureCache the corpus, its lattices and its empirical feature values.
+	 * @param method the update rule (any method but {@link CrfOptimizationMethod#LBFGS}).
+	 * @param useRegularization whether the log-likelihood is regularized.
+	 * @param sigmaSquare_inverseRegularizationFactor the regularization factor (see {@link CrfLogLikelihoodFunction}).
+	 */
+	public CrfStochasticGradientOptimizer(CrfCorpusFeatureCache<K, G> featureCache, CrfOptimizationMethod method,
+			boolean useRegularization, double sigmaSquare_inverseRegularizationFactor)
+	{
+		super();
+		if (CrfOptimizationMethod.LBFGS==method) {throw new CrfException("Not a stochastic optimization method: "+method);}
+		this.featureCache = featureCache;
+		this.method = method;
+		this.useRegularization = useRegularization;
+		this.sigmaSquare_inverseRegularizationFactor = sigmaSquare_inverseRegularizationFactor;
+		this.learningRate = getDefaultLearningRate(method);
+	}
+	
+	
+	/**
+	 * Optional setter for the number of passes over the corpus. If not called, {@link #DEFAULT_NUMBER_OF_EPOCHS} is used.
+	 */
+	public void setNumberOfEpochs(int numberOfEpochs)
+	{
+		if (numberOfEpochs<=0) {throw new CrfException("The number of epochs must be positive.");}
+		this.numberOfEpochs = numberOfEpochs;
+	}
+	
+	/**
+	 * Optional setter for the number of sentences of each mini-batch. If not called, {@link #DEFAULT_MINI_BATCH_SIZE} is used.
+	 */
+	public void setMiniBatchSize(int miniBatchSize)
+	{
+		if (miniBatchSize<=0) {throw new CrfException("The mini-batch size must be positive.");}
+		this.miniBatchSize = miniBatchSize;
+	}
+	
+	/**
+	 * Optional setter for the (initial) learning rate. If not called, {@link #getDefaultLearningRate(CrfOptimizationMethod)} is used.
+	 */
+	public void setLearningRate(double learningRate)
+	{
+		if (!(learningRate>0.0)) {throw new CrfException("The learning rate must be positive.");}
+		this.learningRate = learningRate;
+	}
+	
+	/**
+	 * Optional setter. The learning rate of epoch e (starting from 0) is learning-rate/(1+decay*e). If not called,
+	 * {@link #DEFAULT_LEARNING_RATE_DECAY} is used (i.e., the learning rate is not decayed).
+	 */
+	public void setLearningRateDecay(double learningRateDecay)
+	{
+		if (!(learningRateDecay>=0.0)) {throw new CrfException("The learning rate decay must be non-negative.");}
+		this.learningRateDecay = learningRateDecay;
+	}
+	
+	/**
+	 * Optional setter. If set, the given log-likelihood function (typically of a held-out sample, which is not in the corpus of the
+	 * optimizer, and without regularization) is calculated after every epoch, and reported (see {@link #getHeldOutLogLikelihoods()}).
+	 */
+	public void setHeldOutLogLikelihood(CrfLogSpaceLogLikelihoodFunction<K, G> heldOutLogLikelihood)
+	{
+		this.heldOutLogLikelihood = heldOutLogLikelihood;
+	}
+	
+	
+	/**
+	 * Performs the optimization, starting from the given point (or from zero, if it is null), and returns the parameters found.
+	 */
+	public double[] optimize(double[] initialPoint)
+	{
+		final int numberOfFeatures = featureCache.getFeatures().getFilteredFeatures().length;
+		final int numberOfSentences = featureCache.size();
+		if (0==numberOfSentences) {throw new CrfException("The corpus is empty.");}
+		if ( (initialPoint!=null) && (initialPoint.length!=numberOfFeatures) ) {throw new CrfException("Number of parameters differs from number of features.");}
+		
+		point = (null==initialPoint)?new double[numberOfFeatures]:initialPoint.clone();
+		empiricalFeatureValues = new double[numberOfFeatures];
+		featureValueExpectations = new double[numberOfFeatures];
+		touchedInStep = new long[numberOfFeatures];
+		touched = new int[numberOfFeatures];
+		logDecayOfFeature = new double[numberOfFeatures];
+		logDecay = 0.0;
+		step = 0;
+		sumOfSquaredGradients = (CrfOptimizationMethod.ADAGRAD==method)?new double[numberOfFeatures]:null;
+		firstMoments = (CrfOptimizationMethod.ADAM==method)?new double[numberOfFeatures]:null;
+		secondMoments = (CrfOptimizationMethod.ADAM==method)?new double[numberOfFeatures]:null;
+		heldOutLogLikelihoods = new ArrayList<Double>(numberOfEpochs);
+		
+		List<Integer> order = new ArrayList<Integer>(numberOfSentences);
+		for (int sentenceIndex=0;sentenceIndex<numberOfSentences;++sentenceIndex) {order.add(sentenceIndex);}
+		Random random = new Random(MiscellaneousUtilities.RANDOM_SELECTION_RANDOM_SEED);
+		
+		logger.info("Optimizing log likelihood function by "+method+": "+numberOfEpochs+" epochs over "+numberOfSentences+" sentences, mini-batches of "+miniBatchSize+" sentences, learning rate = "+learningRate+".");
+		for (int epoch=0;epoch<numberOfEpochs;++epoch)
+		{
+			final double epochLearningRate = learningRate/(1.0+learningRateDecay*epoch);
+			Collections.shuffle(order, random);
+			double sumLogLikelihood = 0.0;
+			for (int start=0;start<numberOfSentences;start+=miniBatchSize)
+			{
+				sumLogLikelihood += step(order.subList(start, Math.min(start+miniBatchSize, numberOfSentences)), epochLearningRate, numberOfSentences);
+			}
+			decayAll();
+			
+			String heldOutReport = "";
+			if (heldOutLogLikelihood!=null)
+			{
+				double heldOut = heldOutLogLikelihood.value(point);
+				heldOutLogLikelihoods.add(heldOut);
+				heldOutReport = ", held-out log-likelihood = "+heldOut;
+			}
+			logger.info(method+" epoch "+(epoch+1)+": training log-likelihood (during the epoch, without regularization) = "+sumLogLikelihood+heldOutReport);
+		}
+		return point;
+	}
+	
+	/**
+	 * Returns the log-likelihood of the held-out sample after each epoch of the last {@link #optimize(double[])}, or an empty list
+	 * if no held-out log-likelihood was given.
+	 */
+	public List<Double> getHeldOutLogLikelihoods()
+	{
+		if (null==heldOutLogLikelihoods) {throw new CrfException("Not optimized.");}
+		return Collections.unmodifiableList(heldOutLogLikelihoods);
+	}
+	
+	
+	
+	/**
+	 * Performs one step, for the given mini-batch.
+	 * @return the sum of the log-likelihoods of the sentences of the mini-batch (by the parameters prior to the step).
+	 */
+	private double step(List<Integer> miniBatch, double stepLearningRate, int numberOfSentences)
+	{
+		++step;
+		
+		// Find the features involved in the mini-batch, and bring their parameters up to date.
+		int numberOfTouched = 0;
+		for (int sentenceIndex : miniBatch)
+		{
+			numberOfTouched = touch(featureCache.getLattice(sentenceIndex).getFeatureIndexes(), numberOfTouched);
+			numberOfTouched = touch(featureCache.getEmpiricalFeatureIndexes(sentenceIndex), numberOfTouched);
+		}
+		for (int index=0;index<numberOfTouched;++index)
+		{
+			decay(touched[index]);
+		}
+		
+		// The gradient is the empirical feature values minus the expected feature values, summed over the mini-batch.
+		double sumLogLikelihood = 0.0;
+		for (int sentenceIndex : miniBatch)
+		{
+			final int[] empiricalIndexes = featureCache.getEmpiricalFeatureIndexes(sentenceIndex);
+			final double[] empiricalValues = featureCache.getEmpiricalFeatureValues(sentenceIndex);
+			double sumWeightedFeatures = 0.0;
+			for (int entry=0;entry<empiricalIndexes.length;++entry)
+			{
+				empiricalFeatureValues[empiricalIndexes[entry]] += empiricalValues[entry];
+				sumWeightedFeatures += point[empiricalIndexes[entry]]*empiricalValues[entry];
+			}
+			double logNormalizationFactor = CrfLogSpaceLogLikelihoodFunction.addExpectationsForSentence(featureCache.getCrfTags(), point, featureCache.getLattice(sentenceIndex), featureValueExpectations);
+			sumLogLikelihood += sumWeightedFeatures-logNormalizationFactor;
+		}
+		
+		// The regularization of this step, then the update rule, for the involved features only.
+		if (useRegularization)
+		{
+			final double decayFactor = 1.0-stepLearningRate/(numberOfSentences*sigmaSquare_inverseRegularizationFactor);
+			if (!(decayFactor>0.0)) {throw new CrfException("The learning rate is too high for the regularization factor.");}
+			logDecay += Math.log(decayFactor);
+			for (int index=0;index<numberOfTouched;++index)
+			{
+				decay(touched[index]);
+			}
+		}
+		final double biasCorrection1 = (CrfOptimizationMethod.ADAM==method)?(1.0-Math.pow(ADAM_BETA1, step)):1.0;
+		final double biasCorrection2 = (CrfOptimizationMethod.ADAM==method)?(1.0-Math.pow(ADAM_BETA2, step)):1.0;
+		for (int index=0;index<numberOfTouched;++index)
+		{
+			final int featureIndex = touched[index];
+			final double featureGradient = (empiricalFeatureValues[featureIndex]-featureValueExpectations[featureIndex])/miniBatch.size();
+			empiricalFeatureValues[featureIndex] = 0.0;
+			featureValueExpectations[featureIndex] = 0.0;
+			switch (method)
+			{
+			case SGD:
+				point[featureIndex] += stepLearningRate*featureGradient;
+				break;
+			case ADAGRAD:
+				sumOfSquaredGradients[featureIndex] += featureGradient*featureGradient;
+				point[featureIndex] += stepLearningRate*featureGradient/(Math.sqrt(sumOfSquaredGradients[featureIndex])+EPSILON);
+				break;
+			case ADAM:
+				firstMoments[featureIndex] = ADAM_BETA1*firstMoments[featureIndex]+(1.0-ADAM_BETA1)*featureGradient;
+				secondMoments[featureIndex] = ADAM_BETA2*secondMoments[featureIndex]+(1.0-ADAM_BETA2)*featureGradient*featureGradient;
+				point[featureIndex] += stepLearningRate*(firstMoments[featureIndex]/biasCorrection1)/(Math.sqrt(secondMoments[featureIndex]/biasCorrection2)+EPSILON);
+				break;
+			default:
+				throw new CrfException("Not a stochastic optimization method: "+method);
+			}
+		}
+		return sumLogLikelihood;
+	}
+	
+	/**
+	 * Adds the given features, which were not yet added in this step, to {@link #touched}.
+	 * @return the new number of features in {@link #touched}.
+	 */
+	private int touch(int[] featureIndexes, int numberOfTouched)
+	{
+		for (int featureIndex : featureIndexes)
+		{
+			if (touchedInStep[featureIndex]!=step)
+			{
+				touchedInStep[featureIndex] = step;
+				touched[numberOfTouched] = featureIndex;
+				++numberOfTouched;
+			}
+		}
+		return numberOfTouched;
+	}
+	
+	/**
+	 * Applies to the given parameter the regularization of all the steps since it was last decayed.
+	 */
+	private void decay(int featureIndex)
+	{
+		if (logDecayOfFeature[featureIndex]!=logDecay)
+		{
+			point[featureIndex] *= Math.exp(logDecay-logDecayOfFeature[featureIndex]);
+			logDecayOfFeature[featureIndex] = logDecay;
+		}
+	}
+	
+	private void decayAll()
+	{
+		for (int featureIndex=0;featureIndex<point.length;++featureIndex)
+		{
+			decay(featureIndex);
+		}
+	}
+	
+	
+	
+	private final CrfCorpusFeatureCache<K, G> featureCache;
+	private final CrfOptimizationMethod method;
+	private final boolean useRegularization;
+	private final double sigmaSquare_inverseRegularizationFactor;
+	
+	private int numberOfEpochs = DEFAULT_NUMBER_OF_EPOCHS;
+	private int miniBatchSize = DEFAULT_MINI_BATCH_SIZE;
+	private double learningRate;
+	private double learningRateDecay = DEFAULT_LEARNING_RATE_DECAY;
+	private CrfLogSpaceLogLikelihoodFunction<K, G> heldOutLogLikelihood = null;
+	
+	// The state of the optimization
+	private double[] point;
+	private double[] empiricalFeatureValues; // of the current step. Zero, but for the features involved in it
+	private double[] featureValueExpectations; // of the current step. Zero, but for the features involved in it
+	private long[] touchedInStep; // [feature] -> the last step in which the feature was involved
+	private int[] touched; // the features involved in the current step
+	private double logDecay; // the sum of the logs of the regularization factors (decays) of all the steps so far
+	private double[] logDecayOfFeature; // [feature] -> the value of logDecay when the parameter was last decayed
+	private long step;
+	private double[] sumOfSquaredGradients; // AdaGrad
+	private double[] firstMoments; // Adam
+	private double[] secondMoments; // Adam
+	private List<Double> heldOutLogLikelihoods = null;
+	
+	private static final Logger logger = Logger.getLogger(CrfStochasticGradientOptimizer.class);
+}
@@ -0,0 +1,65 @@
+package com.asher_stern.crf.crf;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A tag dictionary: the tags which can be assigned to each (frequent) token.
+ * <BR>
+ * Typically, a frequent token is tagged, in the training corpus, by only a few of the tags (e.g., "the" is always a determiner).
+ * Rare tokens, as well as unknown tokens (which were not seen in the training corpus), are not restricted to the tags they
+ * were seen with, but can be assigned any of the "open-class" tags, which are the tags of the rare tokens in the training corpus.
+ * <BR>
+ * When the {@link CrfTags} hold a tag dictionary, the training and the inference consider, for each token, only its candidate
+ * tags (see {@link CrfSentenceTags}). This is faster, and is typically only slightly less accurate.
+ * Note that the tags of each token in the training corpus must be candidates of that token. This holds when the dictionary is
+ * built from the training corpus (see {@link com.asher_stern.crf.crf.run.CrfTagDictionaryBuilder}).
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CrfTagDictionary<K, G> implements Serializable
+{
+	private static final long serialVersionUID = 2380146734215632964L;
+
+	/**
+	 * Constructor.
+	 * @param tagsOfTokens the tags which can be assigned to each frequent token.
+	 * @param openClassTags the tags which can be assigned to any other token.
+	 */
+	public CrfTagDictionary(Map<K, Set<G>> tagsOfTokens, Set<G> openClassTags)
+	{
+		super();
+		this.tagsOfTokens = tagsOfTokens;
+		this.openClassTags = openClassTags;
+	}
+
+	/**
+	 * Returns the tags which can be assigned to the given token.
+	 */
+	public Set<G> getTags(K token)
+	{
+		Set<G> ret = tagsOfTokens.get(token);
+		if (null==ret) {ret = openClassTags;}
+		return ret;
+	}
+
+	public Map<K, Set<G>> getTagsOfTokens()
+	{
+		return tagsOfTokens;
+	}
+
+	public Set<G> getOpenClassTags()
+	{
+		return openClassTags;
+	}
+
+
+
+	private final Map<K, Set<G>> tagsOfTokens;
+	private final Set<G> openClassTags;
+}
@@ -1,8 +1,14 @@
 package com.asher_stern.crf.crf;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -12,6 +18,12 @@ import com.asher_stern.crf.utilities.CrfException;
 /**
  * The set of tags which exist in the training corpus, along with maps that indicate which tags follow which tag,
  * and which tags precede which tag in the training corpus.
+ * <BR>
+ * In addition, each tag is assigned a dense integer identifier (tag-id) in the range [0,number-of-tags-1], according
+ * to the iteration order of the set of tags. The "virtual tag" null, which is the tag of the "virtual token" that precedes
+ * the first token, is assigned the reserved identifier {@link #getNullTagId()}, which equals the number of tags.
+ * These identifiers allow the lattice data-structures (e.g., {@link CrfRememberActiveFeatures} and {@link CrfPsi_FormulaAllTokens})
+ * to be dense arrays, indexed by [token][previous-tag-id][tag-id].
  * 
  * @author Asher Stern
  * Date: Nov 16, 2014
@@ -23,16 +35,27 @@ public class CrfTags<G> implements Serializable
 	private static final long serialVersionUID = -4286815527883493811L;
 	
 	public CrfTags(Set<G> tags, Map<G, Set<G>> canFollow, Map<G, Set<G>> canPrecede)
+	{
+		this(tags, canFollow, canPrecede, null);
+	}
+	
+	/**
+	 * Constructor with a tag dictionary, which restricts the tags considered for each token (see {@link CrfTagDictionary}).
+	 * The tag dictionary may be null.
+	 */
+	public CrfTags(Set<G> tags, Map<G, Set<G>> canFollow, Map<G, Set<G>> canPrecede, CrfTagDictionary<?, G> tagDictionary)
 	{
 		super();
 		this.tags = tags;
 		this.canFollow = canFollow;
 		this.canPrecede = canPrecede;
+		this.tagDictionary = tagDictionary;
 		
 		initCanPrecedeNonNull();
 		initPrecedeWhenFirst();
 		sanityCheck();
 		consistencyCheck();
+		initTagIds();
 	}
 	
 	
@@ -58,6 +81,107 @@ public class CrfTags<G> implements Serializable
 	{
 		return precedeWhenFirst;
 	}
+	
+	/**
+	 * Returns the tag dictionary, or null if there is no tag dictionary.
+	 */
+	public CrfTagDictionary<?, G> getTagDictionary()
+	{
+		return tagDictionary;
+	}
+	
+	public boolean hasTagDictionary()
+	{
+		return (tagDictionary!=null);
+	}
+	
+	
+	/**
+	 * Returns the number of tags (not including the virtual tag null).
+	 */
+	public int getNumberOfTags()
+	{
+		return tagsById.size();
+	}
+	
+	/**
+	 * Returns the identifier of the virtual tag null, which is the number of tags.
+	 */
+	public int getNullTagId()
+	{
+		return tagsById.size();
+	}
+	
+	/**
+	 * Returns the identifier of the given tag. For null, {@link #getNullTagId()} is returned.
+	 */
+	public int getTagId(G tag)
+	{
+		if (null==tag) {return getNullTagId();}
+		Integer id = tagIds.get(tag);
+		if (null==id) {throw new CrfException("Unknown tag: "+tag);}
+		return id;
+	}
+	
+	/**
+	 * Returns the tag whose identifier is the given id. For {@link #getNullTagId()}, null is returned.
+	 */
+	public G getTagById(int id)
+	{
+		if (getNullTagId()==id) {return null;}
+		return tagsById.get(id);
+	}
+	
+	/**
+	 * Returns the identifiers of the tags that can be assigned to the token which precedes the given token, assuming
+	 * the tag of the given token is the tag whose identifier is tagId.
+	 * This is the dense counterpart of {@link CrfUtilities#getPreviousTags(Object[], int, Object, CrfTags)}.
+	 * 
+	 * @param tokenIndex the index of the token.
+	 * @param tagId the identifier of the tag of the token.
+	 * @return the identifiers of the tags that can be assigned to the preceding token (for the first token this is either
+	 * {@link #getNullTagId()} or nothing).
+	 */
+	public int[] getPreviousTagIds(int tokenIndex, int tagId)
+	{
+		if (tokenIndex<0) throw new CrfException("Error: no tag can precede the virtual token that precedes the first token.");
+		if (0==tokenIndex)
+		{
+			return precedeWhenFirstIds[tagId];
+		}
+		else
+		{
+			return canPrecedeNonNullIds[tagId];
+		}
+	}
+	
+	/**
+	 * Returns the identifiers of the tags that can follow the tag whose identifier is tagId. tagId can be {@link #getNullTagId()}.
+	 */
+	public int[] getCanFollowIds(int tagId)
+	{
+		return canFollowIds[tagId];
+	}
+	
+	/**
+	 * Returns the identifiers of all the tags (not including the virtual tag null), in increasing order.
+	 */
+	public int[] getAllTagIds()
+	{
+		return allTagIds;
+	}
+	
+	/**
+	 * Returns the identifiers (in increasing order) of the tags that can be assigned to the given token, by the tag dictionary.
+	 * If there is no tag dictionary, returns {@link #getAllTagIds()}.
+	 */
+	public int[] getCandidateTagIds(Object token)
+	{
+		if (null==candidateTagIdsOfTokens) {return allTagIds;}
+		int[] ret = candidateTagIdsOfTokens.get(token);
+		if (null==ret) {ret = openClassTagIds;}
+		return ret;
+	}
 
 
 
@@ -99,6 +223,71 @@ public class CrfTags<G> implements Serializable
 	}
 
 
+	private void initTagIds()
+	{
+		tagsById = new ArrayList<G>(tags);
+		tagIds = new HashMap<G, Integer>();
+		for (int id=0;id<tagsById.size();++id)
+		{
+			tagIds.put(tagsById.get(id), id);
+		}
+		
+		final int numberOfTags = tagsById.size();
+		canPrecedeNonNullIds = new int[numberOfTags][];
+		precedeWhenFirstIds = new int[numberOfTags][];
+		canFollowIds = new int[numberOfTags+1][];
+		for (int id=0;id<numberOfTags;++id)
+		{
+			G tag = tagsById.get(id);
+			canPrecedeNonNullIds[id] = toIds(canPrecedeNonNull.get(tag));
+			precedeWhenFirstIds[id] = toIds(precedeWhenFirst.get(tag));
+			canFollowIds[id] = toIds(canFollow.get(tag));
+		}
+		canFollowIds[numberOfTags] = toIds(canFollow.get(null));
+		
+		allTagIds = new int[numberOfTags];
+		for (int id=0;id<numberOfTags;++id) {allTagIds[id] = id;}
+		
+		if (tagDictionary!=null)
+		{
+			candidateTagIdsOfTokens = new HashMap<Object, int[]>();
+			for (Map.Entry<?, Set<G>> entry : tagDictionary.getTagsOfTokens().entrySet())
+			{
+				candidateTagIdsOfTokens.put(entry.getKey(), toSortedIds(entry.getValue()));
+			}
+			openClassTagIds = toSortedIds(tagDictionary.getOpenClassTags());
+		}
+	}
+	
+	private int[] toIds(Set<G> set)
+	{
+		int[] ret = new int[set.size()];
+		int index=0;
+		for (G tag : set)
+		{
+			ret[index] = getTagId(tag);
+			++index;
+		}
+		return ret;
+	}
+	
+	private int[] toSortedIds(Set<G> set)
+	{
+		int[] ret = toIds(set);
+		Arrays.sort(ret);
+		return ret;
+	}
+	
+	/**
+	 * The tag-ids are not serialized, so models that were serialized before they were introduced can still be loaded.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		initTagIds();
+	}
+
+
 	private void sanityCheck()
 	{
 		if (!canFollow.keySet().containsAll(tags)) {throw new CrfException("map keys do not contain all tags");}
@@ -108,6 +297,15 @@ public class CrfTags<G> implements Serializable
 
 		if (tags.contains(null)) {throw new CrfException("tags (the set of tags) should not contain null.");}
 		
+		if (tagDictionary!=null)
+		{
+			if (!tags.containsAll(tagDictionary.getOpenClassTags())) {throw new CrfException("The open-class tags of the tag dictionary contain unknown tags.");}
+			for (Set<G> tagsOfToken : tagDictionary.getTagsOfTokens().values())
+			{
+				if (!tags.containsAll(tagsOfToken)) {throw new CrfException("The tag dictionary contains unknown tags.");}
+			}
+		}
+		
 		for (G tag : canPrecedeNonNull.keySet())
 		{
 			if (canPrecedeNonNull.get(tag).contains(null)) {throw new CrfException("BUG");}
@@ -156,5 +354,15 @@ public class CrfTags<G> implements Serializable
 	private final Map<G, Set<G>> canFollow;
 	private final Map<G, Set<G>> canPrecede;
 	private Map<G, Set<G>> canPrecedeNonNull; // like canPrecede, but none of the sets contains null.
+	private final CrfTagDictionary<?, G> tagDictionary; // null if there is no tag dictionary
 	private Map<G, Set<G>> precedeWhenFirst; // What can precede the tag when it is the first token: it might be null, or nothing (if the tags has never been encountered as the first tag in a sentence)
+	
+	private transient List<G> tagsById; // tag-id to tag
+	private transient Map<G, Integer> tagIds; // tag to tag-id
+	private transient int[][] canPrecedeNonNullIds; // like canPrecedeNonNull, indexed by tag-id
+	private transient int[][] precedeWhenFirstIds; // like precedeWhenFirst, indexed by tag-id
+	private transient int[][] canFollowIds; // like canFollow, indexed by tag-id, including the null tag-id
+	private transient int[] allTagIds; // 0,1,...,number-of-tags-1
+	private transient Map<Object, int[]> candidateTagIdsOfTokens; // like the tag dictionary, by tag-ids. null if there is no tag dictionary
+	private transient int[] openClassTagIds; // like the open-class tags of the tag dictionary
 }
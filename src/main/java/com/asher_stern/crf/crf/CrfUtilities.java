@@ -2,14 +2,17 @@ package com.asher_stern.crf.crf;
 
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import com.asher_stern.crf.crf.filters.CompiledFilters;
 import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
 import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
 import com.asher_stern.crf.crf.filters.Filter;
@@ -73,6 +76,32 @@ public class CrfUtilities
 		}
 	}
 	
+	/**
+	 * Returns the given list if it supports fast random access (see {@link RandomAccess}), or a copy of it which does.
+	 * Used where the sentences of a corpus are accessed by their indexes, e.g., by the chunks of a {@link com.asher_stern.crf.utilities.ParallelAccumulation}.
+	 */
+	public static <T> List<T> randomAccessList(List<T> list)
+	{
+		if (list instanceof RandomAccess) {return list;}
+		return new ArrayList<T>(list);
+	}
+	
+	/**
+	 * Returns the number of tokens in each sentence of the given corpus. Used as the sizes of the sentences, by which
+	 * the corpus is split into balanced chunks (see {@link com.asher_stern.crf.utilities.ParallelAccumulation}).
+	 */
+	public static int[] sentenceLengths(List<? extends List<?>> corpus)
+	{
+		int[] lengths = new int[corpus.size()];
+		int index = 0;
+		for (List<?> sentence : corpus)
+		{
+			lengths[index] = sentence.size();
+			++index;
+		}
+		return lengths;
+	}
+	
 	/**
 	 * Finds and returns the feature-indexes for which it is not sure that they return 0.<BR>
 	 * Typically in CRF, most of the features return 0 in most inputs.
@@ -108,6 +137,76 @@ public class CrfUtilities
 		return activeFeatureIndexes;
 	}
 	
+	/**
+	 * The compiled counterpart of {@link #getActiveFeatureIndexes(CrfFeaturesAndFilters, Object[], int, Object, Object)}:
+	 * returns the same feature-indexes, in the same order, but finds them by the primitive keys of {@link CompiledFilters},
+	 * rather than by creating {@link Filter} objects. No object is allocated, besides the returned array.
+	 * 
+	 * @param compiledFilters the compiled filters. {@link CompiledFilters#isCompiled()} must be true.
+	 * @param encodedSentence the sentence, as returned by {@link CompiledFilters#encodeSentence(Object[])}.
+	 * @param tokenIndex token index
+	 * @param tagId tag-id of the token in tokenIndex
+	 * @param previousTagId tag-id of the token in tokenIndex-1
+	 * @param keys a buffer of at least {@link CompiledFilters#getMaximumNumberOfKeys()} elements.
+	 * @return the indexes of the features which might return non-zero.
+	 */
+	public static <K,G> int[] getActiveFeatureIndexes(CompiledFilters<K, G> compiledFilters, int[] encodedSentence, int tokenIndex, int tagId, int previousTagId, long[] keys)
+	{
+		final int[] indexesOfFeaturesWithNoFilter = compiledFilters.getIndexesOfFeaturesWithNoFilter();
+		final int numberOfKeys = compiledFilters.createFilterKeys(encodedSentence, tokenIndex, tagId, previousTagId, keys);
+		
+		int size = indexesOfFeaturesWithNoFilter.length;
+		for (int keyIndex=0;keyIndex<numberOfKeys;++keyIndex)
+		{
+			if (isDuplicateKey(keys, keyIndex)) {continue;}
+			int[] featureIndexesForKey = compiledFilters.getActiveFeatures(keys[keyIndex]);
+			if (featureIndexesForKey!=null) {size += featureIndexesForKey.length;}
+		}
+		
+		int[] ret = new int[size];
+		System.arraycopy(indexesOfFeaturesWithNoFilter, 0, ret, 0, indexesOfFeaturesWithNoFilter.length);
+		int position = indexesOfFeaturesWithNoFilter.length;
+		for (int keyIndex=0;keyIndex<numberOfKeys;++keyIndex)
+		{
+			if (isDuplicateKey(keys, keyIndex)) {continue;}
+			int[] featureIndexesForKey = compiledFilters.getActiveFeatures(keys[keyIndex]);
+			if (featureIndexesForKey!=null)
+			{
+				System.arraycopy(featureIndexesForKey, 0, ret, position, featureIndexesForKey.length);
+				position += featureIndexesForKey.length;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the given feature-indexes as an array, in the iteration order of the given collection.
+	 */
+	public static int[] toIntArray(Collection<Integer> featureIndexes)
+	{
+		int[] ret = new int[featureIndexes.size()];
+		int index=0;
+		for (int featureIndex : featureIndexes)
+		{
+			ret[index] = featureIndex;
+			++index;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns true if keys[keyIndex] equals one of the keys that precede it. (A set of filters contains no duplicates,
+	 * so duplicate keys are ignored.)
+	 */
+	static boolean isDuplicateKey(long[] keys, int keyIndex)
+	{
+		for (int index=0;index<keyIndex;++index)
+		{
+			if (keys[index]==keys[keyIndex]) {return true;}
+		}
+		return false;
+	}
+	
 	/**
 	 * Returns \Sum_{i=0}^{k-1}{\theta_i*f_i(x,j,s,s')}, where k is the number of features, \theta_i is parameter number i,
 	 * f_i is feature number i, x is the given sentence, j is the index of the token, s is the tag of token number j,
@@ -122,7 +221,7 @@ public class CrfUtilities
 	 */
 	public static <K,G> BigDecimal oneTokenSumWeightedFeatures(CrfModel<K, G> model, K[] sentence, int tokenIndex, G currentTag, G previousTag)
 	{
-		Set<Integer> activeFeatureIndexes = getActiveFeatureIndexes(model.getFeatures(),sentence,tokenIndex,currentTag,previousTag);
+		int[] activeFeatureIndexes = toIntArray(getActiveFeatureIndexes(model.getFeatures(),sentence,tokenIndex,currentTag,previousTag));
 		return oneTokenSumWeightedFeatures(model,sentence,tokenIndex,currentTag,previousTag,activeFeatureIndexes);
 	}
 
@@ -142,7 +241,7 @@ public class CrfUtilities
 	 * @param knownActiveFeatureIndexes a set of features for which <b>it is not known</b> that they return zero for (x,j,s,s').
 	 * @return \Sum_{i=0}^{k-1}{\theta_i*f_i(x,j,s,s')}
 	 */
-	public static <K,G> BigDecimal oneTokenSumWeightedFeatures(CrfModel<K, G> model, K[] sentence, int tokenIndex, G currentTag, G previousTag, Set<Integer> knownActiveFeatureIndexes)
+	public static <K,G> BigDecimal oneTokenSumWeightedFeatures(CrfModel<K, G> model, K[] sentence, int tokenIndex, G currentTag, G previousTag, int[] knownActiveFeatureIndexes)
 	{
 		BigDecimal sum = BigDecimal.ZERO;
 		for (int index : knownActiveFeatureIndexes)
@@ -164,6 +263,49 @@ public class CrfUtilities
 		return sum;
 	}
 	
+	/**
+	 * Returns \Sum_{i=0}^{k-1}{\theta_i*f_i(x,j,s,s')}, like {@link #oneTokenSumWeightedFeatures(CrfModel, Object[], int, Object, Object)},
+	 * in primitive doubles. The active features are found by the primitive keys of {@link CompiledFilters} (in the same order as
+	 * {@link #getActiveFeatureIndexes(CompiledFilters, int[], int, int, int, long[])}), and their weighted values are summed
+	 * directly, so no object is allocated.
+	 * 
+	 * @param compiledFilters the compiled filters. {@link CompiledFilters#isCompiled()} must be true.
+	 * @param filteredFeatures the features, as returned by {@link CrfFeaturesAndFilters#getFilteredFeatures()}.
+	 * @param parameters the parameters (\theta).
+	 * @param sentence a sentence (sequence of tokens)
+	 * @param encodedSentence the sentence, as returned by {@link CompiledFilters#encodeSentence(Object[])}.
+	 * @param tokenIndex token index
+	 * @param tagId tag-id of the token in tokenIndex
+	 * @param previousTagId tag-id of the token in tokenIndex-1
+	 * @param currentTag tag of the token in tokenIndex
+	 * @param previousTag tag of the token in tokenIndex-1
+	 * @param keys a buffer of at least {@link CompiledFilters#getMaximumNumberOfKeys()} elements.
+	 * @return \Sum_{i=0}^{k-1}{\theta_i*f_i(x,j,s,s')}
+	 */
+	public static <K,G> double oneTokenSumWeightedFeatures(CompiledFilters<K, G> compiledFilters, CrfFilteredFeature<K, G>[] filteredFeatures, double[] parameters,
+			K[] sentence, int[] encodedSentence, int tokenIndex, int tagId, int previousTagId, G currentTag, G previousTag, long[] keys)
+	{
+		double sum = 0.0;
+		for (int featureIndex : compiledFilters.getIndexesOfFeaturesWithNoFilter())
+		{
+			sum += weightedFeatureValue(filteredFeatures, parameters, featureIndex, sentence, tokenIndex, currentTag, previousTag);
+		}
+		final int numberOfKeys = compiledFilters.createFilterKeys(encodedSentence, tokenIndex, tagId, previousTagId, keys);
+		for (int keyIndex=0;keyIndex<numberOfKeys;++keyIndex)
+		{
+			if (isDuplicateKey(keys, keyIndex)) {continue;}
+			int[] featureIndexesForKey = compiledFilters.getActiveFeatures(keys[keyIndex]);
+			if (featureIndexesForKey!=null)
+			{
+				for (int featureIndex : featureIndexesForKey)
+				{
+					sum += weightedFeatureValue(filteredFeatures, parameters, featureIndex, sentence, tokenIndex, currentTag, previousTag);
+				}
+			}
+		}
+		return sum;
+	}
+	
 	/**
 	 * Returns e^{\Sum_{i=0}^{k-1}{\theta_i*f_i(x,j,s,s')}}, where k is the number of features, \theta_i is parameter number i,
 	 * f_i is feature number i, x is the given sentence, j is the index of the token, s is the tag of token number j,
@@ -178,7 +320,7 @@ public class CrfUtilities
 	 */
 	public static <K,G> BigDecimal oneTokenFormula(CrfModel<K, G> model, K[] sentence, int tokenIndex, G currentTag, G previousTag)
 	{
-		Set<Integer> activeFeatureIndexes = getActiveFeatureIndexes(model.getFeatures(),sentence,tokenIndex,currentTag,previousTag);
+		int[] activeFeatureIndexes = toIntArray(getActiveFeatureIndexes(model.getFeatures(),sentence,tokenIndex,currentTag,previousTag));
 		return oneTokenFormula(model,sentence,tokenIndex,currentTag,previousTag,activeFeatureIndexes);
 	}
 	
@@ -198,13 +340,25 @@ public class CrfUtilities
 	 * @param knownActiveFeatureIndexes a set of features for which <b>it is not known</b> that they return zero for (x,j,s,s').
 	 * @return e^{\Sum_{i=0}^{k-1}{\theta_i*f_i(x,j,s,s')}}
 	 */
-	public static <K,G> BigDecimal oneTokenFormula(CrfModel<K, G> model, K[] sentence, int tokenIndex, G currentTag, G previousTag,Set<Integer> knownActiveFeatureIndexes)
+	public static <K,G> BigDecimal oneTokenFormula(CrfModel<K, G> model, K[] sentence, int tokenIndex, G currentTag, G previousTag,int[] knownActiveFeatureIndexes)
 	{
 		
 		return  ArithmeticUtilities.exp(oneTokenSumWeightedFeatures(model,sentence,tokenIndex,currentTag,previousTag,knownActiveFeatureIndexes));
 	}
 	
 	
+	private static <K,G> double weightedFeatureValue(CrfFilteredFeature<K, G>[] filteredFeatures, double[] parameters, int featureIndex,
+			K[] sentence, int tokenIndex, G currentTag, G previousTag)
+	{
+		CrfFilteredFeature<K, G> feature = filteredFeatures[featureIndex];
+		if (feature.isWhenNotFilteredIsAlwaysOne())
+		{
+			return parameters[featureIndex];
+		}
+		return parameters[featureIndex]*feature.getFeature().value(sentence,tokenIndex,currentTag,previousTag);
+	}
+	
+	
 	/**
 	 * Returns a sentence as an array, for the given sentence (given as list of tagged tokens)
 	 * @param sentence a sentence
@@ -226,7 +380,23 @@ public class CrfUtilities
 		return ret;
 	}
 	
-
+	/**
+	 * Returns the tokens of the given sentence, encoded by the given {@link TokenEncoder}.
+	 */
+	public static <K> int[] extractSentence(List<? extends TaggedToken<K, ?>> sentence, TokenEncoder<K> encoder)
+	{
+		if (sentence==null) throw new CrfException("The input is an empty sentence.");
+		if (sentence.size()<1) throw new CrfException("The input is an empty sentence.");
+		int[] ret = new int[sentence.size()];
+		int index=0;
+		for (TaggedToken<K, ?> taggedToken : sentence)
+		{
+			ret[index] = encoder.encode(taggedToken.getToken());
+			++index;
+		}
+		if (index!=ret.length) {throw new CrfException("BUG");}
+		return ret;
+	}
 	
 	/**
 	 * If |value1|>|value2| returns |value1|/|value2|. Otherwise returns |value2|/|value1|.
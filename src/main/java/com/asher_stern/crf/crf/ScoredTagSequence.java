@@ -0,0 +1,50 @@
+package com.asher_stern.crf.crf;
+
+import java.util.List;
+
+/**
+ * A sequence of tags for a sentence, and its score under the model: \sum_j{\sum_{i=0}^{k-1}{\theta_i*f_i(x,j,g_j,g_{j-1})}},
+ * which is the log of the (unnormalized) probability of the sequence of tags. Scores of different sequences of tags for the
+ * same sentence can be compared, and e^{score}/Z(x) is the probability of the sequence of tags.
+ *
+ * @see CrfInferenceKBestViterbi
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <G> tag type
+ */
+public class ScoredTagSequence<G>
+{
+	public ScoredTagSequence(List<G> tags, double score)
+	{
+		super();
+		this.tags = tags;
+		this.score = score;
+	}
+
+
+
+	public List<G> getTags()
+	{
+		return tags;
+	}
+
+	public double getScore()
+	{
+		return score;
+	}
+
+
+
+	@Override
+	public String toString()
+	{
+		return "ScoredTagSequence [getTags()=" + getTags() + ", getScore()=" + getScore() + "]";
+	}
+
+
+
+	private final List<G> tags;
+	private final double score;
+}
@@ -0,0 +1,59 @@
+package com.asher_stern.crf.crf;
+
+import java.util.Map;
+
+import com.asher_stern.crf.utilities.TaggedToken;
+
+/**
+ * A token, the tag chosen for it, and the posterior (marginal) probability of each tag for it, p(y_j=g|x), as calculated by
+ * the forward-backward algorithm (see {@link CrfLogSpaceForwardBackward#getMarginalProbabilities()}).
+ * <BR>
+ * The confidence is the posterior probability of the chosen tag.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> token type
+ * @param <G> tag type
+ */
+public class TaggedTokenWithMarginals<K, G> extends TaggedToken<K, G>
+{
+	public TaggedTokenWithMarginals(K token, G tag, Map<G, Double> marginals)
+	{
+		super(token, tag);
+		this.marginals = marginals;
+		Double marginalOfTag = marginals.get(tag);
+		this.confidence = (marginalOfTag!=null)?marginalOfTag.doubleValue():0.0;
+	}
+	
+	
+	
+	/**
+	 * Returns the posterior probability of each tag, in the order of the tag-ids.
+	 */
+	public Map<G, Double> getMarginals()
+	{
+		return marginals;
+	}
+
+	/**
+	 * Returns the posterior probability of the chosen tag.
+	 */
+	public double getConfidence()
+	{
+		return confidence;
+	}
+
+
+
+	@Override
+	public String toString()
+	{
+		return "TaggedTokenWithMarginals [getToken()=" + getToken() + ", getTag()=" + getTag() + ", getConfidence()=" + getConfidence() + "]";
+	}
+
+
+
+	private final Map<G, Double> marginals;
+	private final double confidence;
+}
@@ -0,0 +1,41 @@
+package com.asher_stern.crf.crf;
+
+import java.io.Serializable;
+
+/**
+ * Encodes tokens as integer ids, such that tokens which are considered equal (e.g., the same word in different cases)
+ * get the same id.
+ * <BR>
+ * A {@link com.asher_stern.crf.crf.filters.CompilableFilterFactory} which provides a token encoder (see
+ * {@link com.asher_stern.crf.crf.filters.CompilableFilterFactory#getTokenEncoder()}) lets the compiled filters use the ids of the
+ * encoder as their token-ids (see {@link com.asher_stern.crf.crf.filters.CompiledFilters}), so a sentence encoded once
+ * (see {@link CrfUtilities#extractSentence(java.util.List, TokenEncoder)}) can be used as is for finding the active features.
+ * <BR>
+ * Implementations must be safe for concurrent calls of {@link #encode(Object)}.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ */
+public interface TokenEncoder<K> extends Serializable
+{
+	/**
+	 * Returns the id of the given token, or {@link com.asher_stern.crf.crf.filters.CompiledFilters#UNKNOWN_TOKEN_ID} if the
+	 * token is not known to this encoder.
+	 */
+	public int encode(K token);
+
+	/**
+	 * Encodes every token of the given sequence.
+	 */
+	public default int[] encode(K[] sequence)
+	{
+		int[] ret = new int[sequence.length];
+		for (int index=0;index<sequence.length;++index)
+		{
+			ret[index] = encode(sequence[index]);
+		}
+		return ret;
+	}
+}
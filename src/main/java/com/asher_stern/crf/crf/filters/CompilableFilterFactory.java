@@ -0,0 +1,81 @@
+package com.asher_stern.crf.crf.filters;
+
+import com.asher_stern.crf.crf.TokenEncoder;
+
+/**
+ * A {@link FilterFactory} which can also create the filters in their compiled form, as primitive <tt>long</tt> keys (see
+ * {@link CompiledFilters}). The filters it creates should override {@link Filter#compile(CompiledFilters)}.
+ * <BR>
+ * A filter factory which compiles its filters may also provide a {@link TokenEncoder} (see {@link #getTokenEncoder()}), whose
+ * ids are then used as the token-ids of the compiled filters.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public interface CompilableFilterFactory<K, G> extends FilterFactory<K, G>
+{
+	/**
+	 * Returns the maximum number of keys that {@link #createFilterKeys(int[], int, int, int, long[])} creates for one input.
+	 */
+	public int getMaximumNumberOfFilterKeys();
+	
+	/**
+	 * Returns the {@link TokenEncoder} whose ids are the token-ids of the compiled filters (see {@link CompiledFilters#internToken(Object)}),
+	 * or null if the compiled filters should assign their own token-ids (the default).
+	 * <BR>
+	 * If an encoder is returned, {@link #encodeSentence(Object[], CompiledFilters)} should encode the tokens by that encoder, and
+	 * callers that hold the sentence already encoded by that encoder may skip {@link #encodeSentence(Object[], CompiledFilters)}.
+	 */
+	public default TokenEncoder<K> getTokenEncoder()
+	{
+		return null;
+	}
+	
+	/**
+	 * Encodes the given sequence of tokens as an array of integers, typically the token-ids of its tokens
+	 * (see {@link CompiledFilters#getTokenId(Object)}). The returned array is given to {@link #createFilterKeys(int[], int, int, int, long[])}.
+	 * <BR>
+	 * Called once per sequence.
+	 * 
+	 * @param sequence A sequence of tokens
+	 * @param compiledFilters the compiled filters, which provide the token-ids.
+	 * @return the encoded sequence.
+	 */
+	public int[] encodeSentence(K[] sequence, CompiledFilters<K, G> compiledFilters);
+	
+	/**
+	 * The compiled counterpart of {@link #createFilters(Object[], int, Object, Object)}: puts into the given array the keys
+	 * (see {@link Filter#compile(CompiledFilters)}) of the filters that {@link #createFilters(Object[], int, Object, Object)} would
+	 * have created for the given input, and returns the number of keys.
+	 * <BR>
+	 * Must not allocate any object.
+	 * 
+	 * @param encodedSequence A sequence of tokens, as returned by {@link #encodeSentence(Object[], CompiledFilters)}
+	 * @param tokenIndex An index of a token in that sequence
+	 * @param tagId The tag-id of a tag for that token
+	 * @param previousTagId The tag-id of a tag for the token which immediately precedes that token.
+	 * @param keys An array of at least {@link #getMaximumNumberOfFilterKeys()} elements, into which the keys are put.
+	 * @return the number of keys put into the given array.
+	 */
+	public int createFilterKeys(int[] encodedSequence, int tokenIndex, int tagId, int previousTagId, long[] keys);
+	
+	/**
+	 * Returns true if each key created by {@link #createFilterKeys(int[], int, int, int, long[])} is of one of two forms:
+	 * either it examines the token, in which case its token-id is encodedSequence[tokenIndex] and its previous-tag-id is 0
+	 * (i.e., it does not examine the previous tag), or it does not examine any token, in which case its token-id is
+	 * {@link CompiledFilters#UNKNOWN_TOKEN_ID}.
+	 * <BR>
+	 * For such filter factories, the weighted sum of the features of a token, its tag and the previous tag, is the sum of a
+	 * score of the token and the tag, and a score of the tag and the previous tag, which can be computed in advance
+	 * (see {@link com.asher_stern.crf.crf.CompiledCrfModel}).
+	 * <BR>
+	 * The default is false.
+	 */
+	public default boolean hasSeparableFilterKeys()
+	{
+		return false;
+	}
+}
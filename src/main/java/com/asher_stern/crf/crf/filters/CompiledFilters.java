@@ -0,0 +1,272 @@
+package com.asher_stern.crf.crf.filters;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.asher_stern.crf.crf.CrfTags;
+import com.asher_stern.crf.crf.CrfUtilities;
+import com.asher_stern.crf.crf.TokenEncoder;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.LongToIntArrayHashMap;
+
+/**
+ * A compiled form of {@link CrfFeaturesAndFilters#getMapActiveFeatures()}, in which every {@link Filter} is represented by a
+ * primitive <tt>long</tt> key, and the map from filters to feature-indexes is a {@link LongToIntArrayHashMap}.
+ * <BR>
+ * A key is composed of a "kind" (which identifies the filter class), a token-id, a tag-id and a previous-tag-id (see
+ * {@link #key(int, int, int, int)}). Tag-ids are those of {@link CrfTags#getTagId(Object)}. Token-ids are assigned when the
+ * filters are compiled, such that each distinct token which appears in some filter gets its own id (see {@link #internToken(Object)}),
+ * unless the {@link FilterFactory} provides a {@link TokenEncoder} (see {@link CompilableFilterFactory#getTokenEncoder()}), in which case the
+ * token-ids are the ids of that encoder.
+ * <P>
+ * The compilation succeeds only if every filter supports it (see {@link Filter#compile(CompiledFilters)}), and the
+ * {@link FilterFactory} supports it (i.e., it is a {@link CompilableFilterFactory}). Otherwise, {@link #isCompiled()}
+ * returns false, and the active features should be found by the {@link FilterFactory} and {@link Filter} objects, as usual
+ * (see {@link CrfUtilities#getActiveFeatureIndexes(CrfFeaturesAndFilters, Object[], int, Object, Object)}).
+ * <P>
+ * Once compiled, finding the active features of a token and a pair of tags does not allocate any object besides the returned array
+ * (see {@link CrfUtilities#getActiveFeatureIndexes(CompiledFilters, int[], int, int, int, long[])}).
+ *
+ * @see CrfFeaturesAndFilters#getCompiledFilters(CrfTags)
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CompiledFilters<K, G>
+{
+	private static final int TAG_ID_BITS = 12;
+
+	/**
+	 * Returned by {@link Filter#compile(CompiledFilters)} for filters that cannot be compiled.
+	 */
+	public static final long NOT_COMPILED = 0L;
+
+	/**
+	 * Returned by {@link Filter#compile(CompiledFilters)} for filters that can never be equal to any filter created by
+	 * the {@link FilterFactory}, e.g., since they examine a tag which is not one of the tags.
+	 */
+	public static final long NEVER_MATCHES = -1L;
+
+	/**
+	 * The token-id of tokens that appear in no filter.
+	 */
+	public static final int UNKNOWN_TOKEN_ID = -1;
+
+	/**
+	 * The largest number of tags (including the virtual tag null) for which filters can be compiled.
+	 */
+	public static final int MAXIMUM_NUMBER_OF_TAG_IDS = 1<<TAG_ID_BITS;
+
+	/**
+	 * Returns the key of a filter of the given kind, for the given token-id, tag-id and previous-tag-id.
+	 * Filters which do not examine the token, or the tag, or the previous tag, should give 0 for the corresponding parameter.
+	 * @param kind a number in [1,127] which identifies the filter class. Each filter class should have its own kind.
+	 * @param tokenId a token-id, or {@link #UNKNOWN_TOKEN_ID}.
+	 * @param tagId a tag-id.
+	 * @param previousTagId a tag-id.
+	 * @return the key.
+	 */
+	public static long key(int kind, int tokenId, int tagId, int previousTagId)
+	{
+		return (((long)kind)<<56) | ((((long)tokenId)+1L)<<(2*TAG_ID_BITS)) | (((long)tagId)<<TAG_ID_BITS) | ((long)previousTagId);
+	}
+
+	/**
+	 * Returns the token-id of the given key (see {@link #key(int, int, int, int)}), which is {@link #UNKNOWN_TOKEN_ID} for
+	 * keys of filters that do not examine the token.
+	 */
+	public static int tokenIdOfKey(long key)
+	{
+		return ((int)((key>>>(2*TAG_ID_BITS))&0xFFFFFFFFL))-1;
+	}
+
+	/**
+	 * Returns the tag-id of the given key (see {@link #key(int, int, int, int)}).
+	 */
+	public static int tagIdOfKey(long key)
+	{
+		return (int)((key>>>TAG_ID_BITS)&(MAXIMUM_NUMBER_OF_TAG_IDS-1));
+	}
+
+	/**
+	 * Returns the previous-tag-id of the given key (see {@link #key(int, int, int, int)}).
+	 */
+	public static int previousTagIdOfKey(long key)
+	{
+		return (int)(key&(MAXIMUM_NUMBER_OF_TAG_IDS-1));
+	}
+
+
+	/**
+	 * Compiles the filters of the given features. Use {@link #isCompiled()} to find whether the compilation has succeeded.
+	 */
+	public static <K, G> CompiledFilters<K, G> compile(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags)
+	{
+		CompiledFilters<K, G> ret = new CompiledFilters<K, G>(features, crfTags);
+		ret.compile();
+		return ret;
+	}
+
+
+	/**
+	 * Returns the id of the given tag, or -1 if it is not one of the tags. See {@link CrfTags#getTagId(Object)}.
+	 */
+	public int getTagId(G tag)
+	{
+		if ( (tag!=null) && (!crfTags.getTags().contains(tag)) ) {return -1;}
+		return crfTags.getTagId(tag);
+	}
+
+	/**
+	 * Returns the token-id of the given token, assigning a new id if that token has no id yet.
+	 * If the {@link FilterFactory} provides a {@link TokenEncoder}, returns the id given by that encoder, which is
+	 * {@link #UNKNOWN_TOKEN_ID} if the token is not known to the encoder. In that case the filter cannot be compiled.
+	 * Should be called only by {@link Filter#compile(CompiledFilters)}.
+	 */
+	public int internToken(K token)
+	{
+		if (tokenEncoder!=null) {return tokenEncoder.encode(token);}
+		Integer id = tokenIds.get(token);
+		if (null==id)
+		{
+			id = tokenIds.size();
+			tokenIds.put(token, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the token-id of the given token, or {@link #UNKNOWN_TOKEN_ID} if no filter examines that token.
+	 */
+	public int getTokenId(K token)
+	{
+		if (tokenEncoder!=null) {return tokenEncoder.encode(token);}
+		Integer id = tokenIds.get(token);
+		return (null==id)?UNKNOWN_TOKEN_ID:id;
+	}
+
+	/**
+	 * Returns true if all the filters, and the {@link FilterFactory}, support compilation.
+	 */
+	public boolean isCompiled()
+	{
+		return compiled;
+	}
+
+	/**
+	 * Returns the given sentence encoded by the {@link FilterFactory} (see {@link CompilableFilterFactory#encodeSentence(Object[], CompiledFilters)}).
+	 * @throws CrfException if the filters are not compiled.
+	 */
+	public int[] encodeSentence(K[] sentence)
+	{
+		return compilableFilterFactory().encodeSentence(sentence, this);
+	}
+
+	/**
+	 * Creates the keys of the filters for the given token and tags into the given array (which should be at least of size
+	 * {@link #getMaximumNumberOfKeys()}), and returns the number of keys.
+	 * See {@link CompilableFilterFactory#createFilterKeys(int[], int, int, int, long[])}.
+	 * @throws CrfException if the filters are not compiled.
+	 */
+	public int createFilterKeys(int[] encodedSentence, int tokenIndex, int tagId, int previousTagId, long[] keys)
+	{
+		return compilableFilterFactory().createFilterKeys(encodedSentence, tokenIndex, tagId, previousTagId, keys);
+	}
+
+	/**
+	 * Returns the {@link TokenEncoder} whose ids are the token-ids, or null if the token-ids are assigned by {@link #internToken(Object)}.
+	 * A sentence encoded by this encoder can be given to {@link #createFilterKeys(int[], int, int, int, long[])} as is.
+	 */
+	public TokenEncoder<K> getTokenEncoder()
+	{
+		return tokenEncoder;
+	}
+
+	/**
+	 * Returns the {@link CrfFeaturesAndFilters} whose filters are compiled by this object.
+	 */
+	public CrfFeaturesAndFilters<K, G> getFeatures()
+	{
+		return features;
+	}
+
+	public CrfTags<G> getCrfTags()
+	{
+		return crfTags;
+	}
+
+	public int getMaximumNumberOfKeys()
+	{
+		return maximumNumberOfKeys;
+	}
+
+	/**
+	 * Returns the indexes of the features whose filter has the given key, or null if there are none.
+	 */
+	public int[] getActiveFeatures(long key)
+	{
+		return mapActiveFeatures.get(key);
+	}
+
+	/**
+	 * Returns the indexes of the features which have no filter (see {@link CrfFeaturesAndFilters#getIndexesOfFeaturesWithNoFilter()}).
+	 */
+	public int[] getIndexesOfFeaturesWithNoFilter()
+	{
+		return indexesOfFeaturesWithNoFilter;
+	}
+
+
+
+	@SuppressWarnings("unchecked")
+	private CompiledFilters(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags)
+	{
+		super();
+		this.features = features;
+		this.crfTags = crfTags;
+		this.filterFactory = (features.getFilterFactory() instanceof CompilableFilterFactory) ? (CompilableFilterFactory<K, G>) features.getFilterFactory() : null;
+		this.tokenEncoder = (null==filterFactory)?null:filterFactory.getTokenEncoder();
+	}
+
+	private CompilableFilterFactory<K, G> compilableFilterFactory()
+	{
+		if (!compiled) {throw new CrfException("The filters are not compiled.");}
+		return filterFactory;
+	}
+
+	private void compile()
+	{
+		compiled = false;
+		if (null==filterFactory) {return;}
+		maximumNumberOfKeys = filterFactory.getMaximumNumberOfFilterKeys();
+		if (crfTags.getNumberOfTags()+1 > MAXIMUM_NUMBER_OF_TAG_IDS) {return;}
+
+		indexesOfFeaturesWithNoFilter = CrfUtilities.toIntArray(features.getIndexesOfFeaturesWithNoFilter());
+		mapActiveFeatures = new LongToIntArrayHashMap(features.getMapActiveFeatures().size());
+		for (Map.Entry<Filter<K, G>, Set<Integer>> entry : features.getMapActiveFeatures().entrySet())
+		{
+			long key = entry.getKey().compile(this);
+			if (NOT_COMPILED==key) {return;}
+			if (NEVER_MATCHES==key) {continue;}
+			if (mapActiveFeatures.get(key)!=null) {return;} // Two different filters got the same key. This should not happen.
+			mapActiveFeatures.put(key, CrfUtilities.toIntArray(entry.getValue()));
+		}
+		compiled = true;
+	}
+
+
+	private final CrfFeaturesAndFilters<K, G> features;
+	private final CrfTags<G> crfTags;
+	private final CompilableFilterFactory<K, G> filterFactory; // null if the filter factory does not support compiled filters
+	private final TokenEncoder<K> tokenEncoder;
+	private final Map<K, Integer> tokenIds = new HashMap<K, Integer>();
+
+	private boolean compiled = false;
+	private int maximumNumberOfKeys = -1;
+	private int[] indexesOfFeaturesWithNoFilter = null;
+	private LongToIntArrayHashMap mapActiveFeatures = null;
+}
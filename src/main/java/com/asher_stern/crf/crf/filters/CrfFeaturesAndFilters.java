@@ -1,9 +1,16 @@
 package com.asher_stern.crf.crf.filters;
 
 import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
+import com.asher_stern.crf.crf.CrfTags;
+import com.asher_stern.crf.utilities.CrfException;
+
 /**
  * Encapsulates all the features, the {@link FilterFactory}, and data-structures used for filtering features.
  * 
@@ -62,12 +69,79 @@ public class CrfFeaturesAndFilters<K, G> implements Serializable
 	{
 		return indexesOfFeaturesWithNoFilter;
 	}
+	
+	/**
+	 * Returns a new {@link CrfFeaturesAndFilters} of only the features whose indexes are given, in the same order.
+	 * Feature number featureIndexes[i] here is feature number i in the returned object, and the data-structures used for
+	 * filtering are remapped accordingly (filters of no remaining feature are removed).
+	 * @param featureIndexes the indexes of the features to keep, in ascending order.
+	 */
+	public CrfFeaturesAndFilters<K, G> subset(int[] featureIndexes)
+	{
+		final int[] newIndexOf = new int[filteredFeatures.length];
+		Arrays.fill(newIndexOf, -1);
+		@SuppressWarnings("unchecked")
+		CrfFilteredFeature<K, G>[] subsetFeatures = (CrfFilteredFeature<K, G>[]) Array.newInstance(filteredFeatures.getClass().getComponentType(), featureIndexes.length);
+		for (int newIndex=0;newIndex<featureIndexes.length;++newIndex)
+		{
+			if ( (newIndex>0) && (featureIndexes[newIndex]<=featureIndexes[newIndex-1]) ) {throw new CrfException("The feature indexes must be in ascending order.");}
+			subsetFeatures[newIndex] = filteredFeatures[featureIndexes[newIndex]];
+			newIndexOf[featureIndexes[newIndex]] = newIndex;
+		}
+		
+		Map<Filter<K, G>, Set<Integer>> subsetMapActiveFeatures = new LinkedHashMap<Filter<K, G>, Set<Integer>>();
+		for (Map.Entry<Filter<K, G>, Set<Integer>> entry : mapActiveFeatures.entrySet())
+		{
+			Set<Integer> subsetIndexes = remap(entry.getValue(), newIndexOf);
+			if (subsetIndexes.size()>0)
+			{
+				subsetMapActiveFeatures.put(entry.getKey(), subsetIndexes);
+			}
+		}
+		return new CrfFeaturesAndFilters<K, G>(filterFactory, subsetFeatures, subsetMapActiveFeatures, remap(indexesOfFeaturesWithNoFilter, newIndexOf));
+	}
+	
+	/**
+	 * Returns the filters of the features compiled to primitive keys, for the given tags (see {@link CompiledFilters}).
+	 * The compilation is performed on the first call, and its result is kept for later calls with the same {@link CrfTags}.
+	 * <BR>
+	 * The caller should check {@link CompiledFilters#isCompiled()} before using the returned object.
+	 */
+	public CompiledFilters<K, G> getCompiledFilters(CrfTags<G> crfTags)
+	{
+		CompiledFilters<K, G> ret = compiledFilters;
+		if ( (null==ret) || (ret.getCrfTags()!=crfTags) )
+		{
+			synchronized(this)
+			{
+				ret = compiledFilters;
+				if ( (null==ret) || (ret.getCrfTags()!=crfTags) )
+				{
+					ret = CompiledFilters.compile(this, crfTags);
+					compiledFilters = ret;
+				}
+			}
+		}
+		return ret;
+	}
 
 
 
+	private static Set<Integer> remap(Set<Integer> indexes, int[] newIndexOf)
+	{
+		Set<Integer> ret = new LinkedHashSet<Integer>();
+		for (Integer index : indexes)
+		{
+			if (newIndexOf[index]>=0) {ret.add(newIndexOf[index]);}
+		}
+		return ret;
+	}
+
 
 	private final FilterFactory<K, G> filterFactory;
 	private final CrfFilteredFeature<K, G>[] filteredFeatures;
 	private final Map<Filter<K, G>, Set<Integer>> mapActiveFeatures;
 	private final Set<Integer> indexesOfFeaturesWithNoFilter;
+	
+	private transient volatile CompiledFilters<K, G> compiledFilters = null;
 }
@@ -35,4 +35,20 @@ public abstract class Filter<K,G> implements Serializable
 	
 	public abstract int hashCode();
 	public abstract boolean equals(Object obj);
+	
+	/**
+	 * Returns the primitive key of this filter (see {@link CompiledFilters#key(int, int, int, int)}), such that two filters
+	 * are equal if and only if their keys are equal. The key must agree with the keys created by
+	 * {@link CompilableFilterFactory#createFilterKeys(int[], int, int, int, long[])}.
+	 * <BR>
+	 * The default implementation returns {@link CompiledFilters#NOT_COMPILED}, meaning that this filter cannot be compiled,
+	 * and the active features are found by {@link FilterFactory#createFilters(Object[], int, Object, Object)}.
+	 * 
+	 * @param compiledFilters provides the tag-ids and the token-ids.
+	 * @return the key of this filter, or {@link CompiledFilters#NOT_COMPILED}, or {@link CompiledFilters#NEVER_MATCHES}.
+	 */
+	public long compile(CompiledFilters<K, G> compiledFilters)
+	{
+		return CompiledFilters.NOT_COMPILED;
+	}
 }
@@ -7,6 +7,10 @@ import com.asher_stern.crf.crf.CrfUtilities;
 
 /**
  * Creates a set of filters for the given input. "Input" is the sequence of tokens, the token-index, its tag, and the tag of the preceding token.
+ * <P>
+ * Optionally, a filter factory can also create the filters in their compiled form, as primitive <tt>long</tt> keys (see
+ * {@link CompiledFilters}), by implementing {@link CompilableFilterFactory}. Filter factories which do not do so are used
+ * exactly as before.
  * 
  * @see Filter
  * @see CrfFilteredFeature
@@ -12,6 +12,11 @@ package com.asher_stern.crf.crf.filters;
 public class TagFilter<K,G> extends Filter<K, G>
 {
 	private static final long serialVersionUID = 3624873223333620234L;
+	
+	/**
+	 * The kind of {@link TagFilter} in {@link CompiledFilters#key(int, int, int, int)}.
+	 */
+	public static final int COMPILED_KIND = 1;
 
 	
 	public TagFilter(G currentTag)
@@ -21,6 +26,20 @@ public class TagFilter<K,G> extends Filter<K, G>
 	
 	
 	
+	@Override
+	public long compile(CompiledFilters<K, G> compiledFilters)
+	{
+		int tagId = compiledFilters.getTagId(currentTag);
+		if (tagId<0) {return CompiledFilters.NEVER_MATCHES;}
+		return CompiledFilters.key(COMPILED_KIND, CompiledFilters.UNKNOWN_TOKEN_ID, tagId, 0);
+	}
+	
+	public G getCurrentTag()
+	{
+		return currentTag;
+	}
+	
+	
 	@Override
 	public int hashCode()
 	{
@@ -13,6 +13,11 @@ public class TokenAndTagFilter<K,G> extends Filter<K, G>
 {
 	private static final long serialVersionUID = 1856640638264818467L;
 	
+	/**
+	 * The kind of {@link TokenAndTagFilter} in {@link CompiledFilters#key(int, int, int, int)}.
+	 */
+	public static final int COMPILED_KIND = 2;
+	
 	public TokenAndTagFilter(K token, G currentTag)
 	{
 		this.token = token;
@@ -21,6 +26,27 @@ public class TokenAndTagFilter<K,G> extends Filter<K, G>
 	
 	
 
+	@Override
+	public long compile(CompiledFilters<K, G> compiledFilters)
+	{
+		int tagId = compiledFilters.getTagId(currentTag);
+		if (tagId<0) {return CompiledFilters.NEVER_MATCHES;}
+		int tokenId = compiledFilters.internToken(token);
+		if (CompiledFilters.UNKNOWN_TOKEN_ID==tokenId) {return CompiledFilters.NOT_COMPILED;}
+		return CompiledFilters.key(COMPILED_KIND, tokenId, tagId, 0);
+	}
+	
+	public K getToken()
+	{
+		return token;
+	}
+
+	public G getCurrentTag()
+	{
+		return currentTag;
+	}
+	
+	
 	@Override
 	public int hashCode()
 	{
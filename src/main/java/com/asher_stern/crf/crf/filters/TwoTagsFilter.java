@@ -13,6 +13,11 @@ public class TwoTagsFilter<K, G> extends Filter<K, G>
 {
 	private static final long serialVersionUID = -4850947891058236177L;
 	
+	/**
+	 * The kind of {@link TwoTagsFilter} in {@link CompiledFilters#key(int, int, int, int)}.
+	 */
+	public static final int COMPILED_KIND = 3;
+	
 	public TwoTagsFilter(G currentTag, G previousTag)
 	{
 		this.currentTag = currentTag;
@@ -21,6 +26,26 @@ public class TwoTagsFilter<K, G> extends Filter<K, G>
 	
 
 
+	@Override
+	public long compile(CompiledFilters<K, G> compiledFilters)
+	{
+		int tagId = compiledFilters.getTagId(currentTag);
+		int previousTagId = compiledFilters.getTagId(previousTag);
+		if ( (tagId<0) || (previousTagId<0) ) {return CompiledFilters.NEVER_MATCHES;}
+		return CompiledFilters.key(COMPILED_KIND, CompiledFilters.UNKNOWN_TOKEN_ID, tagId, previousTagId);
+	}
+	
+	public G getCurrentTag()
+	{
+		return currentTag;
+	}
+
+	public G getPreviousTag()
+	{
+		return previousTag;
+	}
+	
+	
 	@Override
 	public int hashCode()
 	{
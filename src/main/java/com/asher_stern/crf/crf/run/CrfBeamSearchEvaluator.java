@@ -0,0 +1,160 @@
+package com.asher_stern.crf.crf.run;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.asher_stern.crf.crf.CrfInferenceBeamSearch;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.TaggedToken;
+
+/**
+ * Compares the beam search (see {@link CrfInferenceBeamSearch}) of a given {@link CrfInferencePerformer} with the exact Viterbi
+ * algorithm, on a given tagged corpus: counts the sequences (and the tokens) for which the tags found by the beam search differ from
+ * those found by the Viterbi algorithm, the accuracy of each, and the time each of them took.
+ * <BR>
+ * The beam width and the score threshold are those given to the inference performer (see {@link CrfInferencePerformer#setBeamWidth(int)}).
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> token type
+ * @param <G> tag type
+ */
+public class CrfBeamSearchEvaluator<K, G>
+{
+	public CrfBeamSearchEvaluator(Iterable<? extends List<? extends TaggedToken<K, G>>> corpus, CrfInferencePerformer<K, G> inferencePerformer)
+	{
+		super();
+		this.corpus = corpus;
+		this.inferencePerformer = inferencePerformer;
+	}
+
+	public void evaluate()
+	{
+		if (inferencePerformer.getBeamWidth()<=0) {throw new CrfException("No beam width was given to the inference performer.");}
+		numberOfSequences = 0;
+		numberOfDifferentSequences = 0;
+		numberOfTokens = 0;
+		numberOfDifferentTokens = 0;
+		viterbiCorrect = 0;
+		beamSearchCorrect = 0;
+		viterbiNanoseconds = 0;
+		beamSearchNanoseconds = 0;
+
+		for (List<? extends TaggedToken<K, G>> taggedSequence : corpus)
+		{
+			List<K> sequence = new ArrayList<K>(taggedSequence.size());
+			for (TaggedToken<K, G> taggedToken : taggedSequence)
+			{
+				sequence.add(taggedToken.getToken());
+			}
+
+			long startTime = System.nanoTime();
+			List<TaggedToken<K, G>> taggedByViterbi = inferencePerformer.tagSequenceByViterbi(sequence);
+			long viterbiEndTime = System.nanoTime();
+			List<TaggedToken<K, G>> taggedByBeamSearch = inferencePerformer.tagSequence(sequence);
+			beamSearchNanoseconds += System.nanoTime()-viterbiEndTime;
+			viterbiNanoseconds += viterbiEndTime-startTime;
+
+			boolean different = false;
+			for (int index=0;index<taggedSequence.size();++index)
+			{
+				G tag = taggedSequence.get(index).getTag();
+				G viterbiTag = taggedByViterbi.get(index).getTag();
+				G beamSearchTag = taggedByBeamSearch.get(index).getTag();
+				if (!viterbiTag.equals(beamSearchTag))
+				{
+					++numberOfDifferentTokens;
+					different = true;
+				}
+				if (viterbiTag.equals(tag)) {++viterbiCorrect;}
+				if (beamSearchTag.equals(tag)) {++beamSearchCorrect;}
+			}
+			numberOfTokens += taggedSequence.size();
+			++numberOfSequences;
+			if (different) {++numberOfDifferentSequences;}
+		}
+	}
+
+	public long getNumberOfSequences()
+	{
+		return numberOfSequences;
+	}
+
+	/**
+	 * Returns the number of sequences for which the beam search found a sequence of tags other than the one found by the Viterbi algorithm.
+	 */
+	public long getNumberOfDifferentSequences()
+	{
+		return numberOfDifferentSequences;
+	}
+
+	public long getNumberOfTokens()
+	{
+		return numberOfTokens;
+	}
+
+	/**
+	 * Returns the number of tokens to which the beam search assigned a tag other than the one assigned by the Viterbi algorithm.
+	 */
+	public long getNumberOfDifferentTokens()
+	{
+		return numberOfDifferentTokens;
+	}
+
+	public double getSequenceDifferenceRate()
+	{
+		return (0==numberOfSequences)?0.0:((double)numberOfDifferentSequences)/((double)numberOfSequences);
+	}
+
+	public double getTokenDifferenceRate()
+	{
+		return (0==numberOfTokens)?0.0:((double)numberOfDifferentTokens)/((double)numberOfTokens);
+	}
+
+	public double getViterbiAccuracy()
+	{
+		return (0==numberOfTokens)?0.0:((double)viterbiCorrect)/((double)numberOfTokens);
+	}
+
+	public double getBeamSearchAccuracy()
+	{
+		return (0==numberOfTokens)?0.0:((double)beamSearchCorrect)/((double)numberOfTokens);
+	}
+
+	public long getViterbiMilliseconds()
+	{
+		return viterbiNanoseconds/1000000L;
+	}
+
+	public long getBeamSearchMilliseconds()
+	{
+		return beamSearchNanoseconds/1000000L;
+	}
+
+	/**
+	 * Returns a one-line summary of the evaluation.
+	 */
+	public String getReport()
+	{
+		return "Beam search (width = "+inferencePerformer.getBeamWidth()+", score threshold = "+inferencePerformer.getBeamScoreThreshold()+"): "+
+				"different sequences = "+numberOfDifferentSequences+"/"+numberOfSequences+" ("+String.format("%-3.3f", getSequenceDifferenceRate())+"), "+
+				"different tokens = "+numberOfDifferentTokens+"/"+numberOfTokens+" ("+String.format("%-3.3f", getTokenDifferenceRate())+"), "+
+				"accuracy = "+String.format("%-3.3f", getBeamSearchAccuracy())+" (Viterbi: "+String.format("%-3.3f", getViterbiAccuracy())+"), "+
+				"time (milliseconds) = "+getBeamSearchMilliseconds()+" (Viterbi: "+getViterbiMilliseconds()+").";
+	}
+
+
+
+	private final Iterable<? extends List<? extends TaggedToken<K, G>>> corpus;
+	private final CrfInferencePerformer<K, G> inferencePerformer;
+
+	private long numberOfSequences = 0;
+	private long numberOfDifferentSequences = 0;
+	private long numberOfTokens = 0;
+	private long numberOfDifferentTokens = 0;
+	private long viterbiCorrect = 0;
+	private long beamSearchCorrect = 0;
+	private long viterbiNanoseconds = 0;
+	private long beamSearchNanoseconds = 0;
+}
@@ -1,18 +1,53 @@
 package com.asher_stern.crf.crf.run;
 
 import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import com.asher_stern.crf.crf.CompiledCrfModel;
+import com.asher_stern.crf.crf.CrfInferenceBeamSearch;
+import com.asher_stern.crf.crf.CrfInferenceKBestViterbi;
 import com.asher_stern.crf.crf.CrfInferenceViterbi;
+import com.asher_stern.crf.crf.CrfLogSpaceForwardBackward;
 import com.asher_stern.crf.crf.CrfModel;
+import com.asher_stern.crf.crf.CrfSentenceTags;
+import com.asher_stern.crf.crf.CrfTags;
+import com.asher_stern.crf.crf.CrfUtilities;
+import com.asher_stern.crf.crf.ScoredTagSequence;
+import com.asher_stern.crf.crf.TaggedTokenWithMarginals;
 import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
 import com.asher_stern.crf.utilities.TaggedToken;
 
 /**
  * Performs the inference -- the process of finding the most likely sequence of tags to a sequence of tokens, for new
  * unseen sequences of tokens (test data).
+ * <BR>
+ * Many sequences can be tagged concurrently, by {@link #tagBatch(List)}, {@link #tagIterator(Iterator)} and {@link #tagStream(Stream)},
+ * which return the results in the order of the input. The sequences are tagged by the tasks of an executor given by
+ * {@link #setExecutor(ExecutorService)}, or, if no executor was given, of a temporary executor with {@link #setNumberOfThreads(int)} threads.
+ * Each thread reuses its own buffers of the Viterbi algorithm (see {@link CrfInferenceViterbi}).
  * 
  * @author Asher Stern
  * Date: Nov 23, 2014
@@ -22,26 +57,160 @@ import com.asher_stern.crf.utilities.TaggedToken;
  */
 public class CrfInferencePerformer<K, G>
 {
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+	public static final int DEFAULT_MAXIMUM_NUMBER_OF_PENDING_BLOCKS_PER_THREAD = 4;
+	/**
+	 * The number of seconds after which an idle thread of a temporary executor (created when no executor is given) terminates.
+	 */
+	public static final long TEMPORARY_EXECUTOR_KEEP_ALIVE_SECONDS = 10;
+	
 	public CrfInferencePerformer(CrfModel<K, G> model)
 	{
 		super();
 		this.model = model;
+		this.compiledModel = null;
+	}
+	
+	/**
+	 * Constructs an inference performer which tags by the given compiled model. Since the compiled model is immutable,
+	 * any number of inference performers (and threads) can share it.
+	 */
+	public CrfInferencePerformer(CompiledCrfModel<K, G> compiledModel)
+	{
+		super();
+		this.model = null;
+		this.compiledModel = compiledModel;
+	}
+	
+	/**
+	 * Optional setter. The executor which tags the sequences given to {@link #tagBatch(List)}, {@link #tagIterator(Iterator)}
+	 * and {@link #tagStream(Stream)}. The executor is not shut down by this object.
+	 * If this method was not called, a temporary executor is created for each batch (or iterator), and shut down when it is done.
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+	
+	/**
+	 * Optional setter. The number of threads of the temporary executor (see {@link #setExecutor(ExecutorService)}), which is also
+	 * used to bound the number of sequences which are read, by {@link #tagIterator(Iterator)}, ahead of the consumer.
+	 * If this method was not called, the number of available processors is used.
+	 */
+	public void setNumberOfThreads(int numberOfThreads)
+	{
+		if (numberOfThreads<=0) {throw new CrfException("The number of threads must be positive.");}
+		this.numberOfThreads = numberOfThreads;
+	}
+	
+	/**
+	 * Optional setter. The number of consecutive sequences which are tagged by a single task. If this method was not called,
+	 * {@link #DEFAULT_BLOCK_SIZE} is used.
+	 */
+	public void setBlockSize(int blockSize)
+	{
+		if (blockSize<=0) {throw new CrfException("The block size must be positive.");}
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Returns the compiled model by which this object tags, or null if it was constructed with a {@link CrfModel}.
+	 */
+	public CompiledCrfModel<K, G> getCompiledModel()
+	{
+		return compiledModel;
+	}
+
+	/**
+	 * Optional setter. If the given beam width is positive, {@link #tagSequence(List)} (and the methods which tag many sequences)
+	 * find the sequence of tags by beam search with that beam width (see {@link CrfInferenceBeamSearch}), rather than by the
+	 * exact Viterbi algorithm. If this method was not called (or was called with 0), the Viterbi algorithm is used.
+	 */
+	public void setBeamWidth(int beamWidth)
+	{
+		if (beamWidth<0) {throw new CrfException("The beam width must be non-negative.");}
+		this.beamWidth = beamWidth;
+	}
+	
+	/**
+	 * Optional setter. The score threshold of the beam search (see {@link CrfInferenceBeamSearch}). Used only if a positive beam
+	 * width was given to {@link #setBeamWidth(int)}. If this method was not called, there is no threshold.
+	 */
+	public void setBeamScoreThreshold(double beamScoreThreshold)
+	{
+		if (!(beamScoreThreshold>=0.0)) {throw new CrfException("The beam score threshold must be non-negative.");}
+		this.beamScoreThreshold = beamScoreThreshold;
+	}
+	
+	public int getBeamWidth()
+	{
+		return beamWidth;
+	}
+	
+	public double getBeamScoreThreshold()
+	{
+		return beamScoreThreshold;
 	}
 
 	/**
-	 * Finds the most likely sequence of tags for the given sequence of tokens
+	 * Finds the most likely sequence of tags for the given sequence of tokens.
+	 * If a beam width was set (see {@link #setBeamWidth(int)}), the sequence is found by beam search, and might not be the most likely one.
 	 * @param sequence A sequence of tokens
 	 * @return A list in which each element is a {@link TaggedToken}, which encapsulates a token and its tag.
 	 */
 	public List<TaggedToken<K,G>> tagSequence(List<K> sequence)
+	{
+		return tagSequence(sequence, null, beamWidth);
+	}
+	
+	/**
+	 * Finds the most likely sequence of tags for the given sequence of tokens, where the tags of some tokens are known in advance
+	 * to be among given sets of tags (e.g., from a gazetteer). Only the allowed tags of the constrained tokens are considered, so the
+	 * decoding of a constrained sequence is faster than that of an unconstrained one.
+	 * @param sequence A sequence of tokens
+	 * @param allowedTags maps token indexes to the tags allowed for them. Tokens which are not in the map are not constrained.
+	 * @return A list in which each element is a {@link TaggedToken}, which encapsulates a token and its tag.
+	 */
+	public List<TaggedToken<K,G>> tagSequence(List<K> sequence, Map<Integer, ? extends Set<G>> allowedTags)
+	{
+		return tagSequence(sequence, allowedTags, beamWidth);
+	}
+	
+	/**
+	 * Finds the most likely sequence of tags for the given sequence of tokens by the Viterbi algorithm, regardless of
+	 * {@link #setBeamWidth(int)}.
+	 * @param sequence A sequence of tokens
+	 * @return A list in which each element is a {@link TaggedToken}, which encapsulates a token and its tag.
+	 */
+	public List<TaggedToken<K,G>> tagSequenceByViterbi(List<K> sequence)
+	{
+		return tagSequence(sequence, null, 0);
+	}
+	
+	/**
+	 * Finds the most likely sequence of tags, by the Viterbi algorithm if the given beam width is 0, and by beam search otherwise.
+	 */
+	private List<TaggedToken<K,G>> tagSequence(List<K> sequence, Map<Integer, ? extends Set<G>> allowedTags, int beamWidth)
 	{
 		if (null==sequence) {return null;}
 		if (sequence.size()==0) {return Collections.<TaggedToken<K,G>>emptyList();}
 		
-		@SuppressWarnings("unchecked")
-		K[] sentenceAsArray = sequence.toArray( (K[]) Array.newInstance(sequence.get(0).getClass(), sequence.size()) );
-		CrfInferenceViterbi<K, G> crfInference = new CrfInferenceViterbi<K, G>(model, sentenceAsArray);
-		G[] bestTags = crfInference.inferBestTagSequence();
+		K[] sentenceAsArray = toArray(sequence);
+		G[] bestTags = null;
+		if (beamWidth>0)
+		{
+			CrfInferenceBeamSearch<K, G> crfInference = (compiledModel!=null) ?
+					new CrfInferenceBeamSearch<K, G>(compiledModel, sentenceAsArray, allowedTags, beamWidth, beamScoreThreshold) :
+					new CrfInferenceBeamSearch<K, G>(model, sentenceAsArray, allowedTags, beamWidth, beamScoreThreshold);
+			bestTags = crfInference.inferBestTagSequence();
+		}
+		else
+		{
+			CrfInferenceViterbi<K, G> crfInference = (compiledModel!=null) ?
+					new CrfInferenceViterbi<K, G>(compiledModel, sentenceAsArray, allowedTags) :
+					new CrfInferenceViterbi<K, G>(model, sentenceAsArray, allowedTags);
+			bestTags = crfInference.inferBestTagSequence();
+		}
 
 		if (sentenceAsArray.length!=bestTags.length) {throw new CrfException("Inference failed. Array of tags differs in length from array of tokens.");}
 		
@@ -53,6 +222,314 @@ public class CrfInferencePerformer<K, G>
 		return ret;
 
 	}
+	
+	/**
+	 * Finds the k most likely sequences of tags for the given sequence of tokens, with their scores, by the list Viterbi
+	 * algorithm (see {@link CrfInferenceKBestViterbi}).
+	 * @param sequence A sequence of tokens
+	 * @param k the number of sequences of tags to find.
+	 * @return At most k sequences of tags, sorted from the most likely downwards. The first one is the sequence of tags
+	 * found by {@link #tagSequence(List)}.
+	 */
+	public List<ScoredTagSequence<G>> tagSequenceKBest(List<K> sequence, int k)
+	{
+		if (null==sequence) {return null;}
+		if (k<=0) {throw new CrfException("k must be positive.");}
+		if (sequence.size()==0) {return Collections.singletonList(new ScoredTagSequence<G>(Collections.<G>emptyList(), 0.0));}
+		
+		K[] sentenceAsArray = toArray(sequence);
+		CrfInferenceKBestViterbi<K, G> crfInference = (compiledModel!=null) ?
+				new CrfInferenceKBestViterbi<K, G>(compiledModel, sentenceAsArray, k) :
+				new CrfInferenceKBestViterbi<K, G>(model, sentenceAsArray, k);
+		return crfInference.inferBestTagSequences();
+	}
+	
+	/**
+	 * Finds the most likely sequence of tags for the given sequence of tokens, as {@link #tagSequence(List)}, and, for each token,
+	 * the posterior probability of each tag, and the confidence of the chosen tag (its posterior probability).
+	 * The posterior probabilities are calculated by the log-space forward-backward algorithm (see {@link CrfLogSpaceForwardBackward}),
+	 * over the transitions permitted by the {@link CrfTags} (or, if the sentence has no sequence of tags made of them, over all the
+	 * transitions, as in {@link CrfInferenceViterbi}).
+	 * @param sequence A sequence of tokens
+	 * @return A list in which each element is a {@link TaggedTokenWithMarginals}.
+	 */
+	public List<TaggedTokenWithMarginals<K,G>> tagWithMarginals(List<K> sequence)
+	{
+		return tagWithMarginals(sequence, null);
+	}
+	
+	/**
+	 * Like {@link #tagWithMarginals(List)}, where the tags of some tokens are constrained as in {@link #tagSequence(List, Map)}.
+	 * The posterior probabilities are conditioned on the constraints, so the tags which are not allowed for a token have probability 0.
+	 * @param sequence A sequence of tokens
+	 * @param allowedTags maps token indexes to the tags allowed for them. Tokens which are not in the map are not constrained.
+	 * @return A list in which each element is a {@link TaggedTokenWithMarginals}.
+	 */
+	public List<TaggedTokenWithMarginals<K,G>> tagWithMarginals(List<K> sequence, Map<Integer, ? extends Set<G>> allowedTags)
+	{
+		if (null==sequence) {return null;}
+		if (sequence.size()==0) {return Collections.<TaggedTokenWithMarginals<K,G>>emptyList();}
+		
+		List<TaggedToken<K,G>> taggedSequence = tagSequence(sequence, allowedTags);
+		K[] sentenceAsArray = toArray(sequence);
+		CrfTags<G> crfTags = (compiledModel!=null)?compiledModel.getCrfTags():model.getCrfTags();
+		CrfLogSpaceForwardBackward<K, G> forwardBackward = createForwardBackward(sentenceAsArray, CrfSentenceTags.create(crfTags, sentenceAsArray, allowedTags));
+		forwardBackward.calculateForwardAndBackward();
+		if (forwardBackward.getCalculatedLogNormalizationFactor()==Double.NEGATIVE_INFINITY)
+		{
+			forwardBackward = createForwardBackward(sentenceAsArray, CrfSentenceTags.createAllTransitions(crfTags, sentenceAsArray.length, allowedTags));
+			forwardBackward.calculateForwardAndBackward();
+		}
+		double[][] marginalProbabilities = forwardBackward.getMarginalProbabilities();
+		
+		List<TaggedTokenWithMarginals<K,G>> ret = new ArrayList<TaggedTokenWithMarginals<K,G>>(sentenceAsArray.length);
+		for (int index=0;index<sentenceAsArray.length;++index)
+		{
+			Map<G, Double> marginals = new LinkedHashMap<G, Double>();
+			for (int tagId=0;tagId<crfTags.getNumberOfTags();++tagId)
+			{
+				marginals.put(crfTags.getTagById(tagId), marginalProbabilities[index][tagId]);
+			}
+			ret.add(new TaggedTokenWithMarginals<K,G>(sentenceAsArray[index], taggedSequence.get(index).getTag(), Collections.unmodifiableMap(marginals)));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Finds the most likely sequence of tags for each of the given sequences of tokens. The sequences are tagged concurrently
+	 * (see the class documentation).
+	 * @param sequences sequences of tokens.
+	 * @return for each of the given sequences, in the same order, the result of {@link #tagSequence(List)}.
+	 */
+	public List<List<TaggedToken<K,G>>> tagBatch(List<? extends List<K>> sequences)
+	{
+		final List<? extends List<K>> randomAccessSequences = CrfUtilities.randomAccessList(sequences);
+		final int numberOfSequences = randomAccessSequences.size();
+		@SuppressWarnings("unchecked")
+		final List<TaggedToken<K,G>>[] results = (List<TaggedToken<K,G>>[]) new List<?>[numberOfSequences];
+		
+		ExecutorService executor = (null==this.executor)?createTemporaryExecutor():this.executor;
+		try
+		{
+			List<Future<?>> futures = new ArrayList<Future<?>>((numberOfSequences+blockSize-1)/blockSize);
+			for (int from=0;from<numberOfSequences;from+=blockSize)
+			{
+				final int fromIndex = from;
+				final int toIndex = Math.min(from+blockSize, numberOfSequences);
+				futures.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						for (int index=fromIndex;index<toIndex;++index)
+						{
+							results[index] = tagSequence(randomAccessSequences.get(index));
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+			{
+				waitFor(future);
+			}
+		}
+		finally
+		{
+			if (null==this.executor) {executor.shutdown();}
+		}
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * Returns an iterator over the tagged sequences of the given sequences of tokens, in the same order.
+	 * The given sequences are read in blocks (see {@link #setBlockSize(int)}), which are tagged concurrently, ahead of the
+	 * consumer of the returned iterator, but at most {@link #DEFAULT_MAXIMUM_NUMBER_OF_PENDING_BLOCKS_PER_THREAD} blocks per thread
+	 * are read ahead, so the whole input is never held in memory.
+	 * <BR>
+	 * If no executor was given (see {@link #setExecutor(ExecutorService)}), the temporary executor is shut down when all the
+	 * sequences have been tagged. Its threads are daemon threads, which terminate when they are idle for
+	 * {@link #TEMPORARY_EXECUTOR_KEEP_ALIVE_SECONDS} seconds, so an iterator which is not exhausted neither prevents the JVM
+	 * from exiting nor holds threads for long.
+	 */
+	public Iterator<List<TaggedToken<K,G>>> tagIterator(Iterator<? extends List<K>> sequences)
+	{
+		return new TaggingIterator(sequences);
+	}
+	
+	/**
+	 * Like {@link #tagIterator(Iterator)}, for a {@link Stream} of sequences. The returned stream is sequential and ordered;
+	 * the tagging itself is concurrent.
+	 * <BR>
+	 * Closing the returned stream (e.g., by try-with-resources) cancels the pending blocks, shuts down the temporary executor
+	 * at once (if no executor was given), and closes the given stream.
+	 */
+	public Stream<List<TaggedToken<K,G>>> tagStream(final Stream<? extends List<K>> sequences)
+	{
+		final TaggingIterator iterator = new TaggingIterator(sequences.iterator());
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED|Spliterator.NONNULL), false).onClose(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					iterator.close();
+				}
+				finally
+				{
+					sequences.close();
+				}
+			}
+		});
+	}
+	
+	
+	
+	private class TaggingIterator implements Iterator<List<TaggedToken<K,G>>>
+	{
+		public TaggingIterator(Iterator<? extends List<K>> sequences)
+		{
+			super();
+			this.sequences = sequences;
+			this.executor = (null==CrfInferencePerformer.this.executor)?createTemporaryExecutor():CrfInferencePerformer.this.executor;
+			this.maximumNumberOfPendingBlocks = DEFAULT_MAXIMUM_NUMBER_OF_PENDING_BLOCKS_PER_THREAD*numberOfThreads;
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			if (closed) {return false;}
+			fill();
+			if ( (currentBlock!=null) && (positionInCurrentBlock<currentBlock.size()) ) {return true;}
+			if (!pendingBlocks.isEmpty()) {return true;}
+			if (null==CrfInferencePerformer.this.executor) {executor.shutdown();}
+			return false;
+		}
+		
+		@Override
+		public List<TaggedToken<K,G>> next()
+		{
+			if (!hasNext()) {throw new NoSuchElementException();}
+			if ( (null==currentBlock) || (positionInCurrentBlock>=currentBlock.size()) )
+			{
+				currentBlock = waitFor(pendingBlocks.poll());
+				positionInCurrentBlock = 0;
+			}
+			List<TaggedToken<K,G>> ret = currentBlock.get(positionInCurrentBlock);
+			currentBlock.set(positionInCurrentBlock, null); // not needed any more
+			++positionInCurrentBlock;
+			return ret;
+		}
+		
+		/**
+		 * Cancels the pending blocks, and shuts down the temporary executor (if no executor was given) without waiting for them.
+		 * No more sequences are returned after this call.
+		 */
+		public void close()
+		{
+			closed = true;
+			for (Future<List<List<TaggedToken<K,G>>>> pendingBlock : pendingBlocks)
+			{
+				pendingBlock.cancel(true);
+			}
+			pendingBlocks.clear();
+			currentBlock = null;
+			if (null==CrfInferencePerformer.this.executor) {executor.shutdownNow();}
+		}
+		
+		/**
+		 * Reads blocks of sequences, and submits them, until the number of pending blocks reaches its maximum.
+		 */
+		private void fill()
+		{
+			while ( (pendingBlocks.size()<maximumNumberOfPendingBlocks) && (sequences.hasNext()) )
+			{
+				final List<List<K>> block = new ArrayList<List<K>>(blockSize);
+				while ( (block.size()<blockSize) && (sequences.hasNext()) )
+				{
+					block.add(sequences.next());
+				}
+				pendingBlocks.add(executor.submit(new Callable<List<List<TaggedToken<K,G>>>>()
+				{
+					@Override
+					public List<List<TaggedToken<K,G>>> call()
+					{
+						List<List<TaggedToken<K,G>>> taggedBlock = new ArrayList<List<TaggedToken<K,G>>>(block.size());
+						for (List<K> sequence : block)
+						{
+							taggedBlock.add(tagSequence(sequence));
+						}
+						return taggedBlock;
+					}
+				}));
+			}
+		}
+		
+		private final Iterator<? extends List<K>> sequences;
+		private final ExecutorService executor;
+		private final int maximumNumberOfPendingBlocks;
+		private final Queue<Future<List<List<TaggedToken<K,G>>>>> pendingBlocks = new ArrayDeque<Future<List<List<TaggedToken<K,G>>>>>();
+		private List<List<TaggedToken<K,G>>> currentBlock = null;
+		private int positionInCurrentBlock = 0;
+		private boolean closed = false;
+	}
+	
+	
+	private ExecutorService createTemporaryExecutor()
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, TEMPORARY_EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "crf-inference");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true); // so the threads of an abandoned iterator terminate
+		return executor;
+	}
+	
+	private static <T> T waitFor(Future<T> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CrfException("Inference failed.", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new CrfException("Inference failed.", e);
+		}
+	}
+	
 
-	private final CrfModel<K, G> model;
+	private CrfLogSpaceForwardBackward<K, G> createForwardBackward(K[] sentence, CrfSentenceTags sentenceTags)
+	{
+		return (compiledModel!=null) ?
+				new CrfLogSpaceForwardBackward<K, G>(compiledModel, sentence, sentenceTags) :
+				new CrfLogSpaceForwardBackward<K, G>(model, sentence, sentenceTags);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K> K[] toArray(List<K> sequence)
+	{
+		return sequence.toArray( (K[]) Array.newInstance(sequence.get(0).getClass(), sequence.size()) );
+	}
+	
+	
+	private final CrfModel<K, G> model; // null if constructed with a compiled model
+	private final CompiledCrfModel<K, G> compiledModel; // null if constructed with a model
+	
+	private ExecutorService executor = null; // if null, a temporary executor is created
+	private int numberOfThreads = ParallelAccumulation.defaultNumberOfChunks();
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private int beamWidth = 0; // 0 for the Viterbi algorithm
+	private double beamScoreThreshold = Double.POSITIVE_INFINITY;
 }
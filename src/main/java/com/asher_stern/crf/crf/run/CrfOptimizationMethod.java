@@ -0,0 +1,38 @@
+package com.asher_stern.crf.crf.run;
+
+import com.asher_stern.crf.crf.CrfStochasticGradientOptimizer;
+import com.asher_stern.crf.function.optimization.LbfgsMinimizer;
+
+/**
+ * The method by which {@link CrfTrainer} maximizes the CRF log-likelihood.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public enum CrfOptimizationMethod
+{
+	/**
+	 * Full-batch L-BFGS ({@link LbfgsMinimizer}, or its <tt>double</tt> counterpart): every iteration is a pass over the
+	 * whole corpus, by the function of the {@link CrfTrainingEngine}.
+	 */
+	LBFGS,
+	
+	/**
+	 * Mini-batch stochastic gradient ascent (see {@link CrfStochasticGradientOptimizer}), with a fixed learning rate
+	 * (optionally decayed per epoch).
+	 */
+	SGD,
+	
+	/**
+	 * Mini-batch stochastic gradient ascent where the learning rate of each parameter is divided by the square root of the sum
+	 * of the squares of its gradients.
+	 */
+	ADAGRAD,
+	
+	/**
+	 * Mini-batch stochastic gradient ascent by Adam: the step of each parameter is the (bias-corrected) moving average of its
+	 * gradients divided by the square root of the moving average of their squares.
+	 */
+	ADAM
+}
@@ -0,0 +1,382 @@
+package com.asher_stern.crf.crf.run;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.CompiledCrfModel;
+import com.asher_stern.crf.crf.CrfCorpusFeatureCache;
+import com.asher_stern.crf.crf.CrfModel;
+import com.asher_stern.crf.crf.CrfSentenceFeatureLattice;
+import com.asher_stern.crf.crf.CrfSentenceTags;
+import com.asher_stern.crf.crf.CrfTags;
+import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.MiscellaneousUtilities;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
+import com.asher_stern.crf.utilities.TaggedToken;
+
+/**
+ * Trains the parameters of a {@link CrfModel} by the averaged structured perceptron (Collins, 2002), as a fast alternative to
+ * {@link CrfTrainer}, which maximizes the log-likelihood. The model is usually slightly less accurate, but no expectations (i.e., no
+ * forward-backward algorithm) are calculated: each sentence costs one Viterbi decoding, and its update costs only its mistakes.
+ * <BR>
+ * Each epoch is a pass over the sentences of the corpus in a random (but deterministic) order. Each sentence is tagged by the Viterbi
+ * algorithm under the current parameters, over its {@link CrfSentenceFeatureLattice} (so only the permitted transitions, and the candidate
+ * tags of the tag dictionary, if any, are considered). If the tags found differ from the tags given in the corpus, the feature values of the
+ * given tags are added to the parameters, and those of the tags found are subtracted, for the tokens where they differ (a token and its
+ * previous token determine the feature values). The learned parameters are the average of the parameters over all the sentences of all
+ * the epochs, which is calculated lazily, so averaging does not cost more than the updates.
+ * <P>
+ * The training is parallelized by iterative parameter mixing (McDonald, Hall and Mann, 2010): the sentences of every epoch are split into
+ * shards, one per thread, and each shard runs an epoch of the perceptron, starting from the same (mixed) parameters, independently.
+ * At the end of the epoch, the parameters of the shards (and their averages) are mixed, weighted by the sizes of the shards, to the
+ * parameters of the next epoch. With a single thread, this is the sequential averaged perceptron.
+ * <BR>
+ * The feature lattices are kept in a {@link CrfCorpusFeatureCache}, as in {@link CrfTrainer}.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> token type
+ * @param <G> tag type
+ */
+public class CrfPerceptronTrainer<K, G>
+{
+	public static final int DEFAULT_NUMBER_OF_EPOCHS = 10;
+	
+	public CrfPerceptronTrainer(CrfFeaturesAndFilters<K, G> features, CrfTags<G> crfTags)
+	{
+		super();
+		this.features = features;
+		this.crfTags = crfTags;
+	}
+	
+	/**
+	 * Optional setter for the number of epochs. If this method was not called, {@link #DEFAULT_NUMBER_OF_EPOCHS} is used.
+	 */
+	public void setNumberOfEpochs(int numberOfEpochs)
+	{
+		if (numberOfEpochs<=0) {throw new CrfException("The number of epochs must be positive.");}
+		this.numberOfEpochs = numberOfEpochs;
+	}
+	
+	/**
+	 * Optional setter for the number of threads, which is also the number of shards of iterative parameter mixing.
+	 * If this method was not called, the number of available processors is used.
+	 */
+	public void setNumberOfThreads(int numberOfThreads)
+	{
+		if (numberOfThreads<=0) {throw new CrfException("The number of threads must be positive.");}
+		this.numberOfThreads = numberOfThreads;
+	}
+	
+	/**
+	 * Optional setter for the maximum total number of entries of the lattices kept by the {@link CrfCorpusFeatureCache}.
+	 * See {@link CrfTrainer#setFeatureCacheMaximumNumberOfEntries(long)}.
+	 */
+	public void setFeatureCacheMaximumNumberOfEntries(long featureCacheMaximumNumberOfEntries)
+	{
+		this.featureCacheMaximumNumberOfEntries = featureCacheMaximumNumberOfEntries;
+	}
+	
+	
+	public void train(List<? extends List<? extends TaggedToken<K, G> >> corpus)
+	{
+		logger.info("Perceptron training: Number of tags = "+crfTags.getTags().size()+". Number of features = "+features.getFilteredFeatures().length+". Number of threads = "+numberOfThreads+".");
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try
+		{
+			CrfCorpusFeatureCache<K, G> featureCache = CrfCorpusFeatureCache.create(corpus, features, crfTags, featureCacheMaximumNumberOfEntries, executor, numberOfThreads);
+			double[] parameters = trainOnExecutor(featureCache, executor);
+			
+			ArrayList<BigDecimal> parametersAsList = new ArrayList<BigDecimal>(parameters.length);
+			for (double parameter : parameters)
+			{
+				parametersAsList.add(BigDecimal.valueOf(parameter));
+			}
+			learnedModel = new CrfModel<K, G>(crfTags, features, parametersAsList);
+			logger.info("Perceptron training - done.");
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+	
+	public CrfModel<K, G> getLearnedModel()
+	{
+		return learnedModel;
+	}
+	
+	public CrfFeaturesAndFilters<K, G> getFeatures()
+	{
+		return features;
+	}
+
+	public CrfTags<G> getCrfTags()
+	{
+		return crfTags;
+	}
+	
+	public CrfInferencePerformer<K, G> getInferencePerformer()
+	{
+		if (null==learnedModel) throw new CrfException("Not yet trained");
+		if (CompiledCrfModel.canCompile(learnedModel))
+		{
+			return new CrfInferencePerformer<K,G>(CompiledCrfModel.compile(learnedModel));
+		}
+		return new CrfInferencePerformer<K,G>(learnedModel);
+	}
+	
+	
+	
+	/**
+	 * Runs the epochs of iterative parameter mixing, and returns the averaged parameters.
+	 */
+	private double[] trainOnExecutor(final CrfCorpusFeatureCache<K, G> featureCache, ExecutorService executor)
+	{
+		final int numberOfFeatures = features.getFilteredFeatures().length;
+		final int numberOfSentences = featureCache.size();
+		final int numberOfShards = Math.max(1, Math.min(numberOfThreads, numberOfSentences));
+		final double[] mixedParameters = new double[numberOfFeatures];
+		final double[] sumOfAverages = new double[numberOfFeatures];
+		final List<Shard> shards = new ArrayList<Shard>(numberOfShards);
+		for (int shardIndex=0;shardIndex<numberOfShards;++shardIndex)
+		{
+			shards.add(new Shard(featureCache, numberOfFeatures));
+		}
+		
+		List<Integer> order = new ArrayList<Integer>(numberOfSentences);
+		for (int sentenceIndex=0;sentenceIndex<numberOfSentences;++sentenceIndex) {order.add(sentenceIndex);}
+		Random random = new Random(MiscellaneousUtilities.RANDOM_SELECTION_RANDOM_SEED);
+		
+		for (int epoch=1;epoch<=numberOfEpochs;++epoch)
+		{
+			Collections.shuffle(order, random);
+			List<Future<?>> futures = new ArrayList<Future<?>>(numberOfShards);
+			for (int shardIndex=0;shardIndex<numberOfShards;++shardIndex)
+			{
+				final Shard shard = shards.get(shardIndex);
+				shard.start(mixedParameters, order.subList((int)(((long)numberOfSentences*shardIndex)/numberOfShards), (int)(((long)numberOfSentences*(shardIndex+1))/numberOfShards)));
+				futures.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						shard.runEpoch();
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new CrfException(e);
+				}
+				catch (ExecutionException e)
+				{
+					throw new CrfException(e);
+				}
+			}
+			
+			// Mix the parameters of the shards, and their averages (the average of a shard is w-u/n, see Shard).
+			Arrays.fill(mixedParameters, 0.0);
+			int numberOfMistakes = 0;
+			int numberOfSkipped = 0;
+			for (Shard shard : shards)
+			{
+				final int shardSize = shard.sentenceIndexes.size();
+				final double weight = ((double)shardSize)/((double)numberOfSentences);
+				for (int featureIndex=0;featureIndex<numberOfFeatures;++featureIndex)
+				{
+					mixedParameters[featureIndex] += weight*shard.parameters[featureIndex];
+					sumOfAverages[featureIndex] += weight*(shard.parameters[featureIndex]-shard.sumOfWeightedUpdates[featureIndex]/shardSize);
+				}
+				numberOfMistakes += shard.numberOfMistakes;
+				numberOfSkipped += shard.numberOfSkipped;
+			}
+			if (logger.isInfoEnabled()) {logger.info("Perceptron epoch "+epoch+": sentences with mistakes = "+numberOfMistakes+"/"+numberOfSentences+".");}
+			if (numberOfSkipped>0) {logger.warn("Perceptron epoch "+epoch+": "+numberOfSkipped+" sentences were skipped, since their tags are not permitted by the CrfTags, or no sequence of tags is permitted.");}
+		}
+		
+		for (int featureIndex=0;featureIndex<numberOfFeatures;++featureIndex)
+		{
+			sumOfAverages[featureIndex] /= numberOfEpochs;
+		}
+		return sumOfAverages;
+	}
+	
+	
+	/**
+	 * A shard of iterative parameter mixing, which runs an epoch of the perceptron over its sentences.
+	 * <BR>
+	 * The average of the parameters is kept lazily: an update d, made after k sentences of the epoch, is added to the parameters w, and
+	 * k*d is added to u. After the n sentences of the epoch, the average of the parameters over the sentences is w-u/n.
+	 */
+	private final class Shard
+	{
+		private Shard(CrfCorpusFeatureCache<K, G> featureCache, int numberOfFeatures)
+		{
+			this.featureCache = featureCache;
+			this.parameters = new double[numberOfFeatures];
+			this.sumOfWeightedUpdates = new double[numberOfFeatures];
+		}
+		
+		private void start(double[] initialParameters, List<Integer> sentenceIndexes)
+		{
+			System.arraycopy(initialParameters, 0, parameters, 0, parameters.length);
+			Arrays.fill(sumOfWeightedUpdates, 0.0);
+			this.sentenceIndexes = sentenceIndexes;
+			numberOfMistakes = 0;
+			numberOfSkipped = 0;
+		}
+		
+		private void runEpoch()
+		{
+			int numberOfSeen = 0;
+			for (int sentenceIndex : sentenceIndexes)
+			{
+				CrfSentenceFeatureLattice<K, G> lattice = featureCache.getLattice(sentenceIndex);
+				int[] correctCells = findCells(lattice, featureCache.getCorpus().get(sentenceIndex));
+				int[] bestCells = (null==correctCells)?null:viterbi(lattice, parameters);
+				if (null==bestCells)
+				{
+					++numberOfSkipped;
+				}
+				else
+				{
+					boolean mistake = false;
+					for (int tokenIndex=0;tokenIndex<bestCells.length;++tokenIndex)
+					{
+						if (bestCells[tokenIndex]!=correctCells[tokenIndex])
+						{
+							mistake = true;
+							lattice.addFeatureValues(correctCells[tokenIndex], 1.0, parameters);
+							lattice.addFeatureValues(bestCells[tokenIndex], -1.0, parameters);
+							if (numberOfSeen>0)
+							{
+								lattice.addFeatureValues(correctCells[tokenIndex], numberOfSeen, sumOfWeightedUpdates);
+								lattice.addFeatureValues(bestCells[tokenIndex], -numberOfSeen, sumOfWeightedUpdates);
+							}
+						}
+					}
+					if (mistake) {++numberOfMistakes;}
+				}
+				++numberOfSeen;
+			}
+		}
+		
+		private final CrfCorpusFeatureCache<K, G> featureCache;
+		private final double[] parameters; // w
+		private final double[] sumOfWeightedUpdates; // u
+		private List<Integer> sentenceIndexes;
+		private int numberOfMistakes = 0;
+		private int numberOfSkipped = 0;
+	}
+	
+	
+	/**
+	 * Returns the cells of the lattice (see {@link CrfSentenceFeatureLattice}) of the tags given in the corpus, one per token,
+	 * or null if these tags are not permitted.
+	 */
+	private int[] findCells(CrfSentenceFeatureLattice<K, G> lattice, List<? extends TaggedToken<K, G>> taggedSentence)
+	{
+		final CrfSentenceTags sentenceTags = lattice.getSentenceTags();
+		int[] cells = new int[taggedSentence.size()];
+		int previousTagId = crfTags.getNullTagId();
+		for (int tokenIndex=0;tokenIndex<cells.length;++tokenIndex)
+		{
+			final int tagId = crfTags.getTagId(taggedSentence.get(tokenIndex).getTag());
+			final int[] previousTagIds = sentenceTags.getPreviousTagIds(tokenIndex, tagId);
+			int position = 0;
+			while ( (position<previousTagIds.length) && (previousTagIds[position]!=previousTagId) ) {++position;}
+			if (position==previousTagIds.length) {return null;}
+			cells[tokenIndex] = lattice.getFirstCell(tokenIndex, tagId)+position;
+			previousTagId = tagId;
+		}
+		return cells;
+	}
+	
+	/**
+	 * The Viterbi algorithm (see {@link com.asher_stern.crf.crf.CrfInferenceViterbi}) over the cells of the given lattice, where
+	 * log(\psi_j(g,g')) of a cell is its dot product with the parameters. Among equal values, the first previous tag is preferred.
+	 * @return the cells of the best sequence of tags, one per token, or null if no sequence of tags is permitted.
+	 */
+	private int[] viterbi(CrfSentenceFeatureLattice<K, G> lattice, double[] parameters)
+	{
+		final CrfSentenceTags sentenceTags = lattice.getSentenceTags();
+		final int length = lattice.getSentence().length;
+		final int numberOfTags = crfTags.getNumberOfTags();
+		final int nullTagId = crfTags.getNullTagId();
+		final double[][] delta = new double[length][numberOfTags];
+		final int[][] bestCell = new int[length][numberOfTags];
+		final int[][] bestPrevious = new int[length][numberOfTags];
+		
+		for (int tokenIndex=0;tokenIndex<length;++tokenIndex)
+		{
+			Arrays.fill(delta[tokenIndex], Double.NEGATIVE_INFINITY);
+			for (int tagId : sentenceTags.getTagIds(tokenIndex))
+			{
+				int cell = lattice.getFirstCell(tokenIndex, tagId);
+				for (int previousTagId : sentenceTags.getPreviousTagIds(tokenIndex, tagId))
+				{
+					final double previousDelta = (0==tokenIndex)?((previousTagId==nullTagId)?0.0:Double.NEGATIVE_INFINITY):delta[tokenIndex-1][previousTagId];
+					if (previousDelta>Double.NEGATIVE_INFINITY)
+					{
+						final double value = previousDelta+lattice.dotProduct(cell, parameters);
+						if (value>delta[tokenIndex][tagId])
+						{
+							delta[tokenIndex][tagId] = value;
+							bestCell[tokenIndex][tagId] = cell;
+							bestPrevious[tokenIndex][tagId] = previousTagId;
+						}
+					}
+					++cell;
+				}
+			}
+		}
+		
+		int tagId = -1;
+		for (int candidate=0;candidate<numberOfTags;++candidate)
+		{
+			if ( (delta[length-1][candidate]>Double.NEGATIVE_INFINITY) && ( (tagId<0) || (delta[length-1][candidate]>delta[length-1][tagId]) ) ) {tagId = candidate;}
+		}
+		if (tagId<0) {return null;}
+		int[] cells = new int[length];
+		for (int tokenIndex=length-1;tokenIndex>=0;--tokenIndex)
+		{
+			cells[tokenIndex] = bestCell[tokenIndex][tagId];
+			tagId = bestPrevious[tokenIndex][tagId];
+		}
+		return cells;
+	}
+	
+	
+	private final CrfFeaturesAndFilters<K, G> features;
+	private final CrfTags<G> crfTags;
+	
+	private int numberOfEpochs = DEFAULT_NUMBER_OF_EPOCHS;
+	private int numberOfThreads = ParallelAccumulation.defaultNumberOfChunks();
+	private long featureCacheMaximumNumberOfEntries = CrfCorpusFeatureCache.DEFAULT_MAXIMUM_NUMBER_OF_ENTRIES;
+	
+	private CrfModel<K, G> learnedModel = null;
+
+	private static final Logger logger = Logger.getLogger(CrfPerceptronTrainer.class);
+}
@@ -0,0 +1,105 @@
+package com.asher_stern.crf.crf.run;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.crf.CrfTagDictionary;
+import com.asher_stern.crf.crf.CrfUtilities;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.TaggedToken;
+
+/**
+ * Builds a {@link CrfTagDictionary} from the given corpus.
+ * <BR>
+ * A token which appears in the corpus at least {@link #setMinimumFrequency(int)} times is restricted to the tags it is
+ * tagged with in the corpus. The open-class tags are the tags of all the other (rare) tokens. If the corpus has no rare token,
+ * all the tags are open-class tags.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ * @param <K> type of tokens
+ * @param <G> type of tags
+ */
+public class CrfTagDictionaryBuilder<K, G>
+{
+	public static final int DEFAULT_MINIMUM_FREQUENCY = 5;
+
+	public CrfTagDictionaryBuilder(Iterable<? extends List<? extends TaggedToken<K, G>>> corpus)
+	{
+		super();
+		this.corpus = corpus;
+	}
+
+	/**
+	 * Optional setter. The minimum number of occurrences of a token in the corpus, for which the token is restricted to the tags it is
+	 * tagged with in the corpus. If this method was not called, {@link #DEFAULT_MINIMUM_FREQUENCY} is used.
+	 */
+	public void setMinimumFrequency(int minimumFrequency)
+	{
+		if (minimumFrequency<1) {throw new CrfException("The minimum frequency must be positive.");}
+		this.minimumFrequency = minimumFrequency;
+	}
+
+
+	public void build()
+	{
+		Map<K, Set<G>> tagsOfAllTokens = new LinkedHashMap<K, Set<G>>();
+		Map<K, Integer> frequencies = new LinkedHashMap<K, Integer>();
+		Set<G> allTags = new LinkedHashSet<G>();
+		for (List<? extends TaggedToken<K, G>> sentence : corpus)
+		{
+			for (TaggedToken<K, G> taggedToken : sentence)
+			{
+				CrfUtilities.putInMapSet(tagsOfAllTokens, taggedToken.getToken(), taggedToken.getTag());
+				Integer frequency = frequencies.get(taggedToken.getToken());
+				frequencies.put(taggedToken.getToken(), (null==frequency)?1:(frequency+1));
+				allTags.add(taggedToken.getTag());
+			}
+		}
+
+		Map<K, Set<G>> tagsOfTokens = new LinkedHashMap<K, Set<G>>();
+		Set<G> openClassTags = new LinkedHashSet<G>();
+		for (Map.Entry<K, Set<G>> entry : tagsOfAllTokens.entrySet())
+		{
+			if (frequencies.get(entry.getKey())>=minimumFrequency)
+			{
+				tagsOfTokens.put(entry.getKey(), entry.getValue());
+			}
+			else
+			{
+				openClassTags.addAll(entry.getValue());
+			}
+		}
+		if (openClassTags.isEmpty())
+		{
+			openClassTags = allTags;
+		}
+
+		tagDictionary = new CrfTagDictionary<K, G>(tagsOfTokens, openClassTags);
+		if (logger.isInfoEnabled())
+		{
+			logger.info("Tag dictionary: "+tagsOfTokens.size()+" out of "+tagsOfAllTokens.size()+" token types are restricted. Open-class tags: "+openClassTags.size()+" out of "+allTags.size()+".");
+		}
+	}
+
+	public CrfTagDictionary<K, G> getTagDictionary()
+	{
+		if (null==tagDictionary) {throw new CrfException("Not yet built.");}
+		return tagDictionary;
+	}
+
+
+
+	private final Iterable<? extends List<? extends TaggedToken<K, G>>> corpus;
+	private int minimumFrequency = DEFAULT_MINIMUM_FREQUENCY;
+
+	private CrfTagDictionary<K, G> tagDictionary = null;
+
+	private static final Logger logger = Logger.getLogger(CrfTagDictionaryBuilder.class);
+}
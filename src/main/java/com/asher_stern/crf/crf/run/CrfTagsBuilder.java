@@ -9,6 +9,7 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import com.asher_stern.crf.crf.CrfTagDictionary;
 import com.asher_stern.crf.crf.CrfTags;
 import com.asher_stern.crf.crf.CrfUtilities;
 import com.asher_stern.crf.utilities.CrfException;
@@ -29,6 +30,15 @@ public class CrfTagsBuilder<G>
 		super();
 		this.corpus = corpus;
 	}
+	
+	/**
+	 * Optional setter. A tag dictionary, which restricts the tags considered for each token (see {@link CrfTagDictionary}).
+	 * If this method was not called, every tag is considered for every token.
+	 */
+	public void setTagDictionary(CrfTagDictionary<?, G> tagDictionary)
+	{
+		this.tagDictionary = tagDictionary;
+	}
 
 
 
@@ -54,7 +64,7 @@ public class CrfTagsBuilder<G>
 		addEmptySets(canPrecede,tags);
 		addEmptySets(canFollow,tags);
 		
-		crfTags = new CrfTags<G>(tags, canFollow, canPrecede);
+		crfTags = new CrfTags<G>(tags, canFollow, canPrecede, tagDictionary);
 		
 		if (logger.isDebugEnabled())
 		{
@@ -91,6 +101,7 @@ public class CrfTagsBuilder<G>
 
 
 	private final Iterable<? extends List<? extends TaggedToken<?, G>>> corpus;
+	private CrfTagDictionary<?, G> tagDictionary = null;
 	private CrfTags<G> crfTags = null;
 	
 	private static final Logger logger = Logger.getLogger(CrfTagsBuilder.class);
@@ -1,23 +1,42 @@
 package com.asher_stern.crf.crf.run;
 
+import java.io.File;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 
+import com.asher_stern.crf.crf.CompiledCrfModel;
+import com.asher_stern.crf.crf.CrfCorpusFeatureCache;
+import com.asher_stern.crf.crf.CrfEmpiricalFeatureValueDistributionInCorpus;
 import com.asher_stern.crf.crf.CrfLogLikelihoodFunction;
+import com.asher_stern.crf.crf.CrfLogSpaceLogLikelihoodFunction;
 import com.asher_stern.crf.crf.CrfModel;
+import com.asher_stern.crf.crf.CrfStochasticGradientOptimizer;
 import com.asher_stern.crf.crf.CrfTags;
 import com.asher_stern.crf.crf.filters.CrfFeaturesAndFilters;
 import com.asher_stern.crf.function.DerivableFunction;
+import com.asher_stern.crf.function.DoubleDerivableFunction;
+import com.asher_stern.crf.function.optimization.DoubleLbfgsCheckpoint;
+import com.asher_stern.crf.function.optimization.DoubleLbfgsCheckpointer;
+import com.asher_stern.crf.function.optimization.DoubleLbfgsMinimizer;
+import com.asher_stern.crf.function.optimization.DoubleOwlqnMinimizer;
 import com.asher_stern.crf.function.optimization.LbfgsMinimizer;
+import com.asher_stern.crf.function.optimization.NegatedDoubleDerivableFunction;
 import com.asher_stern.crf.function.optimization.NegatedFunction;
 import com.asher_stern.crf.utilities.CrfException;
 import com.asher_stern.crf.utilities.MiscellaneousUtilities;
+import com.asher_stern.crf.utilities.ParallelAccumulation;
 import com.asher_stern.crf.utilities.StringUtilities;
 import com.asher_stern.crf.utilities.TaggedToken;
+import com.asher_stern.crf.utilities.VectorUtilities;
 
 /**
  * 
@@ -38,8 +57,23 @@ public class CrfTrainer<K,G>
 	public static final int PRETRAIN_RANDOM_SELECTION_REQUIRED_FOR = 100;
 	public static final int PRETRAIN_RANDOM_SELECTION_SIZE = 50;
 	
+	// The stages of the training, which identify the optimization in checkpoints
+	private static final int PRETRAIN_STAGE = 0;
+	private static final int FULL_TRAIN_STAGE = 1;
+
+	// 64-bit FNV-1a, which hashes the corpus into the fingerprint of checkpoints
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
 	public static final double DEFAULT_SIGMA_SQUARED_INVERSE_REGULARIZATION_FACTOR = 10.0;
 	public static final boolean DEFAULT_USE_REGULARIZATION = true;
+	
+	public static final CrfTrainingEngine DEFAULT_TRAINING_ENGINE = CrfTrainingEngine.BIG_DECIMAL;
+	public static final boolean DEFAULT_USE_FEATURE_CACHE = true;
+	
+	public static final CrfOptimizationMethod DEFAULT_OPTIMIZATION_METHOD = CrfOptimizationMethod.LBFGS;
+	public static final int DEFAULT_HELD_OUT_SIZE = 1000;
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10;
 
 	
 	
@@ -58,27 +92,285 @@ public class CrfTrainer<K,G>
 		this.useRegularization = useRegularization;
 		this.sigmaSquare_inverseRegularizationFactor = sigmaSquare_inverseRegularizationFactor;
 	}
+	
+	
+	/**
+	 * Optional setter for the implementation of the log-likelihood function used for training. If this method was not called,
+	 * {@link #DEFAULT_TRAINING_ENGINE} is used.
+	 * @param trainingEngine the implementation of the log-likelihood function.
+	 */
+	public void setTrainingEngine(CrfTrainingEngine trainingEngine)
+	{
+		this.trainingEngine = trainingEngine;
+	}
+	
+	/**
+	 * Optional setter, relevant only for training engines other than {@link CrfTrainingEngine#BIG_DECIMAL}, or if a {@link CrfCorpusFeatureCache}
+	 * is used (see {@link #setUseFeatureCache(boolean)}). If set, then prior to each optimization
+	 * the value and the gradient of the training engine's function are compared (in the initial point) to those of the {@link BigDecimal}
+	 * function ({@link CrfLogLikelihoodFunction}), and training fails if they differ by more than the given relative tolerance.
+	 * <BR>
+	 * Note that this comparison costs one evaluation of the (slow) {@link BigDecimal} function per optimization.
+	 * 
+	 * @param engineAgreementTolerance the maximum allowed relative difference, or <tt>null</tt> for no comparison (the default).
+	 */
+	public void setEngineAgreementTolerance(Double engineAgreementTolerance)
+	{
+		this.engineAgreementTolerance = engineAgreementTolerance;
+	}
+
+
+	/**
+	 * Optional setter. If true (the default), the active features of every sentence, and their values, are found once, before the
+	 * optimization, and kept in a {@link CrfCorpusFeatureCache}, which is used by all the evaluations of the log-likelihood function.
+	 * Otherwise, they are found anew in every evaluation.
+	 * @param useFeatureCache whether to use a {@link CrfCorpusFeatureCache}.
+	 */
+	public void setUseFeatureCache(boolean useFeatureCache)
+	{
+		this.useFeatureCache = useFeatureCache;
+	}
+
+	/**
+	 * Optional setter for the maximum total number of entries of the lattices kept by the {@link CrfCorpusFeatureCache}
+	 * (see {@link CrfCorpusFeatureCache#create(List, CrfFeaturesAndFilters, CrfTags, long)}). If this method was not called,
+	 * {@link CrfCorpusFeatureCache#DEFAULT_MAXIMUM_NUMBER_OF_ENTRIES} is used.
+	 * @param featureCacheMaximumNumberOfEntries the maximum total number of entries.
+	 */
+	public void setFeatureCacheMaximumNumberOfEntries(long featureCacheMaximumNumberOfEntries)
+	{
+		this.featureCacheMaximumNumberOfEntries = featureCacheMaximumNumberOfEntries;
+	}
+
+
+	/**
+	 * Optional setter for the number of threads used for training. The training runs on a single executor of this number of threads,
+	 * which is created when {@link #train(List)} starts, and is shut down when it ends.
+	 * Pinning this number allows several trainings to share one machine. If this method was not called, the number of
+	 * available processors is used.
+	 * @param numberOfThreads the number of threads.
+	 */
+	public void setNumberOfThreads(int numberOfThreads)
+	{
+		if (numberOfThreads<=0) {throw new CrfException("The number of threads must be positive.");}
+		this.numberOfThreads = numberOfThreads;
+	}
+
+
+	/**
+	 * Optional setter for the method by which the log-likelihood is maximized. If this method was not called,
+	 * {@link #DEFAULT_OPTIMIZATION_METHOD} is used.
+	 * <BR>
+	 * The stochastic methods (see {@link CrfStochasticGradientOptimizer}) always use a {@link CrfCorpusFeatureCache}, calculate the
+	 * log-likelihood by the log-space forward-backward algorithm regardless of {@link #setTrainingEngine(CrfTrainingEngine)}, and
+	 * perform no pre-train. A held-out sample (see {@link #setHeldOutSize(int)}) is excluded from their training, and its
+	 * log-likelihood is reported after every epoch.
+	 * @param optimizationMethod the optimization method.
+	 */
+	public void setOptimizationMethod(CrfOptimizationMethod optimizationMethod)
+	{
+		this.optimizationMethod = optimizationMethod;
+	}
+	
+	/**
+	 * Optional setter for the number of epochs of the stochastic optimization methods. If this method was not called,
+	 * {@link CrfStochasticGradientOptimizer#DEFAULT_NUMBER_OF_EPOCHS} is used.
+	 */
+	public void setNumberOfEpochs(int numberOfEpochs)
+	{
+		this.numberOfEpochs = numberOfEpochs;
+	}
+	
+	/**
+	 * Optional setter for the mini-batch size of the stochastic optimization methods. If this method was not called,
+	 * {@link CrfStochasticGradientOptimizer#DEFAULT_MINI_BATCH_SIZE} is used.
+	 */
+	public void setMiniBatchSize(int miniBatchSize)
+	{
+		this.miniBatchSize = miniBatchSize;
+	}
+	
+	/**
+	 * Optional setter for the learning rate of the stochastic optimization methods. If this method was not called,
+	 * {@link CrfStochasticGradientOptimizer#getDefaultLearningRate(CrfOptimizationMethod)} is used.
+	 */
+	public void setLearningRate(double learningRate)
+	{
+		this.learningRate = learningRate;
+	}
+	
+	/**
+	 * Optional setter for the number of sentences held out of the training by the stochastic optimization methods, whose
+	 * log-likelihood is reported after every epoch. At most a tenth of the corpus is held out. If this method was not called,
+	 * {@link #DEFAULT_HELD_OUT_SIZE} is used. 0 for no held-out sample.
+	 */
+	public void setHeldOutSize(int heldOutSize)
+	{
+		if (heldOutSize<0) {throw new CrfException("The held-out size must be non-negative.");}
+		this.heldOutSize = heldOutSize;
+	}
+	
+	/**
+	 * Optional setter for the L1 regularization factor C. If it is positive, C*\Sum_{i=0}^{number-of-features}|\theta_i| is subtracted
+	 * from the log-likelihood function, which is maximized by {@link DoubleOwlqnMinimizer} (OWL-QN) instead of L-BFGS. Together with the
+	 * L2 regularization given in the constructor, this is the "elastic net". L1 regularization sets the parameters of many features to
+	 * exactly zero, and these features are removed from the learned model (see {@link CrfModel#withoutZeroParameters()}), so it is smaller
+	 * and faster to compile and to use.
+	 * <BR>
+	 * If this method was not called, no L1 regularization is used. L1 regularization requires {@link CrfOptimizationMethod#LBFGS}, and a
+	 * training engine whose function is over primitive <tt>double</tt>s (i.e., not {@link CrfTrainingEngine#BIG_DECIMAL}).
+	 * @param l1RegularizationFactor C, non-negative. 0 for no L1 regularization.
+	 */
+	public void setL1RegularizationFactor(double l1RegularizationFactor)
+	{
+		if (!(l1RegularizationFactor>=0.0)) {throw new CrfException("The L1 regularization factor must be non-negative.");}
+		this.l1RegularizationFactor = l1RegularizationFactor;
+	}
+	
+	/**
+	 * Optional setter. If set, checkpoints of the optimization (the parameters and the L-BFGS history, see {@link DoubleLbfgsCheckpoint})
+	 * are written periodically into the given file, asynchronously (see {@link DoubleLbfgsCheckpointer}), so a long training whose JVM dies
+	 * can be resumed (see {@link #setResumeFromCheckpoint(boolean)}). Each checkpoint replaces the previous one.
+	 * <BR>
+	 * Checkpoints require {@link CrfOptimizationMethod#LBFGS}, and a training engine whose function is over primitive <tt>double</tt>s
+	 * (i.e., {@link CrfTrainingEngine#LOG_SPACE_DOUBLE}). If this method was not called, no checkpoints are written.
+	 * @param checkpointFile the checkpoint file.
+	 */
+	public void setCheckpointFile(File checkpointFile)
+	{
+		this.checkpointFile = checkpointFile;
+	}
+	
+	/**
+	 * Optional setter for the number of L-BFGS iterations between checkpoints (see {@link #setCheckpointFile(File)}).
+	 * If this method was not called, {@link #DEFAULT_CHECKPOINT_INTERVAL} is used.
+	 */
+	public void setCheckpointInterval(int checkpointInterval)
+	{
+		if (checkpointInterval<=0) {throw new CrfException("The checkpoint interval must be positive.");}
+		this.checkpointInterval = checkpointInterval;
+	}
+	
+	/**
+	 * Optional setter. If true, and the checkpoint file (see {@link #setCheckpointFile(File)}) exists, the training continues from the
+	 * checkpoint, rather than from the start: a pre-train that has been completed is not performed again, and the optimization of the
+	 * checkpoint continues from its last iteration. Given the same corpus and settings, the learned model is identical to that of a
+	 * training that has not been interrupted. If the file does not exist, the training starts from the beginning.
+	 * A checkpoint written by a training of a corpus with other tokens or tags, another number of features or other regularization
+	 * settings (L1 or L2) is rejected by a {@link CrfException}. Tokens and tags are compared by their {@link Object#toString()}.
+	 * If this method was not called, no training is resumed.
+	 */
+	public void setResumeFromCheckpoint(boolean resumeFromCheckpoint)
+	{
+		this.resumeFromCheckpoint = resumeFromCheckpoint;
+	}
 
 
 	public void train(List<? extends List<? extends TaggedToken<K, G> >> corpus)
+	{
+		logger.info("CRF training uses "+numberOfThreads+" threads.");
+		if ( resumeFromCheckpoint && (checkpointFile!=null) )
+		{
+			if (checkpointFile.exists())
+			{
+				resumeCheckpoint = DoubleLbfgsCheckpoint.read(checkpointFile);
+				logger.info("Resuming the training from the checkpoint of iteration "+resumeCheckpoint.getIteration()+" of the "+((resumeCheckpoint.getStage()==PRETRAIN_STAGE)?"pre-train":"full-train")+".");
+			}
+			else
+			{
+				logger.warn("The checkpoint file "+checkpointFile+" does not exist. The training starts from the beginning.");
+			}
+		}
+		executor = Executors.newFixedThreadPool(numberOfThreads);
+		empiricalFeatureValuesOfCorpus = new IdentityHashMap<List<?>, double[]>();
+		checkpointer = (checkpointFile!=null)?new DoubleLbfgsCheckpointer(checkpointFile, checkpointInterval):null;
+		try
+		{
+			trainOnExecutor(corpus);
+		}
+		finally
+		{
+			executor.shutdown();
+			executor = null;
+			empiricalFeatureValuesOfCorpus = null;
+			if (checkpointer!=null) {checkpointer.close();}
+			checkpointer = null;
+			resumeCheckpoint = null;
+		}
+	}
+	
+	
+	
+	
+	
+	
+	public CrfModel<K, G> getLearnedModel()
+	{
+		return learnedModel;
+	}
+
+	public CrfFeaturesAndFilters<K, G> getFeatures()
+	{
+		return features;
+	}
+
+	public CrfTags<G> getCrfTags()
+	{
+		return crfTags;
+	}
+
+	public CrfInferencePerformer<K, G> getInferencePerformer()
+	{
+		if (null==learnedModel) throw new CrfException("Not yet trained");
+		if (CompiledCrfModel.canCompile(learnedModel))
+		{
+			return new CrfInferencePerformer<K,G>(CompiledCrfModel.compile(learnedModel));
+		}
+		return new CrfInferencePerformer<K,G>(learnedModel);
+		
+	}
+
+	
+	private void trainOnExecutor(List<? extends List<? extends TaggedToken<K, G> >> corpus)
 	{
 		logger.info("CRF training: Number of tags = "+crfTags.getTags().size()+". Number of features = "+features.getFilteredFeatures().length +".");
+		if (optimizationMethod!=CrfOptimizationMethod.LBFGS)
+		{
+			if (l1RegularizationFactor>0.0) {throw new CrfException("L1 regularization is not supported by the optimization method "+optimizationMethod+".");}
+			if (checkpointFile!=null) {throw new CrfException("Checkpoints are not supported by the optimization method "+optimizationMethod+".");}
+			trainStochastically(corpus);
+			return;
+		}
 		logger.info("Creating log likelihood function.");
 		
+		CrfCorpusFeatureCache<K, G> featureCache = null;
+		if (useFeatureCache)
+		{
+			featureCache = CrfCorpusFeatureCache.create(corpus, features, crfTags, featureCacheMaximumNumberOfEntries, executor, numberOfThreads);
+		}
+		
 		BigDecimal[] parameters = null;
 		if (corpus.size()>=PRETRAIN_RANDOM_SELECTION_REQUIRED_FOR)
 		{
 			logger.info("Performing pre-train, then full train.");
 			List<? extends List<? extends TaggedToken<K, G> >> preTrainCorpus = MiscellaneousUtilities.selectRandomlyFromList(PRETRAIN_RANDOM_SELECTION_SIZE, corpus);
 			logger.info("Performing pre-train.");
-			BigDecimal[] preTrainParameters = optimizeForCorpus(preTrainCorpus, null);
+			BigDecimal[] preTrainParameters = null;
+			if ( (resumeCheckpoint!=null) && (resumeCheckpoint.getStage()==FULL_TRAIN_STAGE) )
+			{
+				logger.info("The pre-train has been completed before the checkpoint. It is not performed again.");
+			}
+			else
+			{
+				preTrainParameters = optimizeForCorpus(preTrainCorpus, (null==featureCache)?null:featureCache.subset(preTrainCorpus), null, PRETRAIN_STAGE);
+			}
 			logger.info("Performing full-train.");
-			parameters = optimizeForCorpus(corpus, preTrainParameters);
+			parameters = optimizeForCorpus(corpus, featureCache, preTrainParameters, FULL_TRAIN_STAGE);
 		}
 		else
 		{
 			logger.info("Corpus is relatively small. No pre-train is performed. Performing full-train.");
-			parameters = optimizeForCorpus(corpus, null);
+			parameters = optimizeForCorpus(corpus, featureCache, null, FULL_TRAIN_STAGE);
 		}
 		
 		if (parameters.length!=features.getFilteredFeatures().length) {throw new CrfException("Number of parameters, returned by LBFGS optimizer, differs from number of features.");}
@@ -86,27 +378,48 @@ public class CrfTrainer<K,G>
 		ArrayList<BigDecimal> parametersAsList = arrayBigDecimalToList(parameters);
 		
 		learnedModel = new CrfModel<K, G>(crfTags,features,parametersAsList);
+		if (l1RegularizationFactor>0.0)
+		{
+			learnedModel = learnedModel.withoutZeroParameters();
+			logger.info("L1 regularization: "+learnedModel.getFeatures().getFilteredFeatures().length+" of "+features.getFilteredFeatures().length+" features have non-zero parameters, and are kept in the learned model.");
+		}
 		logger.info("Training of CRF - done.");
 	}
-	
-	
-	
-	
-	
-	
-	public CrfModel<K, G> getLearnedModel()
-	{
-		return learnedModel;
-	}
 
-	public CrfInferencePerformer<K, G> getInferencePerformer()
+	/**
+	 * Trains by {@link CrfStochasticGradientOptimizer}, holding out a random sample of the corpus, whose log-likelihood is reported
+	 * after every epoch.
+	 */
+	private void trainStochastically(List<? extends List<? extends TaggedToken<K, G> >> corpus)
 	{
-		if (null==learnedModel) throw new CrfException("Not yet trained");
-		return new CrfInferencePerformer<K,G>(learnedModel);
+		CrfCorpusFeatureCache<K, G> featureCache = CrfCorpusFeatureCache.create(corpus, features, crfTags, featureCacheMaximumNumberOfEntries, executor, numberOfThreads);
+		
+		Set<Integer> heldOutIndexes = MiscellaneousUtilities.selectRandomlyFromRange(Math.min(heldOutSize, corpus.size()/10), corpus.size());
+		List<List<? extends TaggedToken<K, G>>> trainingCorpus = new ArrayList<List<? extends TaggedToken<K, G>>>(corpus.size()-heldOutIndexes.size());
+		List<List<? extends TaggedToken<K, G>>> heldOutCorpus = new ArrayList<List<? extends TaggedToken<K, G>>>(heldOutIndexes.size());
+		int index = 0;
+		for (List<? extends TaggedToken<K, G>> sentence : corpus)
+		{
+			if (heldOutIndexes.contains(index)) {heldOutCorpus.add(sentence);}
+			else {trainingCorpus.add(sentence);}
+			++index;
+		}
+		logger.info("Training on "+trainingCorpus.size()+" sentences. "+heldOutCorpus.size()+" sentences are held out.");
+		
+		CrfStochasticGradientOptimizer<K, G> optimizer = new CrfStochasticGradientOptimizer<K, G>(featureCache.subset(trainingCorpus), optimizationMethod, useRegularization, sigmaSquare_inverseRegularizationFactor);
+		if (numberOfEpochs!=null) {optimizer.setNumberOfEpochs(numberOfEpochs);}
+		if (miniBatchSize!=null) {optimizer.setMiniBatchSize(miniBatchSize);}
+		if (learningRate!=null) {optimizer.setLearningRate(learningRate);}
+		if (heldOutCorpus.size()>0)
+		{
+			optimizer.setHeldOutLogLikelihood(onExecutor(new CrfLogSpaceLogLikelihoodFunction<K, G>(featureCache.subset(heldOutCorpus), false, sigmaSquare_inverseRegularizationFactor)));
+		}
+		double[] parameters = optimizer.optimize(null);
 		
+		learnedModel = new CrfModel<K, G>(crfTags,features,arrayBigDecimalToList(VectorUtilities.toBigDecimalArray(parameters)));
+		logger.info("Training of CRF - done.");
 	}
 
-	
 	private BigDecimal[] optimizeFunction(DerivableFunction convexNegatedCrfFunction, BigDecimal[] initialPoint ,List<? extends List<? extends TaggedToken<K, G> >> corpus)
 	{
 		logger.info("Optimizing log likelihood function.");
@@ -124,19 +437,265 @@ public class CrfTrainer<K,G>
 		return parameters;
 	}
 	
-	private BigDecimal[] optimizeForCorpus(List<? extends List<? extends TaggedToken<K, G> >> corpus, BigDecimal[] initialPoint)
+	/**
+	 * Like {@link #optimizeFunction(DerivableFunction, BigDecimal[], List)}, for a function over primitive <tt>double</tt>s,
+	 * which is minimized by {@link DoubleLbfgsMinimizer}.
+	 */
+	private BigDecimal[] optimizeDoubleFunction(DoubleDerivableFunction convexNegatedCrfFunction, BigDecimal[] initialPoint ,List<? extends List<? extends TaggedToken<K, G> >> corpus, DoubleLbfgsCheckpoint resumeFrom)
+	{
+		logger.info("Optimizing log likelihood function (over doubles).");
+		DoubleLbfgsMinimizer lbfgsOptimizer = new DoubleLbfgsMinimizer(convexNegatedCrfFunction);
+		if (is(PRINT_DEBUG_INFO_TAG_DIFFERENCE_BETWEEN_ITERATIONS))
+		{
+			lbfgsOptimizer.setDebugInfo(new CrfDebugInfo(corpus));
+		}
+		if (initialPoint!=null)
+		{
+			lbfgsOptimizer.setInitialPoint(initialPoint);
+		}
+		if (checkpointer!=null)
+		{
+			lbfgsOptimizer.setCheckpointer(checkpointer);
+		}
+		if (resumeFrom!=null)
+		{
+			lbfgsOptimizer.setResumeFrom(resumeFrom);
+		}
+		lbfgsOptimizer.find();
+		return lbfgsOptimizer.getPoint();
+	}
+	
+	/**
+	 * Like {@link #optimizeDoubleFunction(DoubleDerivableFunction, BigDecimal[], List, DoubleLbfgsCheckpoint)}, with L1 regularization, by {@link DoubleOwlqnMinimizer}.
+	 */
+	private BigDecimal[] optimizeDoubleFunctionWithL1(DoubleDerivableFunction convexNegatedCrfFunction, BigDecimal[] initialPoint ,List<? extends List<? extends TaggedToken<K, G> >> corpus, DoubleLbfgsCheckpoint resumeFrom)
+	{
+		logger.info("Optimizing log likelihood function with L1 regularization (over doubles).");
+		DoubleOwlqnMinimizer owlqnOptimizer = new DoubleOwlqnMinimizer(convexNegatedCrfFunction, l1RegularizationFactor);
+		if (is(PRINT_DEBUG_INFO_TAG_DIFFERENCE_BETWEEN_ITERATIONS))
+		{
+			owlqnOptimizer.setDebugInfo(new CrfDebugInfo(corpus));
+		}
+		if (initialPoint!=null)
+		{
+			owlqnOptimizer.setInitialPoint(initialPoint);
+		}
+		if (checkpointer!=null)
+		{
+			owlqnOptimizer.setCheckpointer(checkpointer);
+		}
+		if (resumeFrom!=null)
+		{
+			owlqnOptimizer.setResumeFrom(resumeFrom);
+		}
+		owlqnOptimizer.find();
+		return owlqnOptimizer.getPoint();
+	}
+	
+	/**
+	 * Returns a hash of the tokens and tags of the given corpus (sentence by sentence, in order), the number of features and the
+	 * regularization settings, which identifies the optimization in checkpoints (see {@link DoubleLbfgsCheckpoint#getFingerprint()}).
+	 * Tokens and tags are hashed by their {@link Object#toString()}, with a 64-bit FNV-1a hash, so the fingerprint does not change
+	 * between runs of the JVM as long as the string representations of the tokens and tags depend on their content only (as for
+	 * strings and enums).
+	 */
+	private long checkpointFingerprint(List<? extends List<? extends TaggedToken<K, G> >> corpus)
+	{
+		long fingerprint = FNV_OFFSET_BASIS;
+		fingerprint = fnvHash(fingerprint, corpus.size());
+		for (List<? extends TaggedToken<K, G>> sentence : corpus)
+		{
+			fingerprint = fnvHash(fingerprint, sentence.size());
+			for (TaggedToken<K, G> taggedToken : sentence)
+			{
+				fingerprint = fnvHash(fingerprint, String.valueOf(taggedToken.getToken()));
+				fingerprint = fnvHash(fingerprint, String.valueOf(taggedToken.getTag()));
+			}
+		}
+		fingerprint = fnvHash(fingerprint, features.getFilteredFeatures().length);
+		fingerprint = fnvHash(fingerprint, useRegularization?Double.doubleToLongBits(sigmaSquare_inverseRegularizationFactor):-1L);
+		fingerprint = fnvHash(fingerprint, Double.doubleToLongBits(l1RegularizationFactor));
+		return fingerprint;
+	}
+	
+	private static long fnvHash(long hash, String string)
+	{
+		hash = fnvHash(hash, string.length());
+		for (int index=0;index<string.length();++index)
+		{
+			hash = (hash^string.charAt(index))*FNV_PRIME;
+		}
+		return hash;
+	}
+	
+	private static long fnvHash(long hash, long value)
+	{
+		for (int shift=0;shift<64;shift+=8)
+		{
+			hash = (hash^((value>>>shift)&0xFF))*FNV_PRIME;
+		}
+		return hash;
+	}
+	
+	/**
+	 * @param featureCache the {@link CrfCorpusFeatureCache} of the given corpus, or null.
+	 * @param stage {@link #PRETRAIN_STAGE} or {@link #FULL_TRAIN_STAGE}, which identifies the optimization in checkpoints.
+	 */
+	private BigDecimal[] optimizeForCorpus(List<? extends List<? extends TaggedToken<K, G> >> corpus, CrfCorpusFeatureCache<K, G> featureCache, BigDecimal[] initialPoint, int stage)
 	{
 		if (logger.isDebugEnabled()) {logger.debug("OptimizeForCorpus. Corpus size = "+corpus.size());}
-		DerivableFunction convexNegatedCrfFunction = NegatedFunction.fromDerivableFunction(createLogLikelihoodFunctionConcave(corpus));
-		BigDecimal[] parameters = optimizeFunction(convexNegatedCrfFunction, initialPoint, corpus);
+		if ( ( (trainingEngine!=CrfTrainingEngine.BIG_DECIMAL) || (featureCache!=null) ) && (engineAgreementTolerance!=null) )
+		{
+			verifyEngineAgreement(corpus, featureCache, initialPoint);
+		}
+		DerivableFunction concaveCrfFunction = createLogLikelihoodFunctionConcave(corpus, featureCache);
+		BigDecimal[] parameters = null;
+		DoubleLbfgsCheckpoint resumeFrom = null;
+		if (checkpointer!=null)
+		{
+			final long fingerprint = checkpointFingerprint(corpus);
+			checkpointer.setStage(stage);
+			checkpointer.setFingerprint(fingerprint);
+			if ( (resumeCheckpoint!=null) && (resumeCheckpoint.getStage()==stage) )
+			{
+				if (resumeCheckpoint.getFingerprint()!=fingerprint) {throw new CrfException("The checkpoint "+checkpointFile+" was written by a training of another corpus (tokens or tags), another number of features or other regularization settings.");}
+				resumeFrom = resumeCheckpoint;
+			}
+		}
+		if (l1RegularizationFactor>0.0)
+		{
+			if (!(concaveCrfFunction instanceof DoubleDerivableFunction)) {throw new CrfException("L1 regularization is not supported by the training engine "+trainingEngine+".");}
+			parameters = optimizeDoubleFunctionWithL1(new NegatedDoubleDerivableFunction((DoubleDerivableFunction) concaveCrfFunction), initialPoint, corpus, resumeFrom);
+		}
+		else if (concaveCrfFunction instanceof DoubleDerivableFunction)
+		{
+			parameters = optimizeDoubleFunction(new NegatedDoubleDerivableFunction((DoubleDerivableFunction) concaveCrfFunction), initialPoint, corpus, resumeFrom);
+		}
+		else
+		{
+			if (checkpointFile!=null) {throw new CrfException("Checkpoints are not supported by the training engine "+trainingEngine+".");}
+			parameters = optimizeFunction(NegatedFunction.fromDerivableFunction(concaveCrfFunction), initialPoint, corpus);
+		}
 		if (logger.isDebugEnabled()) {logger.debug("Parameters: "+StringUtilities.arrayOfBigDecimalToString(parameters));}
 		return parameters;
 	}
 	
 	
-	private DerivableFunction createLogLikelihoodFunctionConcave(List<? extends List<? extends TaggedToken<K, G> >> corpus)
+	private DerivableFunction createLogLikelihoodFunctionConcave(List<? extends List<? extends TaggedToken<K, G> >> corpus, CrfCorpusFeatureCache<K, G> featureCache)
+	{
+		if (featureCache!=null)
+		{
+			switch (trainingEngine)
+			{
+			case LOG_SPACE_DOUBLE:
+				return onExecutor(new CrfLogSpaceLogLikelihoodFunction<K, G>(featureCache,useRegularization,sigmaSquare_inverseRegularizationFactor));
+			case SCALED_FORWARD_BACKWARD:
+				return onExecutor(new CrfLogLikelihoodFunction<K, G>(featureCache,useRegularization,sigmaSquare_inverseRegularizationFactor,true));
+			case BIG_DECIMAL:
+				return onExecutor(new CrfLogLikelihoodFunction<K, G>(featureCache,useRegularization,sigmaSquare_inverseRegularizationFactor,false));
+			default:
+				throw new CrfException("Unsupported training engine: "+trainingEngine);
+			}
+		}
+		
+		final double[] empiricalFeatureValues = calculateEmpiricalFeatureValues(corpus);
+		switch (trainingEngine)
+		{
+		case LOG_SPACE_DOUBLE:
+			CrfLogSpaceLogLikelihoodFunction<K, G> logSpaceFunction = onExecutor(new CrfLogSpaceLogLikelihoodFunction<K, G>(corpus,crfTags,features,useRegularization,sigmaSquare_inverseRegularizationFactor));
+			logSpaceFunction.setEmpiricalFeatureValues(empiricalFeatureValues);
+			return logSpaceFunction;
+		case SCALED_FORWARD_BACKWARD:
+			CrfLogLikelihoodFunction<K, G> scaledFunction = onExecutor(new CrfLogLikelihoodFunction<K, G>(corpus,crfTags,features,useRegularization,sigmaSquare_inverseRegularizationFactor,true));
+			scaledFunction.setEmpiricalFeatureValues(empiricalFeatureValues);
+			return scaledFunction;
+		case BIG_DECIMAL:
+			CrfLogLikelihoodFunction<K, G> bigDecimalFunction = onExecutor(new CrfLogLikelihoodFunction<K, G>(corpus,crfTags,features,useRegularization,sigmaSquare_inverseRegularizationFactor));
+			bigDecimalFunction.setEmpiricalFeatureValues(empiricalFeatureValues);
+			return bigDecimalFunction;
+		default:
+			throw new CrfException("Unsupported training engine: "+trainingEngine);
+		}
+	}
+	
+	/**
+	 * Returns the empirical feature values of the given corpus, which are calculated in parallel only once per corpus in a training,
+	 * and shared by all the log-likelihood functions of that corpus (e.g., of the full-train, and of the comparison made by
+	 * {@link #setEngineAgreementTolerance(Double)}). Used only if no {@link CrfCorpusFeatureCache} is used, since the cache
+	 * keeps its own empirical feature values.
+	 */
+	private double[] calculateEmpiricalFeatureValues(List<? extends List<? extends TaggedToken<K, G> >> corpus)
+	{
+		double[] ret = empiricalFeatureValuesOfCorpus.get(corpus);
+		if (null==ret)
+		{
+			logger.info("Calculating empirical feature values.");
+			ret = CrfEmpiricalFeatureValueDistributionInCorpus.calculateInParallel(corpus, features, executor, numberOfThreads);
+			empiricalFeatureValuesOfCorpus.put(corpus, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Makes the given function run on the training executor.
+	 */
+	private CrfLogLikelihoodFunction<K, G> onExecutor(CrfLogLikelihoodFunction<K, G> function)
+	{
+		function.setExecutor(executor);
+		function.setNumberOfThreads(numberOfThreads);
+		return function;
+	}
+
+	/**
+	 * Makes the given function run on the training executor.
+	 */
+	private CrfLogSpaceLogLikelihoodFunction<K, G> onExecutor(CrfLogSpaceLogLikelihoodFunction<K, G> function)
+	{
+		function.setExecutor(executor);
+		function.setNumberOfThreads(numberOfThreads);
+		return function;
+	}
+	
+	/**
+	 * Compares the value and the gradient of the function of {@link #trainingEngine} to those of {@link CrfLogLikelihoodFunction},
+	 * in the given point, and throws an exception if they differ by more than {@link #engineAgreementTolerance}.
+	 * The {@link CrfLogLikelihoodFunction} is calculated without a {@link CrfCorpusFeatureCache}, so the cache is verified as well.
+	 */
+	private void verifyEngineAgreement(List<? extends List<? extends TaggedToken<K, G> >> corpus, CrfCorpusFeatureCache<K, G> featureCache, BigDecimal[] initialPoint)
 	{
-		return new CrfLogLikelihoodFunction<K, G>(corpus,crfTags,features,useRegularization,sigmaSquare_inverseRegularizationFactor);
+		logger.info("Verifying that the "+trainingEngine+" function agrees with the BigDecimal function.");
+		CrfLogLikelihoodFunction<K, G> bigDecimalFunction = onExecutor(new CrfLogLikelihoodFunction<K, G>(corpus,crfTags,features,useRegularization,sigmaSquare_inverseRegularizationFactor));
+		DerivableFunction engineFunction = createLogLikelihoodFunctionConcave(corpus, featureCache);
+		
+		BigDecimal[] point = initialPoint;
+		if (null==point)
+		{
+			point = new BigDecimal[features.getFilteredFeatures().length];
+			for (int i=0;i<point.length;++i) {point[i]=BigDecimal.ZERO;}
+		}
+		
+		double bigDecimalValue = bigDecimalFunction.value(point).doubleValue();
+		double engineValue = engineFunction.value(point).doubleValue();
+		if (!withinTolerance(bigDecimalValue, engineValue))
+		{
+			throw new CrfException("The "+trainingEngine+" function value ("+engineValue+") differs from the BigDecimal function value ("+bigDecimalValue+") by more than the tolerance "+engineAgreementTolerance+".");
+		}
+		
+		BigDecimal[] bigDecimalGradient = bigDecimalFunction.gradient(point);
+		BigDecimal[] engineGradient = engineFunction.gradient(point);
+		for (int index=0;index<engineGradient.length;++index)
+		{
+			if (!withinTolerance(bigDecimalGradient[index].doubleValue(), engineGradient[index].doubleValue()))
+			{
+				throw new CrfException("The "+trainingEngine+" gradient in index "+index+" ("+engineGradient[index].doubleValue()+") differs from the BigDecimal gradient ("+bigDecimalGradient[index].doubleValue()+") by more than the tolerance "+engineAgreementTolerance+".");
+			}
+		}
+		logger.info("The "+trainingEngine+" function agrees with the BigDecimal function.");
+	}
+	
+	private boolean withinTolerance(double expected, double actual)
+	{
+		return Math.abs(expected-actual) <= engineAgreementTolerance*Math.max(1.0, Math.max(Math.abs(expected), Math.abs(actual)));
 	}
 	
 	
@@ -264,6 +823,26 @@ public class CrfTrainer<K,G>
 	private final boolean useRegularization;
 	private final double sigmaSquare_inverseRegularizationFactor;
 	
+	private CrfTrainingEngine trainingEngine = DEFAULT_TRAINING_ENGINE;
+	private Double engineAgreementTolerance = null;
+	private boolean useFeatureCache = DEFAULT_USE_FEATURE_CACHE;
+	private long featureCacheMaximumNumberOfEntries = CrfCorpusFeatureCache.DEFAULT_MAXIMUM_NUMBER_OF_ENTRIES;
+	private int numberOfThreads = ParallelAccumulation.defaultNumberOfChunks();
+	private CrfOptimizationMethod optimizationMethod = DEFAULT_OPTIMIZATION_METHOD;
+	private Integer numberOfEpochs = null;
+	private Integer miniBatchSize = null;
+	private Double learningRate = null;
+	private int heldOutSize = DEFAULT_HELD_OUT_SIZE;
+	private double l1RegularizationFactor = 0.0;
+	private File checkpointFile = null;
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private boolean resumeFromCheckpoint = false;
+	
+	private ExecutorService executor = null; // exists only while training
+	private Map<List<?>, double[]> empiricalFeatureValuesOfCorpus = null; // by the identity of the corpus. Exists only while training
+	private DoubleLbfgsCheckpointer checkpointer = null; // exists only while training, if checkpoints are written
+	private DoubleLbfgsCheckpoint resumeCheckpoint = null; // exists only while training, if resumed
+	
 	private CrfModel<K, G> learnedModel = null;
 
 	private static final Logger logger = Logger.getLogger(CrfTrainer.class);
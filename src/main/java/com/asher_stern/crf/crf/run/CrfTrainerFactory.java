@@ -1,5 +1,6 @@
 package com.asher_stern.crf.crf.run;
 
+import java.io.File;
 import java.lang.reflect.Array;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -47,6 +48,100 @@ public class CrfTrainerFactory<K,G>
 		this.sigmaSquare_inverseRegularizationFactor = sigmaSquare_inverseRegularizationFactor;
 	}
 	
+	/**
+	 * Optional setter for the implementation of the log-likelihood function used by the trainer. If this method was not called,
+	 * {@link CrfTrainer#DEFAULT_TRAINING_ENGINE} is used.
+	 * 
+	 * @param trainingEngine the implementation of the log-likelihood function.
+	 */
+	public void setTrainingEngine(CrfTrainingEngine trainingEngine)
+	{
+		this.trainingEngine = trainingEngine;
+	}
+	
+	/**
+	 * Optional setter for the number of threads used for training. See {@link CrfTrainer#setNumberOfThreads(int)}.
+	 */
+	public void setNumberOfThreads(int numberOfThreads)
+	{
+		this.numberOfThreads = numberOfThreads;
+	}
+	
+	/**
+	 * Optional setter for the method by which the trainer maximizes the log-likelihood. See {@link CrfTrainer#setOptimizationMethod(CrfOptimizationMethod)}.
+	 */
+	public void setOptimizationMethod(CrfOptimizationMethod optimizationMethod)
+	{
+		this.optimizationMethod = optimizationMethod;
+	}
+	
+	/**
+	 * Optional setter for the number of epochs of the stochastic optimization methods (see {@link CrfTrainer#setNumberOfEpochs(int)}),
+	 * and of the averaged perceptron (see {@link CrfPerceptronTrainer#setNumberOfEpochs(int)}).
+	 */
+	public void setNumberOfEpochs(int numberOfEpochs)
+	{
+		this.numberOfEpochs = numberOfEpochs;
+	}
+	
+	/**
+	 * Optional setter for the mini-batch size of the stochastic optimization methods. See {@link CrfTrainer#setMiniBatchSize(int)}.
+	 */
+	public void setMiniBatchSize(int miniBatchSize)
+	{
+		this.miniBatchSize = miniBatchSize;
+	}
+	
+	/**
+	 * Optional setter for the learning rate of the stochastic optimization methods. See {@link CrfTrainer#setLearningRate(double)}.
+	 */
+	public void setLearningRate(double learningRate)
+	{
+		this.learningRate = learningRate;
+	}
+	
+	/**
+	 * Optional setter for the L1 regularization factor (elastic net, with the L2 regularization factor). See {@link CrfTrainer#setL1RegularizationFactor(double)}.
+	 */
+	public void setL1RegularizationFactor(double l1RegularizationFactor)
+	{
+		this.l1RegularizationFactor = l1RegularizationFactor;
+	}
+	
+	/**
+	 * Optional setter for the checkpoint file of the training. See {@link CrfTrainer#setCheckpointFile(File)}.
+	 */
+	public void setCheckpointFile(File checkpointFile)
+	{
+		this.checkpointFile = checkpointFile;
+	}
+	
+	/**
+	 * Optional setter for the number of iterations between checkpoints. See {@link CrfTrainer#setCheckpointInterval(int)}.
+	 */
+	public void setCheckpointInterval(int checkpointInterval)
+	{
+		this.checkpointInterval = checkpointInterval;
+	}
+	
+	/**
+	 * Optional setter. See {@link CrfTrainer#setResumeFromCheckpoint(boolean)}.
+	 */
+	public void setResumeFromCheckpoint(boolean resumeFromCheckpoint)
+	{
+		this.resumeFromCheckpoint = resumeFromCheckpoint;
+	}
+	
+	/**
+	 * Optional setter. If called, a tag dictionary is built from the training corpus, with the given minimum frequency
+	 * (see {@link CrfTagDictionaryBuilder}), and the training and the inference consider, for each token, only its candidate tags.
+	 * If this method was not called, no tag dictionary is used.
+	 */
+	public void setTagDictionaryMinimumFrequency(int tagDictionaryMinimumFrequency)
+	{
+		this.tagDictionaryMinimumFrequency = tagDictionaryMinimumFrequency;
+	}
+	
 	/**
 	 * Creates a CRF trainer.<BR>
 	 * <B>The given corpus must reside completely in the internal memory. Not in disk/data-base etc.</B>
@@ -59,31 +154,122 @@ public class CrfTrainerFactory<K,G>
 	 */
 	public CrfTrainer<K,G> createTrainer(List<List<? extends TaggedToken<K, G> >> corpus, CrfFeatureGeneratorFactory<K,G> featureGeneratorFactory, FilterFactory<K, G> filterFactory)
 	{
-		logger.info("Extracting tags.");
-		CrfTagsBuilder<G> tagsBuilder = new CrfTagsBuilder<G>(corpus);
-		tagsBuilder.build();
-		CrfTags<G> crfTags = tagsBuilder.getCrfTags();
-		
-		logger.info("Generating features.");
-		CrfFeatureGenerator<K,G> featureGenerator = featureGeneratorFactory.create(corpus, crfTags.getTags());
-		featureGenerator.generateFeatures();
-		Set<CrfFilteredFeature<K, G>> setFilteredFeatures = featureGenerator.getFeatures();
-		CrfFeaturesAndFilters<K, G> features = createFeaturesAndFiltersObjectFromSetOfFeatures(setFilteredFeatures, filterFactory);
+		CrfTags<G> crfTags = createCrfTags(corpus);
+		CrfFeaturesAndFilters<K, G> features = createFeatures(corpus, crfTags, featureGeneratorFactory, filterFactory);
 		
 		logger.info("CrfPosTaggerTrainer has been created.");
+		CrfTrainer<K,G> trainer = null;
 		if (null == this.sigmaSquare_inverseRegularizationFactor) // use default
 		{
-			return new CrfTrainer<K,G>(features,crfTags);
+			trainer = new CrfTrainer<K,G>(features,crfTags);
 		}
 		else // use the value set by setRegularizationSigmaSquareFactor().
 		{
-			return new CrfTrainer<K,G>(features,crfTags, (this.sigmaSquare_inverseRegularizationFactor!=null)?true:false, this.sigmaSquare_inverseRegularizationFactor);
+			trainer = new CrfTrainer<K,G>(features,crfTags, (this.sigmaSquare_inverseRegularizationFactor!=null)?true:false, this.sigmaSquare_inverseRegularizationFactor);
+		}
+		if (this.trainingEngine != null)
+		{
+			trainer.setTrainingEngine(this.trainingEngine);
+		}
+		if (this.numberOfThreads != null)
+		{
+			trainer.setNumberOfThreads(this.numberOfThreads);
+		}
+		if (this.optimizationMethod != null)
+		{
+			trainer.setOptimizationMethod(this.optimizationMethod);
+		}
+		if (this.numberOfEpochs != null)
+		{
+			trainer.setNumberOfEpochs(this.numberOfEpochs);
+		}
+		if (this.miniBatchSize != null)
+		{
+			trainer.setMiniBatchSize(this.miniBatchSize);
+		}
+		if (this.learningRate != null)
+		{
+			trainer.setLearningRate(this.learningRate);
+		}
+		if (this.l1RegularizationFactor != null)
+		{
+			trainer.setL1RegularizationFactor(this.l1RegularizationFactor);
+		}
+		if (this.checkpointFile != null)
+		{
+			trainer.setCheckpointFile(this.checkpointFile);
+		}
+		if (this.checkpointInterval != null)
+		{
+			trainer.setCheckpointInterval(this.checkpointInterval);
+		}
+		if (this.resumeFromCheckpoint != null)
+		{
+			trainer.setResumeFromCheckpoint(this.resumeFromCheckpoint);
+		}
+		return trainer;
+	}
+	
+	
+	
+	
+	/**
+	 * Creates an averaged-perceptron trainer (see {@link CrfPerceptronTrainer}), with the tags and the features created exactly as
+	 * by {@link #createTrainer(List, CrfFeatureGeneratorFactory, FilterFactory)}. Of the optional settings of this factory, only the tag
+	 * dictionary, the number of threads and the number of epochs are relevant.
+	 * 
+	 * @param corpus The corpus: a list a tagged sequences. Must reside completely in memory.
+	 * @param featureGeneratorFactory A factory which creates a feature-generator (the feature-generator creates a set of features)
+	 * @param filterFactory The {@link FilterFactory} <B>that corresponds to the feature-generator.</B>
+	 * 
+	 * @return an averaged-perceptron trainer.
+	 */
+	public CrfPerceptronTrainer<K,G> createPerceptronTrainer(List<List<? extends TaggedToken<K, G> >> corpus, CrfFeatureGeneratorFactory<K,G> featureGeneratorFactory, FilterFactory<K, G> filterFactory)
+	{
+		CrfTags<G> crfTags = createCrfTags(corpus);
+		CrfFeaturesAndFilters<K, G> features = createFeatures(corpus, crfTags, featureGeneratorFactory, filterFactory);
+		
+		CrfPerceptronTrainer<K,G> trainer = new CrfPerceptronTrainer<K,G>(features,crfTags);
+		if (this.numberOfThreads != null)
+		{
+			trainer.setNumberOfThreads(this.numberOfThreads);
 		}
+		if (this.numberOfEpochs != null)
+		{
+			trainer.setNumberOfEpochs(this.numberOfEpochs);
+		}
+		return trainer;
 	}
 	
 	
 	
 	
+	private CrfTags<G> createCrfTags(List<List<? extends TaggedToken<K, G> >> corpus)
+	{
+		logger.info("Extracting tags.");
+		CrfTagsBuilder<G> tagsBuilder = new CrfTagsBuilder<G>(corpus);
+		if (this.tagDictionaryMinimumFrequency != null)
+		{
+			CrfTagDictionaryBuilder<K, G> tagDictionaryBuilder = new CrfTagDictionaryBuilder<K, G>(corpus);
+			tagDictionaryBuilder.setMinimumFrequency(this.tagDictionaryMinimumFrequency);
+			tagDictionaryBuilder.build();
+			tagsBuilder.setTagDictionary(tagDictionaryBuilder.getTagDictionary());
+		}
+		tagsBuilder.build();
+		CrfTags<G> crfTags = tagsBuilder.getCrfTags();
+		return crfTags;
+	}
+	
+	private CrfFeaturesAndFilters<K, G> createFeatures(List<List<? extends TaggedToken<K, G> >> corpus, CrfTags<G> crfTags, CrfFeatureGeneratorFactory<K,G> featureGeneratorFactory, FilterFactory<K, G> filterFactory)
+	{
+		logger.info("Generating features.");
+		CrfFeatureGenerator<K,G> featureGenerator = featureGeneratorFactory.create(corpus, crfTags.getTags());
+		featureGenerator.generateFeatures();
+		Set<CrfFilteredFeature<K, G>> setFilteredFeatures = featureGenerator.getFeatures();
+		CrfFeaturesAndFilters<K, G> features = createFeaturesAndFiltersObjectFromSetOfFeatures(setFilteredFeatures, filterFactory);
+		return features;
+	}
+	
 	private static <K,G> CrfFeaturesAndFilters<K, G> createFeaturesAndFiltersObjectFromSetOfFeatures(Set<CrfFilteredFeature<K, G>> setFilteredFeatures, FilterFactory<K, G> filterFactory)
 	{
 		if (setFilteredFeatures.size()<=0) throw new CrfException("No features have been generated.");
@@ -128,6 +314,17 @@ public class CrfTrainerFactory<K,G>
 
 	
 	private Double sigmaSquare_inverseRegularizationFactor = null;
+	private CrfTrainingEngine trainingEngine = null;
+	private Integer numberOfThreads = null;
+	private Integer tagDictionaryMinimumFrequency = null;
+	private CrfOptimizationMethod optimizationMethod = null;
+	private Integer numberOfEpochs = null;
+	private Integer miniBatchSize = null;
+	private Double learningRate = null;
+	private Double l1RegularizationFactor = null;
+	private File checkpointFile = null;
+	private Integer checkpointInterval = null;
+	private Boolean resumeFromCheckpoint = null;
 
 	private static final Logger logger = Logger.getLogger(CrfTrainerFactory.class);
 }
@@ -0,0 +1,31 @@
+package com.asher_stern.crf.crf.run;
+
+import com.asher_stern.crf.crf.CrfLogLikelihoodFunction;
+import com.asher_stern.crf.crf.CrfLogSpaceLogLikelihoodFunction;
+
+/**
+ * The implementation of the CRF log-likelihood function that is used by {@link CrfTrainer}.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public enum CrfTrainingEngine
+{
+	/**
+	 * {@link CrfLogLikelihoodFunction}: all the calculations are performed with {@link java.math.BigDecimal}.
+	 */
+	BIG_DECIMAL,
+	
+	/**
+	 * {@link CrfLogLikelihoodFunction} in which the normalization factors and the expected feature-values are calculated
+	 * by {@link com.asher_stern.crf.crf.CrfScaledForwardBackward}, over primitive <tt>double</tt>s.
+	 */
+	SCALED_FORWARD_BACKWARD,
+
+	/**
+	 * {@link CrfLogSpaceLogLikelihoodFunction}: all the calculations are performed with primitive <tt>double</tt>s, where
+	 * the forward-backward algorithm is calculated in log-space.
+	 */
+	LOG_SPACE_DOUBLE
+}
@@ -27,4 +27,19 @@ public abstract class DerivableFunction extends Function
 	 * @return the gradient of the function in the given point.
 	 */
 	public abstract BigDecimal[] gradient(BigDecimal[] point);
+	
+	/**
+	 * Returns both the value and the gradient of the function in the given point.
+	 * <BR>
+	 * The default implementation calls {@link #value(BigDecimal[])} and {@link #gradient(BigDecimal[])}. Functions for which
+	 * the value and the gradient share most of their calculation should override this method, and calculate both together.
+	 * Optimizers which need both should call this method, rather than {@link #value(BigDecimal[])} and {@link #gradient(BigDecimal[])}.
+	 * 
+	 * @param point the point is "x", the input for the function.
+	 * @return the value and the gradient of the function in the given point.
+	 */
+	public ValueAndGradient valueAndGradient(BigDecimal[] point)
+	{
+		return new ValueAndGradient(value(point), gradient(point));
+	}
 }
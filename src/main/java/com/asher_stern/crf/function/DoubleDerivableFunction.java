@@ -0,0 +1,76 @@
+package com.asher_stern.crf.function;
+
+import static com.asher_stern.crf.utilities.ArithmeticUtilities.big;
+
+import java.math.BigDecimal;
+
+import com.asher_stern.crf.utilities.VectorUtilities;
+
+/**
+ * A {@link DerivableFunction} whose value and gradient are calculated natively over primitive <tt>double</tt>s.
+ * <BR>
+ * The {@link BigDecimal} methods {@link #value(BigDecimal[])} and {@link #gradient(BigDecimal[])} are implemented by
+ * converting the point into a <tt>double</tt> array, and converting the result back into {@link BigDecimal}s. Thus,
+ * such a function can be given to any code that expects a {@link DerivableFunction}, while code that is aware of this
+ * class can call {@link #value(double[])}, {@link #gradient(double[])} and {@link #valueAndGradient(double[], double[])} directly,
+ * with no conversions at all.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public abstract class DoubleDerivableFunction extends DerivableFunction
+{
+	/**
+	 * Returns the f(x) -- the value of the function in the given x.
+	 * @param point the "point" is x -- the input for the function.
+	 * @return the value of f(x)
+	 */
+	public abstract double value(double[] point);
+
+	/**
+	 * Returns the gradient of the function in the given point.
+	 * @param point the point is "x", the input for the function, for which the user needs the gradient.
+	 * @return the gradient of the function in the given point.
+	 */
+	public abstract double[] gradient(double[] point);
+
+	/**
+	 * Calculates both the value and the gradient of the function in the given point. The gradient is put into the given array,
+	 * and the value is returned.
+	 * <BR>
+	 * The default implementation calls {@link #value(double[])} and {@link #gradient(double[])}.
+	 * See {@link DerivableFunction#valueAndGradient(BigDecimal[])}.
+	 *
+	 * @param point the point is "x", the input for the function.
+	 * @param gradient an array of length {@link #size()}, into which the gradient is put.
+	 * @return the value of the function in the given point.
+	 */
+	public double valueAndGradient(double[] point, double[] gradient)
+	{
+		double[] calculatedGradient = gradient(point);
+		System.arraycopy(calculatedGradient, 0, gradient, 0, gradient.length);
+		return value(point);
+	}
+
+
+	@Override
+	public BigDecimal value(BigDecimal[] point)
+	{
+		return big(value(VectorUtilities.toDoubleArray(point)));
+	}
+
+	@Override
+	public BigDecimal[] gradient(BigDecimal[] point)
+	{
+		return VectorUtilities.toBigDecimalArray(gradient(VectorUtilities.toDoubleArray(point)));
+	}
+
+	@Override
+	public ValueAndGradient valueAndGradient(BigDecimal[] point)
+	{
+		double[] gradient = new double[point.length];
+		double value = valueAndGradient(VectorUtilities.toDoubleArray(point), gradient);
+		return new ValueAndGradient(big(value), VectorUtilities.toBigDecimalArray(gradient));
+	}
+}
@@ -0,0 +1,34 @@
+package com.asher_stern.crf.function;
+
+import java.math.BigDecimal;
+
+/**
+ * The value and the gradient of a {@link DerivableFunction} in some point, as returned by {@link DerivableFunction#valueAndGradient(BigDecimal[])}.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class ValueAndGradient
+{
+	public ValueAndGradient(BigDecimal value, BigDecimal[] gradient)
+	{
+		super();
+		this.value = value;
+		this.gradient = gradient;
+	}
+	
+	public BigDecimal getValue()
+	{
+		return value;
+	}
+	
+	public BigDecimal[] getGradient()
+	{
+		return gradient;
+	}
+	
+	
+	private final BigDecimal value;
+	private final BigDecimal[] gradient;
+}
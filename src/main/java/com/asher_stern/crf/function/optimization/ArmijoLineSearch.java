@@ -1,6 +1,5 @@
 package com.asher_stern.crf.function.optimization;
 
-import static com.asher_stern.crf.function.optimization.LineSearchUtilities.derivationForAlpha;
 import static com.asher_stern.crf.function.optimization.LineSearchUtilities.valueForAlpha;
 import static com.asher_stern.crf.utilities.ArithmeticUtilities.safeDivide;
 import static com.asher_stern.crf.utilities.ArithmeticUtilities.safeMultiply;
@@ -9,8 +8,10 @@ import static com.asher_stern.crf.utilities.ArithmeticUtilities.safeSubtract;
 import java.math.BigDecimal;
 
 import com.asher_stern.crf.function.DerivableFunction;
+import com.asher_stern.crf.function.ValueAndGradient;
 import com.asher_stern.crf.utilities.CrfException;
 import com.asher_stern.crf.utilities.ArithmeticUtilities;
+import com.asher_stern.crf.utilities.VectorUtilities;
 
 /**
  * The Armijo line search is a relatively efficient inexact line search method.
@@ -36,8 +37,10 @@ public class ArmijoLineSearch<F extends DerivableFunction> implements LineSearch
 	@Override
 	public BigDecimal findRate(final F function, final BigDecimal[] point, final BigDecimal[] direction)
 	{
-		final BigDecimal valueForAlphaZero = valueForAlpha(function, point, direction, BigDecimal.ZERO);
-		final BigDecimal derivationForAlphaZero = derivationForAlpha(function, point, direction, BigDecimal.ZERO);
+		// For alpha = 0 the value and the derivation are calculated together, in the given point itself.
+		final ValueAndGradient valueAndGradientForAlphaZero = function.valueAndGradient(point);
+		final BigDecimal valueForAlphaZero = valueAndGradientForAlphaZero.getValue();
+		final BigDecimal derivationForAlphaZero = VectorUtilities.product(valueAndGradientForAlphaZero.getGradient(), direction);
 		
 		if (derivationForAlphaZero.compareTo(BigDecimal.ZERO) >=0) throw new CrfException("Tried to perform a line search, in a point and direction in which the function does not decrease.");
 		
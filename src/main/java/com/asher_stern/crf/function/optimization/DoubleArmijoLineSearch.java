@@ -0,0 +1,85 @@
+package com.asher_stern.crf.function.optimization;
+
+import com.asher_stern.crf.function.DoubleDerivableFunction;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.VectorUtilities;
+
+/**
+ * The Armijo line search (see {@link ArmijoLineSearch}) over primitive <tt>double</tt>s, with the same parameters.
+ * <BR>
+ * The value and the gradient in the given point are given by the caller, who has already calculated them, so only the values in
+ * the tried points are calculated. The tried points are put into a single array, allocated once, so no array is created
+ * per tried point.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class DoubleArmijoLineSearch
+{
+	public static final double BETA_RATE_OF_ALPHA = ArmijoLineSearch.DEFAULT_BETA_RATE_OF_ALPHA.doubleValue();
+	public static final double SIGMA_CONVERGENCE_COEFFICIENT = ArmijoLineSearch.DEFAULT_SIGMA_CONVERGENCE_COEFFICIENT.doubleValue();
+	public static final double INITIAL_ALPHA = ArmijoLineSearch.DEFAULT_INITIAL_ALPHA.doubleValue();
+	public static final double MINIMUM_ALLOWED_ALPHA_VALUE_SO_SHOULD_BE_ZERO = ArmijoLineSearch.MINIMUM_ALLOWED_ALPHA_VALUE_SO_SHOULD_BE_ZERO.doubleValue();
+
+	public DoubleArmijoLineSearch(DoubleDerivableFunction function)
+	{
+		super();
+		this.function = function;
+		this.triedPoint = new double[function.size()];
+	}
+
+	/**
+	 * Finds the rate \alpha, such that f(x+\alpha*d) is "quite close" to be minimized.
+	 * @param point the point "x".
+	 * @param valueInPoint f(x).
+	 * @param gradientInPoint the gradient of f in x.
+	 * @param direction the direction "d", in which f decreases.
+	 * @return the rate \alpha, or 0 if no rate decreases the function sufficiently.
+	 */
+	public double findRate(double[] point, double valueInPoint, double[] gradientInPoint, double[] direction)
+	{
+		final double derivationForAlphaZero = VectorUtilities.product(gradientInPoint, direction);
+		if (derivationForAlphaZero>=0.0) throw new CrfException("Tried to perform a line search, in a point and direction in which the function does not decrease.");
+
+		double alpha = INITIAL_ALPHA;
+		if ( (valueForAlpha(point, direction, alpha)-valueInPoint) < (SIGMA_CONVERGENCE_COEFFICIENT*alpha*derivationForAlphaZero) )
+		{
+			double previousAlpha = alpha;
+			do
+			{
+				previousAlpha = alpha;
+				alpha = previousAlpha/BETA_RATE_OF_ALPHA;
+			}
+			while ( (valueForAlpha(point, direction, alpha)-valueInPoint) < (SIGMA_CONVERGENCE_COEFFICIENT*alpha*derivationForAlphaZero) );
+			return previousAlpha;
+		}
+		else
+		{
+			do
+			{
+				alpha = BETA_RATE_OF_ALPHA*alpha;
+				if (alpha <= MINIMUM_ALLOWED_ALPHA_VALUE_SO_SHOULD_BE_ZERO)
+				{
+					return 0.0;
+				}
+			}
+			while ( (valueForAlpha(point, direction, alpha)-valueInPoint) >= (SIGMA_CONVERGENCE_COEFFICIENT*alpha*derivationForAlphaZero) );
+			return alpha;
+		}
+	}
+
+
+	private double valueForAlpha(double[] point, double[] direction, double alpha)
+	{
+		for (int i=0;i<point.length;++i)
+		{
+			triedPoint[i] = point[i]+alpha*direction[i];
+		}
+		return function.value(triedPoint);
+	}
+
+
+	private final DoubleDerivableFunction function;
+	private final double[] triedPoint;
+}
@@ -0,0 +1,217 @@
+package com.asher_stern.crf.function.optimization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.asher_stern.crf.utilities.CrfException;
+
+/**
+ * The state of {@link DoubleLbfgsMinimizer} (or of {@link DoubleOwlqnMinimizer}) after some iteration: the point, the value and the
+ * gradient in it, and the L-BFGS history of pairs (s,y) (see {@link DoubleLbfgsHistory}). A minimizer which resumes from a
+ * checkpoint (see {@link DoubleLbfgsMinimizer#setResumeFrom(DoubleLbfgsCheckpoint)}) performs exactly the calculations that the
+ * minimizer which wrote it would have performed after that iteration.
+ * <BR>
+ * Checkpoints are written by {@link DoubleLbfgsCheckpointer}, into a compact binary file: a header of integers, followed by the
+ * <tt>double</tt>s of the vectors (8 bytes each). A checkpoint also holds a "stage", given by the caller, which identifies the
+ * optimization it belongs to, when several optimizations are performed one after another (e.g., pre-train and full-train).
+ * <BR>
+ * A checkpoint identifies the run which wrote it, so a checkpoint of another run is not resumed: the kind of the minimizer
+ * (see {@link #getMinimizerKind()}), which is verified by the minimizer, and a "fingerprint", given by the caller (e.g., a hash of the
+ * corpus, the features and the regularization), which should be verified by the caller (see {@link #getFingerprint()}).
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class DoubleLbfgsCheckpoint
+{
+	public static final int MAGIC = 0x4C424647; // "LBFG"
+	public static final int FORMAT_VERSION = 2;
+	
+	// The kinds of minimizers which write checkpoints
+	public static final int LBFGS_MINIMIZER = 1; // DoubleLbfgsMinimizer
+	public static final int OWLQN_MINIMIZER = 2; // DoubleOwlqnMinimizer
+	
+	/**
+	 * Reads a checkpoint from the given file.
+	 */
+	public static DoubleLbfgsCheckpoint read(File file)
+	{
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)))
+		{
+			if (input.readInt()!=MAGIC) {throw new CrfException("Not a checkpoint file: "+file);}
+			final int version = input.readInt();
+			if (version!=FORMAT_VERSION) {throw new CrfException("Unsupported checkpoint format version: "+version);}
+			final int minimizerKind = input.readInt();
+			final long fingerprint = input.readLong();
+			final int stage = input.readInt();
+			final int iteration = input.readInt();
+			final int size = input.readInt();
+			final int numberOfPreviousIterationsToMemorize = input.readInt();
+			final int numberOfStored = input.readInt();
+			if ( (size<=0) || (numberOfPreviousIterationsToMemorize<=0) || (numberOfStored<0) || (numberOfStored>numberOfPreviousIterationsToMemorize) ) {throw new CrfException("Malformed checkpoint file: "+file);}
+			
+			DoubleLbfgsCheckpoint ret = new DoubleLbfgsCheckpoint(size, numberOfPreviousIterationsToMemorize, numberOfStored);
+			ret.minimizerKind = minimizerKind;
+			ret.fingerprint = fingerprint;
+			ret.stage = stage;
+			ret.iteration = iteration;
+			ret.numberOfStored = numberOfStored;
+			ret.value = input.readDouble();
+			readArray(input, ret.point);
+			readArray(input, ret.gradient);
+			for (int k=0;k<numberOfStored;++k)
+			{
+				readArray(input, ret.pointSubstractions[k]);
+				readArray(input, ret.gradientSubstractions[k]);
+				ret.rho[k] = input.readDouble();
+			}
+			return ret;
+		}
+		catch (IOException e)
+		{
+			throw new CrfException("Failed to read the checkpoint file: "+file, e);
+		}
+	}
+	
+	
+	/**
+	 * Returns the kind of the minimizer which wrote this checkpoint: {@link #LBFGS_MINIMIZER} or {@link #OWLQN_MINIMIZER}.
+	 */
+	public int getMinimizerKind()
+	{
+		return minimizerKind;
+	}
+	
+	/**
+	 * Returns the fingerprint of the run which wrote this checkpoint (see {@link DoubleLbfgsCheckpointer#setFingerprint(long)}).
+	 */
+	public long getFingerprint()
+	{
+		return fingerprint;
+	}
+	
+	public int getStage()
+	{
+		return stage;
+	}
+	
+	/**
+	 * Returns the number of iterations performed before this checkpoint.
+	 */
+	public int getIteration()
+	{
+		return iteration;
+	}
+	
+	public int getSize()
+	{
+		return point.length;
+	}
+	
+	public int getNumberOfPreviousIterationsToMemorize()
+	{
+		return rho.length;
+	}
+	
+	public double getValue()
+	{
+		return value;
+	}
+	
+	public double[] getPoint()
+	{
+		return point;
+	}
+	
+	public double[] getGradient()
+	{
+		return gradient;
+	}
+	
+	
+	
+	/**
+	 * Constructs an empty checkpoint, whose arrays are filled by the minimizer (see {@link DoubleLbfgsHistory#copyTo(DoubleLbfgsCheckpoint)}).
+	 * @param numberOfAllocatedPairs the number of pairs (s,y) for which arrays are allocated.
+	 */
+	DoubleLbfgsCheckpoint(int size, int numberOfPreviousIterationsToMemorize, int numberOfAllocatedPairs)
+	{
+		this.point = new double[size];
+		this.gradient = new double[size];
+		this.pointSubstractions = new double[numberOfAllocatedPairs][size];
+		this.gradientSubstractions = new double[numberOfAllocatedPairs][size];
+		this.rho = new double[numberOfPreviousIterationsToMemorize];
+	}
+	
+	/**
+	 * Writes this checkpoint into the given file. It is written into a temporary file, which then replaces the given file, so the given
+	 * file always holds a complete checkpoint, even if the JVM dies while writing.
+	 */
+	void write(File file) throws IOException
+	{
+		File temporaryFile = new File(file.getPath()+".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), BUFFER_SIZE)))
+		{
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			output.writeInt(minimizerKind);
+			output.writeLong(fingerprint);
+			output.writeInt(stage);
+			output.writeInt(iteration);
+			output.writeInt(point.length);
+			output.writeInt(rho.length);
+			output.writeInt(numberOfStored);
+			output.writeDouble(value);
+			writeArray(output, point);
+			writeArray(output, gradient);
+			for (int k=0;k<numberOfStored;++k)
+			{
+				writeArray(output, pointSubstractions[k]);
+				writeArray(output, gradientSubstractions[k]);
+				output.writeDouble(rho[k]);
+			}
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	private static void readArray(DataInputStream input, double[] array) throws IOException
+	{
+		for (int index=0;index<array.length;++index)
+		{
+			array[index] = input.readDouble();
+		}
+	}
+	
+	private static void writeArray(DataOutputStream output, double[] array) throws IOException
+	{
+		for (double element : array)
+		{
+			output.writeDouble(element);
+		}
+	}
+	
+	
+	private static final int BUFFER_SIZE = 1<<20;
+	
+	int minimizerKind = 0;
+	long fingerprint = 0L;
+	int stage = 0;
+	int iteration = 0;
+	double value = 0.0;
+	final double[] point;
+	final double[] gradient;
+	final double[][] pointSubstractions; // [k] -> s, from the oldest to the newest
+	final double[][] gradientSubstractions; // [k] -> y, from the oldest to the newest
+	final double[] rho; // [k] -> 1/(y*s)
+	int numberOfStored = 0;
+}
@@ -0,0 +1,145 @@
+package com.asher_stern.crf.function.optimization;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.utilities.CrfException;
+
+/**
+ * Writes periodic checkpoints (see {@link DoubleLbfgsCheckpoint}) of {@link DoubleLbfgsMinimizer} (or of {@link DoubleOwlqnMinimizer})
+ * into a file, asynchronously: every given number of iterations, the state of the minimizer is copied into a snapshot, which is written
+ * by a background thread, while the minimizer continues. So an iteration is delayed only by copying its state (which is much cheaper
+ * than calculating the function), and not by writing it.
+ * <BR>
+ * A single snapshot is kept, so the memory required is that of the state (the point, the gradient and the pairs (s,y)). If the previous
+ * checkpoint is still being written when the next one is due, the next one is skipped. A failure to write a checkpoint is logged, and
+ * does not stop the minimizer.
+ * <BR>
+ * {@link #close()} must be called when no more checkpoints are required. It waits for the checkpoint being written, if any.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class DoubleLbfgsCheckpointer
+{
+	/**
+	 * @param file the checkpoint file. Each checkpoint replaces the previous one.
+	 * @param interval the number of iterations between checkpoints.
+	 */
+	public DoubleLbfgsCheckpointer(File file, int interval)
+	{
+		if (interval<=0) {throw new CrfException("The checkpoint interval must be positive.");}
+		this.file = file;
+		this.interval = interval;
+	}
+	
+	/**
+	 * Sets the stage written into the next checkpoints (see {@link DoubleLbfgsCheckpoint#getStage()}).
+	 */
+	public void setStage(int stage)
+	{
+		this.stage = stage;
+	}
+	
+	/**
+	 * Sets the fingerprint written into the next checkpoints (see {@link DoubleLbfgsCheckpoint#getFingerprint()}), which identifies
+	 * the run, such that a checkpoint of another run (e.g., of another corpus) is not resumed.
+	 */
+	public void setFingerprint(long fingerprint)
+	{
+		this.fingerprint = fingerprint;
+	}
+	
+	/**
+	 * Waits for the checkpoint being written, if any, and stops the background thread.
+	 */
+	public void close()
+	{
+		waitForPendingWrite();
+		writer.shutdown();
+	}
+	
+	
+	
+	/**
+	 * Called by the minimizer after each iteration. Writes a checkpoint if the iteration is a multiple of the interval.
+	 * @param minimizerKind see {@link DoubleLbfgsCheckpoint#getMinimizerKind()}.
+	 */
+	void iterationDone(int minimizerKind, int iteration, double[] point, double value, double[] gradient, DoubleLbfgsHistory history, int numberOfPreviousIterationsToMemorize)
+	{
+		if ((iteration%interval)!=0) {return;}
+		if ( (pendingWrite!=null) && (!pendingWrite.isDone()) )
+		{
+			logger.warn("The previous checkpoint is still being written. The checkpoint of iteration "+iteration+" is skipped.");
+			return;
+		}
+		waitForPendingWrite(); // done, so only its failure, if any, is logged
+		
+		if ( (null==snapshot) || (snapshot.getSize()!=point.length) || (snapshot.getNumberOfPreviousIterationsToMemorize()!=numberOfPreviousIterationsToMemorize) )
+		{
+			snapshot = new DoubleLbfgsCheckpoint(point.length, numberOfPreviousIterationsToMemorize, numberOfPreviousIterationsToMemorize);
+		}
+		snapshot.minimizerKind = minimizerKind;
+		snapshot.fingerprint = fingerprint;
+		snapshot.stage = stage;
+		snapshot.iteration = iteration;
+		snapshot.value = value;
+		System.arraycopy(point, 0, snapshot.point, 0, point.length);
+		System.arraycopy(gradient, 0, snapshot.gradient, 0, gradient.length);
+		history.copyTo(snapshot);
+		
+		final DoubleLbfgsCheckpoint toWrite = snapshot;
+		pendingWrite = writer.submit(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				toWrite.write(file);
+				if (logger.isDebugEnabled()) {logger.debug("Checkpoint of iteration "+toWrite.iteration+" (stage "+toWrite.stage+") has been written.");}
+				return null;
+			}
+		});
+	}
+	
+	
+	private void waitForPendingWrite()
+	{
+		if (null==pendingWrite) {return;}
+		try
+		{
+			pendingWrite.get();
+		}
+		catch (ExecutionException e)
+		{
+			logger.error("Failed to write a checkpoint into "+file+".", e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CrfException(e);
+		}
+		finally
+		{
+			pendingWrite = null;
+		}
+	}
+	
+	
+	private final File file;
+	private final int interval;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	
+	private int stage = 0;
+	private long fingerprint = 0L;
+	private DoubleLbfgsCheckpoint snapshot = null; // reused, so it is modified only when no checkpoint is being written
+	private Future<Void> pendingWrite = null;
+	
+	private static final Logger logger = Logger.getLogger(DoubleLbfgsCheckpointer.class);
+}
@@ -0,0 +1,143 @@
+package com.asher_stern.crf.function.optimization;
+
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.VectorUtilities;
+
+/**
+ * The last m pairs (s,y) of the L-BFGS algorithm (differences of points, and of gradients, see {@link LbfgsMinimizer}), over
+ * primitive <tt>double</tt>s, and the two-loop recursion over them.
+ * <BR>
+ * The pairs are kept in two m*n arrays, used as a circular buffer, which are allocated once. A new pair is written directly into
+ * the arrays returned by {@link #nextPointSubstraction()} and {@link #nextGradientSubstraction()}, and then stored by {@link #store()}.
+ * <BR>
+ * Used by {@link DoubleLbfgsMinimizer} and {@link DoubleOwlqnMinimizer}.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+class DoubleLbfgsHistory
+{
+	DoubleLbfgsHistory(int numberOfPreviousIterationsToMemorize, int size)
+	{
+		this.m = numberOfPreviousIterationsToMemorize;
+		this.pointSubstractions = new double[m][size];
+		this.gradientSubstractions = new double[m][size];
+		this.rho = new double[m];
+		this.alpha = new double[m];
+	}
+
+	/**
+	 * Returns the array into which the next s (the difference between the new point and the previous one) should be written.
+	 */
+	double[] nextPointSubstraction()
+	{
+		return pointSubstractions[(newest+1)%m];
+	}
+
+	/**
+	 * Returns the array into which the next y (the difference between the new gradient and the previous one) should be written.
+	 */
+	double[] nextGradientSubstraction()
+	{
+		return gradientSubstractions[(newest+1)%m];
+	}
+
+	/**
+	 * Stores the pair written into {@link #nextPointSubstraction()} and {@link #nextGradientSubstraction()}, if y*s is positive
+	 * (i.e., the curvature condition holds).
+	 * @return false if the pair was not stored.
+	 */
+	boolean store()
+	{
+		final int slot = (newest+1)%m;
+		final double ys = VectorUtilities.product(gradientSubstractions[slot], pointSubstractions[slot]);
+		if (ys>0.0)
+		{
+			rho[slot] = 1.0/ys;
+			newest = slot;
+			if (numberOfStored<m) {++numberOfStored;}
+			return true;
+		}
+		else
+		{
+			// If the buffer is full, the slot was that of the oldest pair, which has just been overwritten.
+			if (numberOfStored==m) {--numberOfStored;}
+			return false;
+		}
+	}
+
+	/**
+	 * Puts -H*gradient into the given direction array, where H is the L-BFGS approximation of the inverse of the Hessian.
+	 */
+	void twoLoopRecursion(double[] gradient, double[] direction)
+	{
+		final double[] q = direction;
+		System.arraycopy(gradient, 0, q, 0, gradient.length);
+
+		for (int k=0;k<numberOfStored;++k) // newest to oldest
+		{
+			final int slot = (newest-k+m)%m;
+			alpha[slot] = rho[slot]*VectorUtilities.product(pointSubstractions[slot], q);
+			VectorUtilities.addMultiplied(q, -alpha[slot], gradientSubstractions[slot]);
+		}
+
+		if (numberOfStored>0)
+		{
+			final double gamma = VectorUtilities.product(pointSubstractions[newest], gradientSubstractions[newest]) /
+					VectorUtilities.euclideanNormSquare(gradientSubstractions[newest]);
+			VectorUtilities.multiplyByScalarInPlace(gamma, q);
+		}
+
+		for (int k=numberOfStored-1;k>=0;--k) // oldest to newest
+		{
+			final int slot = (newest-k+m)%m;
+			final double beta = rho[slot]*VectorUtilities.product(gradientSubstractions[slot], q);
+			VectorUtilities.addMultiplied(q, alpha[slot]-beta, pointSubstractions[slot]);
+		}
+
+		VectorUtilities.multiplyByScalarInPlace(-1.0, q);
+	}
+
+	
+	/**
+	 * Copies the state into the given checkpoint: the stored pairs, from the oldest to the newest, and their rho values.
+	 */
+	void copyTo(DoubleLbfgsCheckpoint checkpoint)
+	{
+		if ( (checkpoint.getNumberOfPreviousIterationsToMemorize()!=m) || (checkpoint.getSize()!=pointSubstractions[0].length) ) {throw new CrfException("The checkpoint does not fit the L-BFGS history.");}
+		for (int k=0;k<numberOfStored;++k) // oldest to newest
+		{
+			final int slot = (newest-(numberOfStored-1-k)+m)%m;
+			System.arraycopy(pointSubstractions[slot], 0, checkpoint.pointSubstractions[k], 0, pointSubstractions[slot].length);
+			System.arraycopy(gradientSubstractions[slot], 0, checkpoint.gradientSubstractions[k], 0, gradientSubstractions[slot].length);
+			checkpoint.rho[k] = rho[slot];
+		}
+		checkpoint.numberOfStored = numberOfStored;
+	}
+	
+	/**
+	 * Replaces the state by that of the given checkpoint. The pairs are kept in the slots 0 to (number-of-stored - 1), which changes
+	 * only their positions in the circular buffer, so the calculations that follow are exactly those that would follow the copied state.
+	 */
+	void restoreFrom(DoubleLbfgsCheckpoint checkpoint)
+	{
+		if ( (checkpoint.getNumberOfPreviousIterationsToMemorize()!=m) || (checkpoint.getSize()!=pointSubstractions[0].length) ) {throw new CrfException("The checkpoint does not fit the L-BFGS history.");}
+		for (int k=0;k<checkpoint.numberOfStored;++k)
+		{
+			System.arraycopy(checkpoint.pointSubstractions[k], 0, pointSubstractions[k], 0, pointSubstractions[k].length);
+			System.arraycopy(checkpoint.gradientSubstractions[k], 0, gradientSubstractions[k], 0, gradientSubstractions[k].length);
+			rho[k] = checkpoint.rho[k];
+		}
+		numberOfStored = checkpoint.numberOfStored;
+		newest = numberOfStored-1;
+	}
+
+	private final int m;
+	private final double[][] pointSubstractions; // [slot] -> s, circular buffer
+	private final double[][] gradientSubstractions; // [slot] -> y, circular buffer
+	private final double[] rho; // [slot] -> 1/(y*s)
+	private final double[] alpha; // [slot], used by the two-loop recursion
+	private int newest = -1; // slot of the newest pair
+	private int numberOfStored = 0; // number of stored pairs, at most m
+}
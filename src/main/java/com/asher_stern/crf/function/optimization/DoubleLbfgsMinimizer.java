@@ -0,0 +1,209 @@
+package com.asher_stern.crf.function.optimization;
+
+import static com.asher_stern.crf.utilities.ArithmeticUtilities.big;
+
+import java.math.BigDecimal;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.function.DoubleDerivableFunction;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.VectorUtilities;
+
+/**
+ * Implementation of L-BFGS algorithm for minimizing a {@link DoubleDerivableFunction}, over primitive <tt>double</tt>s.
+ * See {@link LbfgsMinimizer} for a description of the algorithm.
+ * <BR>
+ * All the memory is allocated once, when {@link #find()} starts: the last m differences of points (s) and of gradients (y)
+ * are kept in two m*n arrays, used as a circular buffer (see {@link DoubleLbfgsHistory}), and all the vector operations are performed in place. In each iteration,
+ * the value and the gradient are calculated together, once, by {@link DoubleDerivableFunction#valueAndGradient(double[], double[])},
+ * and the line search (see {@link DoubleArmijoLineSearch}) calculates only the values of the tried points.
+ * <BR>
+ * The two-loop recursion follows "Numerical Optimization" by Nocedal and Wright (Algorithm 7.4): the first loop runs from the newest
+ * pair (s,y) to the oldest, and the initial Hessian approximation is scaled by the newest pair. A pair for which y*s is not positive
+ * (i.e., the curvature condition does not hold) is not stored.
+ * <BR>
+ * The state of the minimizer can be written periodically into a checkpoint file (see {@link DoubleLbfgsCheckpointer}), and a later
+ * minimizer can resume from it (see {@link #setResumeFrom(DoubleLbfgsCheckpoint)}).
+ * <BR>
+ * The {@link BigDecimal} methods of {@link Minimizer} are supported, by converting the results.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class DoubleLbfgsMinimizer extends Minimizer<DoubleDerivableFunction>
+{
+	public static final int DEFAULT_NUMBER_OF_PREVIOUS_ITERATIONS_TO_MEMORIZE = LbfgsMinimizer.DEFAULT_NUMBER_OF_PREVIOUS_ITERATIONS_TO_MEMORIZE;
+	public static final double DEFAULT_GRADIENT_CONVERGENCE = LbfgsMinimizer.DEFAULT_GRADIENT_CONVERGENCE.doubleValue();
+
+	public DoubleLbfgsMinimizer(DoubleDerivableFunction function)
+	{
+		this(function,DEFAULT_NUMBER_OF_PREVIOUS_ITERATIONS_TO_MEMORIZE, DEFAULT_GRADIENT_CONVERGENCE);
+	}
+
+	public DoubleLbfgsMinimizer(DoubleDerivableFunction function, int numberOfPreviousIterationsToMemorize, double convergence)
+	{
+		super(function);
+		if (numberOfPreviousIterationsToMemorize<=0) {throw new CrfException("The number of previous iterations to memorize must be positive.");}
+		this.numberOfPreviousIterationsToMemorize = numberOfPreviousIterationsToMemorize;
+		this.convergenceSquare = convergence*convergence;
+	}
+
+	public void setInitialPoint(double[] initialPoint)
+	{
+		if (initialPoint.length!=function.size()) throw new CrfException("Wrong length of initial point specified by the caller.");
+		this.initialPoint = initialPoint;
+	}
+
+	public void setInitialPoint(BigDecimal[] initialPoint)
+	{
+		setInitialPoint(VectorUtilities.toDoubleArray(initialPoint));
+	}
+
+	public void setDebugInfo(LbfgsMinimizer.DebugInfo debugInfo)
+	{
+		this.debugInfo = debugInfo;
+	}
+
+	/**
+	 * Optional setter. If set, checkpoints of the state of the minimizer are written periodically by the given checkpointer.
+	 */
+	public void setCheckpointer(DoubleLbfgsCheckpointer checkpointer)
+	{
+		this.checkpointer = checkpointer;
+	}
+
+	/**
+	 * Optional setter. If set, {@link #find()} continues from the given checkpoint, rather than from the initial point, and performs
+	 * exactly the calculations that the minimizer which wrote the checkpoint would have performed (given the same function).
+	 */
+	public void setResumeFrom(DoubleLbfgsCheckpoint resumeFrom)
+	{
+		if (resumeFrom.getSize()!=function.size()) throw new CrfException("The checkpoint has a wrong number of coordinates.");
+		if (resumeFrom.getMinimizerKind()!=DoubleLbfgsCheckpoint.LBFGS_MINIMIZER) throw new CrfException("The checkpoint was not written by an L-BFGS minimizer.");
+		if (resumeFrom.getNumberOfPreviousIterationsToMemorize()!=numberOfPreviousIterationsToMemorize) throw new CrfException("The checkpoint has a different number of previous iterations to memorize.");
+		this.resumeFrom = resumeFrom;
+	}
+
+
+	@Override
+	public void find()
+	{
+		final int size = function.size();
+		DoubleLbfgsHistory history = new DoubleLbfgsHistory(numberOfPreviousIterationsToMemorize, size);
+		DoubleArmijoLineSearch lineSearch = new DoubleArmijoLineSearch(function);
+
+		point = new double[size];
+		double[] gradient = new double[size];
+		double[] direction = new double[size];
+		int iterationIndex=0;
+
+		if (resumeFrom!=null)
+		{
+			System.arraycopy(resumeFrom.getPoint(), 0, point, 0, size);
+			System.arraycopy(resumeFrom.getGradient(), 0, gradient, 0, size);
+			value = resumeFrom.getValue();
+			history.restoreFrom(resumeFrom);
+			iterationIndex = resumeFrom.getIteration();
+			if (logger.isInfoEnabled()) {logger.info("LBFGS: resumed from the checkpoint of iteration "+iterationIndex+": value = "+value);}
+		}
+		else
+		{
+			if (initialPoint!=null) {System.arraycopy(initialPoint, 0, point, 0, size);}
+			value = function.valueAndGradient(point, gradient);
+			if (logger.isInfoEnabled()) {logger.info("LBFGS: initial value = "+value);}
+		}
+		double gradientNormSquare = VectorUtilities.euclideanNormSquare(gradient);
+		while (gradientNormSquare>convergenceSquare)
+		{
+			if (logger.isDebugEnabled()) {logger.debug(String.format("Gradient norm square = %s", gradientNormSquare));}
+			final double previousValue = value;
+
+			// 1. Update point (which is the vector "x").
+			history.twoLoopRecursion(gradient, direction);
+			final double rate = lineSearch.findRate(point, value, gradient, direction);
+			if (0.0==rate)
+			{
+				logger.warn("LBFGS: the line search could not decrease the function. Stopping with gradient norm square = "+gradientNormSquare);
+				break;
+			}
+
+			// 2. Prepare next iteration. s = rate*direction, y = new-gradient - old-gradient, both written directly into the circular buffer.
+			final double[] s = history.nextPointSubstraction();
+			final double[] y = history.nextGradientSubstraction();
+			for (int i=0;i<size;++i)
+			{
+				s[i] = rate*direction[i];
+				point[i] += s[i];
+				y[i] = -gradient[i];
+			}
+			value = function.valueAndGradient(point, gradient);
+			VectorUtilities.addMultiplied(y, 1.0, gradient);
+			gradientNormSquare = VectorUtilities.euclideanNormSquare(gradient);
+
+			if (!history.store())
+			{
+				logger.debug("LBFGS: curvature condition does not hold. The pair is not stored.");
+			}
+
+			// 3. Print log messages
+			++iterationIndex;
+			if (value>previousValue) {logger.error("LBFGS: value > previous value");}
+			if (logger.isInfoEnabled()) {logger.info("LBFGS iteration "+iterationIndex+": value = "+value);}
+			if ( (debugInfo!=null) && (logger.isInfoEnabled()) )
+			{
+				logger.info(debugInfo.info(VectorUtilities.toBigDecimalArray(point)));
+			}
+
+			// 4. Checkpoint
+			if (checkpointer!=null) {checkpointer.iterationDone(DoubleLbfgsCheckpoint.LBFGS_MINIMIZER, iterationIndex, point, value, gradient, history, numberOfPreviousIterationsToMemorize);}
+		}
+
+		calculated = true;
+	}
+
+	@Override
+	public BigDecimal getValue()
+	{
+		return big(getDoubleValue());
+	}
+
+	@Override
+	public BigDecimal[] getPoint()
+	{
+		return VectorUtilities.toBigDecimalArray(getDoublePoint());
+	}
+
+	public double getDoubleValue()
+	{
+		if (!calculated) {throw new CrfException("Not calculated.");}
+		return value;
+	}
+
+	public double[] getDoublePoint()
+	{
+		if (!calculated) {throw new CrfException("Not calculated.");}
+		return point;
+	}
+
+
+
+	// input
+	private final int numberOfPreviousIterationsToMemorize; // m
+	private final double convergenceSquare;
+
+	private double[] initialPoint = null;
+	private LbfgsMinimizer.DebugInfo debugInfo = null;
+	private DoubleLbfgsCheckpointer checkpointer = null;
+	private DoubleLbfgsCheckpoint resumeFrom = null;
+
+	// internals
+	private boolean calculated = false;
+
+	// output
+	private double[] point = null;
+	private double value = 0.0;
+
+	private static final Logger logger = Logger.getLogger(DoubleLbfgsMinimizer.class);
+}
@@ -0,0 +1,276 @@
+package com.asher_stern.crf.function.optimization;
+
+import static com.asher_stern.crf.utilities.ArithmeticUtilities.big;
+
+import java.math.BigDecimal;
+
+import org.apache.log4j.Logger;
+
+import com.asher_stern.crf.function.DoubleDerivableFunction;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.VectorUtilities;
+
+/**
+ * Implementation of OWL-QN (Orthant-Wise Limited-memory Quasi-Newton, Andrew and Gao, "Scalable Training of L1-Regularized Log-Linear
+ * Models", 2007), which minimizes F(x) = f(x) + C*||x||_1, where f is a {@link DoubleDerivableFunction}, and ||x||_1 is the sum of the
+ * absolute values of the coordinates of x. F is not differentiable where some coordinates are zero, so L-BFGS (see {@link DoubleLbfgsMinimizer})
+ * cannot be used for it directly, while the minimum of F typically has many zero coordinates.
+ * <BR>
+ * OWL-QN differs from L-BFGS as follows:
+ * <OL>
+ * <LI>The gradient is replaced by the pseudo-gradient of F: for a non-zero coordinate it is the partial derivative of F, and for a zero
+ * coordinate it is the one-sided derivative in which F decreases (or zero, if F decreases in neither side).</LI>
+ * <LI>The direction is calculated by the two-loop recursion on the pseudo-gradient, and then its coordinates whose signs differ from
+ * those of the negated pseudo-gradient are set to zero.</LI>
+ * <LI>The line search is a backtracking line search, in which the tried points are projected onto the orthant of the current point
+ * (where the orthant of a zero coordinate is that of the negated pseudo-gradient): a coordinate which would change its sign is set to zero.
+ * So coordinates become zero, and remain zero as long as F does not decrease by moving them.</LI>
+ * <LI>The pairs (s,y) are those of f alone (i.e., y is the difference between the gradients of f), since the L1 term is linear in every orthant.</LI>
+ * </OL>
+ * The memory of the pairs (s,y) is that of {@link DoubleLbfgsMinimizer} (see {@link DoubleLbfgsHistory}). The value and the gradient of f
+ * are calculated together in each tried point, so when the first tried point is accepted (which is usually the case) each iteration calculates them once.
+ * The algorithm stops when the norm of the pseudo-gradient is small enough, or when the line search cannot decrease F.
+ * <BR>
+ * As in {@link DoubleLbfgsMinimizer}, the state can be written into checkpoints, and a later minimizer can resume from them.
+ * <BR>
+ * The {@link BigDecimal} methods of {@link Minimizer} are supported, by converting the results. The value is that of F.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class DoubleOwlqnMinimizer extends Minimizer<DoubleDerivableFunction>
+{
+	public static final double BETA_RATE_OF_ALPHA = DoubleArmijoLineSearch.BETA_RATE_OF_ALPHA;
+	public static final double SIGMA_CONVERGENCE_COEFFICIENT = DoubleArmijoLineSearch.SIGMA_CONVERGENCE_COEFFICIENT;
+	public static final double MINIMUM_ALLOWED_ALPHA_VALUE_SO_SHOULD_BE_ZERO = DoubleArmijoLineSearch.MINIMUM_ALLOWED_ALPHA_VALUE_SO_SHOULD_BE_ZERO;
+
+	/**
+	 * @param function f
+	 * @param l1RegularizationFactor C, which must be non-negative. For C=0 the algorithm is L-BFGS (with a different line search).
+	 */
+	public DoubleOwlqnMinimizer(DoubleDerivableFunction function, double l1RegularizationFactor)
+	{
+		this(function, l1RegularizationFactor, DoubleLbfgsMinimizer.DEFAULT_NUMBER_OF_PREVIOUS_ITERATIONS_TO_MEMORIZE, DoubleLbfgsMinimizer.DEFAULT_GRADIENT_CONVERGENCE);
+	}
+
+	public DoubleOwlqnMinimizer(DoubleDerivableFunction function, double l1RegularizationFactor, int numberOfPreviousIterationsToMemorize, double convergence)
+	{
+		super(function);
+		if (!(l1RegularizationFactor>=0.0)) {throw new CrfException("The L1 regularization factor must be non-negative.");}
+		if (numberOfPreviousIterationsToMemorize<=0) {throw new CrfException("The number of previous iterations to memorize must be positive.");}
+		this.l1RegularizationFactor = l1RegularizationFactor;
+		this.numberOfPreviousIterationsToMemorize = numberOfPreviousIterationsToMemorize;
+		this.convergenceSquare = convergence*convergence;
+	}
+
+	public void setInitialPoint(double[] initialPoint)
+	{
+		if (initialPoint.length!=function.size()) throw new CrfException("Wrong length of initial point specified by the caller.");
+		this.initialPoint = initialPoint;
+	}
+
+	public void setInitialPoint(BigDecimal[] initialPoint)
+	{
+		setInitialPoint(VectorUtilities.toDoubleArray(initialPoint));
+	}
+
+	public void setDebugInfo(LbfgsMinimizer.DebugInfo debugInfo)
+	{
+		this.debugInfo = debugInfo;
+	}
+
+	/**
+	 * Optional setter. If set, checkpoints of the state of the minimizer are written periodically by the given checkpointer.
+	 */
+	public void setCheckpointer(DoubleLbfgsCheckpointer checkpointer)
+	{
+		this.checkpointer = checkpointer;
+	}
+
+	/**
+	 * Optional setter. If set, {@link #find()} continues from the given checkpoint, rather than from the initial point, and performs
+	 * exactly the calculations that the minimizer which wrote the checkpoint would have performed (given the same function and L1 regularization factor).
+	 * The value of the checkpoint is that of F.
+	 */
+	public void setResumeFrom(DoubleLbfgsCheckpoint resumeFrom)
+	{
+		if (resumeFrom.getSize()!=function.size()) throw new CrfException("The checkpoint has a wrong number of coordinates.");
+		if (resumeFrom.getMinimizerKind()!=DoubleLbfgsCheckpoint.OWLQN_MINIMIZER) throw new CrfException("The checkpoint was not written by an OWL-QN minimizer.");
+		if (resumeFrom.getNumberOfPreviousIterationsToMemorize()!=numberOfPreviousIterationsToMemorize) throw new CrfException("The checkpoint has a different number of previous iterations to memorize.");
+		this.resumeFrom = resumeFrom;
+	}
+
+
+	@Override
+	public void find()
+	{
+		final int size = function.size();
+		DoubleLbfgsHistory history = new DoubleLbfgsHistory(numberOfPreviousIterationsToMemorize, size);
+
+		point = new double[size];
+		double[] gradient = new double[size];
+		double[] pseudoGradient = new double[size];
+		double[] direction = new double[size];
+		double[] newPoint = new double[size];
+		double[] newGradient = new double[size];
+		int iterationIndex=0;
+
+		if (resumeFrom!=null)
+		{
+			System.arraycopy(resumeFrom.getPoint(), 0, point, 0, size);
+			System.arraycopy(resumeFrom.getGradient(), 0, gradient, 0, size);
+			value = resumeFrom.getValue();
+			history.restoreFrom(resumeFrom);
+			iterationIndex = resumeFrom.getIteration();
+			if (logger.isInfoEnabled()) {logger.info("OWL-QN: resumed from the checkpoint of iteration "+iterationIndex+": value = "+value);}
+		}
+		else
+		{
+			if (initialPoint!=null) {System.arraycopy(initialPoint, 0, point, 0, size);}
+			value = function.valueAndGradient(point, gradient)+l1RegularizationFactor*norm1(point);
+			if (logger.isInfoEnabled()) {logger.info("OWL-QN: initial value = "+value);}
+		}
+		calculatePseudoGradient(point, gradient, pseudoGradient);
+		double pseudoGradientNormSquare = VectorUtilities.euclideanNormSquare(pseudoGradient);
+		while (pseudoGradientNormSquare>convergenceSquare)
+		{
+			if (logger.isDebugEnabled()) {logger.debug(String.format("Pseudo-gradient norm square = %s", pseudoGradientNormSquare));}
+
+			// 1. Find the direction, and constrain it to the orthant in which F decreases.
+			history.twoLoopRecursion(pseudoGradient, direction);
+			for (int i=0;i<size;++i)
+			{
+				if (direction[i]*pseudoGradient[i]>=0.0) {direction[i] = 0.0;}
+			}
+
+			// 2. Line search. In the first iteration the direction is the negated pseudo-gradient, so the first tried step is of length 1.
+			double alpha = (0==iterationIndex)?(1.0/Math.sqrt(pseudoGradientNormSquare)):1.0;
+			double newValue = 0.0;
+			boolean found = false;
+			while ( (!found) && (alpha>MINIMUM_ALLOWED_ALPHA_VALUE_SO_SHOULD_BE_ZERO) )
+			{
+				double decrease = 0.0;
+				for (int i=0;i<size;++i)
+				{
+					final double orthant = (point[i]!=0.0)?Math.signum(point[i]):(-Math.signum(pseudoGradient[i]));
+					final double tried = point[i]+alpha*direction[i];
+					newPoint[i] = (Math.signum(tried)==orthant)?tried:0.0;
+					decrease += pseudoGradient[i]*(newPoint[i]-point[i]);
+				}
+				newValue = function.valueAndGradient(newPoint, newGradient)+l1RegularizationFactor*norm1(newPoint);
+				found = (newValue<=value+SIGMA_CONVERGENCE_COEFFICIENT*decrease);
+				if (!found) {alpha *= BETA_RATE_OF_ALPHA;}
+			}
+			if (!found)
+			{
+				logger.warn("OWL-QN: the line search could not decrease the function. Stopping with pseudo-gradient norm square = "+pseudoGradientNormSquare);
+				break;
+			}
+
+			// 3. Prepare next iteration. s = new-point - old-point, y = new-gradient - old-gradient (of f), written directly into the circular buffer.
+			final double[] s = history.nextPointSubstraction();
+			final double[] y = history.nextGradientSubstraction();
+			for (int i=0;i<size;++i)
+			{
+				s[i] = newPoint[i]-point[i];
+				y[i] = newGradient[i]-gradient[i];
+			}
+			if (!history.store())
+			{
+				logger.debug("OWL-QN: curvature condition does not hold. The pair is not stored.");
+			}
+			double[] swap = point; point = newPoint; newPoint = swap;
+			swap = gradient; gradient = newGradient; newGradient = swap;
+			value = newValue;
+			calculatePseudoGradient(point, gradient, pseudoGradient);
+			pseudoGradientNormSquare = VectorUtilities.euclideanNormSquare(pseudoGradient);
+
+			// 4. Print log messages
+			++iterationIndex;
+			if (logger.isInfoEnabled()) {logger.info("OWL-QN iteration "+iterationIndex+": value = "+value+", non-zero coordinates = "+numberOfNonZeros(point)+"/"+size);}
+			if ( (debugInfo!=null) && (logger.isInfoEnabled()) )
+			{
+				logger.info(debugInfo.info(VectorUtilities.toBigDecimalArray(point)));
+			}
+
+			// 5. Checkpoint
+			if (checkpointer!=null) {checkpointer.iterationDone(DoubleLbfgsCheckpoint.OWLQN_MINIMIZER, iterationIndex, point, value, gradient, history, numberOfPreviousIterationsToMemorize);}
+		}
+
+		calculated = true;
+	}
+
+	@Override
+	public BigDecimal getValue()
+	{
+		return big(getDoubleValue());
+	}
+
+	@Override
+	public BigDecimal[] getPoint()
+	{
+		return VectorUtilities.toBigDecimalArray(getDoublePoint());
+	}
+
+	public double getDoubleValue()
+	{
+		if (!calculated) {throw new CrfException("Not calculated.");}
+		return value;
+	}
+
+	public double[] getDoublePoint()
+	{
+		if (!calculated) {throw new CrfException("Not calculated.");}
+		return point;
+	}
+
+
+
+	private void calculatePseudoGradient(double[] point, double[] gradient, double[] pseudoGradient)
+	{
+		final double c = l1RegularizationFactor;
+		for (int i=0;i<point.length;++i)
+		{
+			if (point[i]>0.0) {pseudoGradient[i] = gradient[i]+c;}
+			else if (point[i]<0.0) {pseudoGradient[i] = gradient[i]-c;}
+			else if (gradient[i]+c<0.0) {pseudoGradient[i] = gradient[i]+c;} // F decreases to the right
+			else if (gradient[i]-c>0.0) {pseudoGradient[i] = gradient[i]-c;} // F decreases to the left
+			else {pseudoGradient[i] = 0.0;}
+		}
+	}
+
+	private static double norm1(double[] vector)
+	{
+		double ret = 0.0;
+		for (double element : vector) {ret += Math.abs(element);}
+		return ret;
+	}
+
+	private static int numberOfNonZeros(double[] vector)
+	{
+		int ret = 0;
+		for (double element : vector) {if (element!=0.0) {++ret;}}
+		return ret;
+	}
+
+
+	// input
+	private final double l1RegularizationFactor; // C
+	private final int numberOfPreviousIterationsToMemorize; // m
+	private final double convergenceSquare;
+
+	private double[] initialPoint = null;
+	private LbfgsMinimizer.DebugInfo debugInfo = null;
+	private DoubleLbfgsCheckpointer checkpointer = null;
+	private DoubleLbfgsCheckpoint resumeFrom = null;
+
+	// internals
+	private boolean calculated = false;
+
+	// output
+	private double[] point = null;
+	private double value = 0.0;
+
+	private static final Logger logger = Logger.getLogger(DoubleOwlqnMinimizer.class);
+}
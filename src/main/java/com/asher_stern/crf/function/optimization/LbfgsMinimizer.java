@@ -10,6 +10,7 @@ import java.util.ListIterator;
 import org.apache.log4j.Logger;
 
 import com.asher_stern.crf.function.DerivableFunction;
+import com.asher_stern.crf.function.ValueAndGradient;
 import com.asher_stern.crf.utilities.CrfException;
 import com.asher_stern.crf.utilities.DerivableFunctionWithLastCache;
 import com.asher_stern.crf.utilities.StringUtilities;
@@ -75,9 +76,10 @@ public class LbfgsMinimizer extends Minimizer<DerivableFunction>
 		LineSearch<DerivableFunction> lineSearch = new ArmijoLineSearch<DerivableFunction>();
 		
 		initializeInitialPoint();
-		value = function.value(point);
+		ValueAndGradient valueAndGradient = function.valueAndGradient(point);
+		value = valueAndGradient.getValue();
 		if (logger.isInfoEnabled()) {logger.info("LBFGS: initial value = "+StringUtilities.bigDecimalToString(value));}
-		BigDecimal[] gradient = function.gradient(point);
+		BigDecimal[] gradient = valueAndGradient.getGradient();
 		BigDecimal previousValue = value;
 		int forLogger_iterationIndex=0;
 		while (VectorUtilities.euclideanNormSquare(gradient).compareTo(convergenceSquare)>0)
@@ -89,13 +91,14 @@ public class LbfgsMinimizer extends Minimizer<DerivableFunction>
 
 			// 1. Update point (which is the vector "x").
 			
-			BigDecimal[] direction = VectorUtilities.multiplyByScalar(BigDecimal.ONE.negate(), twoLoopRecursion(point));
+			BigDecimal[] direction = VectorUtilities.multiplyByScalar(BigDecimal.ONE.negate(), twoLoopRecursion(gradient));
 			BigDecimal alpha_rate = lineSearch.findRate(function, point, direction);
 			point = VectorUtilities.addVectors(point, VectorUtilities.multiplyByScalar(alpha_rate, direction));
 			
 			// 2. Prepare next iteration
-			value = function.value(point);
-			gradient = function.gradient(point);
+			valueAndGradient = function.valueAndGradient(point);
+			value = valueAndGradient.getValue();
+			gradient = valueAndGradient.getGradient();
 
 			previousItrations.add(new PointAndGradientSubstractions(VectorUtilities.subtractVectors(point, previousPoint), VectorUtilities.subtractVectors(gradient, previousGradient)));
 			if (previousItrations.size()>numberOfPreviousIterationsToMemorize)
@@ -155,12 +158,16 @@ public class LbfgsMinimizer extends Minimizer<DerivableFunction>
 	}
 
 	
-	private BigDecimal[] twoLoopRecursion(BigDecimal[] point)
+	/**
+	 * Returns H*gradient, where H is the L-BFGS approximation of the inverse of the Hessian.
+	 * @param gradient the gradient in the current point.
+	 */
+	private BigDecimal[] twoLoopRecursion(BigDecimal[] gradient)
 	{
 		ArrayList<BigDecimal> rhoList = new ArrayList<BigDecimal>(previousItrations.size());
 		ArrayList<BigDecimal> alphaList = new ArrayList<BigDecimal>(previousItrations.size());
 		
-		BigDecimal[] q = function.gradient(point);
+		BigDecimal[] q = gradient;
 		for (PointAndGradientSubstractions substractions : previousItrations)
 		{
 			BigDecimal rho = safeDivide(BigDecimal.ONE, VectorUtilities.product(substractions.getGradientSubstraction(), substractions.getPointSubstraction()));
@@ -0,0 +1,60 @@
+package com.asher_stern.crf.function.optimization;
+
+import com.asher_stern.crf.function.DoubleDerivableFunction;
+
+/**
+ * Represent "-f(x)" for a given {@link DoubleDerivableFunction} "f(x)", over primitive <tt>double</tt>s.
+ * <BR>
+ * Like {@link NegatedFunction}, but keeps the <tt>double</tt> methods of the given function, so it can be minimized
+ * by {@link DoubleLbfgsMinimizer}. {@link #valueAndGradient(double[], double[])} negates the gradient in place, so no array is created.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class NegatedDoubleDerivableFunction extends DoubleDerivableFunction
+{
+	public NegatedDoubleDerivableFunction(DoubleDerivableFunction function)
+	{
+		super();
+		this.function = function;
+	}
+
+	@Override
+	public double value(double[] point)
+	{
+		return -function.value(point);
+	}
+
+	@Override
+	public double[] gradient(double[] point)
+	{
+		double[] gradient = function.gradient(point);
+		double[] ret = new double[gradient.length];
+		for (int i=0;i<gradient.length;++i)
+		{
+			ret[i] = -gradient[i];
+		}
+		return ret;
+	}
+
+	@Override
+	public double valueAndGradient(double[] point, double[] gradient)
+	{
+		double value = function.valueAndGradient(point, gradient);
+		for (int i=0;i<gradient.length;++i)
+		{
+			gradient[i] = -gradient[i];
+		}
+		return -value;
+	}
+
+	@Override
+	public int size()
+	{
+		return function.size();
+	}
+
+
+	private final DoubleDerivableFunction function;
+}
@@ -5,6 +5,7 @@ import java.math.BigDecimal;
 import com.asher_stern.crf.function.DerivableFunction;
 import com.asher_stern.crf.function.Function;
 import com.asher_stern.crf.function.TwiceDerivableFunction;
+import com.asher_stern.crf.function.ValueAndGradient;
 import com.asher_stern.crf.utilities.CrfException;
 
 /**
@@ -59,6 +60,16 @@ public class NegatedFunction extends TwiceDerivableFunction
 		else throw new CrfException("BUG");
 	}
 
+	@Override
+	public ValueAndGradient valueAndGradient(BigDecimal[] point)
+	{
+		ValueAndGradient valueAndGradient = null;
+		if (derivableFunction!=null){valueAndGradient = derivableFunction.valueAndGradient(point);}
+		else if (twiceDerivableFunction!=null){valueAndGradient = twiceDerivableFunction.valueAndGradient(point);}
+		else throw new CrfException("BUG");
+		return new ValueAndGradient(valueAndGradient.getValue().negate(), negate(valueAndGradient.getGradient()));
+	}
+
 	@Override
 	public BigDecimal[][] hessian(BigDecimal[] point)
 	{
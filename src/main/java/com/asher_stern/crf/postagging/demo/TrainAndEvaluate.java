@@ -8,10 +8,14 @@ import java.util.List;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import com.asher_stern.crf.crf.CompiledCrfModel;
+import com.asher_stern.crf.crf.run.CrfBeamSearchEvaluator;
+import com.asher_stern.crf.crf.run.CrfInferencePerformer;
 import com.asher_stern.crf.postagging.data.TrainTestPosTagCorpus;
 import com.asher_stern.crf.postagging.data.penn.PennCorpus;
 import com.asher_stern.crf.postagging.evaluation.AccuracyEvaluator;
 import com.asher_stern.crf.postagging.postaggers.PosTagger;
+import com.asher_stern.crf.postagging.postaggers.crf.CrfPosTagger;
 import com.asher_stern.crf.postagging.postaggers.crf.CrfPosTaggerTrainer;
 import com.asher_stern.crf.postagging.postaggers.crf.CrfPosTaggerTrainerFactory;
 import com.asher_stern.crf.utilities.ExceptionUtil;
@@ -33,11 +37,20 @@ public class TrainAndEvaluate
 	/**
 	 * 
 	 * @param args 1. corpus. 2. train-size (how many train sentences, where the rest are test sentences). 3. (optional) test-size
-	 * 4. (optional) directory-name for saving the trained pos-tagger model.
+	 * 4. (optional) directory-name for saving the trained pos-tagger model ("-" for not saving).
+	 * 5. (optional) minimum frequency of the tag dictionary (see {@link CrfPosTaggerTrainerFactory#setTagDictionaryMinimumFrequency(int)}).
+	 * 6. (optional) beam width (see {@link CrfInferencePerformer#setBeamWidth(int)}).
 	 * <BR>
 	 * If train-size <=0, then the whole corpus is train, and the test is on the training data.
 	 * <BR>
 	 * If test-size is omitted or <=0, then the whole (remaining sentences in the) corpus is the test data.
+	 * <BR>
+	 * If the minimum frequency of the tag dictionary is omitted or <=0, no tag dictionary is used. Otherwise, the training time,
+	 * the tagging time and the accuracy should be compared with those of a run without a tag dictionary: the tag dictionary makes
+	 * the training and the tagging faster, at the cost of a (typically small) loss of accuracy.
+	 * <BR>
+	 * If the beam width is omitted or <=0, the test data is tagged by the Viterbi algorithm. Otherwise, it is tagged by beam search,
+	 * and the beam search is compared with the Viterbi algorithm on the test data (see {@link CrfBeamSearchEvaluator}).
 	 */
 	public static void main(String[] args)
 	{
@@ -47,8 +60,13 @@ public class TrainAndEvaluate
 			int testSize = 0;
 			if (args.length>=3) {testSize = Integer.parseInt(args[2]);}
 			String loadSaveDirectoryName = null;
-			if (args.length>=4) {loadSaveDirectoryName = args[3];}
-			new TrainAndEvaluate(args[0],Integer.parseInt(args[1]),testSize,loadSaveDirectoryName).go();
+			if ( (args.length>=4) && (!"-".equals(args[3])) ) {loadSaveDirectoryName = args[3];}
+			int tagDictionaryMinimumFrequency = 0;
+			if (args.length>=5) {tagDictionaryMinimumFrequency = Integer.parseInt(args[4]);}
+			TrainAndEvaluate trainAndEvaluate = new TrainAndEvaluate(args[0],Integer.parseInt(args[1]),testSize,loadSaveDirectoryName);
+			trainAndEvaluate.setTagDictionaryMinimumFrequency(tagDictionaryMinimumFrequency);
+			if (args.length>=6) {trainAndEvaluate.setBeamWidth(Integer.parseInt(args[5]));}
+			trainAndEvaluate.go();
 		}
 		catch(Throwable t)
 		{
@@ -71,6 +89,24 @@ public class TrainAndEvaluate
 		logger.info("trainSize = " + trainSize);
 		logger.info("testSize = " + testSize);
 	}
+	
+	/**
+	 * Optional setter. If the given value is positive, a tag dictionary with this minimum frequency is used.
+	 * Otherwise (or if this method was not called), no tag dictionary is used.
+	 */
+	public void setTagDictionaryMinimumFrequency(int tagDictionaryMinimumFrequency)
+	{
+		this.tagDictionaryMinimumFrequency = tagDictionaryMinimumFrequency;
+	}
+	
+	/**
+	 * Optional setter. If the given value is positive, the test data is tagged by beam search with this beam width, and the
+	 * beam search is compared with the Viterbi algorithm. Otherwise (or if this method was not called), the Viterbi algorithm is used.
+	 */
+	public void setBeamWidth(int beamWidth)
+	{
+		this.beamWidth = beamWidth;
+	}
 
 
 
@@ -84,15 +120,37 @@ public class TrainAndEvaluate
 		logger.info("Training - done.");
 		logger.info(RuntimeUtilities.getUsedMemory());
 		
+		if ( (beamWidth>0) && (posTagger instanceof CrfPosTagger) )
+		{
+			((CrfPosTagger)posTagger).getInferencePerformer().setBeamWidth(beamWidth);
+		}
+		
 		logger.info("Evaluating...");
 		AccuracyEvaluator evaluator = new AccuracyEvaluator(corpus.createTestCorpus(), posTagger
 //				, new PrintWriter(System.out) // comment out this line to prevent tagged test sentence from being printed.
 				);
+		long evaluationStartTime = new Date().getTime();
 		evaluator.evaluate();
+		long evaluationMilliseconds = new Date().getTime()-evaluationStartTime;
+		logger.info((tagDictionaryMinimumFrequency>0)?("Tag dictionary: minimum frequency = "+tagDictionaryMinimumFrequency):"Tag dictionary: not used");
 		logger.info(trainingTime);
+		logger.info("Tagging time (milliseconds) = "+evaluationMilliseconds);
+		if ( (posTagger instanceof CrfPosTagger) && (((CrfPosTagger)posTagger).getInferencePerformer().getCompiledModel()!=null) )
+		{
+			CompiledCrfModel<String, String> compiledModel = ((CrfPosTagger)posTagger).getInferencePerformer().getCompiledModel();
+			logger.info("Emission table: lookups = "+compiledModel.getNumberOfEmissionLookups()+", known-token rate = "+String.format("%-3.3f", compiledModel.getKnownTokenRate()));
+		}
 		logger.info("Accuracy = " + String.format("%-3.3f", evaluator.getAccuracy()));
 		logger.info("Correct = "+evaluator.getCorrect());
 		logger.info("Incorrect = "+evaluator.getIncorrect());
+		
+		if ( (beamWidth>0) && (posTagger instanceof CrfPosTagger) )
+		{
+			logger.info("Comparing beam search with Viterbi...");
+			CrfBeamSearchEvaluator<String, String> beamSearchEvaluator = new CrfBeamSearchEvaluator<String, String>(corpus.createTestCorpus(), ((CrfPosTagger)posTagger).getInferencePerformer());
+			beamSearchEvaluator.evaluate();
+			logger.info(beamSearchEvaluator.getReport());
+		}
 	}
 	
 
@@ -117,7 +175,12 @@ public class TrainAndEvaluate
 			corpusAsList.add(sentence);
 		}
 		
-		CrfPosTaggerTrainer trainer = new CrfPosTaggerTrainerFactory().createTrainer(corpusAsList);
+		CrfPosTaggerTrainerFactory trainerFactory = new CrfPosTaggerTrainerFactory();
+		if (tagDictionaryMinimumFrequency>0)
+		{
+			trainerFactory.setTagDictionaryMinimumFrequency(tagDictionaryMinimumFrequency);
+		}
+		CrfPosTaggerTrainer trainer = trainerFactory.createTrainer(corpusAsList);
 		trainer.train(corpusAsList);
 
 		long seconds = (new Date().getTime()-timeInit)/1000;
@@ -142,6 +205,9 @@ public class TrainAndEvaluate
 	private final int testSize;
 	private final String loadSaveDirectoryName;
 	
+	private int tagDictionaryMinimumFrequency = 0;
+	private int beamWidth = 0;
+	
 	private String trainingTime = null;
 	
 	private static final Logger logger = Logger.getLogger(TrainAndEvaluate.class);
@@ -31,6 +31,10 @@ import com.asher_stern.crf.utilities.log4j.Log4jInit;
  */
 public class UsePosTagger
 {
+	/**
+	 * The number of sentences given together to {@link CrfPosTagger#tagSentences(List)}.
+	 */
+	public static final int SENTENCES_PER_BATCH = 1000;
 
 	/**
 	 * Entry point
@@ -77,22 +81,33 @@ public class UsePosTagger
 		{
 			try(PrintWriter writer = new PrintWriter(outputFile))
 			{
-				String line = reader.readLine();
-				while (line!=null)
+				List<List<String>> sentences = new ArrayList<List<String>>(SENTENCES_PER_BATCH);
+				boolean endOfInput = false;
+				while (!endOfInput)
 				{
-					line = line.trim();
-					if (line.length()<=0)
+					// Read a batch of sentences, and tag them together.
+					sentences.clear();
+					while ( (!endOfInput) && (sentences.size()<SENTENCES_PER_BATCH) )
 					{
-						break;
+						String line = reader.readLine();
+						if (line!=null) {line = line.trim();}
+						if ( (null==line) || (line.length()<=0) )
+						{
+							endOfInput = true;
+						}
+						else
+						{
+							String[] tokens = line.split("\\s+");
+							ArrayList<String> listTokens = new ArrayList<String>(tokens.length);
+							for (String token : tokens) {listTokens.add(token);}
+							sentences.add(listTokens);
+						}
 					}
 					
-					String[] tokens = line.split("\\s+");
-					ArrayList<String> listTokens = new ArrayList<String>(tokens.length);
-					for (String token : tokens) {listTokens.add(token);}
-					List<TaggedToken<String,String>> taggedTokens = posTagger.tagSentence(listTokens);
-					writer.println(representTaggedTokens(taggedTokens));
-					
-					line = reader.readLine();
+					for (List<TaggedToken<String,String>> taggedTokens : posTagger.tagSentences(sentences))
+					{
+						writer.println(representTaggedTokens(taggedTokens));
+					}
 				}
 			}
 		}
@@ -20,6 +20,11 @@ import com.asher_stern.crf.utilities.TaggedToken;
  */
 public class AccuracyEvaluator
 {
+	/**
+	 * The number of sentences given together to {@link PosTagger#tagSentences(List)}.
+	 */
+	public static final int SENTENCES_PER_BATCH = 1000;
+	
 	public AccuracyEvaluator(Iterable<? extends List<? extends TaggedToken<String, String>>> corpus, PosTagger posTagger)
 	{
 		this(corpus,posTagger,null);
@@ -43,23 +48,38 @@ public class AccuracyEvaluator
 		Iterator<? extends List<? extends TaggedToken<String, String>>> reader = corpus.iterator();
 		
 		int debug_index=0;
+		List<List<? extends TaggedToken<String, String>>> taggedSentences = new ArrayList<List<? extends TaggedToken<String, String>>>(SENTENCES_PER_BATCH);
+		List<List<String>> sentences = new ArrayList<List<String>>(SENTENCES_PER_BATCH);
 		while (reader.hasNext())
 		{
-			List<? extends TaggedToken<String, String>> taggedSentence = reader.next();
-			++debug_index;
-			List<String> sentence = taggedSentenceToSentence(taggedSentence);
-			List<TaggedToken<String,String>> taggedByPosTagger = posTagger.tagSentence(sentence);
-			evaluateSentence(taggedSentence,taggedByPosTagger);
-			
-			if (taggedTestWriter!=null)
+			// Read a batch of sentences, and tag them together.
+			taggedSentences.clear();
+			sentences.clear();
+			while ( (reader.hasNext()) && (taggedSentences.size()<SENTENCES_PER_BATCH) )
 			{
-				taggedTestWriter.println(printSentence(taggedSentence));
-				taggedTestWriter.println(printSentence(taggedByPosTagger));
+				List<? extends TaggedToken<String, String>> taggedSentence = reader.next();
+				taggedSentences.add(taggedSentence);
+				sentences.add(taggedSentenceToSentence(taggedSentence));
 			}
+			List<List<TaggedToken<String,String>>> allTaggedByPosTagger = posTagger.tagSentences(sentences);
 			
-			if (logger.isDebugEnabled())
+			for (int index=0;index<taggedSentences.size();++index)
 			{
-				if ((debug_index%100)==0){logger.debug("Evaluated: "+debug_index);}	
+				List<? extends TaggedToken<String, String>> taggedSentence = taggedSentences.get(index);
+				List<TaggedToken<String,String>> taggedByPosTagger = allTaggedByPosTagger.get(index);
+				++debug_index;
+				evaluateSentence(taggedSentence,taggedByPosTagger);
+				
+				if (taggedTestWriter!=null)
+				{
+					taggedTestWriter.println(printSentence(taggedSentence));
+					taggedTestWriter.println(printSentence(taggedByPosTagger));
+				}
+				
+				if (logger.isDebugEnabled())
+				{
+					if ((debug_index%100)==0){logger.debug("Evaluated: "+debug_index);}	
+				}
 			}
 		}
 		if (taggedTestWriter!=null) {taggedTestWriter.flush();}
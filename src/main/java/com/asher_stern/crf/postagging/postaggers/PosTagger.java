@@ -1,5 +1,6 @@
 package com.asher_stern.crf.postagging.postaggers;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.asher_stern.crf.utilities.TaggedToken;
@@ -19,4 +20,19 @@ public interface PosTagger
 	 * @return The tagged sentence.
 	 */
 	public List<TaggedToken<String,String>> tagSentence(List<String> sentence);
+	
+	/**
+	 * Assigns tags for each token in each of the given sentences. Implementations may tag the sentences concurrently.
+	 * @param sentences Input sentences, each given as a list of tokens.
+	 * @return The tagged sentences, in the order of the given sentences.
+	 */
+	public default List<List<TaggedToken<String,String>>> tagSentences(List<? extends List<String>> sentences)
+	{
+		List<List<TaggedToken<String,String>>> ret = new ArrayList<List<TaggedToken<String,String>>>(sentences.size());
+		for (List<String> sentence : sentences)
+		{
+			ret.add(tagSentence(sentence));
+		}
+		return ret;
+	}
 }
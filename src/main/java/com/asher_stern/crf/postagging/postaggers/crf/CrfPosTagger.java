@@ -2,6 +2,7 @@ package com.asher_stern.crf.postagging.postaggers.crf;
 
 import java.util.List;
 
+import com.asher_stern.crf.crf.CompiledCrfModel;
 import com.asher_stern.crf.crf.run.CrfInferencePerformer;
 import com.asher_stern.crf.postagging.postaggers.PosTagger;
 import com.asher_stern.crf.utilities.TaggedToken;
@@ -19,6 +20,14 @@ public class CrfPosTagger implements PosTagger
 	{
 		this.inferencePerformer = inferencePerformer;
 	}
+	
+	/**
+	 * Constructs a part-of-speech tagger which tags by the given compiled model, which can be shared by any number of taggers.
+	 */
+	public CrfPosTagger(CompiledCrfModel<String, String> compiledModel)
+	{
+		this(new CrfInferencePerformer<String, String>(compiledModel));
+	}
 
 	@Override
 	public List<TaggedToken<String,String>> tagSentence(List<String> sentence)
@@ -26,6 +35,20 @@ public class CrfPosTagger implements PosTagger
 		return inferencePerformer.tagSequence(sentence);
 	}
 	
+	public CrfInferencePerformer<String, String> getInferencePerformer()
+	{
+		return inferencePerformer;
+	}
+	
+	/**
+	 * Tags the given sentences concurrently. See {@link CrfInferencePerformer#tagBatch(List)}.
+	 */
+	@Override
+	public List<List<TaggedToken<String,String>>> tagSentences(List<? extends List<String>> sentences)
+	{
+		return inferencePerformer.tagBatch(sentences);
+	}
+	
 	
 	private final CrfInferencePerformer<String, String> inferencePerformer;
 
@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 
+import com.asher_stern.crf.crf.CompiledCrfModel;
 import com.asher_stern.crf.crf.CrfModel;
 import com.asher_stern.crf.crf.run.CrfInferencePerformer;
 import com.asher_stern.crf.postagging.postaggers.PosTaggerLoader;
@@ -34,6 +35,10 @@ public class CrfPosTaggerLoader implements PosTaggerLoader
 		{
 			@SuppressWarnings("unchecked")
 			CrfModel<String, String> model = (CrfModel<String, String>) inputStream.readObject();
+			if (CompiledCrfModel.canCompile(model))
+			{
+				return new CrfPosTagger(CompiledCrfModel.compile(model));
+			}
 			return new CrfPosTagger(new CrfInferencePerformer<String, String>(model));
 		}
 		catch (IOException | ClassNotFoundException e)
@@ -7,6 +7,7 @@ import com.asher_stern.crf.crf.run.CrfTrainer;
 import com.asher_stern.crf.crf.run.CrfTrainerFactory;
 import com.asher_stern.crf.postagging.postaggers.crf.features.StandardFeatureGenerator;
 import com.asher_stern.crf.postagging.postaggers.crf.features.StandardFilterFactory;
+import com.asher_stern.crf.postagging.postaggers.crf.features.Vocabulary;
 import com.asher_stern.crf.utilities.TaggedToken;
 
 
@@ -19,6 +20,15 @@ import com.asher_stern.crf.utilities.TaggedToken;
  */
 public class CrfPosTaggerTrainerFactory
 {
+	/**
+	 * Optional setter. If called, the trainer uses a tag dictionary with the given minimum frequency.
+	 * See {@link CrfTrainerFactory#setTagDictionaryMinimumFrequency(int)}.
+	 */
+	public void setTagDictionaryMinimumFrequency(int tagDictionaryMinimumFrequency)
+	{
+		this.tagDictionaryMinimumFrequency = tagDictionaryMinimumFrequency;
+	}
+	
 	/**
 	 * Creates a {@link CrfPosTaggerTrainer} for a given corpus.
 	 * 
@@ -28,12 +38,19 @@ public class CrfPosTaggerTrainerFactory
 	public CrfPosTaggerTrainer createTrainer(List<List<? extends TaggedToken<String, String>>> corpus)
 	{
 		CrfTrainerFactory<String, String> factory = new CrfTrainerFactory<String, String>();
+		if (tagDictionaryMinimumFrequency!=null)
+		{
+			factory.setTagDictionaryMinimumFrequency(tagDictionaryMinimumFrequency);
+		}
+		final Vocabulary vocabulary = Vocabulary.build(corpus);
 		CrfTrainer<String, String> crfTrainer = factory.createTrainer(corpus,
-				(Iterable<? extends List<? extends TaggedToken<String, String>>> theCorpus, Set<String> tags) -> new StandardFeatureGenerator(theCorpus, tags),
-				new StandardFilterFactory());
+				(Iterable<? extends List<? extends TaggedToken<String, String>>> theCorpus, Set<String> tags) -> new StandardFeatureGenerator(theCorpus, tags, vocabulary),
+				new StandardFilterFactory(vocabulary));
 		CrfPosTaggerTrainer trainer = new CrfPosTaggerTrainer(crfTrainer);
 
 		return trainer;
 	}
-
+	
+	
+	private Integer tagDictionaryMinimumFrequency = null;
 }
@@ -27,16 +27,19 @@ public class CaseInsensitiveTokenAndTagFeature extends CrfFeature<String, String
 	public double value(String[] sequence, int indexInSequence,
 			String currentTag, String previousTag)
 	{
-		String tokenInSentence_lowerCase = sequence[indexInSequence];
-		if (tokenInSentence_lowerCase!=null)
-		{
-			tokenInSentence_lowerCase = tokenInSentence_lowerCase.toLowerCase();
-		}
-		
+		// The tag is compared first, so the token is lower-cased only when the tag matches.
 		double ret = 0.0;
-		if ( equalObjects(tokenInSentence_lowerCase, tokenLowerCase) && equalObjects(currentTag, tag))
+		if (equalObjects(currentTag, tag))
 		{
-			ret = 1.0;
+			String tokenInSentence_lowerCase = sequence[indexInSequence];
+			if (tokenInSentence_lowerCase!=null)
+			{
+				tokenInSentence_lowerCase = tokenInSentence_lowerCase.toLowerCase();
+			}
+			if (equalObjects(tokenInSentence_lowerCase, tokenLowerCase))
+			{
+				ret = 1.0;
+			}
 		}
 		return ret;
 	}
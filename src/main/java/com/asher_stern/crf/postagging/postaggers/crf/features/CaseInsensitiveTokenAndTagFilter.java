@@ -1,5 +1,6 @@
 package com.asher_stern.crf.postagging.postaggers.crf.features;
 
+import com.asher_stern.crf.crf.filters.CompiledFilters;
 import com.asher_stern.crf.crf.filters.Filter;
 
 /**
@@ -13,6 +14,11 @@ public class CaseInsensitiveTokenAndTagFilter extends Filter<String, String>
 {
 	private static final long serialVersionUID = -4114831547683222843L;
 	
+	/**
+	 * The kind of {@link CaseInsensitiveTokenAndTagFilter} in {@link CompiledFilters#key(int, int, int, int)}.
+	 */
+	public static final int COMPILED_KIND = 4;
+	
 	public CaseInsensitiveTokenAndTagFilter(String token, String tag)
 	{
 		super();
@@ -23,6 +29,20 @@ public class CaseInsensitiveTokenAndTagFilter extends Filter<String, String>
 	
 	
 	
+	/**
+	 * The token of the key is the lower-case token. See {@link StandardFilterFactory#encodeSentence(String[], CompiledFilters)}.
+	 */
+	@Override
+	public long compile(CompiledFilters<String, String> compiledFilters)
+	{
+		int tagId = compiledFilters.getTagId(tag);
+		if (tagId<0) {return CompiledFilters.NEVER_MATCHES;}
+		int tokenId = compiledFilters.internToken(token_lowerCase);
+		if (CompiledFilters.UNKNOWN_TOKEN_ID==tokenId) {return CompiledFilters.NOT_COMPILED;}
+		return CompiledFilters.key(COMPILED_KIND, tokenId, tagId, 0);
+	}
+	
+	
 	@Override
 	public int hashCode()
 	{
@@ -1,9 +1,13 @@
 package com.asher_stern.crf.postagging.postaggers.crf.features;
 
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import com.asher_stern.crf.crf.CrfUtilities;
 import com.asher_stern.crf.crf.filters.CrfFilteredFeature;
 import com.asher_stern.crf.crf.filters.TwoTagsFilter;
 import com.asher_stern.crf.crf.run.CrfFeatureGenerator;
@@ -17,6 +21,8 @@ import com.asher_stern.crf.utilities.TaggedToken;
  * <LI>For each token and tag - a feature that models that that token is assigned that tag.</LI>
  * <LI>For each tag that follows a preceding tag - a feature that models this tag transition.</LI>
  * </OL>
+ * The tokens of the corpus are read by their ids in a {@link Vocabulary}, so each distinct lower-case token is lower-cased
+ * once, and the features of all its occurrences share the same {@link String}.
  * 
  * @author Asher Stern
  * Date: Nov 10, 2014
@@ -26,8 +32,17 @@ public class StandardFeatureGenerator extends CrfFeatureGenerator<String,String>
 {
 
 	public StandardFeatureGenerator(Iterable<? extends List<? extends TaggedToken<String, String> >> corpus, Set<String> tags)
+	{
+		this(corpus, tags, Vocabulary.build(corpus));
+	}
+	
+	/**
+	 * Constructor with the vocabulary of the corpus, which should be the same vocabulary given to the {@link StandardFilterFactory}.
+	 */
+	public StandardFeatureGenerator(Iterable<? extends List<? extends TaggedToken<String, String> >> corpus, Set<String> tags, Vocabulary vocabulary)
 	{
 		super(corpus, tags);
+		this.vocabulary = vocabulary;
 	}
 
 	@Override
@@ -49,14 +64,32 @@ public class StandardFeatureGenerator extends CrfFeatureGenerator<String,String>
 	
 	private void addTokenAndTagFeatures()
 	{
+		Map<String, BitSet> addedTokensPerTag = new HashMap<String, BitSet>();
 		for (List<? extends TaggedToken<String, String> > sentence : corpus)
 		{
+			if (sentence.isEmpty()) {continue;}
+			int[] encodedSentence = CrfUtilities.extractSentence(sentence, vocabulary);
+			int index = 0;
 			for (TaggedToken<String, String> taggedToken : sentence)
 			{
+				final int tokenId = encodedSentence[index];
+				++index;
+				if (tokenId<0) {throw new CrfException("The token \""+taggedToken.getToken()+"\" is not in the vocabulary.");}
+				
+				BitSet addedTokens = addedTokensPerTag.get(taggedToken.getTag());
+				if (null==addedTokens)
+				{
+					addedTokens = new BitSet(vocabulary.size());
+					addedTokensPerTag.put(taggedToken.getTag(), addedTokens);
+				}
+				if (addedTokens.get(tokenId)) {continue;}
+				addedTokens.set(tokenId);
+				
+				String token = vocabulary.getToken(tokenId);
 				setFilteredFeatures.add(
 						new CrfFilteredFeature<String, String>(
-								new CaseInsensitiveTokenAndTagFeature(taggedToken.getToken(), taggedToken.getTag()),
-								new CaseInsensitiveTokenAndTagFilter(taggedToken.getToken(), taggedToken.getTag()),
+								new CaseInsensitiveTokenAndTagFeature(token, taggedToken.getTag()),
+								new CaseInsensitiveTokenAndTagFilter(token, taggedToken.getTag()),
 								true
 								)
 						);
@@ -90,5 +123,6 @@ public class StandardFeatureGenerator extends CrfFeatureGenerator<String,String>
 	
 	
 
+	protected final Vocabulary vocabulary;
 	protected Set<CrfFilteredFeature<String, String>> setFilteredFeatures = null;
 }
@@ -3,20 +3,40 @@ package com.asher_stern.crf.postagging.postaggers.crf.features;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
+import com.asher_stern.crf.crf.TokenEncoder;
+import com.asher_stern.crf.crf.filters.CompilableFilterFactory;
+import com.asher_stern.crf.crf.filters.CompiledFilters;
 import com.asher_stern.crf.crf.filters.Filter;
-import com.asher_stern.crf.crf.filters.FilterFactory;
 import com.asher_stern.crf.crf.filters.TwoTagsFilter;
 
 /**
- * A {@link FilterFactory} for the features generated by the {@link StandardFeatureGenerator}.
+ * A {@link CompilableFilterFactory} for the features generated by the {@link StandardFeatureGenerator}.
+ * <BR>
+ * If constructed with a {@link Vocabulary}, the token-ids of the compiled filters are the ids of that vocabulary, and
+ * sentences are encoded by it (see {@link #encodeSentence(String[], CompiledFilters)}).
  * 
  * @author Asher Stern
  * Date: Nov 11, 2014
  *
  */
-public class StandardFilterFactory implements FilterFactory<String, String>
+public class StandardFilterFactory implements CompilableFilterFactory<String, String>
 {
 	private static final long serialVersionUID = 6283122214266870374L;
+	
+	public StandardFilterFactory()
+	{
+		this(null);
+	}
+	
+	/**
+	 * Constructs a filter factory whose compiled filters use the ids of the given vocabulary.
+	 * @param vocabulary the vocabulary of the corpus, or null.
+	 */
+	public StandardFilterFactory(Vocabulary vocabulary)
+	{
+		super();
+		this.vocabulary = vocabulary;
+	}
 
 	@Override
 	public Set<Filter<String, String>> createFilters(String[] sequence, int tokenIndex, String currentTag, String previousTag)
@@ -28,4 +48,53 @@ public class StandardFilterFactory implements FilterFactory<String, String>
 		ret.add(new CaseInsensitiveTokenAndTagFilter(token, currentTag));
 		return ret;
 	}
+
+	@Override
+	public int getMaximumNumberOfFilterKeys()
+	{
+		return 2;
+	}
+
+	@Override
+	public TokenEncoder<String> getTokenEncoder()
+	{
+		return vocabulary;
+	}
+
+	/**
+	 * Encodes each token by the token-id of its lower-case form.
+	 * If this filter factory has a {@link Vocabulary}, the tokens are encoded by that vocabulary, which does not lower-case the tokens it has seen.
+	 */
+	@Override
+	public int[] encodeSentence(String[] sequence, CompiledFilters<String, String> compiledFilters)
+	{
+		if (vocabulary!=null) {return vocabulary.encode(sequence);}
+		int[] ret = new int[sequence.length];
+		for (int index=0;index<sequence.length;++index)
+		{
+			ret[index] = compiledFilters.getTokenId( (sequence[index]==null)?null:sequence[index].toLowerCase() );
+		}
+		return ret;
+	}
+
+	@Override
+	public int createFilterKeys(int[] encodedSequence, int tokenIndex, int tagId, int previousTagId, long[] keys)
+	{
+		keys[0] = CompiledFilters.key(TwoTagsFilter.COMPILED_KIND, CompiledFilters.UNKNOWN_TOKEN_ID, tagId, previousTagId);
+		keys[1] = CompiledFilters.key(CaseInsensitiveTokenAndTagFilter.COMPILED_KIND, encodedSequence[tokenIndex], tagId, 0);
+		return 2;
+	}
+	
+	/**
+	 * The key of {@link TwoTagsFilter} does not examine the token, and the key of {@link CaseInsensitiveTokenAndTagFilter}
+	 * does not examine the previous tag.
+	 */
+	@Override
+	public boolean hasSeparableFilterKeys()
+	{
+		return true;
+	}
+	
+	
+	private final Vocabulary vocabulary; // null for filter factories created (or serialized) without a vocabulary
 }
@@ -0,0 +1,129 @@
+package com.asher_stern.crf.postagging.postaggers.crf.features;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.asher_stern.crf.crf.TokenEncoder;
+import com.asher_stern.crf.crf.filters.CompiledFilters;
+import com.asher_stern.crf.utilities.TaggedToken;
+
+/**
+ * The vocabulary of a corpus: each distinct lower-case token is given an int id, such that tokens which differ only in
+ * their case get the same id (as in {@link CaseInsensitiveTokenAndTagFeature} and {@link CaseInsensitiveTokenAndTagFilter}).
+ * <BR>
+ * Each token of the corpus is lower-cased only once, when it is added. In addition, each form of a token as it appears in the
+ * corpus is mapped directly to its id, so encoding a token of the corpus (see {@link #encode(String)}) neither lower-cases it
+ * nor creates any new string. Only the lower-case tokens are serialized: the forms of the tokens are mapped again, as they
+ * are encoded.
+ * <BR>
+ * The vocabulary is the {@link TokenEncoder} of the {@link StandardFilterFactory}, and its ids are therefore the token-ids of
+ * the compiled filters (see {@link CompiledFilters}).
+ * <BR>
+ * {@link #add(String)} is not thread safe, but once all the tokens have been added, the other methods can be called concurrently.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class Vocabulary implements TokenEncoder<String>
+{
+	private static final long serialVersionUID = -2043861734578227164L;
+
+	/**
+	 * Creates a vocabulary of all the tokens in the given corpus.
+	 */
+	public static Vocabulary build(Iterable<? extends List<? extends TaggedToken<String, String>>> corpus)
+	{
+		Vocabulary ret = new Vocabulary();
+		for (List<? extends TaggedToken<String, String>> sentence : corpus)
+		{
+			for (TaggedToken<String, String> taggedToken : sentence)
+			{
+				ret.add(taggedToken.getToken());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the given token (if it is not already in the vocabulary), and returns its id.
+	 */
+	public int add(String token)
+	{
+		if (null==token) {return CompiledFilters.UNKNOWN_TOKEN_ID;}
+		Integer id = surfaceFormIds.get(token);
+		if (null==id)
+		{
+			String lowerCase = token.toLowerCase();
+			id = lowerCaseIds.get(lowerCase);
+			if (null==id)
+			{
+				id = lowerCaseTokens.size();
+				lowerCaseTokens.add(lowerCase);
+				lowerCaseIds.put(lowerCase, id);
+			}
+			surfaceFormIds.put(token, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the id of the given token, or {@link CompiledFilters#UNKNOWN_TOKEN_ID} if the token is not in the vocabulary.
+	 * Only tokens whose exact form has not been added or encoded before are lower-cased.
+	 */
+	@Override
+	public int encode(String token)
+	{
+		if (null==token) {return CompiledFilters.UNKNOWN_TOKEN_ID;}
+		Integer id = surfaceFormIds.get(token);
+		if (null==id)
+		{
+			id = lowerCaseIds.get(token.toLowerCase());
+			if (null==id) {return CompiledFilters.UNKNOWN_TOKEN_ID;}
+			surfaceFormIds.put(token, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the lower-case token whose id is the given id.
+	 * The same {@link String} object is returned for all the tokens that have that id.
+	 */
+	public String getToken(int id)
+	{
+		return lowerCaseTokens.get(id);
+	}
+
+	/**
+	 * Returns the number of distinct lower-case tokens.
+	 */
+	public int size()
+	{
+		return lowerCaseTokens.size();
+	}
+
+
+	/**
+	 * The maps are not serialized, but rebuilt from the lower-case tokens. The forms of the tokens are mapped when they are encoded.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		lowerCaseIds = new HashMap<String, Integer>();
+		for (int id=0;id<lowerCaseTokens.size();++id)
+		{
+			lowerCaseIds.put(lowerCaseTokens.get(id), id);
+		}
+		surfaceFormIds = new ConcurrentHashMap<String, Integer>();
+	}
+
+
+	private final List<String> lowerCaseTokens = new ArrayList<String>();
+	private transient Map<String, Integer> lowerCaseIds = new HashMap<String, Integer>();
+	private transient Map<String, Integer> surfaceFormIds = new ConcurrentHashMap<String, Integer>(); // filled by add() and by encode()
+}
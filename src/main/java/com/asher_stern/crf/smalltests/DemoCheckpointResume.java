@@ -0,0 +1,205 @@
+package com.asher_stern.crf.smalltests;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+
+import com.asher_stern.crf.function.DoubleDerivableFunction;
+import com.asher_stern.crf.function.optimization.DoubleLbfgsCheckpoint;
+import com.asher_stern.crf.function.optimization.DoubleLbfgsCheckpointer;
+import com.asher_stern.crf.function.optimization.DoubleLbfgsMinimizer;
+import com.asher_stern.crf.function.optimization.DoubleOwlqnMinimizer;
+import com.asher_stern.crf.utilities.CrfException;
+import com.asher_stern.crf.utilities.log4j.Log4jInit;
+
+/**
+ * Demonstrates that a minimization which is interrupted, and then resumed from its last checkpoint (see {@link DoubleLbfgsCheckpoint}),
+ * finds exactly the point found by a minimization which is not interrupted.
+ * <BR>
+ * Usage: DemoCheckpointResume [checkpoint-file]
+ * <BR>
+ * For {@link DoubleLbfgsMinimizer} and for {@link DoubleOwlqnMinimizer}, a regularized logistic loss is minimized once without
+ * interruption, and once with checkpoints, where the function fails after some evaluations (as if the JVM died). A new minimizer
+ * then resumes from the checkpoint file, and the two final points are compared. Finally, resuming a checkpoint of one kind of
+ * minimizer by the other kind is shown to be rejected.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class DemoCheckpointResume
+{
+	public static final int SIZE = 50;
+	public static final int NUMBER_OF_EXAMPLES = 400;
+	public static final int CHECKPOINT_INTERVAL = 3;
+	public static final int EVALUATIONS_BEFORE_INTERRUPTION = 12;
+	public static final double L1_REGULARIZATION_FACTOR = 0.5;
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			Log4jInit.init(Level.WARN);
+			File file = (args.length>0)?new File(args[0]):File.createTempFile("lbfgs", ".checkpoint");
+			new DemoCheckpointResume().go(file);
+		}
+		catch(Throwable t)
+		{
+			t.printStackTrace(System.out);
+		}
+	}
+
+	public void go(File file)
+	{
+		boolean lbfgsIdentical = Arrays.equals(minimize(false, null, false, null), resume(false, file));
+		System.out.println("L-BFGS: the resumed minimization found the same point: "+lbfgsIdentical);
+		boolean owlqnIdentical = Arrays.equals(minimize(true, null, false, null), resume(true, file));
+		System.out.println("OWL-QN: the resumed minimization found the same point: "+owlqnIdentical);
+
+		// The file now holds a checkpoint of OWL-QN.
+		try
+		{
+			minimize(false, null, false, DoubleLbfgsCheckpoint.read(file));
+			System.out.println("L-BFGS resumed from a checkpoint of OWL-QN. This should not happen.");
+		}
+		catch (CrfException e)
+		{
+			System.out.println("L-BFGS rejected a checkpoint of OWL-QN: "+e.getMessage());
+		}
+		file.delete();
+	}
+
+
+
+	/**
+	 * Minimizes with checkpoints into the given file, interrupts, and resumes from the checkpoint. Returns the final point.
+	 */
+	private double[] resume(boolean owlqn, File file)
+	{
+		file.delete();
+		try
+		{
+			minimize(owlqn, file, true, null);
+			throw new CrfException("The minimization has not been interrupted.");
+		}
+		catch (InterruptionException e)
+		{
+			// The checkpoint file holds the state of the last checkpoint before the interruption.
+		}
+		DoubleLbfgsCheckpoint checkpoint = DoubleLbfgsCheckpoint.read(file);
+		System.out.println((owlqn?"OWL-QN":"L-BFGS")+": interrupted, resuming from the checkpoint of iteration "+checkpoint.getIteration()+".");
+		return minimize(owlqn, null, false, checkpoint);
+	}
+
+	private double[] minimize(boolean owlqn, File checkpointFile, boolean interrupt, DoubleLbfgsCheckpoint resumeFrom)
+	{
+		DoubleDerivableFunction function = new LogisticLoss(interrupt?EVALUATIONS_BEFORE_INTERRUPTION:Integer.MAX_VALUE);
+		DoubleLbfgsCheckpointer checkpointer = (checkpointFile!=null)?new DoubleLbfgsCheckpointer(checkpointFile, CHECKPOINT_INTERVAL):null;
+		try
+		{
+			if (owlqn)
+			{
+				DoubleOwlqnMinimizer minimizer = new DoubleOwlqnMinimizer(function, L1_REGULARIZATION_FACTOR);
+				if (checkpointer!=null) {minimizer.setCheckpointer(checkpointer);}
+				if (resumeFrom!=null) {minimizer.setResumeFrom(resumeFrom);}
+				minimizer.find();
+				return minimizer.getDoublePoint();
+			}
+			else
+			{
+				DoubleLbfgsMinimizer minimizer = new DoubleLbfgsMinimizer(function);
+				if (checkpointer!=null) {minimizer.setCheckpointer(checkpointer);}
+				if (resumeFrom!=null) {minimizer.setResumeFrom(resumeFrom);}
+				minimizer.find();
+				return minimizer.getDoublePoint();
+			}
+		}
+		finally
+		{
+			if (checkpointer!=null) {checkpointer.close();}
+		}
+	}
+
+
+	@SuppressWarnings("serial")
+	private static class InterruptionException extends RuntimeException
+	{
+	}
+
+	/**
+	 * \sum_i{log(1+e^{-y_i*(a_i*x)})} + 0.5*||x||^2, over fixed random examples (a_i,y_i). Fails by {@link InterruptionException}
+	 * after the given number of evaluations.
+	 */
+	private static class LogisticLoss extends DoubleDerivableFunction
+	{
+		public LogisticLoss(int maximumNumberOfEvaluations)
+		{
+			this.maximumNumberOfEvaluations = maximumNumberOfEvaluations;
+			Random random = new Random(1);
+			for (int example=0;example<NUMBER_OF_EXAMPLES;++example)
+			{
+				for (int index=0;index<SIZE;++index)
+				{
+					examples[example][index] = random.nextGaussian();
+				}
+				labels[example] = ((examples[example][0]+0.5*examples[example][1]+0.3*random.nextGaussian())>0.0)?1.0:-1.0;
+			}
+		}
+
+		@Override
+		public double valueAndGradient(double[] point, double[] gradient)
+		{
+			if (numberOfEvaluations>=maximumNumberOfEvaluations) {throw new InterruptionException();}
+			++numberOfEvaluations;
+			double value = 0.0;
+			for (int index=0;index<SIZE;++index)
+			{
+				value += 0.5*point[index]*point[index];
+				gradient[index] = point[index];
+			}
+			for (int example=0;example<NUMBER_OF_EXAMPLES;++example)
+			{
+				double margin = 0.0;
+				for (int index=0;index<SIZE;++index)
+				{
+					margin += examples[example][index]*point[index];
+				}
+				margin *= labels[example];
+				value += Math.log1p(Math.exp(-margin));
+				final double factor = -labels[example]/(1.0+Math.exp(margin));
+				for (int index=0;index<SIZE;++index)
+				{
+					gradient[index] += factor*examples[example][index];
+				}
+			}
+			return value;
+		}
+
+		@Override
+		public double value(double[] point)
+		{
+			return valueAndGradient(point, new double[SIZE]);
+		}
+
+		@Override
+		public double[] gradient(double[] point)
+		{
+			double[] gradient = new double[SIZE];
+			valueAndGradient(point, gradient);
+			return gradient;
+		}
+
+		@Override
+		public int size()
+		{
+			return SIZE;
+		}
+
+		private final int maximumNumberOfEvaluations;
+		private final double[][] examples = new double[NUMBER_OF_EXAMPLES][SIZE];
+		private final double[] labels = new double[NUMBER_OF_EXAMPLES];
+		private int numberOfEvaluations = 0;
+	}
+}
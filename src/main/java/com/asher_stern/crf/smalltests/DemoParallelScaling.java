@@ -0,0 +1,128 @@
+package com.asher_stern.crf.smalltests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Level;
+
+import com.asher_stern.crf.crf.CrfCorpusFeatureCache;
+import com.asher_stern.crf.crf.CrfLogSpaceLogLikelihoodFunction;
+import com.asher_stern.crf.crf.run.CrfTrainer;
+import com.asher_stern.crf.crf.run.CrfTrainerFactory;
+import com.asher_stern.crf.postagging.data.LimitedSizePosTagCorpusReader;
+import com.asher_stern.crf.postagging.data.penn.PennCorpus;
+import com.asher_stern.crf.postagging.postaggers.crf.features.StandardFeatureGenerator;
+import com.asher_stern.crf.postagging.postaggers.crf.features.StandardFilterFactory;
+import com.asher_stern.crf.postagging.postaggers.crf.features.Vocabulary;
+import com.asher_stern.crf.utilities.TaggedToken;
+import com.asher_stern.crf.utilities.log4j.Log4jInit;
+
+/**
+ * Measures how the calculation of the log-likelihood function and its gradient scales with the number of threads.
+ * <BR>
+ * Usage: DemoParallelScaling &lt;penn-corpus-directory&gt; [number-of-sentences] [number-of-evaluations]
+ * <BR>
+ * For 1, 2, 4, ... threads (up to the number of available processors), the value and the gradient of
+ * {@link CrfLogSpaceLogLikelihoodFunction} are calculated several times, and the average time, the speedup relative to
+ * a single thread, and the parallel efficiency (speedup divided by the number of threads) are printed.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class DemoParallelScaling
+{
+	public static final int DEFAULT_NUMBER_OF_SENTENCES = 2000;
+	public static final int DEFAULT_NUMBER_OF_EVALUATIONS = 5;
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			Log4jInit.init(Level.INFO);
+			int numberOfSentences = (args.length>1)?Integer.parseInt(args[1]):DEFAULT_NUMBER_OF_SENTENCES;
+			int numberOfEvaluations = (args.length>2)?Integer.parseInt(args[2]):DEFAULT_NUMBER_OF_EVALUATIONS;
+			new DemoParallelScaling().go(new File(args[0]), numberOfSentences, numberOfEvaluations);
+		}
+		catch(Throwable t)
+		{
+			t.printStackTrace(System.out);
+		}
+	}
+
+	public void go(File directory, int numberOfSentences, int numberOfEvaluations)
+	{
+		List<List<? extends TaggedToken<String, String>>> corpus = new ArrayList<List<? extends TaggedToken<String, String>>>();
+		LimitedSizePosTagCorpusReader<String,String> reader = new LimitedSizePosTagCorpusReader<String,String>(new PennCorpus(directory).iterator(),numberOfSentences);
+		while (reader.hasNext())
+		{
+			corpus.add(reader.next());
+		}
+
+		final Vocabulary vocabulary = Vocabulary.build(corpus);
+		CrfTrainer<String, String> trainer = new CrfTrainerFactory<String, String>().createTrainer(corpus,
+				(Iterable<? extends List<? extends TaggedToken<String, String>>> theCorpus, Set<String> tags) -> new StandardFeatureGenerator(theCorpus, tags, vocabulary),
+				new StandardFilterFactory(vocabulary));
+		CrfCorpusFeatureCache<String, String> featureCache = CrfCorpusFeatureCache.create(corpus, trainer.getFeatures(), trainer.getCrfTags(), CrfCorpusFeatureCache.DEFAULT_MAXIMUM_NUMBER_OF_ENTRIES);
+
+		final int maximumNumberOfThreads = Runtime.getRuntime().availableProcessors();
+		System.out.println("Sentences: "+corpus.size()+". Features: "+trainer.getFeatures().getFilteredFeatures().length+". Available processors: "+maximumNumberOfThreads+".");
+		System.out.println(String.format("%-8s %-12s %-8s %-10s", "threads", "ms/eval", "speedup", "efficiency"));
+
+		double singleThreadTime = 0.0;
+		for (int numberOfThreads=1;numberOfThreads<=maximumNumberOfThreads;numberOfThreads=nextNumberOfThreads(numberOfThreads, maximumNumberOfThreads))
+		{
+			double time = measure(featureCache, numberOfThreads, numberOfEvaluations);
+			if (1==numberOfThreads) {singleThreadTime = time;}
+			double speedup = singleThreadTime/time;
+			System.out.println(String.format("%-8d %-12.1f %-8.2f %-10.2f", numberOfThreads, time, speedup, speedup/numberOfThreads));
+		}
+	}
+
+
+
+	private static int nextNumberOfThreads(int numberOfThreads, int maximumNumberOfThreads)
+	{
+		if ( (numberOfThreads<maximumNumberOfThreads) && ((numberOfThreads*2)>maximumNumberOfThreads) )
+		{
+			return maximumNumberOfThreads;
+		}
+		return numberOfThreads*2;
+	}
+
+	/**
+	 * Returns the average time, in milliseconds, of a single calculation of the value and the gradient.
+	 */
+	private static double measure(CrfCorpusFeatureCache<String, String> featureCache, int numberOfThreads, int numberOfEvaluations)
+	{
+		CrfLogSpaceLogLikelihoodFunction<String, String> function = new CrfLogSpaceLogLikelihoodFunction<String, String>(featureCache, CrfTrainer.DEFAULT_USE_REGULARIZATION, CrfTrainer.DEFAULT_SIGMA_SQUARED_INVERSE_REGULARIZATION_FACTOR);
+		function.setNumberOfThreads(numberOfThreads);
+		double[] point = new double[function.size()];
+		for (int index=0;index<point.length;++index)
+		{
+			point[index] = ((index%7)-3)*0.01;
+		}
+		double[] gradient = new double[point.length];
+
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try
+		{
+			function.setExecutor(executor);
+			function.valueAndGradient(point, gradient); // warm up
+			long startTime = System.nanoTime();
+			for (int evaluation=0;evaluation<numberOfEvaluations;++evaluation)
+			{
+				function.valueAndGradient(point, gradient);
+			}
+			return (System.nanoTime()-startTime)/(1000000.0*numberOfEvaluations);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
@@ -92,6 +92,44 @@ public class ArithmeticUtilities
 		return d1.divide(d2, MC);
 	}
 	
+	/**
+	 * Returns log(e^a + e^b), computed without overflow (or underflow) of the exponents.
+	 * Either argument may be {@link Double#NEGATIVE_INFINITY}, which stands for log(0).
+	 */
+	public static double logSumExp(final double a, final double b)
+	{
+		if (a==Double.NEGATIVE_INFINITY) {return b;}
+		if (b==Double.NEGATIVE_INFINITY) {return a;}
+		if (a>b)
+		{
+			return a + Math.log1p(Math.exp(b-a));
+		}
+		else
+		{
+			return b + Math.log1p(Math.exp(a-b));
+		}
+	}
+	
+	/**
+	 * Returns log(\Sum_i e^{values[i]}), for i in [0,length), computed without overflow (or underflow) of the exponents.
+	 * Returns {@link Double#NEGATIVE_INFINITY} if all the values are {@link Double#NEGATIVE_INFINITY} (or if length is 0).
+	 */
+	public static double logSumExp(final double[] values, final int length)
+	{
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i=0;i<length;++i)
+		{
+			if (values[i]>max) {max=values[i];}
+		}
+		if (max==Double.NEGATIVE_INFINITY) {return Double.NEGATIVE_INFINITY;}
+		double sum = 0.0;
+		for (int i=0;i<length;++i)
+		{
+			sum += Math.exp(values[i]-max);
+		}
+		return max + Math.log(sum);
+	}
+	
 	@SuppressWarnings("unused")
 	private static final Logger logger = Logger.getLogger(ArithmeticUtilities.class);
 }
@@ -5,6 +5,7 @@ import java.math.BigDecimal;
 import org.apache.log4j.Logger;
 
 import com.asher_stern.crf.function.DerivableFunction;
+import com.asher_stern.crf.function.ValueAndGradient;
 
 /**
  * A {@link DerivableFunction} that remembers the last computed value and gradient.
@@ -65,6 +66,28 @@ public class DerivableFunctionWithLastCache extends DerivableFunction
 		return ret;
 	}
 
+	
+	/**
+	 * Returns the value and the gradient from the cache if both are there. Otherwise, calculates both by the real function's
+	 * {@link DerivableFunction#valueAndGradient(BigDecimal[])}, and puts both into the cache.
+	 */
+	@Override
+	public ValueAndGradient valueAndGradient(BigDecimal[] point)
+	{
+		BigDecimalArrayWrapper wrappedPoint = new BigDecimalArrayWrapper(point);
+		BigDecimal valueFromCache = valueCache.get(wrappedPoint);
+		BigDecimal[] gradientFromCache = gradientCache.get(wrappedPoint);
+		if ( (valueFromCache!=null) && (gradientFromCache!=null) )
+		{
+			logger.debug("Returning value and gradient from cache");
+			return new ValueAndGradient(valueFromCache, gradientFromCache);
+		}
+		ValueAndGradient calculated = realFunction.valueAndGradient(point);
+		valueCache.put(wrappedPoint, calculated.getValue());
+		gradientCache.put(wrappedPoint, calculated.getGradient());
+		return calculated;
+	}
+
 
 	@Override
 	public int size()
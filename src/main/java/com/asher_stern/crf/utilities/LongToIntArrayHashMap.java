@@ -0,0 +1,123 @@
+package com.asher_stern.crf.utilities;
+
+/**
+ * A hash map from primitive <tt>long</tt> keys to <tt>int[]</tt> values, implemented by open addressing (linear probing)
+ * over primitive arrays.
+ * <BR>
+ * Unlike {@link java.util.HashMap}, neither {@link #put(long, int[])} nor {@link #get(long)} allocates any object, and
+ * no key is boxed.
+ * <BR>
+ * The key 0 is reserved (it marks an empty slot), and cannot be put into the map.
+ * The map is not thread safe for modifications, but can be read concurrently once all the keys have been put.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class LongToIntArrayHashMap
+{
+	public LongToIntArrayHashMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * Constructs an empty map, which can hold the given number of keys without being resized.
+	 * @param expectedSize the expected number of keys.
+	 */
+	public LongToIntArrayHashMap(int expectedSize)
+	{
+		int capacity = 2;
+		while (capacity < (expectedSize*2)) {capacity <<= 1;}
+		keys = new long[capacity];
+		values = new int[capacity][];
+		mask = capacity-1;
+		size = 0;
+	}
+
+	/**
+	 * Returns the value of the given key, or null if the key is not in the map.
+	 */
+	public int[] get(final long key)
+	{
+		if (0L==key) {return null;}
+		int slot = slot(key);
+		while (true)
+		{
+			final long keyInSlot = keys[slot];
+			if (keyInSlot==key) {return values[slot];}
+			if (0L==keyInSlot) {return null;}
+			slot = (slot+1)&mask;
+		}
+	}
+
+	/**
+	 * Puts the given value for the given key, replacing the value that was put earlier for that key (if any).
+	 * @param key any key other than 0.
+	 * @param value the value.
+	 */
+	public void put(final long key, final int[] value)
+	{
+		if (0L==key) {throw new CrfException("The key 0 is reserved.");}
+		if ( (size+1)*2 > keys.length ) {resize();}
+		int slot = slot(key);
+		while (true)
+		{
+			final long keyInSlot = keys[slot];
+			if (keyInSlot==key)
+			{
+				values[slot] = value;
+				return;
+			}
+			if (0L==keyInSlot)
+			{
+				keys[slot] = key;
+				values[slot] = value;
+				++size;
+				return;
+			}
+			slot = (slot+1)&mask;
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+
+
+	private int slot(long key)
+	{
+		// The finalizer of MurmurHash3, so keys that differ only in their high bits are spread over the table.
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= (key >>> 33);
+		return ((int)key)&mask;
+	}
+
+	private void resize()
+	{
+		final long[] oldKeys = keys;
+		final int[][] oldValues = values;
+		keys = new long[oldKeys.length*2];
+		values = new int[oldKeys.length*2][];
+		mask = keys.length-1;
+		size = 0;
+		for (int index=0;index<oldKeys.length;++index)
+		{
+			if (oldKeys[index]!=0L)
+			{
+				put(oldKeys[index], oldValues[index]);
+			}
+		}
+	}
+
+
+	private long[] keys;
+	private int[][] values;
+	private int mask;
+	private int size;
+}
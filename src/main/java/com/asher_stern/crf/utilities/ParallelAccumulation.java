@@ -0,0 +1,270 @@
+package com.asher_stern.crf.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sums, in parallel, vectors of doubles (and scalars) contributed by a set of items (e.g., the sentences of a corpus).
+ * <BR>
+ * The items are split into chunks, and each chunk is processed by a single task, which adds the contributions of its items into
+ * its own private array. Thus, no synchronization is required while the items are processed.
+ * When all the chunks are processed, their arrays are merged by a tree reduction: in each level, the array of each odd chunk
+ * is added into the array of its even neighbor, and the additions of the same level are performed in parallel.
+ * <BR>
+ * If the sizes of the items are given (e.g., the lengths of the sentences), the chunks are balanced by these sizes: the items
+ * are assigned, from the largest to the smallest, each to the chunk whose total size is currently the smallest, and each chunk
+ * processes its items from the largest to the smallest. Otherwise, the chunks are contiguous ranges of items of equal counts.
+ * Either way, the chunks and the merge order depend only on the number of chunks (and the sizes), so the result is
+ * deterministic.
+ * <BR>
+ * The tasks run on a given executor, which is typically owned by the caller for a long time (e.g., for a whole training), and
+ * is not shut down here. If no executor is given, a temporary one is created, and shut down at the end of {@link #calculate(ItemAccumulator)}.
+ *
+ * <p>
+ * Date: Oct 16, 2026
+ *
+ */
+public class ParallelAccumulation
+{
+	/**
+	 * The contribution of a single item.
+	 */
+	public static interface ItemAccumulator
+	{
+		/**
+		 * Adds the vector contributed by the given item into the given accumulator, and returns the scalar contributed by this item.
+		 * The accumulator is used only by the calling thread.
+		 */
+		public double accumulate(int itemIndex, double[] accumulator);
+	}
+
+
+	/**
+	 * Returns the default number of chunks, which is the number of available processors.
+	 */
+	public static int defaultNumberOfChunks()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+
+	/**
+	 * Constructor, for items of (roughly) equal sizes.
+	 * @param executor the executor which runs the tasks, or null (see above).
+	 * @param numberOfChunks the number of chunks (one private array is allocated for each chunk).
+	 * @param numberOfItems the number of items.
+	 * @param length the length of the summed vector.
+	 */
+	public ParallelAccumulation(ExecutorService executor, int numberOfChunks, int numberOfItems, int length)
+	{
+		this(executor, length, contiguousChunks(validateNumberOfChunks(numberOfChunks), numberOfItems));
+	}
+
+	/**
+	 * Constructor, for items of the given sizes, for which the chunks are balanced.
+	 * @param executor the executor which runs the tasks, or null (see above).
+	 * @param numberOfChunks the number of chunks (one private array is allocated for each chunk).
+	 * @param itemSizes the size of each item. The number of items is the length of this array.
+	 * @param length the length of the summed vector.
+	 */
+	public ParallelAccumulation(ExecutorService executor, int numberOfChunks, int[] itemSizes, int length)
+	{
+		this(executor, length, balancedChunks(validateNumberOfChunks(numberOfChunks), itemSizes));
+	}
+
+
+	public void calculate(final ItemAccumulator itemAccumulator)
+	{
+		final int numberOfChunks = chunks.length;
+		final double[][] partialSums = new double[numberOfChunks][];
+		final double[] partialScalarSums = new double[numberOfChunks];
+
+		ExecutorService executor = (null==this.executor)?Executors.newFixedThreadPool(numberOfChunks):this.executor;
+		try
+		{
+			List<Future<?>> futures = new ArrayList<>(numberOfChunks);
+			for (int chunk=0;chunk<numberOfChunks;++chunk)
+			{
+				final int chunkIndex = chunk;
+				futures.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						double[] accumulator = new double[length];
+						double scalarSum = 0.0;
+						for (int itemIndex : chunks[chunkIndex])
+						{
+							scalarSum += itemAccumulator.accumulate(itemIndex, accumulator);
+						}
+						partialSums[chunkIndex] = accumulator;
+						partialScalarSums[chunkIndex] = scalarSum;
+					}
+				}));
+			}
+			waitFor(futures);
+
+			for (int stride=1;stride<numberOfChunks;stride*=2)
+			{
+				futures.clear();
+				for (int chunk=0;(chunk+stride)<numberOfChunks;chunk+=(2*stride))
+				{
+					final double[] target = partialSums[chunk];
+					final double[] source = partialSums[chunk+stride];
+					partialScalarSums[chunk] += partialScalarSums[chunk+stride];
+					futures.add(executor.submit(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							for (int index=0;index<target.length;++index)
+							{
+								target[index] += source[index];
+							}
+						}
+					}));
+					partialSums[chunk+stride] = null;
+				}
+				waitFor(futures);
+			}
+		}
+		finally
+		{
+			if (null==this.executor) {executor.shutdown();}
+		}
+
+		sum = partialSums[0];
+		scalarSum = partialScalarSums[0];
+	}
+
+
+	public double[] getSum()
+	{
+		if (null==sum) {throw new CrfException("Not calculated.");}
+		return sum;
+	}
+
+	public double getScalarSum()
+	{
+		if (null==sum) {throw new CrfException("Not calculated.");}
+		return scalarSum;
+	}
+
+
+
+	private ParallelAccumulation(ExecutorService executor, int length, int[][] chunks)
+	{
+		super();
+		this.executor = executor;
+		this.length = length;
+		this.chunks = chunks;
+	}
+
+	private static int validateNumberOfChunks(int numberOfChunks)
+	{
+		if (numberOfChunks<=0) {throw new CrfException("The number of chunks must be positive.");}
+		return numberOfChunks;
+	}
+
+	private static int[][] contiguousChunks(int numberOfChunks, int numberOfItems)
+	{
+		numberOfChunks = Math.max(1, Math.min(numberOfChunks, numberOfItems));
+		int[][] chunks = new int[numberOfChunks][];
+		for (int chunk=0;chunk<numberOfChunks;++chunk)
+		{
+			final int from = (int)(((long)chunk*numberOfItems)/numberOfChunks);
+			final int to = (int)(((long)(chunk+1)*numberOfItems)/numberOfChunks);
+			chunks[chunk] = new int[to-from];
+			for (int itemIndex=from;itemIndex<to;++itemIndex)
+			{
+				chunks[chunk][itemIndex-from] = itemIndex;
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Splits the items of the given sizes into at most the given number of chunks, balanced by their sizes, as described above.
+	 * This is the split used by {@link #ParallelAccumulation(ExecutorService, int, int[], int)}, for tasks that are not sums of vectors.
+	 * @return for each chunk, the indexes of its items, from the largest to the smallest.
+	 */
+	public static int[][] balancedChunks(int numberOfChunks, int[] itemSizes)
+	{
+		validateNumberOfChunks(numberOfChunks);
+		final int numberOfItems = itemSizes.length;
+		numberOfChunks = Math.max(1, Math.min(numberOfChunks, numberOfItems));
+
+		// Sort the items by decreasing size (and by increasing index for equal sizes).
+		long[] sortKeys = new long[numberOfItems];
+		for (int itemIndex=0;itemIndex<numberOfItems;++itemIndex)
+		{
+			sortKeys[itemIndex] = (((long)(Integer.MAX_VALUE-itemSizes[itemIndex]))<<32) | itemIndex;
+		}
+		Arrays.sort(sortKeys);
+
+		// Assign each item to the chunk whose total size is currently the smallest.
+		int[] chunkOfItem = new int[numberOfItems];
+		int[] chunkLengths = new int[numberOfChunks];
+		long[] chunkSizes = new long[numberOfChunks];
+		for (long sortKey : sortKeys)
+		{
+			final int itemIndex = (int)(sortKey & 0xFFFFFFFFL);
+			int smallestChunk = 0;
+			for (int chunk=1;chunk<numberOfChunks;++chunk)
+			{
+				if (chunkSizes[chunk]<chunkSizes[smallestChunk]) {smallestChunk = chunk;}
+			}
+			chunkOfItem[itemIndex] = smallestChunk;
+			chunkSizes[smallestChunk] += itemSizes[itemIndex];
+			++chunkLengths[smallestChunk];
+		}
+
+		int[][] chunks = new int[numberOfChunks][];
+		for (int chunk=0;chunk<numberOfChunks;++chunk)
+		{
+			chunks[chunk] = new int[chunkLengths[chunk]];
+		}
+		int[] filled = new int[numberOfChunks];
+		for (long sortKey : sortKeys)
+		{
+			final int itemIndex = (int)(sortKey & 0xFFFFFFFFL);
+			final int chunk = chunkOfItem[itemIndex];
+			chunks[chunk][filled[chunk]] = itemIndex;
+			++filled[chunk];
+		}
+		return chunks;
+	}
+
+	private static void waitFor(List<Future<?>> futures)
+	{
+		for (Future<?> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new CrfException(e);
+			}
+			catch (ExecutionException e)
+			{
+				throw new CrfException(e);
+			}
+		}
+	}
+
+
+	private final ExecutorService executor; // null if a temporary executor should be created for each calculation
+	private final int length;
+	private final int[][] chunks; // [chunk] -> the indexes of its items, in the order they are processed
+
+	private double[] sum = null;
+	private double scalarSum = 0.0;
+}
@@ -62,25 +62,32 @@ public class TopK_DateStructure<T>
 	}
 	
 	/**
-	 * Get the top-k items among all the items that were inserted to this data-structure so far.
+	 * Get the top-k items among all the items that were inserted to this data-structure so far, sorted from the top
+	 * item downwards. If fewer than k items were inserted, all of them are returned.
 	 * <B>Note that this method has time complexity of O(k*log(k)).</B>
 	 * @return
 	 */
 	public ArrayList<T> getTopK()
 	{
-		if (index>k)
-		{
-			sortAndShrink();
-		}
+		sortAndShrink();
 		
-		ArrayList<T> topKAsList = new ArrayList<T>();
-		for (int i=0;i<k;++i)
+		ArrayList<T> topKAsList = new ArrayList<T>(index);
+		for (int i=0;i<index;++i)
 		{
 			topKAsList.add(storage[i]);
 		}
 		return topKAsList;
 	}
 	
+	/**
+	 * Removes all the items, so this data-structure can be reused.
+	 */
+	public void clear()
+	{
+		Arrays.fill(storage, 0, index, null);
+		index = 0;
+	}
+	
 	
 	private void sortAndShrink()
 	{
@@ -93,7 +100,7 @@ public class TopK_DateStructure<T>
 			Arrays.sort(storage, 0, index, Collections.reverseOrder(comparator));
 		}
 		
-		index = k;
+		index = Math.min(index, k);
 	}
 
 	private final int k;
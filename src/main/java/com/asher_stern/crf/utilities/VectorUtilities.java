@@ -85,6 +85,81 @@ public class VectorUtilities
 		return product(vector, vector);
 	}
 	
+	/**
+	 * Returns a new <tt>double</tt> array with the values of the given {@link BigDecimal} array.
+	 * @param vector
+	 * @return
+	 */
+	public static double[] toDoubleArray(BigDecimal[] vector)
+	{
+		double[] ret = new double[vector.length];
+		for (int i=0;i<vector.length;++i)
+		{
+			ret[i] = vector[i].doubleValue();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns a new {@link BigDecimal} array with the values of the given <tt>double</tt> array.
+	 * @param vector
+	 * @return
+	 */
+	public static BigDecimal[] toBigDecimalArray(double[] vector)
+	{
+		BigDecimal[] ret = new BigDecimal[vector.length];
+		for (int i=0;i<vector.length;++i)
+		{
+			ret[i] = big(vector[i]);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the inner product of the two given <tt>double</tt> vectors.
+	 */
+	public static double product(double[] rowVector, double[] columnVector)
+	{
+		if (rowVector.length!=columnVector.length) throw new CrfException("Cannot multiply vector of different sizes.");
+		double ret = 0.0;
+		for (int i=0;i<rowVector.length;++i)
+		{
+			ret += rowVector[i]*columnVector[i];
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the square of the Euclidean norm of the given <tt>double</tt> vector.
+	 */
+	public static double euclideanNormSquare(double[] vector)
+	{
+		return product(vector, vector);
+	}
+	
+	/**
+	 * Adds scalar*vector into the given target vector, in place (target = target + scalar*vector). No array is created.
+	 */
+	public static void addMultiplied(double[] target, double scalar, double[] vector)
+	{
+		if (target.length!=vector.length) throw new CrfException("Cannot add vector of different sizes.");
+		for (int i=0;i<target.length;++i)
+		{
+			target[i] += scalar*vector[i];
+		}
+	}
+	
+	/**
+	 * Multiplies the given vector by the given scalar, in place. No array is created.
+	 */
+	public static void multiplyByScalarInPlace(double scalar, double[] vector)
+	{
+		for (int i=0;i<vector.length;++i)
+		{
+			vector[i] *= scalar;
+		}
+	}
+	
 //	public static double euclideanNorm(double[] vector)
 //	{
 //		return Math.sqrt(euclideanNormSquare(vector));